@@ -0,0 +1,176 @@
+package com.hmithinkware.bluetooth_application;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothStatusCodes;
+import android.content.Context;
+import android.os.Build;
+
+import com.hmithinkware.bluetooth_application.link.GattPeer;
+import com.hmithinkware.bluetooth_application.link.GattTransport;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+// GattPeer on the Android stack, for peripherals with the Nordic UART service that most BLE
+// serial firmware copies. Callers must hold BLUETOOTH_CONNECT on Android 12+.
+@SuppressLint("MissingPermission")
+class BleGattPeer implements GattPeer {
+    static final UUID UART_SERVICE = UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E");
+    // Named from the peripheral's side: the phone writes RX and is notified on TX
+    static final UUID UART_RX = UUID.fromString("6E400002-B5A3-F393-E0A9-E50E24DCCA9E");
+    static final UUID UART_TX = UUID.fromString("6E400003-B5A3-F393-E0A9-E50E24DCCA9E");
+    private static final UUID CLIENT_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+
+    private final Context mmContext;
+    private final BluetoothDevice mmDevice;
+    private volatile GattPeer.Callback mmCallback;
+    private volatile BluetoothGatt mmGatt;
+    private volatile BluetoothGattCharacteristic mmRx;
+
+    private final BluetoothGattCallback mmGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED) {
+                if (!gatt.discoverServices()) {
+                    fail("Service discovery refused");
+                }
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                fail("GATT disconnected, status " + status);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            BluetoothGattService service = status == BluetoothGatt.GATT_SUCCESS ? gatt.getService(UART_SERVICE) : null;
+            BluetoothGattCharacteristic rx = service != null ? service.getCharacteristic(UART_RX) : null;
+            BluetoothGattCharacteristic tx = service != null ? service.getCharacteristic(UART_TX) : null;
+            BluetoothGattDescriptor config = tx != null ? tx.getDescriptor(CLIENT_CONFIG) : null;
+            if (rx == null || config == null) {
+                fail("No UART service on " + mmDevice.getAddress());
+                return;
+            }
+            rx.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            mmRx = rx;
+            if (!gatt.setCharacteristicNotification(tx, true) || !writeDescriptor(gatt, config)) {
+                fail("Could not enable notifications");
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mmCallback.onReady();
+            } else {
+                fail("Enabling notifications failed, status " + status);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            mmCallback.onMtuChanged(status == BluetoothGatt.GATT_SUCCESS ? mtu : GattTransport.DEFAULT_MTU);
+        }
+
+        // For write-without-response this means the stack has buffered the packet
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mmCallback.onWriteSent();
+            } else {
+                fail("Write failed, status " + status);
+            }
+        }
+
+        // Android 13 calls this as well as the variant that takes the value, so only this one
+        // is overridden; it works on every version
+        @Override
+        @SuppressWarnings("deprecation")
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            if (UART_TX.equals(characteristic.getUuid())) {
+                mmCallback.onNotification(characteristic.getValue());
+            }
+        }
+    };
+
+    BleGattPeer(Context context, BluetoothDevice device) {
+        mmContext = context.getApplicationContext();
+        mmDevice = device;
+    }
+
+    @Override
+    public String getAddress() {
+        return mmDevice.getAddress();
+    }
+
+    @Override
+    public void connect(GattPeer.Callback callback) throws IOException {
+        mmCallback = callback;
+        BluetoothGatt gatt = mmDevice.connectGatt(mmContext, false, mmGattCallback, BluetoothDevice.TRANSPORT_LE);
+        if (gatt == null) {
+            throw new IOException("GATT connect refused");
+        }
+        mmGatt = gatt;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        BluetoothGatt gatt = mmGatt;
+        return gatt != null && gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean requestHighPriority() {
+        BluetoothGatt gatt = mmGatt;
+        return gatt != null && gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean writeWithoutResponse(byte[] data, int offset, int length) {
+        BluetoothGatt gatt = mmGatt;
+        BluetoothGattCharacteristic rx = mmRx;
+        if (gatt == null || rx == null) {
+            return false;
+        }
+        byte[] value = Arrays.copyOfRange(data, offset, offset + length);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return gatt.writeCharacteristic(rx, value, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE)
+                    == BluetoothStatusCodes.SUCCESS;
+        }
+        rx.setValue(value);
+        return gatt.writeCharacteristic(rx);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static boolean writeDescriptor(BluetoothGatt gatt, BluetoothGattDescriptor descriptor) {
+        byte[] enable = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return gatt.writeDescriptor(descriptor, enable) == BluetoothStatusCodes.SUCCESS;
+        }
+        descriptor.setValue(enable);
+        return gatt.writeDescriptor(descriptor);
+    }
+
+    private void fail(String message) {
+        GattPeer.Callback callback = mmCallback;
+        if (callback != null) {
+            callback.onDisconnected(new IOException(message));
+        }
+    }
+
+    @Override
+    public void close() {
+        BluetoothGatt gatt = mmGatt;
+        if (gatt != null) {
+            gatt.disconnect();
+            gatt.close();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.hmithinkware.bluetooth_application;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import com.hmithinkware.bluetooth_application.link.DeviceCache;
+import com.hmithinkware.bluetooth_application.link.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// RFCOMM transport to one device. Tries an authenticated socket first and falls back to an
+// insecure one, which is what many cheap SPP modules end up needing after a re-pair.
+// With a DeviceCache it connects straight to the channel the last SDP lookup found, in the
+// security mode that worked last time, and only does a fresh lookup if that fails.
+class BluetoothTransport implements Transport {
+    private static final String TAG = BluetoothTransport.class.getSimpleName();
+
+    private final BluetoothDevice mmDevice;
+    private final UUID mmServiceUuid;
+    private final DeviceCache mmCache;
+    private volatile BluetoothSocket mmSocket;
+    private volatile boolean mmSecure;
+    private volatile boolean mmClosed;
+
+    BluetoothTransport(BluetoothDevice device, UUID serviceUuid) {
+        this(device, serviceUuid, null);
+    }
+
+    BluetoothTransport(BluetoothDevice device, UUID serviceUuid, DeviceCache cache) {
+        mmDevice = device;
+        mmServiceUuid = serviceUuid;
+        mmCache = cache;
+    }
+
+    // Callers must hold BLUETOOTH_CONNECT on Android 12+
+    @Override
+    public void connect() throws IOException {
+        BluetoothSocket socket = mmSocket;
+        if (socket != null && socket.isConnected()) {
+            return;
+        }
+        long start = System.nanoTime();
+        DeviceCache.Entry cached = mmCache != null ? mmCache.get(getAddress()) : null;
+        int channel;
+        if (cached != null && cached.getChannel() > 0 && connectToChannel(cached.getChannel(), cached.isSecure())) {
+            channel = cached.getChannel();
+        } else {
+            connectWithLookup(cached == null || cached.isSecure());
+            channel = resolvedChannel(mmSocket);
+        }
+        if (mmCache != null) {
+            try {
+                mmCache.recordConnect(getAddress(), channel, mmSecure,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), System.currentTimeMillis());
+            } catch (IOException e) {
+                Log.w(TAG, "Could not update device cache", e);
+            }
+        }
+    }
+
+    // Skips SDP. Returns false, forgetting the channel, if the device no longer answers on it.
+    private boolean connectToChannel(int channel, boolean secure) throws IOException {
+        try {
+            connectWith(createChannelSocket(channel, secure));
+            mmSecure = secure;
+            return true;
+        } catch (IOException e) {
+            if (mmClosed) {
+                throw e;
+            }
+            Log.w(TAG, "Cached RFCOMM channel " + channel + " failed, falling back to SDP", e);
+            try {
+                mmCache.forgetChannel(getAddress());
+            } catch (IOException cacheFailure) {
+                Log.w(TAG, "Could not update device cache", cacheFailure);
+            }
+            return false;
+        }
+    }
+
+    // Resolves the channel through SDP, trying the preferred security mode first
+    private void connectWithLookup(boolean secureFirst) throws IOException {
+        try {
+            connectWith(createServiceSocket(secureFirst));
+            mmSecure = secureFirst;
+        } catch (IOException firstFailure) {
+            if (mmClosed) {
+                throw firstFailure;
+            }
+            Log.w(TAG, (secureFirst ? "Secure" : "Insecure") + " RFCOMM connect failed, retrying "
+                    + (secureFirst ? "insecure" : "secure"), firstFailure);
+            try {
+                connectWith(createServiceSocket(!secureFirst));
+                mmSecure = !secureFirst;
+            } catch (IOException secondFailure) {
+                secondFailure.addSuppressed(firstFailure);
+                throw secondFailure;
+            }
+        }
+    }
+
+    private BluetoothSocket createServiceSocket(boolean secure) throws IOException {
+        return secure
+                ? mmDevice.createRfcommSocketToServiceRecord(mmServiceUuid)
+                : mmDevice.createInsecureRfcommSocketToServiceRecord(mmServiceUuid);
+    }
+
+    // There is no public API for a socket on a known channel; these are hidden but long-lived
+    private BluetoothSocket createChannelSocket(int channel, boolean secure) throws IOException {
+        try {
+            Method create = BluetoothDevice.class.getMethod(
+                    secure ? "createRfcommSocket" : "createInsecureRfcommSocket", int.class);
+            return (BluetoothSocket) create.invoke(mmDevice, channel);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new IOException("Direct RFCOMM channel sockets not available", e);
+        }
+    }
+
+    // The channel SDP resolved to, or 0 where the platform doesn't let us see it
+    private static int resolvedChannel(BluetoothSocket socket) {
+        try {
+            Object port = BluetoothSocket.class.getMethod("getPort").invoke(socket);
+            return port instanceof Integer && (Integer) port > 0 ? (Integer) port : 0;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private void connectWith(BluetoothSocket socket) throws IOException {
+        mmSocket = socket;
+        if (mmClosed) {
+            // close() may have run before the socket was published
+            socket.close();
+            throw new IOException("Transport closed");
+        }
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
+    }
+
+    boolean isSecure() {
+        return mmSecure;
+    }
+
+    @Override
+    public boolean isConnected() {
+        BluetoothSocket socket = mmSocket;
+        return socket != null && socket.isConnected();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return requireSocket().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return requireSocket().getOutputStream();
+    }
+
+    @Override
+    public String getAddress() {
+        return mmDevice.getAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mmClosed = true;
+        BluetoothSocket socket = mmSocket;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    private BluetoothSocket requireSocket() throws IOException {
+        BluetoothSocket socket = mmSocket;
+        if (socket == null) {
+            throw new IOException("Not connected");
+        }
+        return socket;
+    }
+}
@@ -0,0 +1,112 @@
+package com.hmithinkware.bluetooth_application;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.hmithinkware.bluetooth_application.link.Lttb;
+import com.hmithinkware.bluetooth_application.link.SampleAggregator;
+import com.hmithinkware.bluetooth_application.link.SampleWindow;
+import com.hmithinkware.bluetooth_application.link.WindowStats;
+
+import java.util.Locale;
+
+// Line chart of one channel of a SampleAggregator. Each draw copies the channel's window,
+// reduces it to one point per pixel column with LTTB and draws that, so the cost per frame
+// depends on the view width and window size, never on the sample rate. Tap to cycle channels.
+public class ChartView extends View {
+    // Most recent values charted per channel; matches the aggregator's window
+    static final int WINDOW = 4096;
+    private static final int MAX_POINTS = 2048;
+
+    private final double[] mmValues = new double[WINDOW];
+    private final int[] mmPicked = new int[MAX_POINTS];
+    private final float[] mmLines = new float[MAX_POINTS * 4];
+    private final WindowStats mmStats = new WindowStats(WINDOW);
+    private final Paint mmLinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mmTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mmAxisPaint = new Paint();
+    private SampleAggregator mmSource;
+    private int mmChannel;
+
+    public ChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mmLinePaint.setColor(Color.rgb(0x1E, 0x88, 0xE5));
+        mmLinePaint.setStrokeWidth(2 * getResources().getDisplayMetrics().density);
+        mmTextPaint.setColor(Color.DKGRAY);
+        mmTextPaint.setTextSize(12 * getResources().getDisplayMetrics().scaledDensity);
+        mmAxisPaint.setColor(Color.LTGRAY);
+        setOnClickListener(v -> {
+            SampleAggregator source = mmSource;
+            if (source != null && source.channelCount() > 0) {
+                mmChannel = (mmChannel + 1) % source.channelCount();
+                invalidate();
+            }
+        });
+    }
+
+    // UI thread. A new source starts at its first channel.
+    void setSource(SampleAggregator source) {
+        if (source != mmSource) {
+            mmSource = source;
+            mmChannel = 0;
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        float textHeight = mmTextPaint.getTextSize();
+        SampleAggregator source = mmSource;
+        SampleAggregator.Channel channel = source != null ? source.channel(mmChannel) : null;
+        if (channel == null) {
+            canvas.drawText(getContext().getString(R.string.chart_no_data), 0, textHeight, mmTextPaint);
+            return;
+        }
+        SampleWindow window = channel.getWindow();
+        int count = window.copyTo(mmValues);
+        mmStats.compute(mmValues, count);
+        canvas.drawText(String.format(Locale.US, "%s  min %.3g  max %.3g  mean %.3g  p50 %.3g  p99 %.3g",
+                channel.getName(), mmStats.min(), mmStats.max(), mmStats.mean(),
+                mmStats.percentile(50), mmStats.percentile(99)), 0, textHeight, mmTextPaint);
+        float top = textHeight * 1.5f;
+        float height = getHeight() - top;
+        float width = getWidth();
+        canvas.drawLine(0, getHeight() - 1, width, getHeight() - 1, mmAxisPaint);
+        if (mmStats.count() < 2 || width < 3) {
+            return;
+        }
+        int budget = Math.max(3, Math.min((int) width, MAX_POINTS));
+        int points = Lttb.downsample(mmValues, count, budget, mmPicked);
+        double min = mmStats.min();
+        double range = mmStats.max() - min;
+        float xScale = width / Math.max(1, count - 1);
+        float previousX = 0;
+        float previousY = 0;
+        int lines = 0;
+        boolean havePrevious = false;
+        for (int i = 0; i < points; i++) {
+            double value = mmValues[mmPicked[i]];
+            if (Double.isNaN(value)) {
+                havePrevious = false;
+                continue;
+            }
+            float x = mmPicked[i] * xScale;
+            float y = top + (float) (range == 0 ? height / 2 : (1 - (value - min) / range) * height);
+            if (havePrevious) {
+                mmLines[lines++] = previousX;
+                mmLines[lines++] = previousY;
+                mmLines[lines++] = x;
+                mmLines[lines++] = y;
+            }
+            previousX = x;
+            previousY = y;
+            havePrevious = true;
+        }
+        canvas.drawLines(mmLines, 0, lines, mmLinePaint);
+    }
+}
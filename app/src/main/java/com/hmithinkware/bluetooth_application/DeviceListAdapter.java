@@ -0,0 +1,81 @@
+package com.hmithinkware.bluetooth_application;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.hmithinkware.bluetooth_application.link.DeviceRegistry;
+
+// List adapter over a DeviceRegistry. refresh() applies the registry's batched changes:
+// rows that changed in place are rebound directly if on screen, and the list is only
+// re-laid-out when devices were added.
+class DeviceListAdapter extends BaseAdapter {
+    private final LayoutInflater mmInflater;
+    private final DeviceRegistry mmRegistry;
+    private final DeviceRegistry.Changes mmChanges = new DeviceRegistry.Changes();
+    private int mmCount;
+
+    DeviceListAdapter(LayoutInflater inflater, DeviceRegistry registry) {
+        mmInflater = inflater;
+        mmRegistry = registry;
+    }
+
+    // Call on the UI thread, at most once per frame
+    void refresh(ListView list) {
+        mmRegistry.drainChanges(mmChanges);
+        if (mmChanges.insertedCount() > 0) {
+            mmCount = mmRegistry.size();
+            notifyDataSetChanged();
+            return;
+        }
+        int first = list.getFirstVisiblePosition();
+        for (int i = 0; i < mmChanges.changedCount(); i++) {
+            int position = mmChanges.changedPosition(i);
+            View row = list.getChildAt(position - first);
+            if (row != null) {
+                getView(position, row, list);
+            }
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mmCount;
+    }
+
+    @Override
+    public DeviceRegistry.Device getItem(int position) {
+        return mmRegistry.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) (convertView != null
+                ? convertView
+                : mmInflater.inflate(android.R.layout.simple_list_item_1, parent, false));
+        DeviceRegistry.Device device = getItem(position);
+        StringBuilder text = new StringBuilder(device.getName() != null ? device.getName() : "Unknown");
+        if (device.isBonded()) {
+            text.append(" (paired)");
+        }
+        text.append('\n').append(device.getAddress());
+        if (device.getRssi() != DeviceRegistry.RSSI_UNKNOWN) {
+            text.append("  ").append(device.getRssi()).append(" dBm");
+        }
+        view.setText(text);
+        return view;
+    }
+}
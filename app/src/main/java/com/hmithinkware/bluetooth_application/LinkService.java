@@ -0,0 +1,750 @@
+package com.hmithinkware.bluetooth_application;
+
+import android.Manifest;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.core.app.ActivityCompat;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.ServiceCompat;
+
+import com.hmithinkware.bluetooth_application.link.ClockSync;
+import com.hmithinkware.bluetooth_application.link.Connection;
+import com.hmithinkware.bluetooth_application.link.ConnectionManager;
+import com.hmithinkware.bluetooth_application.link.DeviceCache;
+import com.hmithinkware.bluetooth_application.link.FrameCodec;
+import com.hmithinkware.bluetooth_application.link.FrameHandoff;
+import com.hmithinkware.bluetooth_application.link.FrameUploader;
+import com.hmithinkware.bluetooth_application.link.GattTransport;
+import com.hmithinkware.bluetooth_application.link.LengthPrefixCodec;
+import com.hmithinkware.bluetooth_application.link.PayloadCodec;
+import com.hmithinkware.bluetooth_application.link.ReconnectPolicy;
+import com.hmithinkware.bluetooth_application.link.SampleBatch;
+import com.hmithinkware.bluetooth_application.link.SampleParser;
+import com.hmithinkware.bluetooth_application.link.SampleStore;
+import com.hmithinkware.bluetooth_application.link.SessionReader;
+import com.hmithinkware.bluetooth_application.link.SessionRecorder;
+import com.hmithinkware.bluetooth_application.link.SessionReplay;
+import com.hmithinkware.bluetooth_application.link.Slab;
+import com.hmithinkware.bluetooth_application.link.StreamMerger;
+import com.hmithinkware.bluetooth_application.link.Transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Foreground service that owns every Bluetooth connection, so links survive rotation,
+// backgrounding and the Activity being destroyed. The UI binds to it and subscribes.
+public class LinkService extends Service {
+
+    private static final String TAG = LinkService.class.getSimpleName();
+    private static final UUID BT_MODULE_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    // Peripherals running pre-framing firmware need a RawCodec here instead
+    private static final FrameCodec FRAME_CODEC = new LengthPrefixCodec();
+    // Event loop threads shared by all connected devices
+    private static final int CONNECTION_LOOPS = 2;
+    // Lets cached-channel connects to several devices overlap at startup
+    private static final int CONNECTORS = 3;
+    private static final String CHANNEL_ID = "link";
+    private static final int NOTIFICATION_ID = 1;
+    // Known devices with their RFCOMM channel; the ones in use are reconnected on the next start
+    private static final String DEVICE_CACHE_FILE = "devices.bin";
+    // Every received frame is recorded to sessions/<start time>/ under the app's external files
+    private static final String SESSIONS_DIR = "sessions";
+    private static final int RECORDER_BUFFERED_FRAMES = 4096;
+    private static final long RECORDER_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final long RECORDER_COMMIT_MS = 200;
+    // With R.string.collector_url set, received frames are also spooled to upload/ and sent there
+    private static final String UPLOAD_DIR = "upload";
+    private static final int UPLOAD_BUFFERED_FRAMES = 4096;
+    private static final int UPLOAD_CHUNK_BYTES = 256 * 1024;
+    private static final long UPLOAD_CHUNK_AGE_MS = 30_000;
+    private static final long UPLOAD_SPOOL_BYTES = 64 * 1024 * 1024;
+    private static final int UPLOAD_THREADS = 2;
+    // Text frames are parsed into typed rows for listeners that want numbers, not lines
+    private static final int SAMPLE_BATCH_ROWS = 64;
+    private static final int SAMPLE_FIELDS = 16;
+    // Parsed numbers are kept under samples/ in the app's files for history queries
+    private static final String SAMPLES_DIR = "samples";
+    private static final int SAMPLE_STORE_BUFFERED_POINTS = 64 * 1024;
+    // Frames from all devices are also merged into one stream by when they were sent. Frames
+    // may wait up to the delay for slower devices; the tick lets them out when all are quiet.
+    private static final int MERGE_SOURCES = 16;
+    private static final int MERGE_FRAMES = 1024;
+    private static final long MERGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MERGE_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    // Frames waiting for the pipeline thread; beyond this they are dropped, not queued on the loops
+    private static final int PIPELINE_FRAMES = 1024;
+    // Replayed sessions show up as a device with this address prefix. They are recorded and
+    // stored again under replay/<session>/ in the app's cache, not over the real history.
+    private static final String REPLAY_PREFIX = "replay:";
+    private static final String REPLAY_DIR = "replay";
+
+    // onFrame and onStateChanged arrive on link threads; each subscriber owns the frame slab it
+    // is given. onSamples and onMergedFrame arrive on the one pipeline thread.
+    public interface Listener {
+        void onFrame(String address, Slab frame);
+
+        void onStateChanged(String address, Connection.State state);
+
+        // Parsed rows of a device's frames, shortly after them; only valid during the call
+        default void onSamples(String address, SampleBatch batch) {
+        }
+
+        // Every device's frames in the order they were sent, on one System.nanoTime() timeline.
+        // The data is only valid during the call.
+        default void onMergedFrame(String address, long sentNanos, byte[] data, int offset, int length) {
+        }
+    }
+
+    public class LocalBinder extends Binder {
+        LinkService getService() {
+            return LinkService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    // One per connection, only used on the pipeline thread
+    private final Map<String, SampleParser> mParsers = new HashMap<>();
+    // Scratch storage of each running replay, by its address
+    private final Map<String, ReplayStorage> mReplays = new ConcurrentHashMap<>();
+    // Merge source id -> connection, null where free. By connection rather than address, so a
+    // reconnect gets its own id while the pipeline still holds the old link's last frames.
+    private final Connection[] mMergeSources = new Connection[MERGE_SOURCES];
+    private final StreamMerger mMerger = new StreamMerger(MERGE_SOURCES, MERGE_FRAMES, FRAME_CODEC.maxPayload(),
+            MERGE_DELAY_NANOS, (source, sentNanos, data, offset, length) -> {
+                Connection connection;
+                synchronized (mMergeSources) {
+                    connection = mMergeSources[source];
+                }
+                for (Listener listener : mListeners) {
+                    listener.onMergedFrame(connection.getAddress(), sentNanos, data, offset, length);
+                }
+            });
+    // Recording, uploading, parsing, storing and merging, off the loops shared by every device
+    private final FrameHandoff mPipeline = new FrameHandoff("LinkPipeline", PIPELINE_FRAMES,
+            FRAME_CODEC.maxPayload(), new FrameHandoff.Handler() {
+                @Override
+                public void onFrame(Connection connection, Slab frame) {
+                    process(connection, frame);
+                }
+
+                @Override
+                public void onClosed(Connection connection) {
+                    mParsers.remove(connection.getAddress());
+                    releaseMergeSource(connection);
+                    ReplayStorage replay = mReplays.remove(connection.getAddress());
+                    if (replay != null) {
+                        replay.close();
+                    }
+                }
+
+                @Override
+                public long onTick(long nowNanos) {
+                    mMerger.advance(nowNanos);
+                    return mMerger.bufferedCount() > 0 ? nowNanos + MERGE_TICK_NANOS : Long.MAX_VALUE;
+                }
+            });
+    private BluetoothAdapter mBTAdapter;
+    private ConnectionManager mConnectionManager;
+    private DeviceCache mDeviceCache;
+    private File mSessionsDir;
+    // Null if the session directory could not be created
+    private SessionRecorder mRecorder;
+    // Null if no collector is configured
+    private FrameUploader mUploader;
+    // Null if the sample directory could not be opened
+    private SampleStore mSampleStore;
+    private volatile String mActiveAddress;
+    private boolean mForeground;
+    private boolean mBound;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        BluetoothManager bluetoothManager = getSystemService(BluetoothManager.class);
+        if (bluetoothManager != null) {
+            mBTAdapter = bluetoothManager.getAdapter();
+        }
+        mDeviceCache = new DeviceCache(new File(getFilesDir(), DEVICE_CACHE_FILE));
+        mRecorder = openRecorder();
+        mUploader = openUploader();
+        mSampleStore = openSampleStore();
+        mPipeline.start();
+        // Dropped links are re-established in the background; writes made meanwhile are replayed
+        mConnectionManager = new ConnectionManager(CONNECTION_LOOPS, CONNECTORS, FRAME_CODEC, new ConnectionManager.Listener() {
+            @Override
+            public void onFrame(Connection connection, Slab frame) {
+                for (Listener listener : mListeners) {
+                    listener.onFrame(connection.getAddress(), frame.retain());
+                }
+                if (!mPipeline.offer(connection, frame)) {
+                    Log.w(TAG, "Pipeline full, dropped a frame from " + connection.getAddress());
+                }
+                frame.release();
+            }
+
+            @Override
+            public void onStateChanged(Connection connection, Connection.State state) {
+                Log.d(TAG, connection.getAddress() + " is now " + state);
+                for (Listener listener : mListeners) {
+                    listener.onStateChanged(connection.getAddress(), state);
+                }
+                if (state == Connection.State.CONNECTED) {
+                    // Sync before the data starts, but only with firmware that answers; and hold
+                    // the others back until this one's data does start
+                    if (isClockSync(connection.getAddress())) {
+                        connection.clock();
+                    }
+                    int source = mergeSource(connection);
+                    if (source >= 0) {
+                        mMerger.addSource(source);
+                    }
+                } else if (state == Connection.State.CLOSED) {
+                    // Behind the connection's last frames, so its parser and storage see them all
+                    mPipeline.closed(connection);
+                    stopIfIdle();
+                }
+            }
+        }, ReconnectPolicy.defaults());
+        // Firmware that knows the handshake compresses its telemetry; older firmware stays raw
+        mConnectionManager.setPayloadCodecs(PayloadCodec.DEFLATE | PayloadCodec.DELTA, null);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Keep running after the UI unbinds; we stop ourselves once no device is connected
+        return START_NOT_STICKY;
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        mBound = true;
+        return mBinder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        mBound = true;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        mBound = false;
+        stopIfIdle();
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mConnectionManager.close();
+        try {
+            mPipeline.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Frame pipeline failed", e);
+        }
+        for (ReplayStorage replay : mReplays.values()) {
+            replay.close();
+        }
+        mReplays.clear();
+        if (mRecorder != null) {
+            try {
+                mRecorder.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Session recording failed", e);
+            }
+        }
+        if (mUploader != null) {
+            try {
+                mUploader.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Upload spooling failed", e);
+            }
+        }
+        if (mSampleStore != null) {
+            try {
+                mSampleStore.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Sample history failed", e);
+            }
+        }
+    }
+
+    // Pipeline thread. Everything a frame goes through after its subscribers; releases it.
+    private void process(Connection connection, Slab frame) {
+        String address = connection.getAddress();
+        ReplayStorage replay = mReplays.get(address);
+        SessionRecorder recorder = replay != null ? replay.recorder : mRecorder;
+        if (recorder != null) {
+            recorder.record(recorder.sourceId(address), frame);
+        }
+        FrameUploader uploader = replay == null || replay.upload ? mUploader : null;
+        if (uploader != null) {
+            uploader.offer(address, frame);
+        }
+        parserFor(address).parseLines(frame.array(), 0, frame.length(), frame.readNanos());
+        merge(connection, frame);
+        frame.release();
+    }
+
+    // Stamps the frame with when the device sent it, as far as the clock sync can tell, and
+    // hands it to the merger. Devices beyond MERGE_SOURCES are left out of the merged stream.
+    private void merge(Connection connection, Slab frame) {
+        int source = mergeSource(connection);
+        if (source < 0) {
+            return;
+        }
+        ClockSync clock = connection.clockIfStarted();
+        long readNanos = frame.readNanos() != 0 ? frame.readNanos() : System.nanoTime();
+        mMerger.offer(source, clock != null ? clock.sentNanos(readNanos) : readNanos,
+                frame.array(), 0, frame.length());
+    }
+
+    private boolean isClockSync(String address) {
+        DeviceCache.Entry entry = mDeviceCache.get(address);
+        return entry != null && entry.isClockSync();
+    }
+
+    /**
+     * Opts a device in or out of clock sync. Requests go only to firmware known to answer
+     * them, since older firmware may take them for data. Enabling starts sync right away if
+     * the device is connected; disabling takes effect from its next connect.
+     */
+    public void setClockSync(String address, boolean enabled) {
+        try {
+            mDeviceCache.setClockSync(address, enabled);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save the clock sync setting", e);
+        }
+        Connection connection = mConnectionManager.get(address);
+        if (enabled && connection != null && connection.getState() == Connection.State.CONNECTED) {
+            connection.clock();
+        }
+    }
+
+    private int mergeSource(Connection connection) {
+        synchronized (mMergeSources) {
+            int free = -1;
+            for (int i = 0; i < MERGE_SOURCES; i++) {
+                if (mMergeSources[i] == connection) {
+                    return i;
+                }
+                if (free < 0 && mMergeSources[i] == null) {
+                    free = i;
+                }
+            }
+            if (free >= 0) {
+                mMergeSources[free] = connection;
+            }
+            return free;
+        }
+    }
+
+    // Lets out what was waiting on the device, then frees its id
+    private void releaseMergeSource(Connection connection) {
+        int source = -1;
+        synchronized (mMergeSources) {
+            for (int i = 0; i < MERGE_SOURCES; i++) {
+                if (mMergeSources[i] == connection) {
+                    source = i;
+                }
+            }
+        }
+        if (source < 0) {
+            return;
+        }
+        mMerger.removeSource(source);
+        synchronized (mMergeSources) {
+            mMergeSources[source] = null;
+        }
+    }
+
+    // Pipeline thread. Created on the first frame from a connection, dropped when it closes.
+    private SampleParser parserFor(String address) {
+        SampleParser parser = mParsers.get(address);
+        if (parser == null) {
+            parser = new SampleParser(SAMPLE_BATCH_ROWS, SAMPLE_FIELDS, FRAME_CODEC.maxPayload(), batch -> {
+                ReplayStorage replay = mReplays.get(address);
+                SampleStore store = replay != null ? replay.store : mSampleStore;
+                if (store != null) {
+                    store.append(address, batch);
+                }
+                for (Listener listener : mListeners) {
+                    listener.onSamples(address, batch);
+                }
+            });
+            mParsers.put(address, parser);
+        }
+        return parser;
+    }
+
+    // Replays the current state of every connection to the new subscriber
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+        for (Connection connection : mConnectionManager.connections()) {
+            listener.onStateChanged(connection.getAddress(), connection.getState());
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public CompletableFuture<Connection> connect(String address, String name) {
+        mActiveAddress = address;
+        startForegroundIfNeeded();
+        return mConnectionManager.connect(address, this::createTransport).whenComplete((connection, e) -> {
+            if (e == null) {
+                try {
+                    // The transport has already recorded the channel; this only adds the name
+                    mDeviceCache.rememberName(address, name);
+                } catch (IOException cacheFailure) {
+                    Log.w(TAG, "Could not update device cache", cacheFailure);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reconnects, all at once, every device that was still connected when the app last ran.
+     * The most recently used one becomes active, and its result is returned; the others
+     * report through the listeners. Returns null if there is nothing to reconnect.
+     */
+    @Nullable
+    public CompletableFuture<Connection> reconnectPreviousSession() {
+        if (mBTAdapter == null || !mBTAdapter.isEnabled()) {
+            return null;
+        }
+        List<DeviceCache.Entry> session = mDeviceCache.session();
+        CompletableFuture<Connection> active = null;
+        // Oldest first, so the most recent device is the active one when we are done
+        for (int i = session.size() - 1; i >= 0; i--) {
+            DeviceCache.Entry entry = session.get(i);
+            if (mConnectionManager.get(entry.getAddress()) == null) {
+                CompletableFuture<Connection> result = connect(entry.getAddress(), entry.getName());
+                if (i == 0) {
+                    active = result;
+                }
+            }
+        }
+        return active;
+    }
+
+    @Nullable
+    public String getDeviceName(String address) {
+        DeviceCache.Entry entry = mDeviceCache.get(address);
+        return entry != null && entry.getName() != null ? entry.getName() : address;
+    }
+
+    public void disconnect(String address) {
+        mConnectionManager.disconnect(address);
+        try {
+            mDeviceCache.endSession(address);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not update device cache", e);
+        }
+    }
+
+    @Nullable
+    public String getActiveAddress() {
+        return mActiveAddress;
+    }
+
+    @Nullable
+    public Connection getActiveConnection() {
+        String address = mActiveAddress;
+        return address != null ? mConnectionManager.get(address) : null;
+    }
+
+    public Collection<Connection> getConnections() {
+        return mConnectionManager.connections();
+    }
+
+    @Nullable
+    public SessionRecorder getRecorder() {
+        return mRecorder;
+    }
+
+    @Nullable
+    public SampleStore getSampleStore() {
+        return mSampleStore;
+    }
+
+    public StreamMerger getMerger() {
+        return mMerger;
+    }
+
+    @Nullable
+    public CompletableFuture<SessionReplay.Result> replayLatestSession(double speed) {
+        return replayLatestSession(speed, false);
+    }
+
+    /**
+     * Feeds the newest finished session back through the pipeline as a pseudo-device, which
+     * becomes the active one. All recorded devices are merged into that one stream, which goes
+     * through every stage a device's frames do, but is recorded and stored into scratch copies
+     * and only sent to the collector if {@code upload} is set. It is not reconnected when it
+     * ends. Completes with the throughput once every frame has been consumed; null if there is
+     * no session.
+     */
+    @Nullable
+    public CompletableFuture<SessionReplay.Result> replayLatestSession(double speed, boolean upload) {
+        File session = latestFinishedSession();
+        if (session == null) {
+            return null;
+        }
+        String address = REPLAY_PREFIX + session.getName();
+        SessionReplay replay;
+        ReplayStorage storage;
+        try {
+            replay = new SessionReplay(new SessionReader(session), SessionReplay.ALL_SOURCES, FRAME_CODEC, speed);
+            storage = openReplayStorage(session.getName(), upload);
+        } catch (IOException e) {
+            CompletableFuture<SessionReplay.Result> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        ReplayStorage previous = mReplays.put(address, storage);
+        if (previous != null) {
+            previous.close();
+        }
+        mActiveAddress = address;
+        startForegroundIfNeeded();
+        // The recording ends once, so there is nothing to reconnect to
+        mConnectionManager.connect(address, replay::open, null).whenComplete((connection, e) -> {
+            if (e != null) {
+                if (mReplays.remove(address, storage)) {
+                    storage.close();
+                }
+                replay.result().completeExceptionally(e);
+            }
+        });
+        return replay.result().whenComplete((result, e) ->
+                Log.i(TAG, "Replay of " + session.getName() + ": " + (e == null ? result : e)));
+    }
+
+    // A replay's own recorder and store, emptied before each run of the same session
+    private ReplayStorage openReplayStorage(String session, boolean upload) throws IOException {
+        File directory = new File(new File(getCacheDir(), REPLAY_DIR), session);
+        deleteTree(directory);
+        SessionRecorder recorder = new SessionRecorder(new File(directory, SESSIONS_DIR), FRAME_CODEC.maxPayload(),
+                RECORDER_BUFFERED_FRAMES, RECORDER_SEGMENT_BYTES, RECORDER_COMMIT_MS);
+        SampleStore store;
+        try {
+            store = new SampleStore(new File(directory, SAMPLES_DIR), SAMPLE_STORE_BUFFERED_POINTS);
+        } catch (IOException e) {
+            recorder.close();
+            throw e;
+        }
+        recorder.start();
+        store.start();
+        return new ReplayStorage(recorder, store, upload);
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static final class ReplayStorage {
+        final SessionRecorder recorder;
+        final SampleStore store;
+        final boolean upload;
+
+        ReplayStorage(SessionRecorder recorder, SampleStore store, boolean upload) {
+            this.recorder = recorder;
+            this.store = store;
+            this.upload = upload;
+        }
+
+        void close() {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Replay recording failed", e);
+            }
+            try {
+                store.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Replay sample store failed", e);
+            }
+        }
+    }
+
+    // Newest session directory other than the one being recorded now
+    @Nullable
+    private File latestFinishedSession() {
+        File[] sessions = mSessionsDir != null ? mSessionsDir.listFiles(File::isDirectory) : null;
+        if (sessions == null) {
+            return null;
+        }
+        // Named by start time, so they sort chronologically
+        Arrays.sort(sessions);
+        for (int i = sessions.length - 1; i >= 0; i--) {
+            if (mRecorder == null || !sessions[i].equals(mRecorder.getDirectory())) {
+                return sessions[i];
+            }
+        }
+        return null;
+    }
+
+    // Sends to the active device; fails the future if there is none
+    public CompletableFuture<Void> writeToActive(byte[] payload) {
+        Connection connection = getActiveConnection();
+        if (connection == null) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("No device connected"));
+            return failed;
+        }
+        return connection.write(payload);
+    }
+
+    @Nullable
+    private SessionRecorder openRecorder() {
+        mSessionsDir = getExternalFilesDir(SESSIONS_DIR);
+        if (mSessionsDir == null) {
+            mSessionsDir = new File(getFilesDir(), SESSIONS_DIR);
+        }
+        String name = String.format(Locale.US, "%tY%<tm%<td-%<tH%<tM%<tS", System.currentTimeMillis());
+        try {
+            SessionRecorder recorder = new SessionRecorder(new File(mSessionsDir, name), FRAME_CODEC.maxPayload(),
+                    RECORDER_BUFFERED_FRAMES, RECORDER_SEGMENT_BYTES, RECORDER_COMMIT_MS);
+            recorder.start();
+            return recorder;
+        } catch (IOException e) {
+            Log.w(TAG, "Not recording this session", e);
+            return null;
+        }
+    }
+
+    // History carries over from earlier runs
+    @Nullable
+    private SampleStore openSampleStore() {
+        try {
+            SampleStore store = new SampleStore(new File(getFilesDir(), SAMPLES_DIR), SAMPLE_STORE_BUFFERED_POINTS);
+            store.start();
+            return store;
+        } catch (IOException e) {
+            Log.w(TAG, "Not keeping sample history", e);
+            return null;
+        }
+    }
+
+    // Whatever is still spooled from earlier runs goes out first
+    @Nullable
+    private FrameUploader openUploader() {
+        String collector = getString(R.string.collector_url);
+        if (collector.isEmpty()) {
+            return null;
+        }
+        try {
+            FrameUploader uploader = new FrameUploader(new File(getFilesDir(), UPLOAD_DIR), new URL(collector),
+                    FRAME_CODEC.maxPayload(), UPLOAD_BUFFERED_FRAMES, UPLOAD_CHUNK_BYTES, UPLOAD_CHUNK_AGE_MS,
+                    UPLOAD_SPOOL_BYTES, UPLOAD_THREADS, ReconnectPolicy.defaults());
+            uploader.start();
+            return uploader;
+        } catch (MalformedURLException e) {
+            Log.w(TAG, "Bad collector URL " + collector, e);
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Not uploading this session", e);
+            return null;
+        }
+    }
+
+    private Transport createTransport(String address) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+                throw new IOException("Bluetooth connect permission not granted");
+            }
+        }
+        if (mBTAdapter == null) {
+            throw new IOException("Bluetooth not available");
+        }
+
+        BluetoothDevice device = mBTAdapter.getRemoteDevice(address);
+        // BLE-only peripherals have no RFCOMM; dual-mode ones stay on SPP
+        if (device.getType() == BluetoothDevice.DEVICE_TYPE_LE) {
+            return new GattTransport(new BleGattPeer(this, device));
+        }
+        return new BluetoothTransport(device, BT_MODULE_UUID, mDeviceCache);
+    }
+
+    private synchronized void startForegroundIfNeeded() {
+        if (mForeground) {
+            return;
+        }
+        // Started as well as bound, so the service outlives the Activity
+        startService(new Intent(this, LinkService.class));
+        int type = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            type = ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE;
+        }
+        ServiceCompat.startForeground(this, NOTIFICATION_ID, buildNotification(), type);
+        mForeground = true;
+    }
+
+    private synchronized void stopIfIdle() {
+        if (!mConnectionManager.connections().isEmpty()) {
+            return;
+        }
+        if (mForeground) {
+            ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE);
+            mForeground = false;
+        }
+        if (!mBound) {
+            stopSelf();
+        }
+    }
+
+    private Notification buildNotification() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.link_channel_name), NotificationManager.IMPORTANCE_LOW);
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+        PendingIntent openApp = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class), PendingIntent.FLAG_IMMUTABLE);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.link_notification_text))
+                .setContentIntent(openApp)
+                .setOngoing(true)
+                .build();
+    }
+}
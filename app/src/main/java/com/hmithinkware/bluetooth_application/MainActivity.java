@@ -6,19 +6,20 @@ import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 import android.view.View;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.ListView;
@@ -32,20 +33,32 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
+import com.hmithinkware.bluetooth_application.link.Connection;
+import com.hmithinkware.bluetooth_application.link.DeviceRegistry;
+import com.hmithinkware.bluetooth_application.link.LineBuffer;
+import com.hmithinkware.bluetooth_application.link.SampleAggregator;
+import com.hmithinkware.bluetooth_application.link.SampleBatch;
+import com.hmithinkware.bluetooth_application.link.Slab;
+
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MainActivity extends AppCompatActivity {
 
     private final String TAG = MainActivity.class.getSimpleName();
-    private static final UUID BT_MODULE_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-    public final static int MESSAGE_READ = 2;
     private final static int CONNECTING_STATUS = 3;
+    public final static int MESSAGE_WRITE_FAILED = 4;
+    private final static int LINK_STATE = 5;
+    private static final byte[] LED_TOGGLE = {'1'};
+    // Received history kept on screen
+    private static final int RX_HISTORY_LINES = 200;
+    private static final int RX_MAX_LINE_BYTES = 256;
+    // Numeric fields charted per device
+    private static final int CHART_CHANNELS = 8;
 
     // GUI Components
     private TextView mBluetoothStatus;
@@ -55,13 +68,26 @@ public class MainActivity extends AppCompatActivity {
     private Button mListPairedDevicesBtn;
     private Button mDiscoverBtn;
     private ListView mDevicesListView;
+    private ListView mRxHistoryView;
+    private ChartView mChart;
     private CheckBox mLED1;
     private BluetoothAdapter mBTAdapter;
     private Set<BluetoothDevice> mPairedDevices;
-    private ArrayAdapter<String> mBTArrayAdapter;
+    // Discovered and bonded devices, one row per MAC however often a device is seen
+    private final DeviceRegistry mDeviceRegistry = new DeviceRegistry();
+    private DeviceListAdapter mDeviceListAdapter;
+    private RenderThrottle mDeviceRenderThrottle;
     private Handler mHandler;
-    private ConnectedThread mConnectedThread;
-    private BluetoothSocket mBTSocket = null;
+    // Incoming lines are buffered off the UI thread and rendered at most once per display frame
+    private final LineBuffer mRxLines = new LineBuffer(RX_HISTORY_LINES, RX_MAX_LINE_BYTES);
+    private RxLogAdapter mRxLogAdapter;
+    private RenderThrottle mRxRenderThrottle;
+    // Rolling windows of parsed samples, one aggregator per device fed by the pipeline thread
+    private final Map<String, SampleAggregator> mChartSamples = new ConcurrentHashMap<>();
+    // Read time of the oldest active-device frame not yet on screen, 0 if none
+    private final AtomicLong mRxOldestPendingNanos = new AtomicLong();
+    // Connections live in LinkService; null until bound
+    private volatile LinkService mLinkService;
 
     // Activity result launcher for Bluetooth enable request
     private ActivityResultLauncher<Intent> enableBluetoothLauncher;
@@ -89,10 +115,11 @@ public class MainActivity extends AppCompatActivity {
             mBTAdapter = bluetoothManager.getAdapter();
         }
 
-        mDevicesListView.setAdapter(mBTArrayAdapter); // assign model to view
+        mDevicesListView.setAdapter(mDeviceListAdapter); // assign model to view
         mDevicesListView.setOnItemClickListener(mDeviceClickListener);
 
         setupMessageHandler();
+        bindService(new Intent(this, LinkService.class), mServiceConnection, Context.BIND_AUTO_CREATE);
 
         if (mBTAdapter == null) {
             // Device does not support Bluetooth
@@ -111,8 +138,37 @@ public class MainActivity extends AppCompatActivity {
         mDiscoverBtn = findViewById(R.id.discover);
         mListPairedDevicesBtn = findViewById(R.id.paired_btn);
         mLED1 = findViewById(R.id.checkbox_led_1);
-        mBTArrayAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
         mDevicesListView = findViewById(R.id.devices_list_view);
+        mDeviceListAdapter = new DeviceListAdapter(getLayoutInflater(), mDeviceRegistry);
+        mDeviceRenderThrottle = new RenderThrottle(() -> mDeviceListAdapter.refresh(mDevicesListView));
+        mRxHistoryView = findViewById(R.id.rx_history);
+        mRxLogAdapter = new RxLogAdapter(getLayoutInflater(), mRxLines);
+        mRxHistoryView.setAdapter(mRxLogAdapter);
+        mChart = findViewById(R.id.chart);
+        mRxRenderThrottle = new RenderThrottle(this::renderReceived);
+        // Hidden link debug screen
+        mBluetoothStatus.setOnLongClickListener(v -> {
+            startActivity(new Intent(this, MetricsActivity.class));
+            return true;
+        });
+    }
+
+    private void renderReceived() {
+        String newest = mRxLogAdapter.refresh();
+        if (newest != null) {
+            mReadBuffer.setText(newest);
+        }
+        // Worst case of this batch: the frame that waited longest for this render
+        long readNanos = mRxOldestPendingNanos.getAndSet(0);
+        LinkService service = mLinkService;
+        Connection connection = service != null ? service.getActiveConnection() : null;
+        if (readNanos != 0 && connection != null) {
+            connection.getMetrics().recordDelivery(readNanos);
+        }
+        // Fast loggers are redrawn a few times a second rather than every display frame
+        mRxRenderThrottle.setMinIntervalNanos(connection != null ? connection.getTuner().dispatchIntervalNanos() : 0);
+        String active = service != null ? service.getActiveAddress() : null;
+        mChart.setSource(active != null ? mChartSamples.get(active) : null);
     }
 
     private void setupResultLaunchers() {
@@ -157,25 +213,126 @@ public class MainActivity extends AppCompatActivity {
         mHandler = new Handler(Looper.getMainLooper()) {
             @Override
             public void handleMessage(@NonNull Message msg) {
-                if (msg.what == MESSAGE_READ) {
-                    String readMessage = new String((byte[]) msg.obj, StandardCharsets.UTF_8);
-                    mReadBuffer.setText(readMessage);
-                }
-
                 if (msg.what == CONNECTING_STATUS) {
                     if (msg.arg1 == 1)
                         mBluetoothStatus.setText(getString(R.string.BTConnected) + msg.obj);
                     else
                         mBluetoothStatus.setText(getString(R.string.BTconnFail));
                 }
+
+                if (msg.what == LINK_STATE) {
+                    Connection.State state = Connection.State.values()[msg.arg1];
+                    if (state == Connection.State.CONNECTED)
+                        mBluetoothStatus.setText(getString(R.string.BTConnected) + msg.obj);
+                    else if (state == Connection.State.RECONNECTING)
+                        mBluetoothStatus.setText(getString(R.string.BTReconn));
+                    else if (state == Connection.State.CLOSED)
+                        mBluetoothStatus.setText(getString(R.string.BTconnLost));
+                }
+
+                if (msg.what == MESSAGE_WRITE_FAILED) {
+                    Toast.makeText(getBaseContext(), "Connection error - failed to send data", Toast.LENGTH_SHORT).show();
+                }
             }
         };
     }
 
+    // Forwards link events from LinkService's threads to the UI handler
+    private final LinkService.Listener mLinkListener = new LinkService.Listener() {
+        @Override
+        public void onFrame(String address, Slab frame) {
+            // Copy out and hand the slab straight back; the UI decodes on its next frame
+            mRxLines.append(frame.array(), 0, frame.length());
+            LinkService service = mLinkService;
+            if (frame.readNanos() != 0 && service != null && address.equals(service.getActiveAddress())) {
+                mRxOldestPendingNanos.compareAndSet(0, frame.readNanos());
+            }
+            frame.release();
+            mRxRenderThrottle.requestRender();
+        }
+
+        @Override
+        public void onSamples(String address, SampleBatch batch) {
+            LinkService service = mLinkService;
+            if (service == null || !address.equals(service.getActiveAddress())) {
+                return;
+            }
+            SampleAggregator samples = mChartSamples.get(address);
+            if (samples == null) {
+                samples = new SampleAggregator(CHART_CHANNELS, ChartView.WINDOW);
+                mChartSamples.put(address, samples);
+            }
+            samples.onBatch(batch);
+        }
+
+        @Override
+        public void onStateChanged(String address, Connection.State state) {
+            if (state == Connection.State.CLOSED) {
+                mChartSamples.remove(address);
+            }
+            LinkService service = mLinkService;
+            if (service != null && address.equals(service.getActiveAddress())) {
+                mHandler.obtainMessage(LINK_STATE, state.ordinal(), -1, address).sendToTarget();
+            }
+        }
+    };
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mLinkService = ((LinkService.LocalBinder) binder).getService();
+            mLinkService.addListener(mLinkListener);
+            if (mBTAdapter != null && hasConnectPermission()) {
+                CompletableFuture<Connection> reconnecting = mLinkService.reconnectPreviousSession();
+                if (reconnecting != null) {
+                    mBluetoothStatus.setText(getString(R.string.cConnet));
+                    watchConnect(reconnecting, mLinkService.getDeviceName(mLinkService.getActiveAddress()));
+                }
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mLinkService = null;
+        }
+    };
+
+    private boolean hasConnectPermission() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            return ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED;
+        }
+        return true;
+    }
+
+    private void connectToDevice(String address, String name) {
+        if (mLinkService == null) {
+            return;
+        }
+        mBluetoothStatus.setText(getString(R.string.cConnet));
+        // The service connects on its own thread, so the GUI one is never blocked
+        watchConnect(mLinkService.connect(address, name), name);
+    }
+
+    private void watchConnect(CompletableFuture<Connection> result, String name) {
+        result.whenComplete((connection, e) -> {
+            if (e == null) {
+                mHandler.obtainMessage(CONNECTING_STATUS, 1, -1, name).sendToTarget();
+            } else {
+                mHandler.obtainMessage(CONNECTING_STATUS, -1, -1).sendToTarget();
+                runOnUiThread(() -> Toast.makeText(getBaseContext(), "Connection failed: " + e.getMessage(), Toast.LENGTH_SHORT).show());
+            }
+        });
+    }
+
     private void setupButtonListeners() {
         mLED1.setOnClickListener(v -> {
-            if (mConnectedThread != null) //First check to make sure thread created
-                mConnectedThread.write("1");
+            if (mLinkService != null) //First check to make sure the service is bound
+                mLinkService.writeToActive(LED_TOGGLE).whenComplete((ignored, e) -> {
+                    if (e != null) {
+                        Log.e(TAG, "Error sending data", e);
+                        mHandler.obtainMessage(MESSAGE_WRITE_FAILED).sendToTarget();
+                    }
+                });
         });
 
         mScanBtn.setOnClickListener(v -> bluetoothOn());
@@ -196,6 +353,13 @@ public class MainActivity extends AppCompatActivity {
             }
         }
 
+        // Lets the connection service show its ongoing notification (Android 13+)
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            if (ContextCompat.checkSelfPermission(this, Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+                permissionsToRequest.add(Manifest.permission.POST_NOTIFICATIONS);
+            }
+        }
+
         // Location permission is needed for Bluetooth scanning on all Android versions
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
             permissionsToRequest.add(Manifest.permission.ACCESS_FINE_LOCATION);
@@ -282,7 +446,6 @@ public class MainActivity extends AppCompatActivity {
             }
         } else {
             if (mBTAdapter.isEnabled()) {
-                mBTArrayAdapter.clear(); // clear items
                 mBTAdapter.startDiscovery();
                 Toast.makeText(getApplicationContext(), getString(R.string.DisStart), Toast.LENGTH_SHORT).show();
 
@@ -314,21 +477,23 @@ public class MainActivity extends AppCompatActivity {
                     device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
                 }
 
-                // Add the name to the list
+                // Merge into the registry; the list catches up on the next frame
                 if (device != null) {
-                    String deviceName = "Unknown";
-                    String deviceAddress = device.getAddress();
-
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
-                            deviceName = device.getName() != null ? device.getName() : "Unknown";
-                        }
-                    } else {
-                        deviceName = device.getName() != null ? device.getName() : "Unknown";
+                    String deviceName = null;
+                    boolean bonded = false;
+                    short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+
+                    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S
+                            || ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
+                        deviceName = device.getName();
+                        bonded = device.getBondState() == BluetoothDevice.BOND_BONDED;
                     }
 
-                    mBTArrayAdapter.add(deviceName + "\n" + deviceAddress);
-                    mBTArrayAdapter.notifyDataSetChanged();
+                    if (mDeviceRegistry.update(device.getAddress(), deviceName,
+                            rssi == Short.MIN_VALUE ? DeviceRegistry.RSSI_UNKNOWN : rssi,
+                            bonded, System.currentTimeMillis())) {
+                        mDeviceRenderThrottle.requestRender();
+                    }
                 }
             }
         }
@@ -339,8 +504,6 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        mBTArrayAdapter.clear();
-
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
             if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
                 requestPermissionLauncher.launch(new String[]{Manifest.permission.BLUETOOTH_CONNECT});
@@ -352,10 +515,13 @@ public class MainActivity extends AppCompatActivity {
             mPairedDevices = mBTAdapter.getBondedDevices();
 
             if (mPairedDevices.size() > 0) {
-                // Add paired devices to the adapter
+                // Add paired devices to the registry, merging with anything discovery found
+                long now = System.currentTimeMillis();
                 for (BluetoothDevice device : mPairedDevices) {
-                    mBTArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                    mDeviceRegistry.update(device.getAddress(), device.getName(),
+                            DeviceRegistry.RSSI_UNKNOWN, true, now);
                 }
+                mDeviceRenderThrottle.requestRender();
 
                 Toast.makeText(getApplicationContext(), getString(R.string.show_paired_devices), Toast.LENGTH_SHORT).show();
             } else {
@@ -374,129 +540,21 @@ public class MainActivity extends AppCompatActivity {
                 return;
             }
 
-            mBluetoothStatus.setText(getString(R.string.cConnet));
-            // Get the device MAC address, which is the last 17 chars in the View
-            String info = ((TextView) view).getText().toString();
-            final String address = info.substring(info.length() - 17);
-            final String name = info.substring(0, info.length() - 17);
-
-            // Spawn a new thread to avoid blocking the GUI one
-            new Thread() {
-                @Override
-                public void run() {
-                    boolean fail = false;
-
-                    BluetoothDevice device = mBTAdapter.getRemoteDevice(address);
-
-                    try {
-                        mBTSocket = createBluetoothSocket(device);
-                    } catch (IOException e) {
-                        fail = true;
-                        runOnUiThread(() -> Toast.makeText(getBaseContext(), "Socket creation failed: " + e.getMessage(), Toast.LENGTH_SHORT).show());
-                    }
-
-                    // Establish the Bluetooth socket connection.
-                    try {
-                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                            if (ActivityCompat.checkSelfPermission(MainActivity.this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                                runOnUiThread(() -> {
-                                    requestPermissionLauncher.launch(new String[]{Manifest.permission.BLUETOOTH_CONNECT});
-                                    Toast.makeText(getBaseContext(), "Bluetooth connect permission required", Toast.LENGTH_SHORT).show();
-                                });
-                                return;
-                            }
-                        }
-
-                        mBTSocket.connect();
-                    } catch (IOException e) {
-                        try {
-                            fail = true;
-                            mBTSocket.close();
-                            mHandler.obtainMessage(CONNECTING_STATUS, -1, -1).sendToTarget();
-                            runOnUiThread(() -> Toast.makeText(getBaseContext(), "Connection failed: " + e.getMessage(), Toast.LENGTH_SHORT).show());
-                        } catch (IOException e2) {
-                            runOnUiThread(() -> Toast.makeText(getBaseContext(), "Socket close failed: " + e2.getMessage(), Toast.LENGTH_SHORT).show());
-                        }
-                    }
-
-                    if (!fail) {
-                        mConnectedThread = new ConnectedThread(mBTSocket);
-                        mConnectedThread.start();
-                        mHandler.obtainMessage(CONNECTING_STATUS, 1, -1, name).sendToTarget();
-                    }
-                }
-            }.start();
-        }
-    };
-
-    private BluetoothSocket createBluetoothSocket(BluetoothDevice device) throws IOException {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-            if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                throw new IOException("Bluetooth connect permission not granted");
-            }
-        }
-
-        // Use the standard method instead of reflection
-        return device.createRfcommSocketToServiceRecord(BT_MODULE_UUID);
-    }
-
-    // Thread class for handling Bluetooth communication
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket) {
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "Error creating I/O streams", e);
-            }
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
-        }
+            DeviceRegistry.Device device = mDeviceListAdapter.getItem(position);
+            final String address = device.getAddress();
+            final String name = device.getName() != null ? device.getName() : address;
 
-        public void run() {
-            byte[] buffer = new byte[1024];
-            int bytes;
-
-            while (true) {
-                try {
-                    bytes = mmInStream.read(buffer);
-                    if (bytes > 0) {
-                        mHandler.obtainMessage(MESSAGE_READ, bytes, -1, buffer).sendToTarget();
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "Connection lost", e);
-                    break;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                if (ActivityCompat.checkSelfPermission(MainActivity.this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+                    requestPermissionLauncher.launch(new String[]{Manifest.permission.BLUETOOTH_CONNECT});
+                    Toast.makeText(getBaseContext(), "Bluetooth connect permission required", Toast.LENGTH_SHORT).show();
+                    return;
                 }
             }
-        }
 
-        public void write(String input) {
-            byte[] msgBuffer = input.getBytes();
-            try {
-                mmOutStream.write(msgBuffer);
-            } catch (IOException e) {
-                Log.e(TAG, "Error sending data", e);
-                runOnUiThread(() -> Toast.makeText(getBaseContext(), "Connection error - failed to send data", Toast.LENGTH_SHORT).show());
-            }
+            connectToDevice(address, name);
         }
-
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing socket", e);
-            }
-        }
-    }
+    };
 
     @Override
     protected void onDestroy() {
@@ -509,6 +567,16 @@ public class MainActivity extends AppCompatActivity {
             // Receiver was not registered
         }
 
+        mRxRenderThrottle.stop();
+        mDeviceRenderThrottle.stop();
+
+        // Connections stay up in LinkService; just stop listening to them
+        if (mLinkService != null) {
+            mLinkService.removeListener(mLinkListener);
+            mLinkService = null;
+        }
+        unbindService(mServiceConnection);
+
         // Cancel discovery if it's in progress
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
             // TODO: Consider calling
@@ -529,20 +597,5 @@ public class MainActivity extends AppCompatActivity {
                 mBTAdapter.cancelDiscovery();
             }
         }
-
-        // Close connection if still open
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        if (mBTSocket != null) {
-            try {
-                mBTSocket.close();
-                mBTSocket = null;
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing socket", e);
-            }
-        }
     }
 }
\ No newline at end of file
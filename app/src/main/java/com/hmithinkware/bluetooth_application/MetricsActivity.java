@@ -0,0 +1,196 @@
+package com.hmithinkware.bluetooth_application;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.hmithinkware.bluetooth_application.link.ClockSync;
+import com.hmithinkware.bluetooth_application.link.Connection;
+import com.hmithinkware.bluetooth_application.link.SampleStore;
+import com.hmithinkware.bluetooth_application.link.SessionRecorder;
+import com.hmithinkware.bluetooth_application.link.SessionReplay;
+import com.hmithinkware.bluetooth_application.link.StreamMerger;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+// Debug screen: live link metrics for every connection, refreshed once a second, with
+// optional RTT probes, a plain-text export for bug reports and replay of the last session.
+public class MetricsActivity extends AppCompatActivity {
+
+    private static final long REFRESH_INTERVAL_MS = 1000;
+    // Last hour of the first few stored series, straight from the rollups
+    private static final int HISTORY_SERIES = 8;
+    private static final long HISTORY_SPAN_MS = 3_600_000;
+
+    private TextView mMetricsText;
+    private CheckBox mProbeRtt;
+    private EditText mReplaySpeed;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private LinkService mLinkService;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mLinkService = ((LinkService.LocalBinder) binder).getService();
+            refresh();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mLinkService = null;
+        }
+    };
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            mHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        mMetricsText = findViewById(R.id.metrics_text);
+        mProbeRtt = findViewById(R.id.metrics_probe_rtt);
+        Button export = findViewById(R.id.metrics_export);
+        export.setOnClickListener(v -> export());
+        mReplaySpeed = findViewById(R.id.metrics_replay_speed);
+        Button replay = findViewById(R.id.metrics_replay);
+        replay.setOnClickListener(v -> replay());
+        bindService(new Intent(this, LinkService.class), mServiceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mHandler.post(mRefresh);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mRefresh);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        unbindService(mServiceConnection);
+    }
+
+    private void refresh() {
+        if (mLinkService == null) {
+            return;
+        }
+        if (mProbeRtt.isChecked()) {
+            Connection active = mLinkService.getActiveConnection();
+            if (active != null && active.getState() == Connection.State.CONNECTED) {
+                active.ping();
+            }
+        }
+        String snapshot = snapshot();
+        mMetricsText.setText(snapshot.isEmpty() ? getString(R.string.metrics_none) : snapshot);
+    }
+
+    // One line per connection: address, state, write queue depth now, the counters, tuning and
+    // clock; then the merged stream
+    private String snapshot() {
+        StringBuilder text = new StringBuilder();
+        for (Connection connection : mLinkService.getConnections()) {
+            ClockSync clock = connection.clockIfStarted();
+            text.append(connection.getAddress())
+                    .append(' ').append(connection.getState())
+                    .append(" queued=").append(connection.getWriteQueueDepth())
+                    .append(' ').append(connection.getMetrics().snapshot())
+                    .append(' ').append(connection.getTuner().snapshot())
+                    .append(' ').append(clock != null ? clock.snapshot() : "clock=off")
+                    .append('\n');
+        }
+        StreamMerger merger = mLinkService.getMerger();
+        text.append("merger emitted=").append(merger.emittedCount())
+                .append(" buffered=").append(merger.bufferedCount())
+                .append(" late=").append(merger.lateCount())
+                .append(" forced=").append(merger.forcedCount())
+                .append('\n');
+        SessionRecorder recorder = mLinkService.getRecorder();
+        if (recorder != null) {
+            text.append("recorder recorded=").append(recorder.recordedCount())
+                    .append(" dropped=").append(recorder.droppedCount())
+                    .append(recorder.getFailure() != null ? " FAILED" : "")
+                    .append('\n');
+        }
+        SampleStore store = mLinkService.getSampleStore();
+        if (store != null) {
+            appendHistory(text, store);
+        }
+        return text.toString();
+    }
+
+    private void appendHistory(StringBuilder text, SampleStore store) {
+        long now = System.currentTimeMillis();
+        List<String> names = store.seriesNames();
+        for (String name : names.subList(0, Math.min(HISTORY_SERIES, names.size()))) {
+            try {
+                SampleStore.Aggregate hour = store.aggregate(name, now - HISTORY_SPAN_MS, now);
+                text.append(String.format(Locale.US, "history %s 1h n=%d min=%.3g mean=%.3g max=%.3g\n",
+                        name, hour.count(), hour.min(), hour.mean(), hour.max()));
+            } catch (IOException e) {
+                text.append("history ").append(name).append(" unreadable\n");
+            }
+        }
+    }
+
+    // Speed 1 is real time, 10 is ten times faster, 0 is as fast as the pipeline goes
+    private void replay() {
+        if (mLinkService == null) {
+            return;
+        }
+        double speed;
+        try {
+            speed = Double.parseDouble(mReplaySpeed.getText().toString());
+        } catch (NumberFormatException e) {
+            speed = -1;
+        }
+        if (speed < 0) {
+            Toast.makeText(this, R.string.metrics_replay_bad_speed, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        CompletableFuture<SessionReplay.Result> result = mLinkService.replayLatestSession(speed);
+        if (result == null) {
+            Toast.makeText(this, R.string.metrics_replay_none, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        result.whenComplete((done, e) -> runOnUiThread(() -> Toast.makeText(getApplicationContext(),
+                e == null ? getString(R.string.metrics_replay_done, done) : e.getMessage(),
+                Toast.LENGTH_LONG).show()));
+    }
+
+    private void export() {
+        if (mLinkService == null) {
+            return;
+        }
+        Intent send = new Intent(Intent.ACTION_SEND)
+                .setType("text/plain")
+                .putExtra(Intent.EXTRA_SUBJECT, getString(R.string.metrics_title))
+                .putExtra(Intent.EXTRA_TEXT, snapshot());
+        startActivity(Intent.createChooser(send, getString(R.string.metrics_export)));
+    }
+}
@@ -0,0 +1,55 @@
+package com.hmithinkware.bluetooth_application;
+
+import android.view.Choreographer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Coalesces "new data arrived" signals from any thread into at most one render per display
+// frame, or fewer with a minimum interval. Create on the UI thread; requestRender() may be
+// called from anywhere.
+class RenderThrottle implements Choreographer.FrameCallback {
+    private final Choreographer mmChoreographer = Choreographer.getInstance();
+    private final AtomicBoolean mmScheduled = new AtomicBoolean();
+    private final Runnable mmRender;
+    private volatile boolean mmStopped;
+    // UI thread only
+    private long mmMinIntervalNanos;
+    private long mmLastRenderNanos;
+
+    RenderThrottle(Runnable render) {
+        mmRender = render;
+    }
+
+    void requestRender() {
+        if (!mmStopped && mmScheduled.compareAndSet(false, true)) {
+            mmChoreographer.postFrameCallback(this);
+        }
+    }
+
+    // UI thread only. 0 renders on the next display frame.
+    void setMinIntervalNanos(long intervalNanos) {
+        mmMinIntervalNanos = intervalNanos;
+    }
+
+    void stop() {
+        mmStopped = true;
+        mmChoreographer.removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        long wait = mmLastRenderNanos + mmMinIntervalNanos - frameTimeNanos;
+        if (wait > 0 && !mmStopped) {
+            // Too soon; stay scheduled and come back once the interval is up
+            mmChoreographer.postFrameCallbackDelayed(this, Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+            return;
+        }
+        mmLastRenderNanos = frameTimeNanos;
+        // Clear first so data arriving during the render schedules the next frame
+        mmScheduled.set(false);
+        if (!mmStopped) {
+            mmRender.run();
+        }
+    }
+}
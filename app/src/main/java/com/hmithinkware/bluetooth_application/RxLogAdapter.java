@@ -0,0 +1,77 @@
+package com.hmithinkware.bluetooth_application;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.hmithinkware.bluetooth_application.link.LineBuffer;
+
+// Recycling list adapter over the most recent received lines. refresh() pulls only the
+// lines added since the last call and leaves the list alone if there are none.
+class RxLogAdapter extends BaseAdapter {
+    private final LayoutInflater mmInflater;
+    private final LineBuffer mmSource;
+    private final String[] mmLines;
+    private long mmRendered;
+    private int mmCount;
+
+    RxLogAdapter(LayoutInflater inflater, LineBuffer source) {
+        mmInflater = inflater;
+        mmSource = source;
+        mmLines = new String[source.capacity()];
+    }
+
+    // Call on the UI thread. Returns the newest line, or null if nothing changed.
+    String refresh() {
+        long written = mmSource.written();
+        if (written == mmRendered) {
+            return null;
+        }
+        // Skip straight past anything the source has already overwritten
+        String newest = null;
+        for (long seq = Math.max(mmRendered, mmSource.oldest()); seq < written; seq++) {
+            String line = mmSource.decode(seq);
+            if (line != null) {
+                mmLines[(int) (seq % mmLines.length)] = line;
+                newest = line;
+            }
+        }
+        mmRendered = written;
+        mmCount = (int) Math.min(written, mmLines.length);
+        notifyDataSetChanged();
+        return newest;
+    }
+
+    @Override
+    public int getCount() {
+        return mmCount;
+    }
+
+    // Position 0 is the oldest line held
+    @Override
+    public String getItem(int position) {
+        long seq = mmRendered - mmCount + position;
+        return mmLines[(int) (seq % mmLines.length)];
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mmRendered - mmCount + position;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) (convertView != null
+                ? convertView
+                : mmInflater.inflate(R.layout.item_rx_line, parent, false));
+        view.setText(getItem(position));
+        return view;
+    }
+}
@@ -0,0 +1,86 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer queue (Vyukov's sequenced ring).
+ * <p>
+ * Each slot carries a sequence number that tells producers and consumers whose turn it
+ * is, so offer and poll are a single CAS in the uncontended case and never allocate.
+ */
+public final class BoundedQueue<E> {
+    private final int mMask;
+    private final AtomicReferenceArray<E> mItems;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mHead = new AtomicLong();
+
+    public BoundedQueue(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        mMask = size - 1;
+        mItems = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    // Returns false when the queue is full
+    public boolean offer(E item) {
+        if (item == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long tail = mTail.get();
+            int index = (int) tail & mMask;
+            long diff = mSequences.get(index) - tail;
+            if (diff == 0) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mItems.lazySet(index, item);
+                    mSequences.set(index, tail + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    // Returns null when the queue is empty
+    public E poll() {
+        while (true) {
+            long head = mHead.get();
+            int index = (int) head & mMask;
+            long diff = mSequences.get(index) - (head + 1);
+            if (diff == 0) {
+                if (mHead.compareAndSet(head, head + 1)) {
+                    E item = mItems.get(index);
+                    mItems.lazySet(index, null);
+                    mSequences.set(index, head + mMask + 1);
+                    return item;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+        }
+    }
+
+    // Approximate while other threads are active
+    public int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, mMask + 1));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+}
@@ -0,0 +1,62 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed pool of reusable receive slabs.
+ * <p>
+ * All slabs are allocated up front. When every slab is still held by a consumer,
+ * {@link #acquire()} blocks instead of handing out a buffer that is still being
+ * read, so a slow consumer slows the reader down rather than losing data.
+ */
+public final class BufferPool {
+    private final ArrayBlockingQueue<Slab> mFree;
+    private final int mSlabSize;
+    private final int mSlabCount;
+
+    public BufferPool(int slabCount, int slabSize) {
+        if (slabCount <= 0 || slabSize <= 0) {
+            throw new IllegalArgumentException("Pool needs at least one non-empty slab");
+        }
+        mSlabCount = slabCount;
+        mSlabSize = slabSize;
+        mFree = new ArrayBlockingQueue<>(slabCount);
+        for (int i = 0; i < slabCount; i++) {
+            mFree.add(new Slab(this, slabSize));
+        }
+    }
+
+    // Blocks until a slab is free
+    public Slab acquire() throws InterruptedException {
+        Slab slab = mFree.take();
+        slab.markInUse();
+        return slab;
+    }
+
+    // Returns null when every slab is in use
+    public Slab tryAcquire() {
+        Slab slab = mFree.poll();
+        if (slab != null) {
+            slab.markInUse();
+        }
+        return slab;
+    }
+
+    void recycle(Slab slab) {
+        if (!mFree.offer(slab)) {
+            throw new IllegalStateException("Slab returned to a full pool");
+        }
+    }
+
+    public int available() {
+        return mFree.size();
+    }
+
+    public int slabCount() {
+        return mSlabCount;
+    }
+
+    public int slabSize() {
+        return mSlabSize;
+    }
+}
@@ -0,0 +1,152 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A low-priority logical channel sharing a {@link Connection} with its control traffic, for
+ * firmware images, bulk configuration and anything else too large to hold up a command.
+ * <p>
+ * Messages of any size are cut into chunks. Plain {@link Connection#write} frames (commands,
+ * pings, handshakes) always go before the next chunk, so a stop command waits behind at most
+ * the chunks already handed to the transport rather than behind whole messages. Bulk
+ * channels share what is left by deficit round robin: each turn a channel may send up to
+ * {@code weight} full chunks' worth of bytes.
+ * <p>
+ * Wire format, one frame per chunk:
+ * <pre>
+ * [0xFB][channel u8][flags u8][data...]   flags: 1 = first chunk, 2 = last chunk
+ * </pre>
+ * A message cut short by a dropped link is sent again from its first chunk on the next
+ * transport, so the peer should drop a partial message whenever a new first chunk arrives.
+ */
+public final class BulkChannel {
+    public static final byte MARKER = (byte) 0xFB;
+    public static final int FLAG_FIRST = 1;
+    public static final int FLAG_LAST = 2;
+    public static final int HEADER_BYTES = 3;
+
+    private static final int QUEUE_CAPACITY = 64;
+
+    private final Connection mConnection;
+    private final int mId;
+    private final int mWeight;
+    private final int mChunkSize;
+    private final BoundedQueue<PendingFrame> mQueue = new BoundedQueue<>(QUEUE_CAPACITY);
+    // Loop thread only: the message being chunked, how far it got, and this channel's credit
+    private PendingFrame mCurrent;
+    private int mOffset;
+    private int mDeficit;
+    private CompletableFuture<Void> mFinished;
+
+    BulkChannel(Connection connection, int id, int weight, int chunkSize) {
+        mConnection = connection;
+        mId = id;
+        mWeight = weight;
+        mChunkSize = chunkSize;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public int getWeight() {
+        return mWeight;
+    }
+
+    // Data bytes per chunk, not counting the header
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    // Messages waiting, not counting the one being sent
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    // Never blocks. Completes once the last chunk has been handed to the transport.
+    public CompletableFuture<Void> write(byte[] message) {
+        PendingFrame pending = new PendingFrame(message);
+        if (mConnection.getState() == Connection.State.CLOSED) {
+            pending.future.completeExceptionally(new IOException("Connection closed"));
+        } else if (!mQueue.offer(pending)) {
+            pending.future.completeExceptionally(new IOException("Bulk queue full"));
+        } else {
+            mConnection.wake();
+        }
+        return pending.future;
+    }
+
+    // Loop thread. Starts this channel's turn.
+    void credit() {
+        mDeficit += mWeight * (mChunkSize + HEADER_BYTES);
+    }
+
+    // Loop thread. An idle channel doesn't save up credit for later.
+    boolean hasData() {
+        if (mCurrent == null) {
+            mCurrent = mQueue.poll();
+            if (mCurrent == null) {
+                mDeficit = 0;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Loop thread, after hasData(). True while this turn's credit covers the next chunk.
+    boolean canSend() {
+        return mDeficit >= HEADER_BYTES + Math.min(mChunkSize, mCurrent.payload.length - mOffset);
+    }
+
+    // Loop thread, after hasData(). Writes the next chunk frame into dst and returns its length.
+    int nextChunk(byte[] dst) {
+        byte[] message = mCurrent.payload;
+        int length = Math.min(mChunkSize, message.length - mOffset);
+        int flags = 0;
+        if (mOffset == 0) {
+            flags |= FLAG_FIRST;
+        }
+        if (mOffset + length == message.length) {
+            flags |= FLAG_LAST;
+        }
+        dst[0] = MARKER;
+        dst[1] = (byte) mId;
+        dst[2] = (byte) flags;
+        System.arraycopy(message, mOffset, dst, HEADER_BYTES, length);
+        mOffset += length;
+        mDeficit -= HEADER_BYTES + length;
+        if ((flags & FLAG_LAST) != 0) {
+            mFinished = mCurrent.future;
+            mCurrent = null;
+            mOffset = 0;
+        }
+        return HEADER_BYTES + length;
+    }
+
+    // Loop thread. The future of the message the last chunk ended, if it did, to be completed
+    // with the batch that chunk goes out in.
+    CompletableFuture<Void> takeFinished() {
+        CompletableFuture<Void> finished = mFinished;
+        mFinished = null;
+        return finished;
+    }
+
+    // New transport: the peer never saw the rest of the current message, so start it over
+    void rewind() {
+        mOffset = 0;
+        mDeficit = 0;
+    }
+
+    void failAll(IOException cause) {
+        PendingFrame current = mCurrent;
+        mCurrent = null;
+        if (current != null) {
+            current.future.completeExceptionally(cause);
+        }
+        PendingFrame pending;
+        while ((pending = mQueue.poll()) != null) {
+            pending.future.completeExceptionally(cause);
+        }
+    }
+}
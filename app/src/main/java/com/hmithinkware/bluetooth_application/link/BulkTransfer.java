@@ -0,0 +1,454 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+/**
+ * Sends files over a {@link Connection} in acknowledged chunks, for firmware images and other
+ * uploads that must arrive intact.
+ * <p>
+ * Up to {@code window} chunks are in flight at once, so the link stays busy instead of
+ * idling for a round trip per chunk. The peer acknowledges cumulatively, with a bitmap of the
+ * chunks it already holds past that point, and only missing chunks are sent again: at once
+ * if a chunk sent after them has arrived, otherwise after the timeout. Each chunk carries its
+ * own CRC so the peer can drop damaged ones; the offer carries a CRC-32 of the whole file.
+ * <p>
+ * Chunks travel on a {@link BulkChannel}, so commands keep their priority during an upload.
+ * When the link comes back after a drop the file is offered again and the peer answers with
+ * the chunk to resume from, so only what it never stored is sent twice.
+ * <p>
+ * Control frames, both ways:
+ * <pre>
+ * offer    [0xFA][1][transfer u8][size u32][chunk size u16][crc32 u32]
+ * accept   [0xFA][2][transfer u8][resume from u32]
+ * ack      [0xFA][3][transfer u8][next missing u32][held u32]   bit i = chunk next + 1 + i held
+ * reject   [0xFA][4][transfer u8][status u8]
+ * </pre>
+ * Chunks, one bulk message each:
+ * <pre>
+ * [transfer u8][index u32][crc16 u16][data...]
+ * </pre>
+ */
+public final class BulkTransfer {
+    public static final byte MARKER = (byte) 0xFA;
+    public static final int OFFER = 1;
+    public static final int ACCEPT = 2;
+    public static final int ACK = 3;
+    public static final int REJECT = 4;
+    public static final int CHUNK_HEADER_BYTES = 7;
+    // Bounded by the width of the ack bitmap
+    public static final int MAX_WINDOW = 32;
+
+    private static final int OFFER_LENGTH = 13;
+    private static final int ACCEPT_LENGTH = 7;
+    private static final int ACK_LENGTH = 11;
+    private static final int REJECT_LENGTH = 4;
+    private static final int CHECKSUM_BUFFER_BYTES = 64 * 1024;
+
+    // The peer refused the file or failed its final check
+    public static final class TransferException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int mStatus;
+
+        TransferException(int status) {
+            super("Transfer rejected with status " + status);
+            mStatus = status;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+    }
+
+    private final Connection mConnection;
+    private final BulkChannel mChannel;
+    private long mTimeoutNanos;
+    private final int mMaxRetries;
+    private final int mChunkSize;
+    private final ByteBuffer mRead;
+    private int mWindow;
+
+    // Per chunk in the window, indexed by chunk & (MAX_WINDOW - 1)
+    private final long[] mSentAt = new long[MAX_WINDOW];
+    private final long[] mSendOrder = new long[MAX_WINDOW];
+    private final int[] mAttempts = new int[MAX_WINDOW];
+    private final boolean[] mHeld = new boolean[MAX_WINDOW];
+
+    // The running transfer, guarded by this; mFuture is null when idle
+    private CompletableFuture<Void> mFuture;
+    private RandomAccessFile mFile;
+    private FileChannel mFileChannel;
+    private int mId;
+    // Id of the transfer that ended last, whose late answers are still ours; -1 if none
+    private int mFinishedId = -1;
+    private long mSize;
+    private int mChunkCount;
+    private long mCrc32;
+    private boolean mAccepted;
+    private long mOfferSentAt;
+    private int mOfferAttempts;
+    // Chunks below mAcked are stored by the peer; mNext is the first never sent
+    private int mAcked;
+    private int mNext;
+    private long mSendCounter;
+    private long mRetransmits;
+    private volatile long mBytesAcked;
+    // Earliest retransmit or offer deadline, Long.MAX_VALUE if none; read by the loop
+    private volatile long mNextDeadline = Long.MAX_VALUE;
+
+    BulkTransfer(Connection connection, BulkChannel channel, int window, long timeoutMillis, int maxRetries) {
+        mConnection = connection;
+        mChannel = channel;
+        mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        mMaxRetries = maxRetries;
+        mChunkSize = channel.getChunkSize() - CHUNK_HEADER_BYTES;
+        mRead = ByteBuffer.allocate(mChunkSize);
+        setWindow(window);
+    }
+
+    // Takes effect from the next chunk sent
+    public synchronized void setWindow(int window) {
+        if (window < 1 || window > MAX_WINDOW) {
+            throw new IllegalArgumentException("Window must be 1.." + MAX_WINDOW);
+        }
+        mWindow = window;
+    }
+
+    // How long a chunk or offer waits for an answer before it is sent again; takes effect from
+    // the next one sent
+    synchronized void setTimeout(long timeoutMillis) {
+        mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    // Chunks sent but not yet acknowledged
+    synchronized int getInFlight() {
+        return mFuture != null ? mNext - mAcked : 0;
+    }
+
+    // File bytes per chunk
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public long getBytesAcked() {
+        return mBytesAcked;
+    }
+
+    public synchronized long getRetransmits() {
+        return mRetransmits;
+    }
+
+    public synchronized boolean isRunning() {
+        return mFuture != null;
+    }
+
+    /**
+     * Starts sending {@code file}; one transfer runs at a time. Reads the whole file once on
+     * the calling thread to checksum it, so don't call this from the UI thread. The future
+     * completes once the peer holds every chunk.
+     */
+    public CompletableFuture<Void> send(File file) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        RandomAccessFile handle = null;
+        try {
+            handle = new RandomAccessFile(file, "r");
+            FileChannel channel = handle.getChannel();
+            long size = channel.size();
+            if (size > 0xFFFFFFFFL) {
+                throw new IOException("File too large: " + size);
+            }
+            long crc32 = checksum(channel);
+            synchronized (this) {
+                if (mFuture != null) {
+                    throw new IllegalStateException("A transfer is already running");
+                }
+                mFuture = future;
+                mFile = handle;
+                mFileChannel = channel;
+                mId = (mId + 1) & 0xFF;
+                mSize = size;
+                mChunkCount = (int) ((size + mChunkSize - 1) / mChunkSize);
+                mCrc32 = crc32;
+                mAcked = 0;
+                mNext = 0;
+                mRetransmits = 0;
+                mBytesAcked = 0;
+                mOfferAttempts = 0;
+                mAccepted = false;
+                offer(System.nanoTime());
+            }
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(handle);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    // Called on the loop thread for every incoming frame. Returns true if it answered the
+    // running transfer or the one just finished; anything else is left for the app.
+    boolean onFrame(Slab frame) {
+        byte[] data = frame.array();
+        int length = frame.length();
+        if (length < 3 || data[0] != MARKER) {
+            return false;
+        }
+        int type = data[1];
+        int id = data[2] & 0xFF;
+        if (!(type == ACCEPT && length == ACCEPT_LENGTH) && !(type == ACK && length == ACK_LENGTH)
+                && !(type == REJECT && length == REJECT_LENGTH)) {
+            return false;
+        }
+        synchronized (this) {
+            if (mFuture == null || id != mId) {
+                // A late answer about the transfer that just ended is swallowed
+                return id == mFinishedId;
+            }
+            try {
+                if (type == ACCEPT && length == ACCEPT_LENGTH) {
+                    int resume = (int) Math.min(readU32(data, 3), mChunkCount);
+                    mAccepted = true;
+                    mAcked = resume;
+                    mNext = resume;
+                    mBytesAcked = Math.min(mSize, (long) resume * mChunkSize);
+                    if (resume == mChunkCount) {
+                        finish(null);
+                    } else {
+                        fill(System.nanoTime());
+                    }
+                } else if (type == ACK && length == ACK_LENGTH) {
+                    onAck((int) readU32(data, 3), (int) readU32(data, 7));
+                } else if (type == REJECT && length == REJECT_LENGTH) {
+                    finish(new TransferException(data[3] & 0xFF));
+                }
+            } catch (IOException e) {
+                finish(e);
+            }
+        }
+        return true;
+    }
+
+    // Called by the loop on every pass; cheap unless a deadline has passed
+    void checkTimeouts(long nowNanos) {
+        if (nowNanos - mNextDeadline < 0) {
+            return;
+        }
+        synchronized (this) {
+            if (mFuture == null) {
+                mNextDeadline = Long.MAX_VALUE;
+                return;
+            }
+            if (!mAccepted) {
+                if (nowNanos - mOfferSentAt - mTimeoutNanos < 0) {
+                    mNextDeadline = mOfferSentAt + mTimeoutNanos;
+                } else if (mOfferAttempts > mMaxRetries) {
+                    finish(new TimeoutException("Peer never answered the offer"));
+                } else {
+                    offer(nowNanos);
+                }
+                return;
+            }
+            try {
+                for (int chunk = mAcked; chunk < mNext; chunk++) {
+                    int slot = chunk & (MAX_WINDOW - 1);
+                    if (!mHeld[slot] && nowNanos - mSentAt[slot] - mTimeoutNanos >= 0) {
+                        resend(chunk, nowNanos);
+                    }
+                }
+                updateDeadline();
+            } catch (IOException | TimeoutException e) {
+                finish(e);
+            }
+        }
+    }
+
+    // Connector thread, once a new transport is attached: offer the file again to learn
+    // where the peer got to
+    synchronized void onAttached() {
+        if (mFuture != null) {
+            mAccepted = false;
+            mOfferAttempts = 0;
+            offer(System.nanoTime());
+        }
+    }
+
+    // Fails the running transfer; the connection is gone for good
+    synchronized void failAll(IOException cause) {
+        if (mFuture != null) {
+            finish(cause);
+        }
+    }
+
+    // Caller holds the lock
+    private void onAck(int next, int held) throws IOException {
+        if (next > mAcked) {
+            mAcked = Math.min(next, mNext);
+            mBytesAcked = Math.min(mSize, (long) mAcked * mChunkSize);
+        }
+        if (mAcked == mChunkCount) {
+            finish(null);
+            return;
+        }
+        // A chunk missing while one sent after it has arrived was lost; send it again now
+        long newestHeld = -1;
+        for (int bit = 0; bit < MAX_WINDOW; bit++) {
+            int chunk = next + 1 + bit;
+            if (chunk >= mNext) {
+                break;
+            }
+            if (chunk >= mAcked && (held & (1 << bit)) != 0) {
+                int slot = chunk & (MAX_WINDOW - 1);
+                mHeld[slot] = true;
+                newestHeld = Math.max(newestHeld, mSendOrder[slot]);
+            }
+        }
+        long now = System.nanoTime();
+        try {
+            for (int chunk = mAcked; chunk < mNext; chunk++) {
+                int slot = chunk & (MAX_WINDOW - 1);
+                if (!mHeld[slot] && mSendOrder[slot] < newestHeld) {
+                    resend(chunk, now);
+                }
+            }
+        } catch (TimeoutException e) {
+            finish(e);
+            return;
+        }
+        fill(now);
+    }
+
+    // Caller holds the lock. Sends new chunks while the window has room.
+    private void fill(long nowNanos) throws IOException {
+        while (mNext < mChunkCount && mNext - mAcked < mWindow) {
+            int slot = mNext & (MAX_WINDOW - 1);
+            mHeld[slot] = false;
+            mAttempts[slot] = 0;
+            sendChunk(mNext, nowNanos);
+            mNext++;
+        }
+        updateDeadline();
+    }
+
+    // Caller holds the lock
+    private void resend(int chunk, long nowNanos) throws IOException, TimeoutException {
+        if (mAttempts[chunk & (MAX_WINDOW - 1)] > mMaxRetries) {
+            throw new TimeoutException("Chunk " + chunk + " not acknowledged after "
+                    + mAttempts[chunk & (MAX_WINDOW - 1)] + " attempts");
+        }
+        mRetransmits++;
+        sendChunk(chunk, nowNanos);
+    }
+
+    // Caller holds the lock. A refused write (queue full, link down) is left to the timeout.
+    private void sendChunk(int chunk, long nowNanos) throws IOException {
+        long position = (long) chunk * mChunkSize;
+        int length = (int) Math.min(mChunkSize, mSize - position);
+        byte[] message = new byte[CHUNK_HEADER_BYTES + length];
+        mRead.clear().limit(length);
+        while (mRead.hasRemaining()) {
+            if (mFileChannel.read(mRead, position + mRead.position()) < 0) {
+                throw new IOException("File shrank during transfer");
+            }
+        }
+        System.arraycopy(mRead.array(), 0, message, CHUNK_HEADER_BYTES, length);
+        int crc = Crc16.compute(message, CHUNK_HEADER_BYTES, length);
+        message[0] = (byte) mId;
+        writeU32(message, 1, chunk);
+        message[5] = (byte) (crc >>> 8);
+        message[6] = (byte) crc;
+        int slot = chunk & (MAX_WINDOW - 1);
+        mAttempts[slot]++;
+        mSentAt[slot] = nowNanos;
+        mSendOrder[slot] = ++mSendCounter;
+        mChannel.write(message);
+    }
+
+    // Caller holds the lock
+    private void offer(long nowNanos) {
+        byte[] frame = new byte[OFFER_LENGTH];
+        frame[0] = MARKER;
+        frame[1] = OFFER;
+        frame[2] = (byte) mId;
+        writeU32(frame, 3, mSize);
+        frame[7] = (byte) (mChunkSize >>> 8);
+        frame[8] = (byte) mChunkSize;
+        writeU32(frame, 9, mCrc32);
+        mOfferAttempts++;
+        mOfferSentAt = nowNanos;
+        // Until the peer answers, the offer is the only thing that can time out
+        mNextDeadline = nowNanos + mTimeoutNanos;
+        mConnection.write(frame);
+    }
+
+    // Caller holds the lock
+    private void updateDeadline() {
+        long next = Long.MAX_VALUE;
+        for (int chunk = mAcked; chunk < mNext; chunk++) {
+            int slot = chunk & (MAX_WINDOW - 1);
+            if (!mHeld[slot]) {
+                next = Math.min(next, mSentAt[slot] + mTimeoutNanos);
+            }
+        }
+        mNextDeadline = next;
+    }
+
+    // Caller holds the lock
+    private void finish(Exception failure) {
+        CompletableFuture<Void> future = mFuture;
+        mFuture = null;
+        mFinishedId = mId;
+        mNextDeadline = Long.MAX_VALUE;
+        closeQuietly(mFile);
+        mFile = null;
+        mFileChannel = null;
+        if (failure == null) {
+            future.complete(null);
+        } else {
+            future.completeExceptionally(failure);
+        }
+    }
+
+    private static long checksum(FileChannel channel) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_BUFFER_BYTES);
+        long position = 0;
+        int read;
+        while ((read = channel.read(buffer, position)) > 0) {
+            crc.update(buffer.array(), 0, read);
+            position += read;
+            buffer.clear();
+        }
+        return crc.getValue();
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+                // Only read from
+            }
+        }
+    }
+
+    private static long readU32(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void writeU32(byte[] data, int offset, long value) {
+        for (int i = 0; i < 4; i++) {
+            data[offset + i] = (byte) (value >>> (24 - 8 * i));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Bounded single-direction byte pipe backed by a ring buffer.
+ * <p>
+ * Unlike {@link java.io.PipedInputStream} it does not care which threads read and write,
+ * and reads return whatever is buffered instead of waiting for a full request.
+ */
+final class BytePipe {
+    private final byte[] mRing;
+    private int mHead;
+    private int mCount;
+    private boolean mWriterClosed;
+    private boolean mReaderClosed;
+
+    private final InputStream mInput = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return BytePipe.this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return BytePipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (BytePipe.this) {
+                return mCount;
+            }
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    };
+
+    private final OutputStream mOutput = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            BytePipe.this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            BytePipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    };
+
+    BytePipe(int capacity) {
+        mRing = new byte[capacity];
+    }
+
+    InputStream inputStream() {
+        return mInput;
+    }
+
+    OutputStream outputStream() {
+        return mOutput;
+    }
+
+    synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (mCount == 0) {
+            if (mReaderClosed) {
+                throw new IOException("Pipe closed");
+            }
+            if (mWriterClosed) {
+                return -1;
+            }
+            awaitChange();
+        }
+        if (mReaderClosed) {
+            throw new IOException("Pipe closed");
+        }
+        int n = Math.min(len, mCount);
+        int first = Math.min(n, mRing.length - mHead);
+        System.arraycopy(mRing, mHead, b, off, first);
+        System.arraycopy(mRing, 0, b, off + first, n - first);
+        mHead = (mHead + n) % mRing.length;
+        mCount -= n;
+        notifyAll();
+        return n;
+    }
+
+    synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            while (mCount == mRing.length && !mReaderClosed && !mWriterClosed) {
+                awaitChange();
+            }
+            if (mReaderClosed || mWriterClosed) {
+                throw new IOException("Pipe closed");
+            }
+            int tail = (mHead + mCount) % mRing.length;
+            int n = Math.min(len, Math.min(mRing.length - mCount, mRing.length - tail));
+            System.arraycopy(b, off, mRing, tail, n);
+            mCount += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    // Writes as much as fits without waiting and returns how many bytes that was
+    synchronized int offer(byte[] b, int off, int len) {
+        if (mReaderClosed || mWriterClosed) {
+            return 0;
+        }
+        int n = Math.min(len, mRing.length - mCount);
+        int tail = (mHead + mCount) % mRing.length;
+        int first = Math.min(n, mRing.length - tail);
+        System.arraycopy(b, off, mRing, tail, first);
+        System.arraycopy(b, off + first, mRing, 0, n - first);
+        mCount += n;
+        if (n > 0) {
+            notifyAll();
+        }
+        return n;
+    }
+
+    // True once the writer has closed and every buffered byte has been read
+    synchronized boolean isDrained() {
+        return mWriterClosed && mCount == 0;
+    }
+
+    synchronized void closeWriter() {
+        mWriterClosed = true;
+        notifyAll();
+    }
+
+    synchronized void closeReader() {
+        mReaderClosed = true;
+        notifyAll();
+    }
+
+    private void awaitChange() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on pipe");
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates how a peripheral's clock maps onto this phone's {@link System#nanoTime()}, so
+ * frames from several devices can be put on one timeline.
+ * <p>
+ * The connection's loop sends a request now and then carrying the local send time; the peer
+ * answers with that echoed and its own clock in microseconds:
+ * <pre>
+ * request  [0xF9]['S'][local send nanos i64]
+ * reply    [0xF9]['s'][local send nanos i64][peer micros i64]
+ * </pre>
+ * Taking both legs as equally long, the peer read its clock halfway between send and receive.
+ * A reply that queued behind other traffic says little, so only the fastest round trips among
+ * the last {@link #WINDOW} count: the offset is fitted through those, with a drift term once
+ * they span {@link #MIN_DRIFT_SPAN_NANOS}. Half the fastest round trip is also the best guess
+ * at how long a frame takes to arrive, which places frames that carry no device time.
+ * <p>
+ * Nothing is sent until the app asks for the clock, since firmware that doesn't know the
+ * request may take it for data. Firmware that never answers is left alone after
+ * {@link #MAX_UNANSWERED} requests. Only replies echoing one of those requests are taken out
+ * of the stream. The samples are dropped on every reconnect, since the peer may have rebooted
+ * meanwhile.
+ */
+public final class ClockSync {
+    public static final byte MARKER = (byte) 0xF9;
+    public static final int WINDOW = 32;
+    public static final int MIN_SAMPLES = 3;
+    public static final int MAX_UNANSWERED = 3;
+    public static final long MIN_DRIFT_SPAN_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private static final byte REQUEST = 'S';
+    private static final byte REPLY = 's';
+    private static final int REQUEST_LENGTH = 10;
+    private static final int REPLY_LENGTH = 18;
+    // Quick requests until there are enough samples, then one per interval
+    private static final int FAST_SAMPLES = 8;
+    private static final long FAST_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Replies this much slower than the fastest are left out of the fit
+    private static final int SLOW_FACTOR = 2;
+
+    // One fit, replaced as a whole so readers see a consistent set
+    private static final class Estimate {
+        final long offsetNanos;
+        final long referenceNanos;
+        final double drift;
+        final long oneWayNanos;
+
+        Estimate(long offsetNanos, long referenceNanos, double drift, long oneWayNanos) {
+            this.offsetNanos = offsetNanos;
+            this.referenceNanos = referenceNanos;
+            this.drift = drift;
+            this.oneWayNanos = oneWayNanos;
+        }
+    }
+
+    private final Connection mConnection;
+    private final long mIntervalNanos;
+    // Loop thread only: ring of samples, local midpoint, peer minus local, round trip
+    private final long[] mMidpoints = new long[WINDOW];
+    private final long[] mOffsets = new long[WINDOW];
+    private final long[] mRoundTrips = new long[WINDOW];
+    private int mNext;
+    private int mCount;
+    private long mTotalSamples;
+    private long mPendingNanos;
+    // Send times of the last few requests, so a late reply is still known as ours; 0 if free
+    private final long[] mRecentRequests = new long[MAX_UNANSWERED];
+    private int mNextRecent;
+    private long mNextRequestNanos;
+    private int mUnanswered;
+    private boolean mAnsweredOnce;
+    private volatile Estimate mEstimate;
+    private volatile boolean mGaveUp;
+
+    ClockSync(Connection connection, long intervalMillis) {
+        mConnection = connection;
+        mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        mNextRequestNanos = System.nanoTime();
+    }
+
+    // True once there are enough samples to trust the mapping
+    public boolean isSynchronized() {
+        return mEstimate != null;
+    }
+
+    // The peer never answered; no more requests are sent
+    public boolean isUnsupported() {
+        return mGaveUp;
+    }
+
+    public long sampleCount() {
+        return mTotalSamples;
+    }
+
+    // Peer clock minus local clock right now, 0 before the first fit
+    public long offsetNanos() {
+        Estimate estimate = mEstimate;
+        if (estimate == null) {
+            return 0;
+        }
+        return estimate.offsetNanos + (long) (estimate.drift * (System.nanoTime() - estimate.referenceNanos));
+    }
+
+    // Parts per million the peer's clock runs fast, 0 until the samples span long enough
+    public double driftPpm() {
+        Estimate estimate = mEstimate;
+        return estimate != null ? estimate.drift * 1e6 : 0;
+    }
+
+    // Best guess at how long a frame from the peer takes to get here, 0 if unknown
+    public long oneWayNanos() {
+        Estimate estimate = mEstimate;
+        return estimate != null ? estimate.oneWayNanos : 0;
+    }
+
+    // Local System.nanoTime() at which the peer's clock read peerMicros
+    public long toLocalNanos(long peerMicros) {
+        Estimate estimate = mEstimate;
+        if (estimate == null) {
+            throw new IllegalStateException("Clock not synchronized yet");
+        }
+        // peer = local + offset + drift * (local - reference), solved for local
+        long sinceReference = peerMicros * 1000 - estimate.offsetNanos - estimate.referenceNanos;
+        return estimate.referenceNanos + (long) (sinceReference / (1 + estimate.drift));
+    }
+
+    // Where a frame read at readNanos was sent, when it carries no time of its own
+    public long sentNanos(long readNanos) {
+        return readNanos - oneWayNanos();
+    }
+
+    // For the metrics screen: offset and one-way delay in microseconds
+    public String snapshot() {
+        if (mGaveUp) {
+            return "clock=unsupported";
+        }
+        if (!isSynchronized()) {
+            return "clock=syncing";
+        }
+        return String.format(Locale.US, "clock_offset_us=%d drift_ppm=%.1f one_way_us=%d",
+                offsetNanos() / 1000, driftPpm(), oneWayNanos() / 1000);
+    }
+
+    // Called by the loop; sends the next request when one is due
+    void onPoll(long nowNanos) {
+        if (mGaveUp || nowNanos - mNextRequestNanos < 0) {
+            return;
+        }
+        if (mPendingNanos != 0 && !mAnsweredOnce && ++mUnanswered >= MAX_UNANSWERED) {
+            mGaveUp = true;
+            return;
+        }
+        byte[] request = new byte[REQUEST_LENGTH];
+        request[0] = MARKER;
+        request[1] = REQUEST;
+        putLong(request, 2, nowNanos);
+        mPendingNanos = nowNanos;
+        mRecentRequests[mNextRecent] = nowNanos;
+        mNextRecent = (mNextRecent + 1) % mRecentRequests.length;
+        mNextRequestNanos = nowNanos + (mCount < FAST_SAMPLES ? FAST_INTERVAL_NANOS : mIntervalNanos);
+        mConnection.write(request);
+    }
+
+    // Called by the loop for every received frame; true if it answered one of our requests
+    // and was consumed. Anything else of the same shape is the app's.
+    boolean onFrame(Slab frame) {
+        byte[] data = frame.array();
+        if (frame.length() != REPLY_LENGTH || data[0] != MARKER || data[1] != REPLY) {
+            return false;
+        }
+        long sent = getLong(data, 2);
+        if (sent == 0 || !isRecentRequest(sent)) {
+            return false;
+        }
+        if (sent != mPendingNanos) {
+            // An answer to a request we have stopped waiting for
+            return true;
+        }
+        long received = frame.readNanos() != 0 ? frame.readNanos() : System.nanoTime();
+        mPendingNanos = 0;
+        mAnsweredOnce = true;
+        addSample(sent, received, getLong(data, 10));
+        return true;
+    }
+
+    // The peer may have rebooted, so its clock starts over; it may also have been reflashed, so
+    // whether it answers at all is found out again
+    void onAttached() {
+        mCount = 0;
+        mNext = 0;
+        mPendingNanos = 0;
+        mUnanswered = 0;
+        mAnsweredOnce = false;
+        mGaveUp = false;
+        Arrays.fill(mRecentRequests, 0);
+        mNextRequestNanos = System.nanoTime();
+        mEstimate = null;
+    }
+
+    private boolean isRecentRequest(long sentNanos) {
+        for (long request : mRecentRequests) {
+            if (request == sentNanos) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addSample(long sentNanos, long receivedNanos, long peerMicros) {
+        long midpoint = sentNanos + (receivedNanos - sentNanos) / 2;
+        mMidpoints[mNext] = midpoint;
+        mOffsets[mNext] = peerMicros * 1000 - midpoint;
+        mRoundTrips[mNext] = receivedNanos - sentNanos;
+        mNext = (mNext + 1) % WINDOW;
+        mCount = Math.min(mCount + 1, WINDOW);
+        mTotalSamples++;
+        if (mCount >= MIN_SAMPLES) {
+            fit();
+        }
+    }
+
+    // Least squares through the fast samples, relative to the newest so the numbers stay small
+    private void fit() {
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            fastest = Math.min(fastest, mRoundTrips[i]);
+        }
+        int newest = (mNext + WINDOW - 1) % WINDOW;
+        long reference = mMidpoints[newest];
+        long base = mOffsets[newest];
+        long limit = Math.max(fastest * SLOW_FACTOR, fastest + 1);
+        int n = 0;
+        double sumX = 0;
+        double sumY = 0;
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            if (mRoundTrips[i] <= limit) {
+                n++;
+                sumX += mMidpoints[i] - reference;
+                sumY += mOffsets[i] - base;
+                earliest = Math.min(earliest, mMidpoints[i]);
+            }
+        }
+        double meanX = sumX / n;
+        double meanY = sumY / n;
+        double drift = 0;
+        if (n >= MIN_SAMPLES && reference - earliest >= MIN_DRIFT_SPAN_NANOS) {
+            double sxx = 0;
+            double sxy = 0;
+            for (int i = 0; i < mCount; i++) {
+                if (mRoundTrips[i] <= limit) {
+                    double dx = mMidpoints[i] - reference - meanX;
+                    sxx += dx * dx;
+                    sxy += dx * (mOffsets[i] - base - meanY);
+                }
+            }
+            drift = sxx > 0 ? sxy / sxx : 0;
+        }
+        long offset = base + (long) (meanY - drift * meanX);
+        mEstimate = new Estimate(offset, reference, drift, fastest / 2);
+    }
+
+    private static void putLong(byte[] dst, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            dst[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    private static long getLong(byte[] src, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (src[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
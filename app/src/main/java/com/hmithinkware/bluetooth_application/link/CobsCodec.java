@@ -0,0 +1,159 @@
+package com.hmithinkware.bluetooth_application.link;
+
+/**
+ * Frames as {@code COBS(payload + crc16 BE) 0x00}.
+ * <p>
+ * Consistent overhead byte stuffing removes every zero from the encoded data, so a zero
+ * always marks the end of a frame and the decoder resynchronises after line noise on the
+ * next delimiter. Overhead is at most one byte per 254 plus the delimiter.
+ */
+public final class CobsCodec implements FrameCodec {
+    private static final int TRAILER = 2;
+    private static final byte DELIMITER = 0;
+    public static final int DEFAULT_MAX_PAYLOAD = 1024;
+
+    private final int mMaxPayload;
+
+    public CobsCodec() {
+        this(DEFAULT_MAX_PAYLOAD);
+    }
+
+    public CobsCodec(int maxPayload) {
+        if (maxPayload <= 0) {
+            throw new IllegalArgumentException("Invalid max payload: " + maxPayload);
+        }
+        mMaxPayload = maxPayload;
+    }
+
+    @Override
+    public int maxPayload() {
+        return mMaxPayload;
+    }
+
+    @Override
+    public int maxEncodedSize(int payloadLength) {
+        int raw = payloadLength + TRAILER;
+        return raw + raw / 254 + 1 + 1;
+    }
+
+    @Override
+    public int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        if (length > mMaxPayload) {
+            throw new IllegalArgumentException("Payload too large: " + length);
+        }
+        int crc = Crc16.compute(src, offset, length);
+        int codeAt = dstOffset;
+        int write = dstOffset + 1;
+        int code = 1;
+        for (int i = 0; i < length + TRAILER; i++) {
+            byte b;
+            if (i < length) {
+                b = src[offset + i];
+            } else {
+                b = (byte) (i == length ? crc >>> 8 : crc);
+            }
+            if (b == 0) {
+                dst[codeAt] = (byte) code;
+                codeAt = write++;
+                code = 1;
+            } else {
+                dst[write++] = b;
+                if (++code == 0xFF) {
+                    dst[codeAt] = (byte) code;
+                    codeAt = write++;
+                    code = 1;
+                }
+            }
+        }
+        dst[codeAt] = (byte) code;
+        dst[write++] = DELIMITER;
+        return write - dstOffset;
+    }
+
+    @Override
+    public FrameDecoder newDecoder(FrameListener listener) {
+        return new Decoder(listener);
+    }
+
+    private final class Decoder implements FrameDecoder {
+        private final FrameListener mListener;
+        private final byte[] mFrame = new byte[maxEncodedSize(mMaxPayload)];
+        private int mFill;
+        private boolean mOverflow;
+
+        Decoder(FrameListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void feed(byte[] data, int offset, int length) {
+            int pos = offset;
+            int end = offset + length;
+            while (pos < end) {
+                int delimiter = pos;
+                while (delimiter < end && data[delimiter] != DELIMITER) {
+                    delimiter++;
+                }
+                int run = delimiter - pos;
+                if (!mOverflow) {
+                    if (mFill + run > mFrame.length) {
+                        mOverflow = true;
+                    } else {
+                        System.arraycopy(data, pos, mFrame, mFill, run);
+                        mFill += run;
+                    }
+                }
+                pos = delimiter;
+                if (pos < end) {
+                    pos++;
+                    finishFrame();
+                }
+            }
+        }
+
+        @Override
+        public void reset() {
+            mFill = 0;
+            mOverflow = false;
+        }
+
+        private void finishFrame() {
+            if (mOverflow) {
+                mListener.onFrameError("Frame exceeds " + mMaxPayload + " bytes");
+            } else if (mFill > 0) {
+                int decoded = decodeInPlace(mFrame, mFill);
+                if (decoded < TRAILER) {
+                    mListener.onFrameError("Malformed COBS frame");
+                } else {
+                    int payload = decoded - TRAILER;
+                    int expected = ((mFrame[payload] & 0xFF) << 8) | (mFrame[payload + 1] & 0xFF);
+                    if (Crc16.compute(mFrame, 0, payload) != expected) {
+                        mListener.onFrameError("CRC mismatch");
+                    } else {
+                        mListener.onFrame(mFrame, 0, payload);
+                    }
+                }
+            }
+            reset();
+        }
+    }
+
+    // Decoded output never outgrows the input, so the frame is decoded over itself
+    private static int decodeInPlace(byte[] buf, int length) {
+        int read = 0;
+        int write = 0;
+        while (read < length) {
+            int code = buf[read++] & 0xFF;
+            if (code == 0 || read + code - 1 > length) {
+                return -1;
+            }
+            for (int i = 1; i < code; i++) {
+                buf[write++] = buf[read++];
+            }
+            if (code < 0xFF && read < length) {
+                buf[write++] = 0;
+            }
+        }
+        return write;
+    }
+}
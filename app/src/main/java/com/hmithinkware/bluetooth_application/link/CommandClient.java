@@ -0,0 +1,265 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Request/response commands over a {@link Connection}, pipelined.
+ * <p>
+ * Each request carries a 16-bit correlation id and the peer answers with the same id, so up
+ * to {@code window} requests are on the wire at once and responses may come back in any
+ * order. Requests beyond the window wait here and go out as responses free slots, so a sweep
+ * over hundreds of registers is one continuous burst rather than a round trip per register.
+ * <p>
+ * Wire format, one frame each:
+ * <pre>
+ * request   [0xFE][id u16][opcode u8][payload...]
+ * response  [0xFE][id u16][status u8][payload...]   status 0 = OK
+ * </pre>
+ * A request that gets no response within the timeout is sent again with the same id, up to
+ * the retry limit, so commands must be idempotent (register reads and writes are). Deadlines
+ * are checked by the connection's event loop, so they don't run while the link is being
+ * re-established; those requests are retried once it is back.
+ */
+public final class CommandClient {
+    public static final byte MARKER = (byte) 0xFE;
+    public static final int OP_READ_REGISTER = 0x01;
+    public static final int OP_WRITE_REGISTER = 0x02;
+    public static final int STATUS_OK = 0;
+
+    private static final int HEADER_BYTES = 4;
+    // Ids whose late answers are still swallowed after the request is gone
+    private static final int RETIRED_IDS = 16;
+
+    // The peer answered with a non-zero status
+    public static final class CommandException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int mStatus;
+
+        CommandException(int opcode, int status) {
+            super("Command " + opcode + " failed with status " + status);
+            mStatus = status;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+    }
+
+    private static final class Request {
+        final int opcode;
+        final byte[] frame;
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        long deadline;
+        int attempts;
+
+        Request(int opcode, byte[] frame) {
+            this.opcode = opcode;
+            this.frame = frame;
+        }
+    }
+
+    private final Connection mConnection;
+    private final long mTimeoutNanos;
+    private final int mMaxRetries;
+    // Indexed by id & mask. Answers come back in any order, so ids whose slot is still taken
+    // are skipped; with the table at least the window's size a free slot always exists.
+    private final Request[] mInFlight;
+    private final int mMask;
+    private final int mWindow;
+    private final ArrayDeque<Request> mWaiting = new ArrayDeque<>();
+    // Ids of requests that were sent more than once and are gone, so a late copy of an answer
+    // can still be recognised; a ring, -1 when empty
+    private final int[] mRetired = new int[RETIRED_IDS];
+    private int mRetiredNext;
+    private int mNextId;
+    private int mInFlightCount;
+    // Earliest deadline among requests in flight, Long.MAX_VALUE if none; read by the loop
+    private volatile long mNextDeadline = Long.MAX_VALUE;
+
+    CommandClient(Connection connection, int window, long timeoutMillis, int maxRetries) {
+        if (window < 1 || window > 0x8000) {
+            throw new IllegalArgumentException("Window must be 1..32768");
+        }
+        mConnection = connection;
+        mWindow = window;
+        mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        mMaxRetries = maxRetries;
+        int size = Integer.highestOneBit(Math.max(2, window) - 1) << 1;
+        mInFlight = new Request[size];
+        mMask = size - 1;
+        Arrays.fill(mRetired, -1);
+    }
+
+    // Completes with the response payload, or with a CommandException, TimeoutException or IOException
+    public CompletableFuture<byte[]> send(int opcode, byte[] payload) {
+        byte[] frame = new byte[HEADER_BYTES + payload.length];
+        frame[0] = MARKER;
+        frame[3] = (byte) opcode;
+        System.arraycopy(payload, 0, frame, HEADER_BYTES, payload.length);
+        Request request = new Request(opcode, frame);
+        synchronized (this) {
+            if (mInFlightCount < mWindow) {
+                transmit(request);
+            } else {
+                mWaiting.add(request);
+            }
+        }
+        return request.future;
+    }
+
+    public CompletableFuture<Long> readRegister(int register) {
+        byte[] payload = {(byte) (register >>> 8), (byte) register};
+        return send(OP_READ_REGISTER, payload).thenApply(value -> {
+            long result = 0;
+            for (byte b : value) {
+                result = (result << 8) | (b & 0xFF);
+            }
+            return result;
+        });
+    }
+
+    public CompletableFuture<Void> writeRegister(int register, long value) {
+        byte[] payload = {(byte) (register >>> 8), (byte) register,
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        return send(OP_WRITE_REGISTER, payload).thenApply(ignored -> null);
+    }
+
+    public synchronized int inFlight() {
+        return mInFlightCount;
+    }
+
+    // Called on the loop thread for every incoming frame. Returns true if it answered one of
+    // our requests; anything else that happens to start with the marker is left for the app.
+    boolean onFrame(Slab frame) {
+        byte[] data = frame.array();
+        if (frame.length() < HEADER_BYTES || data[0] != MARKER) {
+            return false;
+        }
+        int id = ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+        int status = data[3] & 0xFF;
+        Request request;
+        synchronized (this) {
+            request = mInFlight[id & mMask];
+            if (request == null || idOf(request) != id) {
+                // Late answer to something that already completed or timed out
+                return isRetired(id);
+            }
+            release(request);
+        }
+        if (status == STATUS_OK) {
+            byte[] payload = new byte[frame.length() - HEADER_BYTES];
+            System.arraycopy(data, HEADER_BYTES, payload, 0, payload.length);
+            request.future.complete(payload);
+        } else {
+            request.future.completeExceptionally(new CommandException(request.opcode, status));
+        }
+        return true;
+    }
+
+    // Called by the loop on every pass; cheap unless a deadline has passed
+    void checkTimeouts(long nowNanos) {
+        if (nowNanos - mNextDeadline < 0) {
+            return;
+        }
+        synchronized (this) {
+            long next = Long.MAX_VALUE;
+            for (int slot = 0; slot < mInFlight.length; slot++) {
+                Request request = mInFlight[slot];
+                if (request == null) {
+                    continue;
+                }
+                if (nowNanos - request.deadline >= 0) {
+                    if (request.attempts <= mMaxRetries) {
+                        send(request, nowNanos);
+                    } else {
+                        release(request);
+                        request.future.completeExceptionally(new TimeoutException(
+                                "No response to command " + request.opcode + " after " + request.attempts + " attempts"));
+                        continue;
+                    }
+                }
+                next = Math.min(next, request.deadline);
+            }
+            mNextDeadline = next;
+        }
+    }
+
+    // Fails everything outstanding; the connection is gone for good
+    void failAll(IOException cause) {
+        synchronized (this) {
+            for (int slot = 0; slot < mInFlight.length; slot++) {
+                if (mInFlight[slot] != null) {
+                    mInFlight[slot].future.completeExceptionally(cause);
+                    mInFlight[slot] = null;
+                }
+            }
+            for (Request request : mWaiting) {
+                request.future.completeExceptionally(cause);
+            }
+            mWaiting.clear();
+            mInFlightCount = 0;
+            mNextDeadline = Long.MAX_VALUE;
+        }
+    }
+
+    // Caller holds the lock
+    private boolean isRetired(int id) {
+        for (int retired : mRetired) {
+            if (retired == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int idOf(Request request) {
+        return ((request.frame[1] & 0xFF) << 8) | (request.frame[2] & 0xFF);
+    }
+
+    // Caller holds the lock
+    private void transmit(Request request) {
+        int id = mNextId;
+        while (mInFlight[id & mMask] != null) {
+            id = (id + 1) & 0xFFFF;
+        }
+        mNextId = (id + 1) & 0xFFFF;
+        request.frame[1] = (byte) (id >>> 8);
+        request.frame[2] = (byte) id;
+        mInFlight[id & mMask] = request;
+        mInFlightCount++;
+        send(request, System.nanoTime());
+    }
+
+    // Caller holds the lock
+    private void send(Request request, long nowNanos) {
+        request.attempts++;
+        request.deadline = nowNanos + mTimeoutNanos;
+        if (request.deadline - mNextDeadline < 0) {
+            mNextDeadline = request.deadline;
+        }
+        // A refused write (queue full, link closed) is left to the timeout and retry
+        mConnection.write(request.frame);
+    }
+
+    // Caller holds the lock. Frees the slot and lets the next waiting request out.
+    private void release(Request request) {
+        int id = idOf(request);
+        mInFlight[id & mMask] = null;
+        mInFlightCount--;
+        if (request.attempts > 1) {
+            // An answer to any of its copies may still be on the way
+            mRetired[mRetiredNext] = id;
+            mRetiredNext = (mRetiredNext + 1) % RETIRED_IDS;
+        }
+        Request next = mWaiting.poll();
+        if (next != null) {
+            transmit(next);
+        }
+    }
+}
@@ -0,0 +1,697 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One peripheral managed by a {@link ConnectionManager}.
+ * <p>
+ * A connection has no thread of its own. The event loop it is assigned to calls
+ * {@link #poll()} repeatedly, which reads whatever the transport has buffered and flushes
+ * queued writes, so reads and writes for many devices share a few threads.
+ * <p>
+ * The object outlives individual transports: after a drop the manager attaches a fresh
+ * transport to the same connection, and anything written in between goes out from the
+ * bounded write queue once the link is back.
+ * <p>
+ * If payload compression is offered, every new transport starts raw and sends a
+ * {@link PayloadCodec} hello; frames are compressed once the peer has answered.
+ * <p>
+ * Plain writes are control traffic and always go first. What a write does when the queue is
+ * full is set per connection with {@link #setWriteOverflow}. Large transfers go through
+ * {@link BulkChannel}s, whose chunks fill whatever time the control queue leaves.
+ * <p>
+ * A {@link LinkTuner} watches the traffic and sizes reads and write batching to suit it.
+ */
+public final class Connection {
+
+    public enum State {
+        CONNECTING,
+        CONNECTED,
+        // Link dropped; writes are queued and replayed once it is back
+        RECONNECTING,
+        CLOSED
+    }
+
+    // What write() does when the queue is full
+    public enum Overflow {
+        // Wait for room; never use from the UI thread. The loop thread itself fails instead.
+        BLOCK,
+        // Evict the oldest queued frame, failing its future
+        DROP_OLDEST,
+        // Fail the new frame's future immediately
+        FAIL
+    }
+
+    private static final int READ_SLABS = 2;
+    static final int FRAME_SLABS = 16;
+    private static final int WRITE_QUEUE_CAPACITY = 256;
+    private static final int WRITE_BATCH_BYTES = 990;
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    // Bulk chunk size, header included, and how much bulk data one poll may send before the
+    // loop goes back to reading. Control frames queued meanwhile still go out between chunks.
+    private static final int BULK_CHUNK_BYTES = 256;
+    private static final int BULK_BYTES_PER_POLL = 4 * WRITE_BATCH_BYTES;
+    // RTT probe frames: marker, type, then the sender's System.nanoTime() (big-endian).
+    // The peer answers a ping by echoing it with the type changed to PONG.
+    private static final byte PROBE_MARKER = (byte) 0xFF;
+    private static final byte PROBE_PING = 'P';
+    private static final byte PROBE_PONG = 'Q';
+    private static final int PROBE_LENGTH = 10;
+    // Command client defaults: requests on the wire at once, response timeout, resends
+    private static final int COMMAND_WINDOW = 32;
+    private static final long COMMAND_TIMEOUT_MILLIS = 500;
+    private static final int COMMAND_RETRIES = 2;
+    // File transfer defaults: its bulk channel and weight, chunks in flight, ack timeout, resends
+    private static final int TRANSFER_CHANNEL = 0xFF;
+    private static final int TRANSFER_WEIGHT = 4;
+    private static final int TRANSFER_WINDOW = 32;
+    private static final long TRANSFER_TIMEOUT_MILLIS = 1000;
+    private static final int TRANSFER_RETRIES = 5;
+    // Clock sync requests once the first few samples are in
+    private static final long CLOCK_SYNC_INTERVAL_MILLIS = 1000;
+
+    private final String mAddress;
+    private final FrameCodec mCodec;
+    private final ConnectionManager.TransportFactory mFactory;
+    private final int mPayloadOffered;
+    private final byte[] mPayloadDictionary;
+    private final int mMaxPayload;
+    private final BoundedQueue<PendingFrame> mOutbound = new BoundedQueue<>(WRITE_QUEUE_CAPACITY);
+    // Futures completed or failed with the batch being built; a bulk message joins on its last chunk
+    private final List<CompletableFuture<Void>> mInFlight = new ArrayList<>();
+    private final byte[] mBatch;
+    private int mBatchFrames;
+    // Copy-on-write so the loop iterates without locking
+    private volatile BulkChannel[] mBulk = new BulkChannel[0];
+    // Loop thread only: the bulk channel whose turn it is, and whether it was credited yet
+    private int mBulkCursor;
+    private boolean mBulkTurn;
+    private byte[] mChunk;
+    private volatile State mState = State.CONNECTING;
+    private volatile Overflow mOverflow = Overflow.FAIL;
+    private volatile Thread mLoopThread;
+    // Guarded by the manager's lock on this connection
+    private int mReconnectAttempts;
+    // Set by the manager before the connection is published; null means never re-establish
+    private ReconnectPolicy mReconnectPolicy;
+
+    // Replaced on every (re)connect by the connector thread, closed from any thread
+    private volatile Transport mTransport;
+    // Set alongside the transport, then only touched by the owning loop thread
+    private InputStream mInput;
+    private OutputStream mOutput;
+    private BufferPool mReadPool;
+    private FramingSink mFraming;
+    // Fresh per transport, so both deflate streams start over on a reconnect
+    private PayloadCodec mPayload;
+    private byte[] mWrapped;
+    private byte[] mUnwrapped;
+    // Set by the frame path when the compressed stream broke; the next poll drops the link
+    private IOException mPayloadFailure;
+
+    private final LinkMetrics mMetrics = new LinkMetrics();
+    private final LinkTuner mTuner = new LinkTuner();
+    // Loop thread only: when the oldest held write started waiting, 0 if none is held
+    private long mHoldSince;
+    // Send time of the unanswered ping, 0 if none
+    private volatile long mPingNanos;
+    private volatile CommandClient mCommands;
+    private volatile BulkTransfer mTransfers;
+    private volatile ClockSync mClock;
+
+    Connection(String address, FrameCodec codec, ConnectionManager.TransportFactory factory) {
+        this(address, codec, factory, PayloadCodec.NONE, null);
+    }
+
+    Connection(String address, FrameCodec codec, ConnectionManager.TransportFactory factory,
+               int payloadOffered, byte[] payloadDictionary) {
+        mAddress = address;
+        mCodec = codec;
+        mFactory = factory;
+        mPayloadOffered = payloadOffered;
+        mPayloadDictionary = payloadDictionary;
+        mMaxPayload = payloadOffered == PayloadCodec.NONE
+                ? codec.maxPayload() : PayloadCodec.payloadLimit(codec.maxPayload());
+        mBatch = new byte[Math.max(WRITE_BATCH_BYTES, codec.maxEncodedSize(codec.maxPayload()))];
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    public long getBytesIn() {
+        return mMetrics.mBytesIn;
+    }
+
+    public long getBytesOut() {
+        return mMetrics.mBytesOut;
+    }
+
+    public long getFramesIn() {
+        return mMetrics.mFramesIn;
+    }
+
+    public long getFramesOut() {
+        return mMetrics.mFramesOut;
+    }
+
+    public LinkMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public LinkTuner getTuner() {
+        return mTuner;
+    }
+
+    // Largest payload write() takes; smaller than the codec's when compression is offered
+    public int maxPayload() {
+        return mMaxPayload;
+    }
+
+    // Transforms the peer agreed to on the current transport, PayloadCodec.NONE if none
+    public int getPayloadCodecs() {
+        PayloadCodec payload = mPayload;
+        return payload != null ? payload.accepted() : PayloadCodec.NONE;
+    }
+
+    public int getWriteQueueDepth() {
+        return mOutbound.size();
+    }
+
+    public Overflow getWriteOverflow() {
+        return mOverflow;
+    }
+
+    public void setWriteOverflow(Overflow overflow) {
+        mOverflow = overflow;
+    }
+
+    /**
+     * Queues the payload. While the link is down writes are still queued and go out once it
+     * is back; only a closed connection fails them. A full queue is handled per
+     * {@link #setWriteOverflow}, failing the write by default.
+     */
+    public CompletableFuture<Void> write(byte[] payload) {
+        if (payload.length > mMaxPayload) {
+            throw new IllegalArgumentException("Payload too large: " + payload.length);
+        }
+        PendingFrame pending = new PendingFrame(payload);
+        while (true) {
+            if (mState == State.CLOSED) {
+                pending.future.completeExceptionally(new IOException("Connection closed"));
+                return pending.future;
+            }
+            if (mOutbound.offer(pending)) {
+                break;
+            }
+            Overflow overflow = mOverflow;
+            if (overflow == Overflow.BLOCK && Thread.currentThread() == mLoopThread) {
+                // Only this thread could make room
+                overflow = Overflow.FAIL;
+            }
+            switch (overflow) {
+                case FAIL:
+                    pending.future.completeExceptionally(new IOException("Write queue full"));
+                    return pending.future;
+                case DROP_OLDEST:
+                    PendingFrame evicted = mOutbound.poll();
+                    if (evicted != null) {
+                        evicted.future.completeExceptionally(new IOException("Dropped: write queue full"));
+                    }
+                    break;
+                case BLOCK:
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    break;
+            }
+        }
+        mMetrics.mQueueDepth.record(mOutbound.size());
+        if (mState == State.CLOSED) {
+            // Lost a race with shutdown(), which may already have drained the queue
+            failQueued();
+        }
+        wake();
+        return pending.future;
+    }
+
+    /**
+     * Opens a bulk channel with the given id (0..255) and weight. Weights only matter
+     * between bulk channels; control writes are always ahead of all of them. Channel 255
+     * belongs to {@link #transfers()} once that has been used.
+     */
+    public synchronized BulkChannel openBulkChannel(int id, int weight) {
+        if (id < 0 || id > 0xFF) {
+            throw new IllegalArgumentException("Channel id must be 0..255");
+        }
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be at least 1");
+        }
+        for (BulkChannel channel : mBulk) {
+            if (channel.getId() == id) {
+                throw new IllegalStateException("Bulk channel " + id + " already open");
+            }
+        }
+        BulkChannel channel = new BulkChannel(this, id, weight,
+                Math.min(BULK_CHUNK_BYTES, mMaxPayload) - BulkChannel.HEADER_BYTES);
+        BulkChannel[] next = Arrays.copyOf(mBulk, mBulk.length + 1);
+        next[next.length - 1] = channel;
+        mBulk = next;
+        return channel;
+    }
+
+    /**
+     * Sends an RTT probe. Only useful with firmware that answers pings; the matching pong is
+     * consumed here and recorded in {@link LinkMetrics#roundTrip()} instead of being delivered.
+     * A ping sent before the previous one was answered replaces it.
+     */
+    public CompletableFuture<Void> ping() {
+        long now = System.nanoTime();
+        byte[] probe = new byte[PROBE_LENGTH];
+        probe[0] = PROBE_MARKER;
+        probe[1] = PROBE_PING;
+        for (int i = 0; i < 8; i++) {
+            probe[2 + i] = (byte) (now >>> (56 - 8 * i));
+        }
+        mPingNanos = now;
+        return write(probe);
+    }
+
+    // Pipelined register commands over this link, created on first use
+    public CommandClient commands() {
+        CommandClient commands = mCommands;
+        if (commands == null) {
+            synchronized (this) {
+                commands = mCommands;
+                if (commands == null) {
+                    commands = new CommandClient(this, COMMAND_WINDOW, COMMAND_TIMEOUT_MILLIS, COMMAND_RETRIES);
+                    mCommands = commands;
+                }
+            }
+        }
+        return commands;
+    }
+
+    // Acknowledged file uploads over this link, created on first use
+    public BulkTransfer transfers() {
+        BulkTransfer transfers = mTransfers;
+        if (transfers == null) {
+            synchronized (this) {
+                transfers = mTransfers;
+                if (transfers == null) {
+                    transfers = new BulkTransfer(this, openBulkChannel(TRANSFER_CHANNEL, TRANSFER_WEIGHT),
+                            TRANSFER_WINDOW, TRANSFER_TIMEOUT_MILLIS, TRANSFER_RETRIES);
+                    mTransfers = transfers;
+                }
+            }
+        }
+        return transfers;
+    }
+
+    /**
+     * Estimate of the peer's clock against this phone's, kept up to date from the first call
+     * on. The first call starts sending sync requests, so only make it for firmware that
+     * answers them; see {@link ClockSync}.
+     */
+    public ClockSync clock() {
+        ClockSync clock = mClock;
+        if (clock == null) {
+            synchronized (this) {
+                clock = mClock;
+                if (clock == null) {
+                    clock = new ClockSync(this, CLOCK_SYNC_INTERVAL_MILLIS);
+                    mClock = clock;
+                    wake();
+                }
+            }
+        }
+        return clock;
+    }
+
+    // The clock if clock() has been called, else null; never starts one
+    public ClockSync clockIfStarted() {
+        return mClock;
+    }
+
+    void wake() {
+        Thread loop = mLoopThread;
+        if (loop != null) {
+            LockSupport.unpark(loop);
+        }
+    }
+
+    ConnectionManager.TransportFactory getFactory() {
+        return mFactory;
+    }
+
+    ReconnectPolicy getReconnectPolicy() {
+        return mReconnectPolicy;
+    }
+
+    void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    int nextReconnectAttempt() {
+        return ++mReconnectAttempts;
+    }
+
+    void resetReconnectAttempts() {
+        mReconnectAttempts = 0;
+    }
+
+    void attach(Transport transport, StreamReader.Sink frames) throws IOException {
+        mTransport = transport;
+        mInput = transport.getInputStream();
+        mOutput = transport.getOutputStream();
+        mReadPool = new BufferPool(READ_SLABS, mTuner.readSize());
+        mPayloadFailure = null;
+        if (mPayloadOffered != PayloadCodec.NONE) {
+            mPayload = new PayloadCodec(mPayloadOffered, mPayloadDictionary, mMaxPayload);
+            if (mWrapped == null) {
+                mWrapped = new byte[mCodec.maxPayload()];
+                mUnwrapped = new byte[mMaxPayload];
+            }
+        }
+        if (mFraming != null) {
+            // Decoded on the old link but never handed on, like the partial frame cut off with it
+            mFraming.discardBacklog();
+        }
+        mFraming = new FramingSink(mCodec, new BufferPool(FRAME_SLABS, mCodec.maxPayload()), mMetrics,
+                frame -> onFrame(frame, frames));
+        for (BulkChannel channel : mBulk) {
+            channel.rewind();
+        }
+        if (mPayload != null) {
+            write(mPayload.hello());
+        }
+        BulkTransfer transfers = mTransfers;
+        if (transfers != null) {
+            transfers.onAttached();
+        }
+        ClockSync clock = mClock;
+        if (clock != null) {
+            clock.onAttached();
+        }
+    }
+
+    private void onFrame(Slab frame, StreamReader.Sink frames) {
+        mMetrics.mFramesIn++;
+        PayloadCodec payload = mPayload;
+        if (payload != null) {
+            byte[] data = frame.array();
+            if (PayloadCodec.isHandshake(data, 0, frame.length())) {
+                byte[] reply = payload.onHandshake(data, 0, frame.length());
+                if (reply != null) {
+                    write(reply);
+                }
+                frame.release();
+                return;
+            }
+            if (payload.isWrapped(data, 0, frame.length())) {
+                try {
+                    int length = payload.unwrap(data, 0, frame.length(), mUnwrapped, 0);
+                    System.arraycopy(mUnwrapped, 0, data, 0, length);
+                    frame.setLength(length);
+                } catch (IOException e) {
+                    mPayloadFailure = e;
+                    frame.release();
+                    return;
+                }
+            }
+        }
+        CommandClient commands = mCommands;
+        BulkTransfer transfers = mTransfers;
+        ClockSync clock = mClock;
+        if (isPong(frame) || (commands != null && commands.onFrame(frame))
+                || (transfers != null && transfers.onFrame(frame)) || (clock != null && clock.onFrame(frame))) {
+            frame.release();
+        } else {
+            frames.onSlab(frame);
+        }
+    }
+
+    void bindLoop(Thread loopThread) {
+        mLoopThread = loopThread;
+    }
+
+    void setState(State state) {
+        mState = state;
+    }
+
+    // Called by the owning loop. Returns true if any bytes moved in either direction.
+    boolean poll() throws IOException {
+        if (mPayloadFailure != null) {
+            throw mPayloadFailure;
+        }
+        boolean worked = mFraming.drainBacklog() > 0;
+        long now = System.nanoTime();
+        int available = mInput.available();
+        // While the consumer holds every frame slab the device's bytes wait in the transport,
+        // which slows the device down rather than losing its frames
+        if (available > 0 && !mFraming.hasBacklog()) {
+            // Every read slab is back by now, so the old pool can simply be dropped
+            if (mReadPool.slabSize() != mTuner.readSize()) {
+                mReadPool = new BufferPool(READ_SLABS, mTuner.readSize());
+            }
+            Slab slab = mReadPool.tryAcquire();
+            int bytes = mInput.read(slab.array(), 0, Math.min(available, slab.capacity()));
+            if (bytes < 0) {
+                slab.release();
+                throw new EOFException("End of stream");
+            }
+            slab.setLength(bytes);
+            slab.setReadNanos(System.nanoTime());
+            mMetrics.mBytesIn += bytes;
+            mMetrics.mReadSizes.record(bytes);
+            mTuner.onRead(bytes, slab.capacity());
+            mFraming.onSlab(slab);
+            worked = true;
+        } else if (available <= 0 && !mTransport.isConnected()) {
+            throw new EOFException("Link closed");
+        }
+        if ((!mOutbound.isEmpty() || mBulk.length > 0) && !holdWrites(now)) {
+            worked |= flushOutbound();
+        }
+        CommandClient commands = mCommands;
+        if (commands != null) {
+            commands.checkTimeouts(now);
+        }
+        BulkTransfer transfers = mTransfers;
+        if (transfers != null) {
+            transfers.checkTimeouts(now);
+        }
+        ClockSync clock = mClock;
+        if (clock != null) {
+            clock.onPoll(now);
+        }
+        mTuner.onPoll(now, mMetrics.mFramesIn, mMetrics.mFramesOut, mOutbound.size());
+        return worked;
+    }
+
+    // Lets a fast writer's frames share a batch: queued writes wait up to the tuned delay for
+    // COALESCE_FRAMES of them to collect. Never while bulk data is going out anyway.
+    private boolean holdWrites(long now) {
+        long delay = mTuner.coalesceNanos();
+        if (delay == 0 || mOutbound.isEmpty() || mOutbound.size() >= LinkTuner.COALESCE_FRAMES || hasBulkData()) {
+            mHoldSince = 0;
+            return false;
+        }
+        if (mHoldSince == 0) {
+            mHoldSince = now;
+        }
+        if (now - mHoldSince < delay) {
+            return true;
+        }
+        mHoldSince = 0;
+        return false;
+    }
+
+    // True while written frames wait in the queue, e.g. held back for coalescing
+    boolean hasQueuedWrites() {
+        return !mOutbound.isEmpty() || hasBulkData();
+    }
+
+    // True while received frames wait for a frame slab, so nothing more is read
+    boolean isReadBacklogged() {
+        return mFraming != null && mFraming.hasBacklog();
+    }
+
+    private boolean hasBulkData() {
+        for (BulkChannel channel : mBulk) {
+            if (channel.hasData()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns true if anything was written
+    private boolean flushOutbound() throws IOException {
+        long framesBefore = mMetrics.mFramesOut;
+        int fill = drainControl(0);
+        int budget = BULK_BYTES_PER_POLL;
+        BulkChannel channel;
+        while (budget > 0 && (channel = nextBulk()) != null) {
+            if (mChunk == null) {
+                mChunk = new byte[mMaxPayload];
+            }
+            int length = channel.nextChunk(mChunk);
+            budget -= length;
+            fill = append(mChunk, length, fill);
+            CompletableFuture<Void> finished = channel.takeFinished();
+            if (finished != null) {
+                mInFlight.add(finished);
+            }
+            // Anything queued meanwhile goes ahead of the next chunk
+            if (!mOutbound.isEmpty()) {
+                fill = drainControl(fill);
+            }
+        }
+        writeBatch(fill);
+        return mMetrics.mFramesOut != framesBefore;
+    }
+
+    private int drainControl(int fill) throws IOException {
+        PendingFrame pending;
+        while ((pending = mOutbound.poll()) != null) {
+            fill = append(pending.payload, pending.payload.length, fill);
+            mInFlight.add(pending.future);
+        }
+        return fill;
+    }
+
+    // Adds one frame to the batch, writing the batch out first if the frame doesn't fit
+    private int append(byte[] payload, int length, int fill) throws IOException {
+        if (mPayload != null) {
+            length = mPayload.wrap(payload, 0, length, mWrapped, 0);
+            payload = mWrapped;
+        }
+        int size = mCodec.maxEncodedSize(length);
+        if (fill > 0 && fill + size > WRITE_BATCH_BYTES) {
+            writeBatch(fill);
+            fill = 0;
+        }
+        mBatchFrames++;
+        return fill + mCodec.encode(payload, 0, length, mBatch, fill);
+    }
+
+    // Deficit round robin over the bulk channels; null once none has anything to send
+    private BulkChannel nextBulk() {
+        BulkChannel[] channels = mBulk;
+        if (channels.length == 0) {
+            return null;
+        }
+        for (int visited = 0; visited <= channels.length; visited++) {
+            BulkChannel channel = channels[mBulkCursor % channels.length];
+            if (channel.hasData()) {
+                if (!mBulkTurn) {
+                    channel.credit();
+                    mBulkTurn = true;
+                }
+                if (channel.canSend()) {
+                    return channel;
+                }
+            }
+            mBulkCursor = (mBulkCursor + 1) % channels.length;
+            mBulkTurn = false;
+        }
+        return null;
+    }
+
+    private void writeBatch(int fill) throws IOException {
+        if (fill > 0) {
+            try {
+                mOutput.write(mBatch, 0, fill);
+                mOutput.flush();
+            } catch (IOException e) {
+                for (int i = 0; i < mInFlight.size(); i++) {
+                    mInFlight.get(i).completeExceptionally(e);
+                }
+                mInFlight.clear();
+                mBatchFrames = 0;
+                throw e;
+            }
+        }
+        mMetrics.mBytesOut += fill;
+        mMetrics.mFramesOut += mBatchFrames;
+        mBatchFrames = 0;
+        for (int i = 0; i < mInFlight.size(); i++) {
+            mInFlight.get(i).complete(null);
+        }
+        mInFlight.clear();
+    }
+
+    void onReconnected() {
+        mMetrics.mReconnects++;
+    }
+
+    private boolean isPong(Slab frame) {
+        long sent = mPingNanos;
+        if (sent == 0 || frame.length() != PROBE_LENGTH) {
+            return false;
+        }
+        byte[] data = frame.array();
+        if (data[0] != PROBE_MARKER || data[1] != PROBE_PONG) {
+            return false;
+        }
+        long echoed = 0;
+        for (int i = 0; i < 8; i++) {
+            echoed = (echoed << 8) | (data[2 + i] & 0xFF);
+        }
+        if (echoed != sent) {
+            return false;
+        }
+        mPingNanos = 0;
+        mMetrics.mRoundTrip.record(System.nanoTime() - sent);
+        return true;
+    }
+
+    // Closes the current transport but keeps queued writes for the next one
+    void detach() {
+        Transport transport = mTransport;
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (IOException ignored) {
+                // Already going away
+            }
+        }
+    }
+
+    private void failQueued() {
+        PendingFrame pending;
+        while ((pending = mOutbound.poll()) != null) {
+            pending.future.completeExceptionally(new IOException("Connection closed"));
+        }
+    }
+
+    // Closes the transport and fails queued writes. Safe to call from any thread.
+    void shutdown() {
+        mState = State.CLOSED;
+        detach();
+        failQueued();
+        for (BulkChannel channel : mBulk) {
+            channel.failAll(new IOException("Connection closed"));
+        }
+        CommandClient commands = mCommands;
+        if (commands != null) {
+            commands.failAll(new IOException("Connection closed"));
+        }
+        BulkTransfer transfers = mTransfers;
+        if (transfers != null) {
+            transfers.failAll(new IOException("Connection closed"));
+        }
+    }
+}
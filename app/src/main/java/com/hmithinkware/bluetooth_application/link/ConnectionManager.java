@@ -0,0 +1,344 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Owns any number of concurrent connections, keyed by device address.
+ * <p>
+ * Connections are spread over a fixed set of event loops that poll each transport for
+ * buffered input and queued output, so N devices cost {@code loopCount + connectorCount}
+ * threads rather than a reader and a writer each. Blocking connect attempts run on their own
+ * small pool. One connector is enough when every connect needs an SDP lookup, which the radio
+ * serialises anyway. Connects that skip SDP with a cached channel can overlap, so it is
+ * worth a few connectors when several devices come back at once.
+ * <p>
+ * With a {@link ReconnectPolicy}, a connection whose link drops moves to
+ * {@link Connection.State#RECONNECTING} and is re-established through the same
+ * {@link TransportFactory} with jittered backoff, until it succeeds or is disconnected.
+ */
+public final class ConnectionManager implements Closeable {
+
+    public interface Listener {
+        // Runs on an event loop thread; the listener owns the slab and must release it
+        void onFrame(Connection connection, Slab frame);
+
+        void onStateChanged(Connection connection, Connection.State state);
+    }
+
+    public interface TransportFactory {
+        // Called on a connector thread; may block
+        Transport create(String address) throws IOException;
+    }
+
+    // Idle loops back off from a short spin to the first cap while writes are held back for
+    // coalescing or reads wait for frame slabs, else to the second; inbound bytes wait at most
+    // that long to be noticed. A loop with no connections parks until add() wakes it.
+    private static final long MIN_IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long HOLD_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private final FrameCodec mCodec;
+    private final Listener mListener;
+    private final EventLoop[] mLoops;
+    private final ExecutorService mLoopExecutor;
+    private final ScheduledExecutorService mConnector;
+    private final int mConnectorCount;
+    private final ReconnectPolicy mReconnectPolicy;
+    private final Random mRandom = new Random();
+    private final ConcurrentHashMap<String, Connection> mConnections = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextLoop = new AtomicInteger();
+    private volatile int mPayloadCodecs = PayloadCodec.NONE;
+    private volatile byte[] mPayloadDictionary;
+    private volatile boolean mClosed;
+
+    public ConnectionManager(int loopCount, FrameCodec codec, Listener listener) {
+        this(loopCount, codec, listener, null);
+    }
+
+    // A null policy means dropped connections are closed rather than re-established
+    public ConnectionManager(int loopCount, FrameCodec codec, Listener listener, ReconnectPolicy reconnectPolicy) {
+        this(loopCount, 1, codec, listener, reconnectPolicy);
+    }
+
+    public ConnectionManager(int loopCount, int connectorCount, FrameCodec codec, Listener listener,
+                             ReconnectPolicy reconnectPolicy) {
+        mCodec = codec;
+        mListener = listener;
+        mReconnectPolicy = reconnectPolicy;
+        mConnectorCount = connectorCount;
+        mLoops = new EventLoop[loopCount];
+        AtomicInteger loopIds = new AtomicInteger();
+        mLoopExecutor = Executors.newFixedThreadPool(loopCount, r -> {
+            Thread t = new Thread(r, "LinkLoop-" + loopIds.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger connectorIds = new AtomicInteger();
+        mConnector = Executors.newScheduledThreadPool(connectorCount, r -> {
+            Thread t = new Thread(r, "LinkConnector-" + connectorIds.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < loopCount; i++) {
+            mLoops[i] = new EventLoop();
+            mLoopExecutor.execute(mLoops[i]);
+        }
+    }
+
+    /**
+     * Offers {@link PayloadCodec} transforms to every device connected from now on. Peers that
+     * don't answer the handshake keep getting raw frames. The dictionary, if any, has to be the
+     * one the firmware uses.
+     */
+    public void setPayloadCodecs(int offered, byte[] dictionary) {
+        mPayloadDictionary = dictionary;
+        mPayloadCodecs = offered;
+    }
+
+    // Completes with the live connection, or exceptionally if the transport can't connect
+    public CompletableFuture<Connection> connect(String address, TransportFactory factory) {
+        return connect(address, factory, mReconnectPolicy);
+    }
+
+    // As above, with this connection's own reconnect policy; null closes it when it drops
+    public CompletableFuture<Connection> connect(String address, TransportFactory factory,
+                                                 ReconnectPolicy reconnectPolicy) {
+        CompletableFuture<Connection> result = new CompletableFuture<>();
+        if (mClosed) {
+            result.completeExceptionally(new IOException("Manager closed"));
+            return result;
+        }
+        Connection connection = new Connection(address, mCodec, factory, mPayloadCodecs, mPayloadDictionary);
+        connection.setReconnectPolicy(reconnectPolicy);
+        Connection existing = mConnections.putIfAbsent(address, connection);
+        if (existing != null) {
+            if (existing.getState() == Connection.State.CONNECTED) {
+                result.complete(existing);
+            } else {
+                result.completeExceptionally(new IOException("Already connecting to " + address));
+            }
+            return result;
+        }
+        mListener.onStateChanged(connection, Connection.State.CONNECTING);
+        mConnector.execute(() -> establish(connection, result));
+        return result;
+    }
+
+    public Connection get(String address) {
+        return mConnections.get(address);
+    }
+
+    public Collection<Connection> connections() {
+        return new ArrayList<>(mConnections.values());
+    }
+
+    public void disconnect(String address) {
+        Connection connection = mConnections.get(address);
+        if (connection != null) {
+            drop(connection);
+        }
+    }
+
+    // Event loops plus connector threads
+    public int threadCount() {
+        return mLoops.length + mConnectorCount;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        for (Connection connection : connections()) {
+            drop(connection);
+        }
+        mConnector.shutdownNow();
+        mLoopExecutor.shutdownNow();
+    }
+
+    private EventLoop pickLoop() {
+        EventLoop best = mLoops[Math.floorMod(mNextLoop.getAndIncrement(), mLoops.length)];
+        for (EventLoop loop : mLoops) {
+            if (loop.size() < best.size()) {
+                best = loop;
+            }
+        }
+        return best;
+    }
+
+    // Runs on a connector thread. A null result means this is a reconnect attempt.
+    private void establish(Connection connection, CompletableFuture<Connection> result) {
+        if (connection.getState() == Connection.State.CLOSED) {
+            return;
+        }
+        Transport transport = null;
+        try {
+            transport = connection.getFactory().create(connection.getAddress());
+            transport.connect();
+            connection.attach(transport, frame -> mListener.onFrame(connection, frame));
+        } catch (IOException e) {
+            if (transport != null) {
+                try {
+                    transport.close();
+                } catch (IOException ignored) {
+                    // Nothing more to do
+                }
+            }
+            if (result == null) {
+                scheduleReconnect(connection);
+            } else {
+                // A first connect that fails is reported, not retried
+                drop(connection);
+                result.completeExceptionally(e);
+            }
+            return;
+        }
+        synchronized (connection) {
+            if (connection.getState() == Connection.State.CLOSED) {
+                // Disconnected while we were connecting
+                connection.detach();
+                return;
+            }
+            connection.setState(Connection.State.CONNECTED);
+            connection.resetReconnectAttempts();
+        }
+        if (result == null) {
+            connection.onReconnected();
+        }
+        mListener.onStateChanged(connection, Connection.State.CONNECTED);
+        pickLoop().add(connection);
+        if (result != null) {
+            result.complete(connection);
+        }
+    }
+
+    // Called by an event loop when a connection's transport fails
+    private void onLinkLost(Connection connection) {
+        synchronized (connection) {
+            if (connection.getState() != Connection.State.CONNECTED) {
+                return;
+            }
+            if (connection.getReconnectPolicy() == null || mClosed) {
+                connection.setState(Connection.State.CLOSED);
+            } else {
+                connection.setState(Connection.State.RECONNECTING);
+            }
+        }
+        for (EventLoop loop : mLoops) {
+            loop.remove(connection);
+        }
+        if (connection.getState() == Connection.State.RECONNECTING) {
+            connection.detach();
+            mListener.onStateChanged(connection, Connection.State.RECONNECTING);
+            scheduleReconnect(connection);
+        } else {
+            drop(connection);
+        }
+    }
+
+    private void scheduleReconnect(Connection connection) {
+        int attempt;
+        synchronized (connection) {
+            attempt = connection.nextReconnectAttempt();
+        }
+        ReconnectPolicy policy = connection.getReconnectPolicy();
+        if (mClosed || !policy.shouldRetry(attempt)) {
+            drop(connection);
+            return;
+        }
+        long delay = policy.delayMillis(attempt, mRandom);
+        mConnector.schedule(() -> establish(connection, null), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void drop(Connection connection) {
+        synchronized (connection) {
+            connection.setState(Connection.State.CLOSED);
+        }
+        if (!mConnections.remove(connection.getAddress(), connection)) {
+            return;
+        }
+        for (EventLoop loop : mLoops) {
+            loop.remove(connection);
+        }
+        connection.shutdown();
+        mListener.onStateChanged(connection, Connection.State.CLOSED);
+    }
+
+    private final class EventLoop implements Runnable {
+        // Copy-on-write so the loop iterates without locking or allocating
+        private volatile Connection[] mAssigned = new Connection[0];
+        private volatile Thread mThread;
+
+        synchronized void add(Connection connection) {
+            List<Connection> next = new ArrayList<>(Arrays.asList(mAssigned));
+            next.add(connection);
+            mAssigned = next.toArray(new Connection[0]);
+            Thread thread = mThread;
+            connection.bindLoop(thread);
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        synchronized void remove(Connection connection) {
+            List<Connection> next = new ArrayList<>(Arrays.asList(mAssigned));
+            if (next.remove(connection)) {
+                mAssigned = next.toArray(new Connection[0]);
+            }
+        }
+
+        int size() {
+            return mAssigned.length;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                mThread = Thread.currentThread();
+                for (Connection connection : mAssigned) {
+                    connection.bindLoop(mThread);
+                }
+            }
+            long idlePark = MIN_IDLE_PARK_NANOS;
+            while (!mClosed && !Thread.currentThread().isInterrupted()) {
+                Connection[] assigned = mAssigned;
+                if (assigned.length == 0) {
+                    // add() unparks us; one that raced past the check above left a permit
+                    LockSupport.park(this);
+                    idlePark = MIN_IDLE_PARK_NANOS;
+                    continue;
+                }
+                boolean worked = false;
+                boolean holding = false;
+                for (Connection connection : assigned) {
+                    try {
+                        worked |= connection.poll();
+                        holding |= connection.hasQueuedWrites() || connection.isReadBacklogged();
+                    } catch (IOException e) {
+                        onLinkLost(connection);
+                    }
+                }
+                if (worked) {
+                    idlePark = MIN_IDLE_PARK_NANOS;
+                } else {
+                    long cap = holding ? HOLD_IDLE_PARK_NANOS : MAX_IDLE_PARK_NANOS;
+                    idlePark = Math.min(idlePark, cap);
+                    LockSupport.parkNanos(this, idlePark);
+                    idlePark = Math.min(idlePark * 2, cap);
+                }
+            }
+        }
+    }
+}
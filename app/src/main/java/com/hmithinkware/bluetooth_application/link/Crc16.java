@@ -0,0 +1,32 @@
+package com.hmithinkware.bluetooth_application.link;
+
+// CRC-16/CCITT-FALSE (poly 0x1021, init 0xFFFF), table driven
+public final class Crc16 {
+    public static final int INITIAL = 0xFFFF;
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    private Crc16() {
+    }
+
+    public static int update(int crc, byte[] data, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    public static int compute(byte[] data, int off, int len) {
+        return update(INITIAL, data, off, len);
+    }
+}
@@ -0,0 +1,214 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Small on-disk record of the devices we have connected to, so a warm start can skip the
+ * SDP lookup: the RFCOMM channel it resolved to, whether the secure or insecure socket
+ * worked, how long the last connect took, whether the device was still in use when the
+ * app last ran, and whether its firmware answers {@link ClockSync} requests.
+ * <p>
+ * Every change is written straight through (temp file and rename), which is fine for the
+ * handful of entries and the rate at which devices connect. A missing or unreadable file
+ * just means an empty cache.
+ */
+public final class DeviceCache {
+    // Version 1 files lack the clock sync flag and still load
+    private static final int VERSION = 2;
+
+    public static final class Entry {
+        private final String mAddress;
+        private final String mName;
+        private final int mChannel;
+        private final boolean mSecure;
+        private final long mConnectMillis;
+        private final long mLastConnectedAt;
+        private final boolean mInSession;
+        private final boolean mClockSync;
+
+        Entry(String address, String name, int channel, boolean secure, long connectMillis,
+              long lastConnectedAt, boolean inSession, boolean clockSync) {
+            mAddress = address;
+            mName = name;
+            mChannel = channel;
+            mSecure = secure;
+            mConnectMillis = connectMillis;
+            mLastConnectedAt = lastConnectedAt;
+            mInSession = inSession;
+            mClockSync = clockSync;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        // Null if never told
+        public String getName() {
+            return mName;
+        }
+
+        // RFCOMM channel from the last SDP lookup, 0 if unknown
+        public int getChannel() {
+            return mChannel;
+        }
+
+        public boolean isSecure() {
+            return mSecure;
+        }
+
+        public long getConnectMillis() {
+            return mConnectMillis;
+        }
+
+        // Wall-clock time of the last successful connect
+        public long getLastConnectedAt() {
+            return mLastConnectedAt;
+        }
+
+        // Connected and not explicitly disconnected since
+        public boolean isInSession() {
+            return mInSession;
+        }
+
+        // Opted in to clock sync, which is only sent to firmware known to answer it
+        public boolean isClockSync() {
+            return mClockSync;
+        }
+    }
+
+    private final File mFile;
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+
+    public DeviceCache(File file) {
+        mFile = file;
+        try {
+            load();
+        } catch (IOException e) {
+            // Corrupt or from a newer version; start over
+            mEntries.clear();
+        }
+    }
+
+    public synchronized Entry get(String address) {
+        return mEntries.get(address);
+    }
+
+    public synchronized void recordConnect(String address, int channel, boolean secure,
+                                           long connectMillis, long nowMillis) throws IOException {
+        Entry old = mEntries.get(address);
+        mEntries.put(address, new Entry(address, old != null ? old.mName : null, channel, secure,
+                connectMillis, nowMillis, true, old != null && old.mClockSync));
+        save();
+    }
+
+    public synchronized void rememberName(String address, String name) throws IOException {
+        Entry old = mEntries.get(address);
+        if (old == null || name == null || name.equals(old.mName)) {
+            return;
+        }
+        mEntries.put(address, new Entry(address, name, old.mChannel, old.mSecure,
+                old.mConnectMillis, old.mLastConnectedAt, old.mInSession, old.mClockSync));
+        save();
+    }
+
+    // The cached channel stopped working, e.g. the peer's firmware changed; look it up again
+    public synchronized void forgetChannel(String address) throws IOException {
+        Entry old = mEntries.get(address);
+        if (old == null || old.mChannel == 0) {
+            return;
+        }
+        mEntries.put(address, new Entry(address, old.mName, 0, old.mSecure,
+                old.mConnectMillis, old.mLastConnectedAt, old.mInSession, old.mClockSync));
+        save();
+    }
+
+    // The user disconnected; don't bring it back on the next start
+    public synchronized void endSession(String address) throws IOException {
+        Entry old = mEntries.get(address);
+        if (old == null || !old.mInSession) {
+            return;
+        }
+        mEntries.put(address, new Entry(address, old.mName, old.mChannel, old.mSecure,
+                old.mConnectMillis, old.mLastConnectedAt, false, old.mClockSync));
+        save();
+    }
+
+    // Works for devices never connected over RFCOMM too, e.g. BLE peripherals
+    public synchronized void setClockSync(String address, boolean enabled) throws IOException {
+        Entry old = mEntries.get(address);
+        if (old != null && old.mClockSync == enabled) {
+            return;
+        }
+        mEntries.put(address, old != null
+                ? new Entry(address, old.mName, old.mChannel, old.mSecure, old.mConnectMillis,
+                        old.mLastConnectedAt, old.mInSession, enabled)
+                : new Entry(address, null, 0, false, 0, 0, false, enabled));
+        save();
+    }
+
+    // Devices still in use when the app last ran, most recently connected first
+    public synchronized List<Entry> session() {
+        List<Entry> session = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.mInSession) {
+                session.add(entry);
+            }
+        }
+        session.sort((a, b) -> Long.compare(b.mLastConnectedAt, a.mLastConnectedAt));
+        return session;
+    }
+
+    private void load() throws IOException {
+        if (!mFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unknown device cache version");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                String name = in.readBoolean() ? in.readUTF() : null;
+                mEntries.put(address, new Entry(address, name, in.readInt(), in.readBoolean(),
+                        in.readLong(), in.readLong(), in.readBoolean(), version >= 2 && in.readBoolean()));
+            }
+        }
+    }
+
+    private void save() throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(VERSION);
+            out.writeInt(mEntries.size());
+            for (Entry entry : mEntries.values()) {
+                out.writeUTF(entry.mAddress);
+                out.writeBoolean(entry.mName != null);
+                if (entry.mName != null) {
+                    out.writeUTF(entry.mName);
+                }
+                out.writeInt(entry.mChannel);
+                out.writeBoolean(entry.mSecure);
+                out.writeLong(entry.mConnectMillis);
+                out.writeLong(entry.mLastConnectedAt);
+                out.writeBoolean(entry.mInSession);
+                out.writeBoolean(entry.mClockSync);
+            }
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Could not replace " + mFile);
+        }
+    }
+}
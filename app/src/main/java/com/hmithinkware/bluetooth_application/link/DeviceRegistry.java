@@ -0,0 +1,168 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices seen by discovery or listed as bonded, keyed by MAC address.
+ * <p>
+ * A repeat sighting updates the existing entry in place. Positions never move once assigned
+ * (new devices go on the end), so a list only has to hear which rows were added or changed.
+ * Changes accumulate until {@link #drainChanges(Changes)}, so a scan producing hundreds of
+ * events costs one list update per display frame, proportional to the devices that changed.
+ * <p>
+ * Not thread-safe; the UI thread owns it.
+ */
+public final class DeviceRegistry {
+    public static final int RSSI_UNKNOWN = Integer.MIN_VALUE;
+
+    public static final class Device {
+        private final String mAddress;
+        private final int mPosition;
+        private String mName;
+        private int mRssi = RSSI_UNKNOWN;
+        private long mLastSeenMillis;
+        private boolean mBonded;
+        private boolean mDirty;
+
+        Device(String address, int position) {
+            mAddress = address;
+            mPosition = position;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public int getPosition() {
+            return mPosition;
+        }
+
+        // Null until a sighting came with a name
+        public String getName() {
+            return mName;
+        }
+
+        public int getRssi() {
+            return mRssi;
+        }
+
+        public long getLastSeenMillis() {
+            return mLastSeenMillis;
+        }
+
+        public boolean isBonded() {
+            return mBonded;
+        }
+    }
+
+    // What changed since the previous drain; reused between calls
+    public static final class Changes {
+        private int mInsertedFrom;
+        private int mInsertedCount;
+        private int[] mChanged = new int[16];
+        private int mChangedCount;
+
+        // New rows are always [insertedFrom, insertedFrom + insertedCount)
+        public int insertedFrom() {
+            return mInsertedFrom;
+        }
+
+        public int insertedCount() {
+            return mInsertedCount;
+        }
+
+        // Existing rows whose contents changed, in no particular order
+        public int changedCount() {
+            return mChangedCount;
+        }
+
+        public int changedPosition(int index) {
+            return mChanged[index];
+        }
+
+        public boolean isEmpty() {
+            return mInsertedCount == 0 && mChangedCount == 0;
+        }
+    }
+
+    private final Map<String, Device> mByAddress = new HashMap<>();
+    private final List<Device> mByPosition = new ArrayList<>();
+    // Existing devices changed since the last drain
+    private int[] mDirty = new int[16];
+    private int mDirtyCount;
+    // Size at the last drain; anything past it is new
+    private int mPublished;
+
+    /**
+     * Records a sighting. {@code name} may be null and {@code rssi} may be {@link #RSSI_UNKNOWN}
+     * to keep what is already known. Returns true if the device's row needs redrawing.
+     */
+    public boolean update(String address, String name, int rssi, boolean bonded, long nowMillis) {
+        Device device = mByAddress.get(address);
+        if (device == null) {
+            device = new Device(address, mByPosition.size());
+            mByAddress.put(address, device);
+            mByPosition.add(device);
+            device.mName = name;
+            device.mRssi = rssi;
+            device.mBonded = bonded;
+            device.mLastSeenMillis = nowMillis;
+            return true;
+        }
+        device.mLastSeenMillis = nowMillis;
+        boolean changed = false;
+        if (name != null && !name.equals(device.mName)) {
+            device.mName = name;
+            changed = true;
+        }
+        if (rssi != RSSI_UNKNOWN && rssi != device.mRssi) {
+            device.mRssi = rssi;
+            changed = true;
+        }
+        if (bonded != device.mBonded) {
+            device.mBonded = bonded;
+            changed = true;
+        }
+        if (changed && device.mPosition < mPublished && !device.mDirty) {
+            device.mDirty = true;
+            if (mDirtyCount == mDirty.length) {
+                mDirty = Arrays.copyOf(mDirty, mDirtyCount * 2);
+            }
+            mDirty[mDirtyCount++] = device.mPosition;
+        }
+        return changed;
+    }
+
+    public int size() {
+        return mByPosition.size();
+    }
+
+    public Device get(int position) {
+        return mByPosition.get(position);
+    }
+
+    // Null if never seen
+    public Device find(String address) {
+        return mByAddress.get(address);
+    }
+
+    // Moves everything recorded since the last call into out
+    public void drainChanges(Changes out) {
+        out.mInsertedFrom = mPublished;
+        out.mInsertedCount = mByPosition.size() - mPublished;
+        if (out.mChanged.length < mDirtyCount) {
+            out.mChanged = new int[mDirty.length];
+        }
+        for (int i = 0; i < mDirtyCount; i++) {
+            out.mChanged[i] = mDirty[i];
+            mByPosition.get(mDirty[i]).mDirty = false;
+        }
+        out.mChangedCount = mDirtyCount;
+        mDirtyCount = 0;
+        mPublished = mByPosition.size();
+    }
+}
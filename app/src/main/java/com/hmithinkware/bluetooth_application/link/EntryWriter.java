@@ -0,0 +1,134 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands preallocated entries from any thread to one writer thread.
+ * <p>
+ * Entries cycle free -> pending -> free through two {@link BoundedQueue}s, so producers never
+ * allocate, lock or block: {@link #take} returns null when none is free and the caller counts
+ * the loss. The writer parks until a producer makes the pending queue non-empty or the
+ * {@link Sink}'s next deadline comes, so an idle writer costs nothing and a busy one is woken
+ * straight away. {@link SessionRecorder}, {@link FrameUploader} and {@link SampleStore} write
+ * through one of these.
+ */
+final class EntryWriter<E> implements Closeable {
+
+    interface Sink<E> {
+        E newEntry();
+
+        // Writer thread. The entry goes back to the free queue afterwards.
+        void write(E entry) throws IOException;
+
+        // Writer thread, after every drain. Returns the System.nanoTime() by which it wants to
+        // be called again, or Long.MAX_VALUE to wait for entries.
+        long tick(long nowNanos) throws IOException;
+
+        // Writer thread, once everything published before close() is written
+        void finish() throws IOException;
+    }
+
+    private final Sink<E> mSink;
+    private final BoundedQueue<E> mFree;
+    private final BoundedQueue<E> mPending;
+    private final Thread mThread;
+    // Set while the writer is about to park, so producers know to wake it
+    private volatile boolean mSleeping;
+    private volatile boolean mStopping;
+    private volatile IOException mFailure;
+
+    EntryWriter(String name, int entries, Sink<E> sink) {
+        mSink = sink;
+        mFree = new BoundedQueue<>(entries);
+        mPending = new BoundedQueue<>(entries);
+        for (int i = 0; i < mFree.capacity(); i++) {
+            mFree.offer(sink.newEntry());
+        }
+        mThread = new Thread(this::run, name);
+        mThread.setDaemon(true);
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    boolean isStarted() {
+        return mThread.getState() != Thread.State.NEW;
+    }
+
+    // A free entry, or null if none is or the writer is stopping or has failed
+    E take() {
+        return mStopping || mFailure != null ? null : mFree.poll();
+    }
+
+    // Queues an entry from take() for the writer
+    void publish(E entry) {
+        // Cannot fail: there are never more entries than pending slots
+        mPending.offer(entry);
+        if (mSleeping) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    // Set if the sink threw; the writer has stopped
+    IOException getFailure() {
+        return mFailure;
+    }
+
+    // Writes out everything published so far, then stops. Throws the writer's failure, if any.
+    @Override
+    public void close() throws IOException {
+        mStopping = true;
+        if (!isStarted()) {
+            drain();
+            mSink.finish();
+        } else {
+            LockSupport.unpark(mThread);
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (mFailure != null) {
+            throw mFailure;
+        }
+    }
+
+    private void drain() throws IOException {
+        E entry;
+        while ((entry = mPending.poll()) != null) {
+            mSink.write(entry);
+            mFree.offer(entry);
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                boolean stopping = mStopping;
+                drain();
+                if (stopping) {
+                    break;
+                }
+                long deadline = mSink.tick(System.nanoTime());
+                mSleeping = true;
+                // Checked after announcing, so an entry published meanwhile either shows here
+                // or unparks us
+                if (mPending.isEmpty() && !mStopping) {
+                    if (deadline == Long.MAX_VALUE) {
+                        LockSupport.park(this);
+                    } else {
+                        LockSupport.parkNanos(this, deadline - System.nanoTime());
+                    }
+                }
+                mSleeping = false;
+            }
+            mSink.finish();
+        } catch (IOException e) {
+            mFailure = e;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.hmithinkware.bluetooth_application.link;
+
+/**
+ * Wire format for frames on the link. Encoding writes into a caller supplied buffer so
+ * the send path does not allocate; decoding is incremental, see {@link FrameDecoder}.
+ */
+public interface FrameCodec {
+
+    // Largest payload a single frame may carry
+    int maxPayload();
+
+    // Worst case number of bytes encode() writes for a payload of the given length
+    int maxEncodedSize(int payloadLength);
+
+    // Returns the number of bytes written to dst
+    int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset);
+
+    FrameDecoder newDecoder(FrameListener listener);
+}
@@ -0,0 +1,12 @@
+package com.hmithinkware.bluetooth_application.link;
+
+/**
+ * Incremental decoder: feed it reads of any size and it reports complete frames to its
+ * {@link FrameListener}, carrying partial frames over to the next call.
+ */
+public interface FrameDecoder {
+    void feed(byte[] data, int offset, int length);
+
+    // Drops any partially received frame, e.g. after a reconnect
+    void reset();
+}
@@ -0,0 +1,138 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves received frames off the link loops onto one thread of their own, for the work that
+ * should not hold up a loop shared by several devices: recording, parsing, storing, merging.
+ * <p>
+ * {@link #offer} copies the frame into one of the handoff's own slabs, so the connection's slab
+ * goes straight back to its pool, and queues it through an {@link EntryWriter}. With every slab
+ * taken the frame is counted as dropped rather than stalling the loop. {@link #closed} queues
+ * behind the connection's frames, so the handler hears of it after the last of them. Every
+ * {@link Handler} call, ticks included, is made on that one thread in queue order.
+ */
+public final class FrameHandoff implements Closeable {
+
+    public interface Handler {
+        // Handoff thread. The handler owns the slab and must release it.
+        void onFrame(Connection connection, Slab frame);
+
+        // Handoff thread, after the connection's last frame
+        void onClosed(Connection connection);
+
+        // Handoff thread, after every batch of frames. Returns the System.nanoTime() by which it
+        // wants to be called again, or Long.MAX_VALUE to wait for frames.
+        long onTick(long nowNanos);
+    }
+
+    // Closes always find an entry unless this many are queued at once
+    private static final int CLOSE_ENTRIES = 16;
+    private static final long CLOSE_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final class Entry {
+        Connection connection;
+        // Null for a close
+        Slab frame;
+    }
+
+    private final BufferPool mPool;
+    private final EntryWriter<Entry> mWriter;
+    private final AtomicLong mOffered = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile boolean mClosed;
+
+    public FrameHandoff(String name, int frames, int maxFrameBytes, Handler handler) {
+        mPool = new BufferPool(frames, maxFrameBytes);
+        // Frames hold at most one entry per slab, so the rest stay free for closes
+        mWriter = new EntryWriter<>(name, frames + CLOSE_ENTRIES, new EntryWriter.Sink<Entry>() {
+            @Override
+            public Entry newEntry() {
+                return new Entry();
+            }
+
+            @Override
+            public void write(Entry entry) {
+                Connection connection = entry.connection;
+                Slab frame = entry.frame;
+                entry.connection = null;
+                entry.frame = null;
+                if (frame != null) {
+                    handler.onFrame(connection, frame);
+                } else {
+                    handler.onClosed(connection);
+                }
+            }
+
+            @Override
+            public long tick(long nowNanos) {
+                return handler.onTick(nowNanos);
+            }
+
+            @Override
+            public void finish() {
+            }
+        });
+    }
+
+    public void start() {
+        mWriter.start();
+    }
+
+    // Any thread. Copies the frame; the caller keeps its slab. False if the frame was dropped.
+    public boolean offer(Connection connection, Slab frame) {
+        Slab copy = mPool.tryAcquire();
+        if (copy == null) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        Entry entry = mWriter.take();
+        if (entry == null) {
+            // Closing, or queued closes hold every spare entry
+            copy.release();
+            mDropped.incrementAndGet();
+            return false;
+        }
+        System.arraycopy(frame.array(), 0, copy.array(), 0, frame.length());
+        copy.setLength(frame.length());
+        copy.setReadNanos(frame.readNanos());
+        entry.connection = connection;
+        entry.frame = copy;
+        mWriter.publish(entry);
+        mOffered.incrementAndGet();
+        return true;
+    }
+
+    // Any thread, once the connection has delivered its last frame. Only waits if more than
+    // CLOSE_ENTRIES closes are queued at once.
+    public void closed(Connection connection) {
+        Entry entry;
+        while ((entry = mWriter.take()) == null) {
+            if (mClosed) {
+                return;
+            }
+            LockSupport.parkNanos(this, CLOSE_WAIT_NANOS);
+        }
+        entry.connection = connection;
+        mWriter.publish(entry);
+    }
+
+    public long offeredCount() {
+        return mOffered.get();
+    }
+
+    public long droppedCount() {
+        return mDropped.get();
+    }
+
+    // Hands over everything queued so far, then stops the thread
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mWriter.close();
+    }
+}
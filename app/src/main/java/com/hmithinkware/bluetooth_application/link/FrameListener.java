@@ -0,0 +1,10 @@
+package com.hmithinkware.bluetooth_application.link;
+
+public interface FrameListener {
+    // The payload is only valid for the duration of the call; copy it to keep it
+    void onFrame(byte[] buffer, int offset, int length);
+
+    // A frame was dropped because it was oversized, truncated or failed its CRC
+    default void onFrameError(String reason) {
+    }
+}
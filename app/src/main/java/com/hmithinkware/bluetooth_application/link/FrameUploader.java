@@ -0,0 +1,556 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Forwards received frames to an HTTP collector through a spool on disk, so nothing is lost
+ * while the phone is offline.
+ * <p>
+ * {@link #offer} copies the frame into a preallocated entry and hands it to an
+ * {@link EntryWriter}, as {@link SessionRecorder} does, so the read loop never waits for the
+ * disk or the network; with every entry taken the frame is counted as dropped. Its thread
+ * packs entries into gzip chunks, each closed once it holds {@code chunkBytes} of frames or
+ * has been open for {@code maxChunkAgeMillis}, and moves finished chunks into the spool
+ * directory. Upload threads send spooled chunks oldest first, several at a time, and delete
+ * each once the collector has all of it. If the spool outgrows its budget the oldest chunks
+ * not being uploaded are deleted.
+ * <p>
+ * A chunk {@code <16 hex digit sequence>.gz} is a gzip stream of DataOutputStream records
+ * {@code [long epoch micros][UTF address][u16 length][payload]}.
+ * <p>
+ * Uploads resume where they broke off, in the style of tus: {@code PUT <collector>/<chunk>}
+ * with {@code Upload-Offset} and {@code Upload-Length} headers carries the chunk from that
+ * offset on, and the collector answers 2xx, or 409 if the offset was wrong, with the
+ * {@code Upload-Offset} it now holds. After a failed attempt the upload thread backs off per
+ * its {@link ReconnectPolicy} (whose attempt limit is ignored: chunks wait as long as they
+ * have to), asks with {@code HEAD} how much arrived and sends only the rest. Other 4xx
+ * answers move the chunk to {@code rejected/} instead of retrying it forever.
+ */
+public final class FrameUploader implements Closeable {
+    static final String CHUNK_SUFFIX = ".gz";
+    static final String PART_SUFFIX = ".part";
+    static final String REJECTED_DIR = "rejected";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final int READ_TIMEOUT_MILLIS = 30_000;
+    private static final int COPY_BUFFER_BYTES = 16 * 1024;
+    // How long close() waits for an upload thread to notice it was interrupted
+    private static final long CLOSE_WAIT_MILLIS = 2000;
+
+    private static final class Entry {
+        final byte[] data;
+        int length;
+        long micros;
+        String address;
+
+        Entry(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    // The collector refused a chunk for good
+    private static final class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(int status) {
+            super("Collector rejected the chunk with status " + status);
+        }
+    }
+
+    private final File mDirectory;
+    private final File mRejected;
+    private final String mCollector;
+    private final int mMaxFrameBytes;
+    private final int mChunkBytes;
+    private final long mMaxChunkAgeNanos;
+    private final long mMaxSpoolBytes;
+    private final ReconnectPolicy mRetryPolicy;
+    private final EntryWriter<Entry> mSpooler;
+    // Maps monotonic read times onto the wall clock
+    private final long mEpochMicrosAtStart = System.currentTimeMillis() * 1000;
+    private final long mNanosAtStart = System.nanoTime();
+    private final Thread[] mUploaders;
+    // Spooled chunks waiting for an upload thread, oldest first; guarded by itself
+    private final TreeSet<String> mQueued = new TreeSet<>();
+    // Chunks from an earlier run, whose upload may have got part way
+    private final Set<String> mResumeUnknown = new HashSet<>();
+    private final AtomicLong mSpoolBytes = new AtomicLong();
+    private final AtomicLong mOffered = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mUploadedChunks = new AtomicLong();
+    private final AtomicLong mUploadedBytes = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mEvicted = new AtomicLong();
+    private final AtomicLong mRejectedChunks = new AtomicLong();
+    private final Random mRandom = new Random();
+    private volatile boolean mStopping;
+    private volatile IOException mFailure;
+
+    // Only touched by the spooler thread
+    private long mNextSequence;
+    private File mChunkFile;
+    private FileOutputStream mChunkOut;
+    private GZIPOutputStream mChunkGzip;
+    private DataOutputStream mChunk;
+    private long mChunkOpenedAt;
+    private long mChunkFrameBytes;
+
+    public FrameUploader(File directory, URL collector, int maxFrameBytes, int bufferedFrames, int chunkBytes,
+                         long maxChunkAgeMillis, long maxSpoolBytes, int uploadThreads,
+                         ReconnectPolicy retryPolicy) throws IOException {
+        if (uploadThreads < 1) {
+            throw new IllegalArgumentException("Need at least one upload thread");
+        }
+        mRejected = new File(directory, REJECTED_DIR);
+        if (!mRejected.isDirectory() && !mRejected.mkdirs()) {
+            throw new IOException("Could not create " + mRejected);
+        }
+        mDirectory = directory;
+        String base = collector.toString();
+        mCollector = base.endsWith("/") ? base : base + "/";
+        mMaxFrameBytes = maxFrameBytes;
+        mChunkBytes = chunkBytes;
+        mMaxChunkAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxChunkAgeMillis);
+        mMaxSpoolBytes = maxSpoolBytes;
+        mRetryPolicy = retryPolicy;
+        recoverSpool();
+        mSpooler = new EntryWriter<>("FrameUploader-spool", bufferedFrames, new EntryWriter.Sink<Entry>() {
+            @Override
+            public Entry newEntry() {
+                return new Entry(maxFrameBytes);
+            }
+
+            @Override
+            public void write(Entry entry) {
+                spool(entry);
+            }
+
+            @Override
+            public long tick(long nowNanos) {
+                return closeChunkIfOld(nowNanos);
+            }
+
+            @Override
+            public void finish() {
+                if (mChunk != null) {
+                    closeChunk();
+                }
+            }
+        });
+        mUploaders = new Thread[uploadThreads];
+        for (int i = 0; i < uploadThreads; i++) {
+            mUploaders[i] = new Thread(this::upload, "FrameUploader-upload-" + i);
+            mUploaders[i].setDaemon(true);
+        }
+    }
+
+    public void start() {
+        mSpooler.start();
+        for (Thread uploader : mUploaders) {
+            uploader.start();
+        }
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    // Queues the frame stamped with its read time. The caller keeps ownership of the slab.
+    public boolean offer(String address, Slab frame) {
+        long readNanos = frame.readNanos() != 0 ? frame.readNanos() : System.nanoTime();
+        long micros = mEpochMicrosAtStart + (readNanos - mNanosAtStart) / 1000;
+        return offer(address, micros, frame.array(), 0, frame.length());
+    }
+
+    // Safe from any thread and never blocks. Returns false if the frame was dropped.
+    public boolean offer(String address, long epochMicros, byte[] data, int offset, int length) {
+        if (length > mMaxFrameBytes) {
+            throw new IllegalArgumentException("Frame too large: " + length);
+        }
+        Entry entry = mSpooler.take();
+        if (entry == null) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        System.arraycopy(data, offset, entry.data, 0, length);
+        entry.length = length;
+        entry.micros = epochMicros;
+        entry.address = address;
+        mSpooler.publish(entry);
+        mOffered.incrementAndGet();
+        return true;
+    }
+
+    public long offeredCount() {
+        return mOffered.get();
+    }
+
+    public long droppedCount() {
+        return mDropped.get();
+    }
+
+    public long uploadedChunks() {
+        return mUploadedChunks.get();
+    }
+
+    // Compressed bytes the collector acknowledged, counting resent ranges once
+    public long uploadedBytes() {
+        return mUploadedBytes.get();
+    }
+
+    public long retryCount() {
+        return mRetries.get();
+    }
+
+    // Chunks deleted unsent to keep the spool within its budget
+    public long evictedChunks() {
+        return mEvicted.get();
+    }
+
+    public long rejectedChunks() {
+        return mRejectedChunks.get();
+    }
+
+    // Finished chunks on disk that the collector doesn't have yet
+    public int spooledChunks() {
+        synchronized (mQueued) {
+            return mQueued.size();
+        }
+    }
+
+    public long spoolBytes() {
+        return mSpoolBytes.get();
+    }
+
+    // Set if the spooler hit an I/O error; frames offered meanwhile were lost
+    public IOException getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * Spools everything offered so far and stops. Uploads in progress are abandoned and
+     * resume from the spool on the next start.
+     */
+    @Override
+    public void close() throws IOException {
+        mStopping = true;
+        boolean started = mSpooler.isStarted();
+        mSpooler.close();
+        if (!started) {
+            return;
+        }
+        synchronized (mQueued) {
+            mQueued.notifyAll();
+        }
+        for (Thread uploader : mUploaders) {
+            uploader.interrupt();
+        }
+        try {
+            for (Thread uploader : mUploaders) {
+                uploader.join(CLOSE_WAIT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mFailure != null) {
+            throw mFailure;
+        }
+    }
+
+    // Picks up chunks left by an earlier run. A .part file is a chunk that was never closed.
+    private void recoverSpool() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(PART_SUFFIX)) {
+                file.delete();
+            } else if (name.endsWith(CHUNK_SUFFIX)) {
+                try {
+                    long sequence = Long.parseLong(name.substring(0, name.length() - CHUNK_SUFFIX.length()), 16);
+                    mNextSequence = Math.max(mNextSequence, sequence + 1);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                mQueued.add(name);
+                mResumeUnknown.add(name);
+                mSpoolBytes.addAndGet(file.length());
+            }
+        }
+    }
+
+    // Spooler thread
+    private void spool(Entry entry) {
+        append(entry);
+        entry.address = null;
+        if (mChunk != null && mChunkFrameBytes >= mChunkBytes) {
+            closeChunk();
+        }
+    }
+
+    // Spooler thread. Returns when the open chunk is due to be closed.
+    private long closeChunkIfOld(long nowNanos) {
+        if (mChunk == null) {
+            return Long.MAX_VALUE;
+        }
+        if (nowNanos - mChunkOpenedAt >= mMaxChunkAgeNanos) {
+            closeChunk();
+            return Long.MAX_VALUE;
+        }
+        return mChunkOpenedAt + mMaxChunkAgeNanos;
+    }
+
+    // Spooler thread. Frames that can't be written are counted as dropped.
+    private void append(Entry entry) {
+        try {
+            if (mChunk == null) {
+                openChunk();
+            }
+            mChunk.writeLong(entry.micros);
+            mChunk.writeUTF(entry.address);
+            mChunk.writeShort(entry.length);
+            mChunk.write(entry.data, 0, entry.length);
+            mChunkFrameBytes += entry.length;
+        } catch (IOException e) {
+            mFailure = e;
+            mDropped.incrementAndGet();
+            abandonChunk();
+        }
+    }
+
+    private void openChunk() throws IOException {
+        mChunkFile = new File(mDirectory, String.format(Locale.US, "%016x", mNextSequence++) + PART_SUFFIX);
+        mChunkOut = new FileOutputStream(mChunkFile);
+        mChunkGzip = new GZIPOutputStream(mChunkOut, COPY_BUFFER_BYTES);
+        mChunk = new DataOutputStream(new BufferedOutputStream(mChunkGzip));
+        mChunkOpenedAt = System.nanoTime();
+        mChunkFrameBytes = 0;
+    }
+
+    // Finishes the gzip stream, syncs it and publishes it under its final name
+    private void closeChunk() {
+        String partName = mChunkFile.getName();
+        String name = partName.substring(0, partName.length() - PART_SUFFIX.length()) + CHUNK_SUFFIX;
+        File done = new File(mDirectory, name);
+        try {
+            mChunk.flush();
+            mChunkGzip.finish();
+            // On disk before it is published, so a power cut can't leave a truncated chunk
+            mChunkOut.getFD().sync();
+            mChunk.close();
+        } catch (IOException e) {
+            mFailure = e;
+            abandonChunk();
+            return;
+        }
+        mChunk = null;
+        mChunkGzip = null;
+        mChunkOut = null;
+        if (!mChunkFile.renameTo(done)) {
+            mFailure = new IOException("Could not rename " + mChunkFile);
+            mChunkFile.delete();
+            return;
+        }
+        mSpoolBytes.addAndGet(done.length());
+        synchronized (mQueued) {
+            mQueued.add(name);
+            mQueued.notify();
+        }
+        enforceBudget();
+    }
+
+    private void abandonChunk() {
+        if (mChunk != null) {
+            try {
+                mChunk.close();
+            } catch (IOException ignored) {
+                // Deleted anyway
+            }
+            mChunk = null;
+            mChunkGzip = null;
+            mChunkOut = null;
+            mChunkFile.delete();
+        }
+    }
+
+    // Deletes the oldest waiting chunks until the spool fits its budget again
+    private void enforceBudget() {
+        while (mSpoolBytes.get() > mMaxSpoolBytes) {
+            String oldest;
+            synchronized (mQueued) {
+                oldest = mQueued.pollFirst();
+            }
+            if (oldest == null) {
+                // Everything left is being uploaded
+                return;
+            }
+            File file = new File(mDirectory, oldest);
+            mSpoolBytes.addAndGet(-file.length());
+            file.delete();
+            mEvicted.incrementAndGet();
+        }
+    }
+
+    private void upload() {
+        while (!mStopping) {
+            String name;
+            boolean resumeUnknown;
+            synchronized (mQueued) {
+                while ((name = mQueued.pollFirst()) == null) {
+                    if (mStopping) {
+                        return;
+                    }
+                    try {
+                        mQueued.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                resumeUnknown = mResumeUnknown.remove(name);
+            }
+            if (!upload(name, resumeUnknown)) {
+                return;
+            }
+        }
+    }
+
+    // Returns false if interrupted by close(); the chunk stays on disk for the next run
+    private boolean upload(String name, boolean resumeUnknown) {
+        File file = new File(mDirectory, name);
+        long length = file.length();
+        // -1 until the collector has told us how much it holds
+        long offset = resumeUnknown ? -1 : 0;
+        int attempt = 0;
+        while (true) {
+            try {
+                if (offset < 0) {
+                    offset = queryOffset(name);
+                }
+                while (offset < length) {
+                    long held = put(name, file, offset, length);
+                    if (held <= offset) {
+                        throw new IOException("Collector made no progress on " + name);
+                    }
+                    mUploadedBytes.addAndGet(Math.min(held, length) - offset);
+                    offset = held;
+                }
+                mSpoolBytes.addAndGet(-length);
+                file.delete();
+                mUploadedChunks.incrementAndGet();
+                return true;
+            } catch (RejectedException e) {
+                mSpoolBytes.addAndGet(-length);
+                file.renameTo(new File(mRejected, name));
+                mRejectedChunks.incrementAndGet();
+                return true;
+            } catch (IOException e) {
+                if (mStopping) {
+                    return false;
+                }
+                mRetries.incrementAndGet();
+                offset = -1;
+                try {
+                    Thread.sleep(mRetryPolicy.delayMillis(++attempt, mRandom));
+                } catch (InterruptedException interrupted) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    // Sends the chunk from offset on. Returns how much of it the collector now holds.
+    private long put(String name, File file, long offset, long length) throws IOException {
+        HttpURLConnection connection = open(name, "PUT");
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty("Upload-Offset", Long.toString(offset));
+            connection.setRequestProperty("Upload-Length", Long.toString(length));
+            connection.setFixedLengthStreamingMode(length - offset);
+            try (RandomAccessFile in = new RandomAccessFile(file, "r");
+                 OutputStream out = connection.getOutputStream()) {
+                in.seek(offset);
+                byte[] buffer = new byte[COPY_BUFFER_BYTES];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            int status = connection.getResponseCode();
+            if (status / 100 == 2) {
+                String held = connection.getHeaderField("Upload-Offset");
+                return held != null ? parseOffset(held) : length;
+            }
+            if (status == HttpURLConnection.HTTP_CONFLICT) {
+                return parseOffset(connection.getHeaderField("Upload-Offset"));
+            }
+            throw failure(status);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private long queryOffset(String name) throws IOException {
+        HttpURLConnection connection = open(name, "HEAD");
+        try {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                return 0;
+            }
+            if (status / 100 == 2) {
+                String held = connection.getHeaderField("Upload-Offset");
+                return held != null ? parseOffset(held) : 0;
+            }
+            throw failure(status);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String name, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mCollector + name).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    // Timeouts, throttling and server errors are worth retrying; other answers are final
+    private static IOException failure(int status) {
+        if (status == HttpURLConnection.HTTP_CLIENT_TIMEOUT || status == 429 || status >= 500 || status < 400) {
+            return new IOException("Collector answered " + status);
+        }
+        return new RejectedException(status);
+    }
+
+    private static long parseOffset(String value) throws IOException {
+        if (value == null) {
+            throw new IOException("Missing Upload-Offset");
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad Upload-Offset: " + value);
+        }
+    }
+}
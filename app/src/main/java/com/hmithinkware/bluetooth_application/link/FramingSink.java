@@ -0,0 +1,136 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.util.Arrays;
+
+/**
+ * Sits between {@link StreamReader} and the consumer: runs every read through a
+ * {@link FrameDecoder} and forwards each complete frame in its own pooled slab.
+ * <p>
+ * Read slabs are released as soon as they are decoded, so the only copy per frame is the
+ * one into the outgoing slab that the consumer owns. This runs on a shared loop thread, so it
+ * never waits for a slab: frames that find the pool empty are kept in a backlog, in order, and
+ * handed on by {@link #drainBacklog} as slabs come back. The caller stops reading while there
+ * is a backlog, so it holds at most one read's frames and the device is slowed down instead.
+ */
+public final class FramingSink implements StreamReader.Sink, FrameListener {
+    private final FrameDecoder mDecoder;
+    private final BufferPool mFramePool;
+    private final StreamReader.Sink mDownstream;
+    private final LinkMetrics mMetrics;
+    private int mErrorCount;
+    // Read time of the slab being decoded, passed on to the frames it completes
+    private long mReadNanos;
+    // Frames waiting for a slab, back to back; mBacklogNext is the first one not handed on yet
+    private byte[] mBacklog = new byte[0];
+    private int[] mBacklogLengths = new int[0];
+    private long[] mBacklogReadNanos = new long[0];
+    private int mBacklogFrames;
+    private int mBacklogBytes;
+    private int mBacklogNext;
+    private int mBacklogOffset;
+
+    public FramingSink(FrameCodec codec, BufferPool framePool, StreamReader.Sink downstream) {
+        this(codec, framePool, new LinkMetrics(), downstream);
+    }
+
+    public FramingSink(FrameCodec codec, BufferPool framePool, LinkMetrics metrics,
+                       StreamReader.Sink downstream) {
+        if (framePool.slabSize() < codec.maxPayload()) {
+            throw new IllegalArgumentException("Frame slabs smaller than the codec's max payload");
+        }
+        mDecoder = codec.newDecoder(this);
+        mFramePool = framePool;
+        mDownstream = downstream;
+        mMetrics = metrics;
+    }
+
+    @Override
+    public void onSlab(Slab slab) {
+        mReadNanos = slab.readNanos();
+        try {
+            mDecoder.feed(slab.array(), 0, slab.length());
+        } finally {
+            slab.release();
+        }
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        // Nothing overtakes the backlog
+        Slab frame = hasBacklog() ? null : mFramePool.tryAcquire();
+        if (frame == null) {
+            // The consumer is holding every frame slab; parking here would stall every link
+            addToBacklog(buffer, offset, length);
+            return;
+        }
+        System.arraycopy(buffer, offset, frame.array(), 0, length);
+        frame.setLength(length);
+        frame.setReadNanos(mReadNanos);
+        mDownstream.onSlab(frame);
+    }
+
+    // True while decoded frames wait for a slab; read nothing more until it is false again
+    public boolean hasBacklog() {
+        return mBacklogNext < mBacklogFrames;
+    }
+
+    // Hands on waiting frames for as long as slabs are free. Returns how many went.
+    public int drainBacklog() {
+        int drained = 0;
+        while (hasBacklog()) {
+            Slab frame = mFramePool.tryAcquire();
+            if (frame == null) {
+                return drained;
+            }
+            int length = mBacklogLengths[mBacklogNext];
+            System.arraycopy(mBacklog, mBacklogOffset, frame.array(), 0, length);
+            frame.setLength(length);
+            frame.setReadNanos(mBacklogReadNanos[mBacklogNext]);
+            mBacklogOffset += length;
+            mBacklogNext++;
+            drained++;
+            mDownstream.onSlab(frame);
+        }
+        clearBacklog();
+        return drained;
+    }
+
+    // For a link that is gone: what still waits is counted as dropped
+    public void discardBacklog() {
+        mMetrics.mFramesDropped += mBacklogFrames - mBacklogNext;
+        clearBacklog();
+    }
+
+    private void addToBacklog(byte[] buffer, int offset, int length) {
+        if (mBacklogBytes + length > mBacklog.length) {
+            mBacklog = Arrays.copyOf(mBacklog, Math.max(mBacklog.length * 2, mBacklogBytes + length));
+        }
+        if (mBacklogFrames == mBacklogLengths.length) {
+            int frames = Math.max(mBacklogLengths.length * 2, 16);
+            mBacklogLengths = Arrays.copyOf(mBacklogLengths, frames);
+            mBacklogReadNanos = Arrays.copyOf(mBacklogReadNanos, frames);
+        }
+        System.arraycopy(buffer, offset, mBacklog, mBacklogBytes, length);
+        mBacklogLengths[mBacklogFrames] = length;
+        mBacklogReadNanos[mBacklogFrames] = mReadNanos;
+        mBacklogFrames++;
+        mBacklogBytes += length;
+    }
+
+    private void clearBacklog() {
+        mBacklogFrames = 0;
+        mBacklogBytes = 0;
+        mBacklogNext = 0;
+        mBacklogOffset = 0;
+    }
+
+    @Override
+    public void onFrameError(String reason) {
+        mErrorCount++;
+    }
+
+    // Only meaningful on the reader thread
+    public int errorCount() {
+        return mErrorCount;
+    }
+}
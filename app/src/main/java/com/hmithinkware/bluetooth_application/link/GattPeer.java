@@ -0,0 +1,45 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.IOException;
+
+/**
+ * One GATT connection to a peripheral with a serial-style service: a characteristic the phone
+ * writes without response and one the peripheral notifies on.
+ * <p>
+ * This is the part of {@link GattTransport} that differs between the Android stack and a fake
+ * peer in tests. Requests return false if the stack refused them; results arrive through the
+ * {@link Callback} on whatever thread the stack uses.
+ */
+public interface GattPeer {
+
+    interface Callback {
+        // Services are discovered and notifications enabled
+        void onReady();
+
+        void onMtuChanged(int mtu);
+
+        // The value is only valid for the duration of the call
+        void onNotification(byte[] value);
+
+        // The stack has taken a write off our hands and can accept another
+        void onWriteSent();
+
+        void onDisconnected(IOException cause);
+    }
+
+    String getAddress();
+
+    // Starts connecting and returns; onReady or onDisconnected follows
+    void connect(Callback callback) throws IOException;
+
+    boolean requestMtu(int mtu);
+
+    // Asks for the shortest connection interval the peripheral allows
+    boolean requestHighPriority();
+
+    // False if the stack has no room for another packet right now. Only one write may be
+    // outstanding: after a true, the next waits for onWriteSent.
+    boolean writeWithoutResponse(byte[] data, int offset, int length);
+
+    void close();
+}
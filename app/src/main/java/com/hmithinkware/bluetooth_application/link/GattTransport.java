@@ -0,0 +1,331 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BLE transport over a {@link GattPeer}, for peripherals without classic RFCOMM.
+ * <p>
+ * Waiting for an acknowledgement after every write moves one packet per connection event,
+ * a few KB/s. Instead, after connecting this asks for a larger MTU and a short connection
+ * interval, then writes without response in packets of MTU minus the ATT header. The stack
+ * takes one write at a time and reports it sent once it has buffered it, so a writer thread
+ * per transport hands over the next packet as soon as the last is reported. Writes from the
+ * event loop only copy into a send ring and wait just when that is full, as on a socket.
+ * <p>
+ * Notifications are appended to a receive ring on the stack's thread without waiting, so
+ * everything that arrived in a connection event is read by the event loop as one chunk.
+ * A notification that doesn't fit is dropped and counted; a link drop reads as end of
+ * stream once what arrived before it has been read.
+ */
+public final class GattTransport implements Transport {
+    // ATT opcode and handle in front of every write and notification
+    public static final int ATT_HEADER_BYTES = 3;
+    public static final int DEFAULT_MTU = 23;
+    // Largest MTU Android will ask for
+    public static final int MAX_MTU = 517;
+    public static final int DEFAULT_SEND_BUFFER_SIZE = 16 * 1024;
+    public static final int DEFAULT_RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+    private static final long CONNECT_TIMEOUT_MS = 10_000;
+    // Peripherals that ignore the exchange stay at the default MTU
+    private static final long MTU_TIMEOUT_MS = 1000;
+    // A packet the stack hasn't taken by then fails the link
+    private static final long WRITE_TIMEOUT_MS = 5000;
+    // Not every stack reports when a busy buffer frees up, so busy writers retry this often
+    private static final long BUSY_RETRY_MS = 1;
+
+    private final GattPeer mPeer;
+    private final int mRequestedMtu;
+    private final boolean mHighPriority;
+    private final BytePipe mOutgoing;
+    private final BytePipe mIncoming;
+    private final Thread mWriter;
+    // Guarded by this
+    private boolean mReady;
+    private boolean mMtuAnswered;
+    // A packet has been handed to the stack and not yet reported sent
+    private boolean mWritePending;
+    private IOException mFailure;
+    private boolean mClosed;
+    private volatile int mMtu = DEFAULT_MTU;
+    private volatile long mPacketsSent;
+    private volatile long mBusyCount;
+    private volatile long mNotifications;
+    private volatile long mDroppedBytes;
+
+    private final GattPeer.Callback mCallback = new GattPeer.Callback() {
+        @Override
+        public void onReady() {
+            synchronized (GattTransport.this) {
+                mReady = true;
+                GattTransport.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void onMtuChanged(int mtu) {
+            synchronized (GattTransport.this) {
+                mMtu = Math.max(DEFAULT_MTU, Math.min(mtu, MAX_MTU));
+                mMtuAnswered = true;
+                GattTransport.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void onNotification(byte[] value) {
+            mNotifications++;
+            int taken = mIncoming.offer(value, 0, value.length);
+            if (taken < value.length) {
+                mDroppedBytes += value.length - taken;
+            }
+        }
+
+        @Override
+        public void onWriteSent() {
+            synchronized (GattTransport.this) {
+                mWritePending = false;
+                GattTransport.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void onDisconnected(IOException cause) {
+            synchronized (GattTransport.this) {
+                if (mFailure == null) {
+                    mFailure = cause != null ? cause : new IOException("GATT disconnected");
+                }
+                GattTransport.this.notifyAll();
+            }
+            mIncoming.closeWriter();
+            mOutgoing.closeReader();
+        }
+    };
+
+    private final OutputStream mOutput = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (GattTransport.this) {
+                checkOpen();
+            }
+            try {
+                mOutgoing.write(b, off, len);
+            } catch (IOException e) {
+                // The ring was closed under us; report why
+                synchronized (GattTransport.this) {
+                    checkOpen();
+                }
+                throw e;
+            }
+        }
+    };
+
+    public GattTransport(GattPeer peer) {
+        this(peer, MAX_MTU, true, DEFAULT_SEND_BUFFER_SIZE, DEFAULT_RECEIVE_BUFFER_SIZE);
+    }
+
+    // The default MTU without high priority is what a peripheral gets if it asks for nothing
+    public GattTransport(GattPeer peer, int mtu, boolean highPriority, int sendBufferSize, int receiveBufferSize) {
+        if (mtu < DEFAULT_MTU || mtu > MAX_MTU) {
+            throw new IllegalArgumentException("MTU must be " + DEFAULT_MTU + " to " + MAX_MTU + ": " + mtu);
+        }
+        mPeer = peer;
+        mRequestedMtu = mtu;
+        mHighPriority = highPriority;
+        mOutgoing = new BytePipe(sendBufferSize);
+        mIncoming = new BytePipe(receiveBufferSize);
+        mWriter = new Thread(this::runWriter, "GattWriter-" + peer.getAddress());
+        mWriter.setDaemon(true);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        synchronized (this) {
+            checkOpen();
+            if (mReady) {
+                return;
+            }
+        }
+        mPeer.connect(mCallback);
+        try {
+            synchronized (this) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS);
+                while (!mReady) {
+                    checkOpen();
+                    awaitUntil(deadline, "GATT connect timed out");
+                }
+            }
+            if (mRequestedMtu > DEFAULT_MTU && mPeer.requestMtu(mRequestedMtu)) {
+                synchronized (this) {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MTU_TIMEOUT_MS);
+                    while (!mMtuAnswered && System.nanoTime() < deadline) {
+                        checkOpen();
+                        awaitUntil(deadline, null);
+                    }
+                }
+            }
+            if (mHighPriority) {
+                // Best effort; the peripheral has the last word on the interval
+                mPeer.requestHighPriority();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        mWriter.start();
+    }
+
+    // Feeds the send ring to the stack one packet at a time until the transport closes
+    private void runWriter() {
+        byte[] packet = new byte[MAX_MTU - ATT_HEADER_BYTES];
+        InputStream pending = mOutgoing.inputStream();
+        try {
+            while (true) {
+                // Wait for the stack first, so whatever queued meanwhile goes out as one packet
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT_MS);
+                synchronized (this) {
+                    while (mWritePending) {
+                        checkOpen();
+                        awaitUntil(deadline, "GATT write timed out");
+                    }
+                }
+                int n = pending.read(packet, 0, mMtu - ATT_HEADER_BYTES);
+                if (n < 0) {
+                    return;
+                }
+                deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT_MS);
+                while (!handOver(packet, n)) {
+                    mBusyCount++;
+                    synchronized (this) {
+                        checkOpen();
+                        long now = System.nanoTime();
+                        if (now >= deadline) {
+                            throw new IOException("GATT write timed out");
+                        }
+                        awaitUntil(Math.min(deadline, now + TimeUnit.MILLISECONDS.toNanos(BUSY_RETRY_MS)), null);
+                    }
+                }
+                mPacketsSent++;
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                if (mFailure == null) {
+                    mFailure = e;
+                }
+                notifyAll();
+            }
+            // The event loop reads end of stream and drops the link, as when the peer goes
+            mIncoming.closeWriter();
+            mOutgoing.closeReader();
+        }
+    }
+
+    // Marked pending before the call, as the report can arrive before it returns
+    private boolean handOver(byte[] packet, int length) {
+        synchronized (this) {
+            mWritePending = true;
+        }
+        if (mPeer.writeWithoutResponse(packet, 0, length)) {
+            return true;
+        }
+        synchronized (this) {
+            mWritePending = false;
+        }
+        return false;
+    }
+
+    // Waits on this until notified or the deadline; at the deadline throws if a message is given
+    private void awaitUntil(long deadline, String timeoutMessage) throws IOException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            if (timeoutMessage != null) {
+                throw new IOException(timeoutMessage);
+            }
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on GATT");
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Transport closed");
+        }
+        if (mFailure != null) {
+            throw mFailure;
+        }
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public long getPacketsSent() {
+        return mPacketsSent;
+    }
+
+    // Writes the stack refused even though none of ours was outstanding
+    public long getBusyCount() {
+        return mBusyCount;
+    }
+
+    public long getNotificationCount() {
+        return mNotifications;
+    }
+
+    // Notified bytes lost because the event loop fell behind
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return mReady && mFailure == null && !mClosed;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mIncoming.inputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutput;
+    }
+
+    @Override
+    public String getAddress() {
+        return mPeer.getAddress();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            notifyAll();
+        }
+        mOutgoing.closeWriter();
+        mOutgoing.closeReader();
+        mIncoming.closeWriter();
+        mIncoming.closeReader();
+        mPeer.close();
+    }
+}
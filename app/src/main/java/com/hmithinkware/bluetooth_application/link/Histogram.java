@@ -0,0 +1,65 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values in power-of-two buckets.
+ * <p>
+ * Recording is a few atomic adds into preallocated storage, so it is safe from any thread
+ * and never allocates. Percentiles are approximate: they report the upper bound of the
+ * bucket they fall in, capped at the largest value seen.
+ */
+public final class Histogram {
+    // Bucket 0 holds zero, bucket b holds [2^(b-1), 2^b - 1]
+    private static final int BUCKETS = 65;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // Lost a race with a larger value; try again
+        }
+    }
+
+    public long count() {
+        return mCount.get();
+    }
+
+    public long max() {
+        return mMax.get();
+    }
+
+    public long mean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    // percentile is in (0, 100]; returns 0 while empty
+    public long percentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += mBuckets.get(bucket);
+            if (seen >= rank) {
+                long upper = bucket == 0 ? 0 : bucket == 64 ? Long.MAX_VALUE : (1L << bucket) - 1;
+                return Math.min(upper, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+}
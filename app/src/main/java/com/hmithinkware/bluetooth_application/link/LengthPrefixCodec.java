@@ -0,0 +1,133 @@
+package com.hmithinkware.bluetooth_application.link;
+
+/**
+ * Frames as {@code [length:u16 BE][payload][crc16 BE]}, the CRC covering length and payload.
+ * <p>
+ * Frames that arrive whole inside one read are handed to the listener straight out of the
+ * read buffer; only frames split across reads are copied into the reassembly buffer.
+ */
+public final class LengthPrefixCodec implements FrameCodec {
+    private static final int HEADER = 2;
+    private static final int TRAILER = 2;
+    public static final int DEFAULT_MAX_PAYLOAD = 1024;
+
+    private final int mMaxPayload;
+
+    public LengthPrefixCodec() {
+        this(DEFAULT_MAX_PAYLOAD);
+    }
+
+    public LengthPrefixCodec(int maxPayload) {
+        if (maxPayload <= 0 || maxPayload > 0xFFFF) {
+            throw new IllegalArgumentException("Max payload must fit in 16 bits: " + maxPayload);
+        }
+        mMaxPayload = maxPayload;
+    }
+
+    @Override
+    public int maxPayload() {
+        return mMaxPayload;
+    }
+
+    @Override
+    public int maxEncodedSize(int payloadLength) {
+        return HEADER + payloadLength + TRAILER;
+    }
+
+    @Override
+    public int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        if (length > mMaxPayload) {
+            throw new IllegalArgumentException("Payload too large: " + length);
+        }
+        dst[dstOffset] = (byte) (length >>> 8);
+        dst[dstOffset + 1] = (byte) length;
+        System.arraycopy(src, offset, dst, dstOffset + HEADER, length);
+        int crc = Crc16.compute(dst, dstOffset, HEADER + length);
+        dst[dstOffset + HEADER + length] = (byte) (crc >>> 8);
+        dst[dstOffset + HEADER + length + 1] = (byte) crc;
+        return HEADER + length + TRAILER;
+    }
+
+    @Override
+    public FrameDecoder newDecoder(FrameListener listener) {
+        return new Decoder(listener);
+    }
+
+    private final class Decoder implements FrameDecoder {
+        private final FrameListener mListener;
+        private final byte[] mAssembly = new byte[HEADER + mMaxPayload + TRAILER];
+        private int mFill;
+        private int mFrameSize;
+
+        Decoder(FrameListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void feed(byte[] data, int offset, int length) {
+            int pos = offset;
+            int end = offset + length;
+            while (pos < end) {
+                if (mFill == 0 && end - pos >= HEADER) {
+                    // Fast path: the whole frame is in this read, deliver it in place
+                    int payload = readLength(data, pos);
+                    if (payload > mMaxPayload) {
+                        mListener.onFrameError("Length " + payload + " exceeds " + mMaxPayload);
+                        pos++;
+                        continue;
+                    }
+                    int frameSize = HEADER + payload + TRAILER;
+                    if (end - pos >= frameSize) {
+                        deliver(data, pos, payload);
+                        pos += frameSize;
+                        continue;
+                    }
+                }
+
+                if (mFill < HEADER) {
+                    mAssembly[mFill++] = data[pos++];
+                    if (mFill == HEADER) {
+                        int payload = readLength(mAssembly, 0);
+                        if (payload > mMaxPayload) {
+                            mListener.onFrameError("Length " + payload + " exceeds " + mMaxPayload);
+                            // Slide by one byte and try to resynchronise on the next header
+                            mAssembly[0] = mAssembly[1];
+                            mFill = 1;
+                            continue;
+                        }
+                        mFrameSize = HEADER + payload + TRAILER;
+                    }
+                    continue;
+                }
+
+                int n = Math.min(end - pos, mFrameSize - mFill);
+                System.arraycopy(data, pos, mAssembly, mFill, n);
+                mFill += n;
+                pos += n;
+                if (mFill == mFrameSize) {
+                    mFill = 0;
+                    deliver(mAssembly, 0, mFrameSize - HEADER - TRAILER);
+                }
+            }
+        }
+
+        @Override
+        public void reset() {
+            mFill = 0;
+        }
+
+        private void deliver(byte[] frame, int start, int payload) {
+            int crcAt = start + HEADER + payload;
+            int expected = ((frame[crcAt] & 0xFF) << 8) | (frame[crcAt + 1] & 0xFF);
+            if (Crc16.compute(frame, start, HEADER + payload) != expected) {
+                mListener.onFrameError("CRC mismatch");
+                return;
+            }
+            mListener.onFrame(frame, start + HEADER, payload);
+        }
+    }
+
+    private static int readLength(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+}
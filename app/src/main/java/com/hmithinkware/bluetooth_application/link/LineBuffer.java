@@ -0,0 +1,57 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fixed-memory ring of the most recent received lines, stored as raw bytes.
+ * <p>
+ * The link thread appends by copying into a preallocated slot, so it never allocates and
+ * never waits on the UI. The UI polls {@link #written()} once per display frame and only
+ * decodes the lines it has not rendered yet, at most {@link #capacity()} of them however
+ * many arrived in between.
+ */
+public final class LineBuffer {
+    private final byte[][] mSlots;
+    private final int[] mLengths;
+    private long mWritten;
+
+    public LineBuffer(int capacity, int maxLineBytes) {
+        mSlots = new byte[capacity][maxLineBytes];
+        mLengths = new int[capacity];
+    }
+
+    public int capacity() {
+        return mSlots.length;
+    }
+
+    // Lines longer than the slot are truncated; trailing CR/LF is dropped
+    public synchronized void append(byte[] data, int offset, int length) {
+        while (length > 0 && (data[offset + length - 1] == '\n' || data[offset + length - 1] == '\r')) {
+            length--;
+        }
+        int slot = (int) (mWritten % mSlots.length);
+        int n = Math.min(length, mSlots[slot].length);
+        System.arraycopy(data, offset, mSlots[slot], 0, n);
+        mLengths[slot] = n;
+        mWritten++;
+    }
+
+    // Total number of lines ever appended; the newest line has sequence written() - 1
+    public synchronized long written() {
+        return mWritten;
+    }
+
+    // Oldest sequence still held
+    public synchronized long oldest() {
+        return Math.max(0, mWritten - mSlots.length);
+    }
+
+    // Returns null if the line has already been overwritten or not written yet
+    public synchronized String decode(long sequence) {
+        if (sequence < Math.max(0, mWritten - mSlots.length) || sequence >= mWritten) {
+            return null;
+        }
+        int slot = (int) (sequence % mSlots.length);
+        return new String(mSlots[slot], 0, mLengths[slot], StandardCharsets.UTF_8);
+    }
+}
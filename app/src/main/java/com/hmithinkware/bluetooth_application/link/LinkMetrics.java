@@ -0,0 +1,91 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.util.Locale;
+
+/**
+ * Counters and histograms for one {@link Connection}.
+ * <p>
+ * Counters have a single writer (the loop or connector thread), so they are plain volatile
+ * fields; histograms may be fed from any thread. Nothing here allocates on the record path,
+ * so it stays on in release builds.
+ */
+public final class LinkMetrics {
+    // Bytes returned by each read call; lots of tiny reads point at the radio or the peer
+    final Histogram mReadSizes = new Histogram();
+    // Write queue depth seen by each write, sampled just after it was queued
+    final Histogram mQueueDepth = new Histogram();
+    // From the read that completed a frame to the UI drawing it, in nanoseconds
+    final Histogram mDeliveryLatency = new Histogram();
+    // Ping to pong, in nanoseconds; only fed while probes are being sent
+    final Histogram mRoundTrip = new Histogram();
+
+    volatile long mBytesIn;
+    volatile long mBytesOut;
+    volatile long mFramesIn;
+    volatile long mFramesOut;
+    volatile long mReconnects;
+    // Frames still waiting for a frame slab when their link dropped
+    volatile long mFramesDropped;
+
+    public long bytesIn() {
+        return mBytesIn;
+    }
+
+    public long bytesOut() {
+        return mBytesOut;
+    }
+
+    public long framesIn() {
+        return mFramesIn;
+    }
+
+    public long framesOut() {
+        return mFramesOut;
+    }
+
+    public long reconnects() {
+        return mReconnects;
+    }
+
+    public long framesDropped() {
+        return mFramesDropped;
+    }
+
+    public Histogram readSizes() {
+        return mReadSizes;
+    }
+
+    public Histogram queueDepth() {
+        return mQueueDepth;
+    }
+
+    public Histogram deliveryLatency() {
+        return mDeliveryLatency;
+    }
+
+    public Histogram roundTrip() {
+        return mRoundTrip;
+    }
+
+    // Called by whoever displays frames, with the timestamp carried by the frame's slab
+    public void recordDelivery(long readNanos) {
+        mDeliveryLatency.record(System.nanoTime() - readNanos);
+    }
+
+    /**
+     * One line of key=value pairs, e.g. for a bug report. Histograms are written as
+     * count/p50/p99/max; sizes are in bytes and times in microseconds.
+     */
+    public String snapshot() {
+        return String.format(Locale.US,
+                "in=%d/%d out=%d/%d reconnects=%d read_b=%s queue=%s latency_us=%s rtt_us=%s dropped=%d",
+                mBytesIn, mFramesIn, mBytesOut, mFramesOut, mReconnects,
+                summary(mReadSizes, 1), summary(mQueueDepth, 1),
+                summary(mDeliveryLatency, 1000), summary(mRoundTrip, 1000), mFramesDropped);
+    }
+
+    private static String summary(Histogram histogram, long divisor) {
+        return histogram.count() + "/" + histogram.percentile(50) / divisor
+                + "/" + histogram.percentile(99) / divisor + "/" + histogram.max() / divisor;
+    }
+}
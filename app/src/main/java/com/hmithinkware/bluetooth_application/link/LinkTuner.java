@@ -0,0 +1,149 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes one {@link Connection} from the traffic it sees, so a chatty logger gets throughput
+ * and a quiet control device keeps its latency.
+ * <p>
+ * The owning loop reports every read and every poll. Once per window the tuner looks at what
+ * happened and moves three settings within fixed bounds:
+ * <ul>
+ * <li>Read size. It doubles while a quarter or more of the reads fill the buffer. It halves
+ * while even the largest read used less than a quarter of it.
+ * <li>Write coalescing delay. This is how long queued writes may wait for more to join their
+ * batch. It is zero unless writes come fast enough that {@link #COALESCE_FRAMES} are expected
+ * within the maximum delay. It is also zero while the queue is already several batches deep,
+ * because then the flushes are falling behind and waiting would only make that worse.
+ * <li>UI dispatch interval. This is how long a display may let received frames pile up
+ * between redraws. It is zero up to {@link #SLOW_FRAMES_PER_SEC} and reaches the maximum at
+ * {@link #FAST_FRAMES_PER_SEC}, the rate at which nobody reads the lines anyway.
+ * </ul>
+ * Settings carry over a reconnect, since they describe the device rather than the link.
+ * Observations come from the loop thread only; the settings can be read from anywhere.
+ */
+public final class LinkTuner {
+    public static final int MIN_READ_SIZE = 256;
+    public static final int MAX_READ_SIZE = 16 * 1024;
+    // What every connection started with before tuning
+    public static final int INITIAL_READ_SIZE = 1024;
+    public static final long MAX_COALESCE_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    public static final long MAX_DISPATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Queued writes that are flushed at once however long the delay
+    public static final int COALESCE_FRAMES = 4;
+    public static final int SLOW_FRAMES_PER_SEC = 100;
+    public static final int FAST_FRAMES_PER_SEC = 2000;
+
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private volatile boolean mEnabled = true;
+    private volatile int mReadSize = INITIAL_READ_SIZE;
+    private volatile long mCoalesceNanos;
+    private volatile long mDispatchNanos;
+
+    // Loop thread only: the window being observed
+    private long mWindowStart;
+    private int mReads;
+    private int mFullReads;
+    private int mLargestRead;
+    private int mDeepestQueue;
+    private long mFramesInAtStart;
+    private long mFramesOutAtStart;
+
+    // Turned off, every setting goes back to its untuned value
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            mReadSize = INITIAL_READ_SIZE;
+            mCoalesceNanos = 0;
+            mDispatchNanos = 0;
+        }
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public int readSize() {
+        return mReadSize;
+    }
+
+    public long coalesceNanos() {
+        return mCoalesceNanos;
+    }
+
+    public long dispatchIntervalNanos() {
+        return mDispatchNanos;
+    }
+
+    void onRead(int bytes, int capacity) {
+        mReads++;
+        if (bytes >= capacity) {
+            mFullReads++;
+        }
+        mLargestRead = Math.max(mLargestRead, bytes);
+    }
+
+    // Once per poll, with the connection's running frame counts
+    void onPoll(long now, long framesIn, long framesOut, int queueDepth) {
+        mDeepestQueue = Math.max(mDeepestQueue, queueDepth);
+        if (mWindowStart == 0) {
+            startWindow(now, framesIn, framesOut);
+            return;
+        }
+        long elapsed = now - mWindowStart;
+        if (elapsed < WINDOW_NANOS) {
+            return;
+        }
+        if (mEnabled) {
+            tuneReadSize();
+            tuneCoalescing((framesOut - mFramesOutAtStart) * 1e9 / elapsed);
+            tuneDispatch((framesIn - mFramesInAtStart) * 1e9 / elapsed);
+        }
+        startWindow(now, framesIn, framesOut);
+    }
+
+    private void startWindow(long now, long framesIn, long framesOut) {
+        mWindowStart = now;
+        mFramesInAtStart = framesIn;
+        mFramesOutAtStart = framesOut;
+        mReads = 0;
+        mFullReads = 0;
+        mLargestRead = 0;
+        mDeepestQueue = 0;
+    }
+
+    private void tuneReadSize() {
+        if (mReads == 0) {
+            return;
+        }
+        int size = mReadSize;
+        if (mFullReads * 4 >= mReads) {
+            mReadSize = Math.min(size * 2, MAX_READ_SIZE);
+        } else if (mLargestRead * 4 < size) {
+            mReadSize = Math.max(size / 2, MIN_READ_SIZE);
+        }
+    }
+
+    private void tuneCoalescing(double framesPerSec) {
+        long target = 0;
+        if (mDeepestQueue <= 4 * COALESCE_FRAMES && framesPerSec * MAX_COALESCE_NANOS / 1e9 >= COALESCE_FRAMES) {
+            target = (long) (COALESCE_FRAMES * 1e9 / framesPerSec);
+        }
+        // Halfway each window, so one odd burst doesn't swing it
+        mCoalesceNanos = Math.min((mCoalesceNanos + target) / 2, MAX_COALESCE_NANOS);
+    }
+
+    private void tuneDispatch(double framesPerSec) {
+        double fraction = (framesPerSec - SLOW_FRAMES_PER_SEC) / (FAST_FRAMES_PER_SEC - SLOW_FRAMES_PER_SEC);
+        long target = (long) (Math.max(0, Math.min(1, fraction)) * MAX_DISPATCH_NANOS);
+        mDispatchNanos = (mDispatchNanos + target) / 2;
+    }
+
+    // For the metrics screen: read size in bytes, delays in microseconds
+    public String snapshot() {
+        return String.format(Locale.US, "tune=%s read_b=%d coalesce_us=%d dispatch_us=%d",
+                mEnabled ? "on" : "off", mReadSize, mCoalesceNanos / 1000, mDispatchNanos / 1000);
+    }
+}
@@ -0,0 +1,74 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * In-process transport: two ends joined by a pair of bounded pipes.
+ * <p>
+ * Whatever one end writes the other end reads. Closing either end shows up as end of
+ * stream on the peer, the same way a dropped socket would.
+ */
+public final class LoopbackTransport implements Transport {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final String mAddress;
+    private final BytePipe mIncoming;
+    private final BytePipe mOutgoing;
+    private volatile boolean mClosed;
+
+    private LoopbackTransport(String address, BytePipe incoming, BytePipe outgoing) {
+        mAddress = address;
+        mIncoming = incoming;
+        mOutgoing = outgoing;
+    }
+
+    // Returns two connected ends; index 0 plays the phone, index 1 the peripheral
+    public static LoopbackTransport[] pair(String address, int bufferSize) {
+        BytePipe toPeer = new BytePipe(bufferSize);
+        BytePipe fromPeer = new BytePipe(bufferSize);
+        return new LoopbackTransport[]{
+                new LoopbackTransport(address, fromPeer, toPeer),
+                new LoopbackTransport("loopback-peer", toPeer, fromPeer)
+        };
+    }
+
+    public static LoopbackTransport[] pair(String address) {
+        return pair(address, DEFAULT_BUFFER_SIZE);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (mClosed) {
+            throw new IOException("Transport closed");
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !mClosed && !mIncoming.isDrained();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mIncoming.inputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutgoing.outputStream();
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mOutgoing.closeWriter();
+        mIncoming.closeReader();
+    }
+}
@@ -0,0 +1,80 @@
+package com.hmithinkware.bluetooth_application.link;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling of an evenly spaced series.
+ * <p>
+ * Keeps the first and last points and, from each of {@code threshold - 2} buckets in
+ * between, the point forming the largest triangle with the previous pick and the average of
+ * the next bucket. Peaks and dips survive, which plain decimation loses, and the cost is one
+ * pass over the input however many points are kept.
+ */
+public final class Lttb {
+    private Lttb() {
+    }
+
+    /**
+     * Writes the indices of the points to keep into {@code picked}, in order, and returns how
+     * many: at most {@code threshold}, or {@code count} if that is already within it. Buckets
+     * holding only NaN values are skipped.
+     */
+    public static int downsample(double[] values, int count, int threshold, int[] picked) {
+        if (threshold < 3) {
+            throw new IllegalArgumentException("Threshold must keep at least 3 points");
+        }
+        if (count <= threshold) {
+            for (int i = 0; i < count; i++) {
+                picked[i] = i;
+            }
+            return count;
+        }
+        double bucketSize = (double) (count - 2) / (threshold - 2);
+        int previous = 0;
+        int n = 0;
+        picked[n++] = 0;
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            int start = (int) (bucket * bucketSize) + 1;
+            int end = Math.min((int) ((bucket + 1) * bucketSize) + 1, count - 1);
+            // Average of the next bucket, or the last point for the final one
+            int nextStart = end;
+            int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, count);
+            double avgX = 0;
+            double avgY = 0;
+            int avgCount = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                if (!Double.isNaN(values[i])) {
+                    avgX += i;
+                    avgY += values[i];
+                    avgCount++;
+                }
+            }
+            if (avgCount == 0) {
+                avgX = count - 1;
+                avgY = values[previous];
+            } else {
+                avgX /= avgCount;
+                avgY /= avgCount;
+            }
+            double ax = previous;
+            double ay = values[previous];
+            double bestArea = -1;
+            int best = -1;
+            for (int i = start; i < end; i++) {
+                if (Double.isNaN(values[i])) {
+                    continue;
+                }
+                // Twice the triangle's area; only the ordering matters
+                double area = Math.abs((ax - avgX) * (values[i] - ay) - (ax - i) * (avgY - ay));
+                if (area > bestArea) {
+                    bestArea = area;
+                    best = i;
+                }
+            }
+            if (bestArea >= 0) {
+                picked[n++] = best;
+                previous = best;
+            }
+        }
+        picked[n++] = count - 1;
+        return n;
+    }
+}
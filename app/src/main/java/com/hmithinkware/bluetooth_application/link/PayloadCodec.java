@@ -0,0 +1,269 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional payload compression between the application and the {@link FrameCodec}, agreed
+ * per link so firmware that doesn't know about it keeps getting raw frames.
+ * <p>
+ * The side that wants compression sends {@link #hello()} listing the transforms it can do;
+ * a peer that understands answers with the subset it accepts, and from then on either side
+ * may send wrapped frames {@code [0xFC][transforms][body]}. Old firmware never answers, so
+ * nothing is ever wrapped. Frames that don't start with the marker are always raw, and a raw
+ * payload that does is sent wrapped with no transforms. Handshake frames always go raw, so an
+ * answer sent after agreeing is still one the peer can read.
+ * <p>
+ * {@link #DELTA} stores a payload of big-endian 16-bit samples from one channel as zigzag
+ * varints of the difference to the previous sample, and is only used on a frame when it
+ * makes it smaller.
+ * {@link #DEFLATE} runs every wrapped frame through one raw deflate stream per direction,
+ * sync-flushed per frame, so repeated content across frames compresses as well as within
+ * one. Both ends may preload the stream with a shared dictionary of typical frames.
+ * <p>
+ * One instance serves one link: a single thread wraps and a single thread unwraps.
+ */
+public final class PayloadCodec {
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+    public static final int DELTA = 2;
+
+    static final byte WRAP_MARKER = (byte) 0xFC;
+    static final byte HANDSHAKE_MARKER = (byte) 0xFD;
+    private static final byte HELLO = 'H';
+    private static final byte ACCEPT = 'A';
+    private static final int HANDSHAKE_LENGTH = 3;
+    private static final int HEADER = 2;
+    // A sync-flushed deflate block never grows its input by more than this
+    private static final int DEFLATE_SLACK = 16;
+    private static final byte[] SYNC_TRAILER = {0, 0, (byte) 0xFF, (byte) 0xFF};
+
+    // Payload bytes to keep free for the wrapping when compression is offered
+    public static final int OVERHEAD = HEADER + DEFLATE_SLACK;
+
+    private final int mOffered;
+    private final byte[] mDictionary;
+    private final int mMaxPayload;
+    private final byte[] mDelta;
+    private final byte[] mDeflated;
+    private final byte[] mInflateInput;
+    private final byte[] mInflated;
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    private volatile int mAccepted;
+
+    // maxPayload is the largest unwrapped payload; a null dictionary means none
+    public PayloadCodec(int offered, byte[] dictionary, int maxPayload) {
+        mOffered = offered & (DEFLATE | DELTA);
+        mDictionary = dictionary;
+        mMaxPayload = maxPayload;
+        mDelta = new byte[maxPayload + maxPayload / 2];
+        mDeflated = new byte[maxPayload + DEFLATE_SLACK + SYNC_TRAILER.length];
+        mInflateInput = new byte[maxPayload + DEFLATE_SLACK + SYNC_TRAILER.length];
+        mInflated = new byte[maxPayload + 1];
+    }
+
+    public int offered() {
+        return mOffered;
+    }
+
+    // What both sides agreed on, NONE until the peer has answered
+    public int accepted() {
+        return mAccepted;
+    }
+
+    public byte[] hello() {
+        return new byte[]{HANDSHAKE_MARKER, HELLO, (byte) mOffered};
+    }
+
+    public static boolean isHandshake(byte[] data, int offset, int length) {
+        return length == HANDSHAKE_LENGTH && data[offset] == HANDSHAKE_MARKER
+                && (data[offset + 1] == HELLO || data[offset + 1] == ACCEPT);
+    }
+
+    // Applies a handshake frame. Returns the frame to send back, or null if none is due.
+    public byte[] onHandshake(byte[] data, int offset, int length) {
+        int theirs = data[offset + 2] & 0xFF;
+        mAccepted = mOffered & theirs;
+        if (data[offset + 1] == HELLO) {
+            return new byte[]{HANDSHAKE_MARKER, ACCEPT, (byte) mAccepted};
+        }
+        return null;
+    }
+
+    public boolean isWrapped(byte[] data, int offset, int length) {
+        return mAccepted != NONE && length >= HEADER && data[offset] == WRAP_MARKER;
+    }
+
+    // Largest payload that still fits a frame of maxPayload bytes once wrapped
+    public static int payloadLimit(int maxPayload) {
+        return maxPayload - OVERHEAD;
+    }
+
+    /**
+     * Writes the payload as it should go on the wire and returns its length. Until the peer
+     * has accepted, and for handshake frames, that is the payload unchanged. dst needs room
+     * for length + OVERHEAD.
+     */
+    public int wrap(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int accepted = mAccepted;
+        if (accepted == NONE || isHandshake(src, offset, length)) {
+            System.arraycopy(src, offset, dst, dstOffset, length);
+            return length;
+        }
+        if (length > mMaxPayload) {
+            throw new IllegalArgumentException("Payload too large: " + length);
+        }
+        byte[] body = src;
+        int bodyOffset = offset;
+        int bodyLength = length;
+        int transforms = NONE;
+        if ((accepted & DELTA) != 0 && length >= 4 && length % 2 == 0) {
+            int encoded = encodeDelta(src, offset, length, mDelta, 0);
+            if (encoded < length) {
+                body = mDelta;
+                bodyOffset = 0;
+                bodyLength = encoded;
+                transforms |= DELTA;
+            }
+        }
+        if ((accepted & DEFLATE) != 0) {
+            bodyLength = deflate(body, bodyOffset, bodyLength);
+            body = mDeflated;
+            bodyOffset = 0;
+            transforms |= DEFLATE;
+        } else if (transforms == NONE && (length == 0 || src[offset] != WRAP_MARKER)) {
+            // Nothing gained, and the peer can't mistake it for a wrapped frame
+            System.arraycopy(src, offset, dst, dstOffset, length);
+            return length;
+        }
+        dst[dstOffset] = WRAP_MARKER;
+        dst[dstOffset + 1] = (byte) transforms;
+        System.arraycopy(body, bodyOffset, dst, dstOffset + HEADER, bodyLength);
+        return HEADER + bodyLength;
+    }
+
+    /**
+     * Reverses {@link #wrap} on a frame for which {@link #isWrapped} is true and returns the
+     * payload length. dst needs room for the largest payload. Throws if the frame is corrupt,
+     * after which the deflate stream is out of step and the link must be restarted.
+     */
+    public int unwrap(byte[] src, int offset, int length, byte[] dst, int dstOffset) throws IOException {
+        int transforms = src[offset + 1] & 0xFF;
+        if ((transforms & ~(DEFLATE | DELTA)) != 0 || (transforms & ~mAccepted) != 0) {
+            throw new IOException("Unexpected payload transforms " + transforms);
+        }
+        byte[] body = src;
+        int bodyOffset = offset + HEADER;
+        int bodyLength = length - HEADER;
+        if ((transforms & DEFLATE) != 0) {
+            bodyLength = inflate(src, bodyOffset, bodyLength);
+            body = mInflated;
+            bodyOffset = 0;
+        }
+        if ((transforms & DELTA) != 0) {
+            return decodeDelta(body, bodyOffset, bodyLength, dst, dstOffset, mMaxPayload);
+        }
+        if (bodyLength > mMaxPayload) {
+            throw new IOException("Unwrapped payload too large: " + bodyLength);
+        }
+        System.arraycopy(body, bodyOffset, dst, dstOffset, bodyLength);
+        return bodyLength;
+    }
+
+    private int deflate(byte[] src, int offset, int length) {
+        if (mDeflater == null) {
+            mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            if (mDictionary != null) {
+                mDeflater.setDictionary(mDictionary);
+            }
+        }
+        mDeflater.setInput(src, offset, length);
+        int fill = 0;
+        int written;
+        do {
+            written = mDeflater.deflate(mDeflated, fill, mDeflated.length - fill, Deflater.SYNC_FLUSH);
+            fill += written;
+        } while (written > 0 && fill < mDeflated.length);
+        // Every sync flush ends in the same empty block; the receiver puts it back
+        return fill - SYNC_TRAILER.length;
+    }
+
+    private int inflate(byte[] src, int offset, int length) throws IOException {
+        if (length + SYNC_TRAILER.length > mInflateInput.length) {
+            throw new IOException("Compressed payload too large: " + length);
+        }
+        if (mInflater == null) {
+            mInflater = new Inflater(true);
+            if (mDictionary != null) {
+                mInflater.setDictionary(mDictionary);
+            }
+        }
+        System.arraycopy(src, offset, mInflateInput, 0, length);
+        System.arraycopy(SYNC_TRAILER, 0, mInflateInput, length, SYNC_TRAILER.length);
+        mInflater.setInput(mInflateInput, 0, length + SYNC_TRAILER.length);
+        int fill = 0;
+        try {
+            int read;
+            do {
+                read = mInflater.inflate(mInflated, fill, mInflated.length - fill);
+                fill += read;
+            } while (read > 0 && fill < mInflated.length);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        }
+        if (fill > mMaxPayload || !mInflater.needsInput()) {
+            throw new IOException("Inflated payload too large");
+        }
+        return fill;
+    }
+
+    // Big-endian int16 samples to zigzag varint deltas. dst needs room for length * 3 / 2.
+    static int encodeDelta(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int fill = dstOffset;
+        int previous = 0;
+        for (int i = offset; i < offset + length; i += 2) {
+            int sample = (short) (((src[i] & 0xFF) << 8) | (src[i + 1] & 0xFF));
+            int delta = sample - previous;
+            previous = sample;
+            int zigzag = (delta << 1) ^ (delta >> 31);
+            while ((zigzag & ~0x7F) != 0) {
+                dst[fill++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            dst[fill++] = (byte) zigzag;
+        }
+        return fill - dstOffset;
+    }
+
+    static int decodeDelta(byte[] src, int offset, int length, byte[] dst, int dstOffset, int maxLength)
+            throws IOException {
+        int fill = dstOffset;
+        int previous = 0;
+        int i = offset;
+        int end = offset + length;
+        while (i < end) {
+            int zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (i == end || shift > 14) {
+                    throw new IOException("Truncated sample delta");
+                }
+                b = src[i++];
+                zigzag |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (fill - dstOffset + 2 > maxLength) {
+                throw new IOException("Decoded samples too large");
+            }
+            int sample = previous + ((zigzag >>> 1) ^ -(zigzag & 1));
+            previous = sample;
+            dst[fill++] = (byte) (sample >>> 8);
+            dst[fill++] = (byte) sample;
+        }
+        return fill - dstOffset;
+    }
+}
@@ -0,0 +1,13 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.util.concurrent.CompletableFuture;
+
+// An outbound payload waiting in a write queue, with the future its caller is holding
+final class PendingFrame {
+    final byte[] payload;
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    PendingFrame(byte[] payload) {
+        this.payload = payload;
+    }
+}
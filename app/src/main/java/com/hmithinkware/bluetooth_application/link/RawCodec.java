@@ -0,0 +1,45 @@
+package com.hmithinkware.bluetooth_application.link;
+
+/**
+ * No framing at all: writes go out as-is and every read is reported as one frame.
+ * Only for legacy peripherals that don't speak a framed protocol.
+ */
+public final class RawCodec implements FrameCodec {
+    private final int mMaxPayload;
+
+    public RawCodec(int maxPayload) {
+        mMaxPayload = maxPayload;
+    }
+
+    @Override
+    public int maxPayload() {
+        return mMaxPayload;
+    }
+
+    @Override
+    public int maxEncodedSize(int payloadLength) {
+        return payloadLength;
+    }
+
+    @Override
+    public int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        System.arraycopy(src, offset, dst, dstOffset, length);
+        return length;
+    }
+
+    @Override
+    public FrameDecoder newDecoder(FrameListener listener) {
+        return new FrameDecoder() {
+            @Override
+            public void feed(byte[] data, int offset, int length) {
+                for (int i = 0; i < length; i += mMaxPayload) {
+                    listener.onFrame(data, offset + i, Math.min(mMaxPayload, length - i));
+                }
+            }
+
+            @Override
+            public void reset() {
+            }
+        };
+    }
+}
@@ -0,0 +1,42 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.util.Random;
+
+/**
+ * Jittered exponential backoff for reconnect attempts.
+ * <p>
+ * Attempt n waits somewhere between half and all of {@code initial * 2^(n-1)}, capped at
+ * {@code max}. The jitter stops several devices that dropped together from all hammering
+ * the radio at the same instant.
+ */
+public final class ReconnectPolicy {
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final int mMaxAttempts;
+
+    // maxAttempts of 0 keeps trying until the connection is explicitly dropped
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, int maxAttempts) {
+        if (initialDelayMillis <= 0 || maxDelayMillis < initialDelayMillis || maxAttempts < 0) {
+            throw new IllegalArgumentException("Invalid reconnect policy");
+        }
+        mInitialDelayMillis = initialDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mMaxAttempts = maxAttempts;
+    }
+
+    public static ReconnectPolicy defaults() {
+        return new ReconnectPolicy(250, 30_000, 0);
+    }
+
+    public boolean shouldRetry(int attempt) {
+        return mMaxAttempts == 0 || attempt <= mMaxAttempts;
+    }
+
+    // attempt counts from 1
+    public long delayMillis(int attempt, Random random) {
+        int shift = Math.min(attempt - 1, 30);
+        long ceiling = Math.min(mMaxDelayMillis, mInitialDelayMillis << shift);
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half));
+    }
+}
@@ -0,0 +1,89 @@
+package com.hmithinkware.bluetooth_application.link;
+
+/**
+ * Spreads parsed rows into one {@link SampleWindow} per channel, a channel being one numeric
+ * field of one tag, e.g. field 1 of {@code T} lines.
+ * <p>
+ * Fed by one thread, usually as a {@link SampleParser.Consumer}; memory is fixed at
+ * {@code maxChannels} windows of {@code windowSize} values, allocated as channels turn up.
+ * Readers on other threads list the channels and copy windows without locking.
+ */
+public final class SampleAggregator implements SampleParser.Consumer {
+
+    public static final class Channel {
+        private final int mTag;
+        private final int mField;
+        private final String mName;
+        private final SampleWindow mWindow;
+
+        Channel(int tag, int field, String name, SampleWindow window) {
+            mTag = tag;
+            mField = field;
+            mName = name;
+            mWindow = window;
+        }
+
+        // e.g. "T[1]", or "[0]" for untagged lines
+        public String getName() {
+            return mName;
+        }
+
+        public SampleWindow getWindow() {
+            return mWindow;
+        }
+    }
+
+    private final Channel[] mChannels;
+    private final int mWindowSize;
+    // Slots below this are filled in and never change
+    private volatile int mChannelCount;
+
+    public SampleAggregator(int maxChannels, int windowSize) {
+        mChannels = new Channel[maxChannels];
+        mWindowSize = windowSize;
+    }
+
+    public int channelCount() {
+        return mChannelCount;
+    }
+
+    public Channel channel(int index) {
+        return index < mChannelCount ? mChannels[index] : null;
+    }
+
+    // Writer thread only. Fields beyond the channel budget are ignored.
+    @Override
+    public void onBatch(SampleBatch batch) {
+        for (int row = 0; row < batch.size(); row++) {
+            int tag = batch.tag(row);
+            for (int field = 0; field < batch.fieldCount(row); field++) {
+                if (!batch.isNumeric(row, field)) {
+                    continue;
+                }
+                Channel channel = find(tag, field, batch, row);
+                if (channel != null) {
+                    channel.mWindow.add(batch.doubleValue(row, field));
+                }
+            }
+        }
+    }
+
+    private Channel find(int tag, int field, SampleBatch batch, int row) {
+        int count = mChannelCount;
+        for (int i = 0; i < count; i++) {
+            Channel channel = mChannels[i];
+            if (channel.mTag == tag && channel.mField == field) {
+                return channel;
+            }
+        }
+        if (count == mChannels.length) {
+            return null;
+        }
+        String tagName = batch.tagName(row);
+        Channel channel = new Channel(tag, field, (tagName != null ? tagName : "") + "[" + field + "]",
+                new SampleWindow(mWindowSize));
+        mChannels[count] = channel;
+        mChannelCount = count + 1;
+        return channel;
+    }
+}
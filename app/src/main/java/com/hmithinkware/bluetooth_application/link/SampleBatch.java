@@ -0,0 +1,132 @@
+package com.hmithinkware.bluetooth_application.link;
+
+/**
+ * Rows of parsed samples, stored column by column in preallocated primitive arrays.
+ * <p>
+ * A {@link SampleParser} fills one batch over and over; a consumer reads it during the
+ * callback and copies out whatever it wants to keep. Every numeric field is available as a
+ * double, and fields written without a fraction or exponent also exactly as a long.
+ */
+public final class SampleBatch {
+    // Bit masks per row need one bit per field
+    public static final int MAX_FIELDS = 64;
+
+    private final long[][] mLongs;
+    private final double[][] mDoubles;
+    private final int[] mTags;
+    private final int[] mFieldCounts;
+    private final long[] mNumeric;
+    private final long[] mIntegral;
+    private final long[] mReadNanos;
+    // The parser's tag table, filled in as new tags turn up
+    private final String[] mTagNames;
+    private int mSize;
+
+    SampleBatch(int capacity, int maxFields, String[] tagNames) {
+        if (maxFields < 1 || maxFields > MAX_FIELDS) {
+            throw new IllegalArgumentException("Fields must be 1.." + MAX_FIELDS);
+        }
+        mLongs = new long[maxFields][capacity];
+        mDoubles = new double[maxFields][capacity];
+        mTags = new int[capacity];
+        mFieldCounts = new int[capacity];
+        mNumeric = new long[capacity];
+        mIntegral = new long[capacity];
+        mReadNanos = new long[capacity];
+        mTagNames = tagNames;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mTags.length;
+    }
+
+    public int maxFields() {
+        return mLongs.length;
+    }
+
+    // Index into the parser's tag table, or SampleParser.NO_TAG for untagged lines
+    public int tag(int row) {
+        return mTags[row];
+    }
+
+    // Text of the row's tag, or null if the line had none
+    public String tagName(int row) {
+        int tag = mTags[row];
+        return tag == SampleParser.NO_TAG ? null : mTagNames[tag];
+    }
+
+    public int fieldCount(int row) {
+        return mFieldCounts[row];
+    }
+
+    public long readNanos(int row) {
+        return mReadNanos[row];
+    }
+
+    // False for empty or non-numeric fields, e.g. a status word
+    public boolean isNumeric(int row, int field) {
+        return (mNumeric[row] & (1L << field)) != 0;
+    }
+
+    public boolean isIntegral(int row, int field) {
+        return (mIntegral[row] & (1L << field)) != 0;
+    }
+
+    // NaN if the field isn't numeric
+    public double doubleValue(int row, int field) {
+        return mDoubles[field][row];
+    }
+
+    // Truncated if the field has a fraction, 0 if it isn't numeric
+    public long longValue(int row, int field) {
+        return mLongs[field][row];
+    }
+
+    // Whole columns for bulk consumers; only rows below size() are valid
+    public double[] doubleColumn(int field) {
+        return mDoubles[field];
+    }
+
+    public long[] longColumn(int field) {
+        return mLongs[field];
+    }
+
+    void clear() {
+        mSize = 0;
+    }
+
+    boolean isFull() {
+        return mSize == mTags.length;
+    }
+
+    // Starts a row; fields are filled in by set() and the row counts once commit() is called
+    int begin(int tag, long readNanos) {
+        int row = mSize;
+        mTags[row] = tag;
+        mReadNanos[row] = readNanos;
+        mFieldCounts[row] = 0;
+        mNumeric[row] = 0;
+        mIntegral[row] = 0;
+        return row;
+    }
+
+    void set(int row, int field, double value, long longValue, boolean numeric, boolean integral) {
+        mDoubles[field][row] = value;
+        mLongs[field][row] = longValue;
+        if (numeric) {
+            mNumeric[row] |= 1L << field;
+        }
+        if (integral) {
+            mIntegral[row] |= 1L << field;
+        }
+        mFieldCounts[row] = field + 1;
+    }
+
+    void commit() {
+        mSize++;
+    }
+}
@@ -0,0 +1,331 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns ASCII CSV or NMEA-style lines into typed rows of a {@link SampleBatch} without
+ * creating Strings.
+ * <p>
+ * Fields are split on commas and numbers are parsed straight from the byte buffer. A first
+ * field that isn't a number is the line's tag, e.g. {@code T} or {@code $GPGGA}; each new
+ * tag is interned once into a small table and rows carry its index. A line starting with
+ * {@code $} that ends in {@code *hh} has its checksum checked and is dropped if it is wrong.
+ * <p>
+ * {@link #feed} takes a raw byte stream with lines ending in LF and keeps a partial line for
+ * the next call; {@link #parseLines} takes complete text, e.g. a frame. Rows go to the
+ * consumer in batches: whenever the batch fills, and at the end of every call. Not thread
+ * safe; one parser per stream.
+ */
+public final class SampleParser {
+    public static final int NO_TAG = -1;
+
+    public interface Consumer {
+        // The batch is reused once this returns
+        void onBatch(SampleBatch batch);
+    }
+
+    static final int MAX_TAGS = 32;
+    // Fast path: exact for mantissas below 2^53 and powers of ten up to 22
+    private static final double[] POW10 = new double[23];
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final int MAX_DIGITS = 18;
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private final SampleBatch mBatch;
+    private final Consumer mConsumer;
+    private final byte[] mLine;
+    private int mLineLength;
+    // Rest of an overlong line is skipped up to its newline
+    private boolean mDiscarding;
+    private final byte[][] mTagBytes = new byte[MAX_TAGS][];
+    private final String[] mTagNames = new String[MAX_TAGS];
+    private int mTagCount;
+    private long mLines;
+    private long mErrors;
+
+    public SampleParser(int batchRows, int maxFields, int maxLineBytes, Consumer consumer) {
+        mBatch = new SampleBatch(batchRows, maxFields, mTagNames);
+        mConsumer = consumer;
+        mLine = new byte[maxLineBytes];
+    }
+
+    public void feed(byte[] data, int offset, int length, long readNanos) {
+        int end = offset + length;
+        int tail = scan(data, offset, end, readNanos);
+        if (tail < end && !mDiscarding) {
+            append(data, tail, end - tail);
+        }
+        flush();
+    }
+
+    // Parses complete text, e.g. one frame, whose last line needs no newline
+    public void parseLines(byte[] data, int offset, int length, long readNanos) {
+        int end = offset + length;
+        int tail = scan(data, offset, end, readNanos);
+        if (tail < end && !mDiscarding) {
+            if (mLineLength == 0) {
+                parse(data, tail, end - tail, readNanos);
+            } else if (append(data, tail, end - tail)) {
+                parse(mLine, 0, mLineLength, readNanos);
+            }
+        }
+        mLineLength = 0;
+        mDiscarding = false;
+        flush();
+    }
+
+    // Parses every line ended within the range and returns where the unended rest starts
+    private int scan(byte[] data, int offset, int end, long readNanos) {
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (mDiscarding) {
+                // End of an overlong line
+            } else if (mLineLength == 0) {
+                // Whole line inside this buffer: parse it in place
+                parse(data, start, i - start, readNanos);
+            } else if (append(data, start, i - start)) {
+                parse(mLine, 0, mLineLength, readNanos);
+            }
+            mDiscarding = false;
+            mLineLength = 0;
+            start = i + 1;
+        }
+        return start;
+    }
+
+    public long lineCount() {
+        return mLines;
+    }
+
+    // Lines dropped for being too long, failing their checksum or having too many tags
+    public long errorCount() {
+        return mErrors;
+    }
+
+    private boolean append(byte[] data, int offset, int length) {
+        if (mLineLength + length > mLine.length) {
+            mErrors++;
+            mLineLength = 0;
+            mDiscarding = true;
+            return false;
+        }
+        System.arraycopy(data, offset, mLine, mLineLength, length);
+        mLineLength += length;
+        return true;
+    }
+
+    private void flush() {
+        if (mBatch.size() > 0) {
+            mConsumer.onBatch(mBatch);
+            mBatch.clear();
+        }
+    }
+
+    private void parse(byte[] data, int offset, int length, long readNanos) {
+        int end = offset + length;
+        while (end > offset && (data[end - 1] == '\r' || data[end - 1] == ' ')) {
+            end--;
+        }
+        if (end == offset) {
+            return;
+        }
+        if (data[offset] == '$' && end - offset >= 3 && data[end - 3] == '*') {
+            if (!checksumMatches(data, offset, end)) {
+                mErrors++;
+                return;
+            }
+            end -= 3;
+        }
+        mLines++;
+        int fieldStart = offset;
+        int fieldEnd = indexOfComma(data, fieldStart, end);
+        int tag = NO_TAG;
+        if (!isNumber(data, fieldStart, fieldEnd)) {
+            tag = intern(data, fieldStart, fieldEnd);
+            if (tag == NO_TAG) {
+                mErrors++;
+                return;
+            }
+            fieldStart = fieldEnd + 1;
+            fieldEnd = fieldStart > end ? end : indexOfComma(data, fieldStart, end);
+        }
+        int row = mBatch.begin(tag, readNanos);
+        int field = 0;
+        while (fieldStart <= end && field < mBatch.maxFields()) {
+            parseField(data, fieldStart, fieldEnd, row, field++);
+            fieldStart = fieldEnd + 1;
+            fieldEnd = fieldStart > end ? end : indexOfComma(data, fieldStart, end);
+        }
+        mBatch.commit();
+        if (mBatch.isFull()) {
+            flush();
+        }
+    }
+
+    private static int indexOfComma(byte[] data, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (data[i] == ',') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean checksumMatches(byte[] data, int offset, int end) {
+        int expected = (hexValue(data[end - 2]) << 4) | hexValue(data[end - 1]);
+        int sum = 0;
+        for (int i = offset + 1; i < end - 3; i++) {
+            sum ^= data[i];
+        }
+        return expected >= 0 && (sum & 0xFF) == expected;
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        return -0x100;
+    }
+
+    private int intern(byte[] data, int start, int end) {
+        int length = end - start;
+        for (int tag = 0; tag < mTagCount; tag++) {
+            byte[] known = mTagBytes[tag];
+            if (known.length == length && regionEquals(known, data, start)) {
+                return tag;
+            }
+        }
+        if (mTagCount == MAX_TAGS) {
+            return NO_TAG;
+        }
+        // Only a tag never seen before allocates
+        byte[] bytes = new byte[length];
+        System.arraycopy(data, start, bytes, 0, length);
+        mTagBytes[mTagCount] = bytes;
+        mTagNames[mTagCount] = new String(bytes, StandardCharsets.US_ASCII);
+        return mTagCount++;
+    }
+
+    private static boolean regionEquals(byte[] known, byte[] data, int start) {
+        for (int i = 0; i < known.length; i++) {
+            if (known[i] != data[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNumber(byte[] data, int start, int end) {
+        while (start < end && data[start] == ' ') {
+            start++;
+        }
+        if (start < end && (data[start] == '-' || data[start] == '+')) {
+            start++;
+        }
+        if (start < end && data[start] == '.') {
+            start++;
+        }
+        return start < end && data[start] >= '0' && data[start] <= '9';
+    }
+
+    private void parseField(byte[] data, int start, int end, int row, int field) {
+        while (start < end && data[start] == ' ') {
+            start++;
+        }
+        while (end > start && data[end - 1] == ' ') {
+            end--;
+        }
+        int i = start;
+        boolean negative = false;
+        if (i < end && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean fraction = false;
+        boolean sawDigit = false;
+        for (; i < end; i++) {
+            byte b = data[i];
+            if (b >= '0' && b <= '9') {
+                sawDigit = true;
+                if (mantissa == 0 && b == '0') {
+                    // Leading zeros don't use up precision
+                    if (fraction) {
+                        exponent--;
+                    }
+                } else if (digits < MAX_DIGITS) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if (fraction) {
+                        exponent--;
+                    }
+                } else if (!fraction) {
+                    // Beyond long precision; keep the magnitude
+                    exponent++;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        boolean integral = !fraction && digits < MAX_DIGITS;
+        if (sawDigit && i < end && (data[i] == 'e' || data[i] == 'E')) {
+            int e = 0;
+            boolean negativeExponent = false;
+            i++;
+            if (i < end && (data[i] == '-' || data[i] == '+')) {
+                negativeExponent = data[i] == '-';
+                i++;
+            }
+            int exponentStart = i;
+            for (; i < end && data[i] >= '0' && data[i] <= '9' && e < 10000; i++) {
+                e = e * 10 + (data[i] - '0');
+            }
+            if (i == exponentStart) {
+                sawDigit = false;
+            }
+            exponent += negativeExponent ? -e : e;
+            integral = false;
+        }
+        if (!sawDigit || i != end) {
+            mBatch.set(row, field, Double.NaN, 0, false, false);
+            return;
+        }
+        double value;
+        if (exponent == 0) {
+            value = mantissa;
+        } else if (mantissa < MAX_EXACT_MANTISSA && exponent < 0 && exponent >= -22) {
+            value = mantissa / POW10[-exponent];
+        } else if (mantissa < MAX_EXACT_MANTISSA && exponent > 0 && exponent <= 22) {
+            value = mantissa * POW10[exponent];
+        } else {
+            // Rare: too many digits for the exact fast path
+            value = Double.parseDouble(new String(data, start, end - start, StandardCharsets.US_ASCII));
+            mBatch.set(row, field, value, (long) value, true, false);
+            return;
+        }
+        if (negative) {
+            value = -value;
+            mantissa = -mantissa;
+        }
+        mBatch.set(row, field, value, integral ? mantissa : (long) value, true, integral);
+    }
+}
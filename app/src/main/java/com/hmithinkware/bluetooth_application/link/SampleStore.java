@@ -0,0 +1,893 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps parsed samples on disk for scrolling back through hours or months of readings.
+ * <p>
+ * A series is one numeric field of one tag from one device, named like a
+ * {@link SampleAggregator} channel with the address in front, e.g.
+ * {@code "00:11:22:33:44:55 T[1]"}. Every series is kept in four {@link Tier}s: the raw points,
+ * and per second, minute and hour the min, max, sum and count of the points that fell in the
+ * bucket. Rows of a tier are packed column by column into {@link SeriesBlock}s of up to
+ * {@link #BLOCK_POINTS}. Only the block being filled is held in memory. A full block is
+ * appended to the tier's partition file for its time, e.g. {@code raw-1760000400000.blk} for an
+ * hour of raw points, and a whole partition is deleted once it is past the tier's retention.
+ * <p>
+ * {@link #append} hands points to the writer thread in preallocated entries through an
+ * {@link EntryWriter}, as {@link SessionRecorder} does, so the read loops never wait on the
+ * store. If no entry is free the points are counted as dropped. Series ids are handed out without
+ * a lock and the writer creates a series when its first point arrives. The writer encodes, rolls
+ * up and writes. Queries may come from any thread. They look up the blocks overlapping the range
+ * in an in-memory index and decode only those. {@link #aggregate} takes whole hours from the hour
+ * tier, whole minutes at the ends from the minute tier and so on down to the raw points, so it
+ * is exact while those are kept.
+ * <p>
+ * On disk each block is {@code [int length][int series][int count][long min time][long max time]}
+ * and its encoded rows. Times are epoch milliseconds; a rollup row is stamped with the start
+ * of its bucket. {@code series} maps series ids to names.
+ */
+public final class SampleStore implements Closeable {
+
+    public enum Tier {
+        RAW(0, TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(2)),
+        SECOND(TimeUnit.SECONDS.toMillis(1), TimeUnit.DAYS.toMillis(1), TimeUnit.DAYS.toMillis(14)),
+        MINUTE(TimeUnit.MINUTES.toMillis(1), TimeUnit.DAYS.toMillis(30), TimeUnit.DAYS.toMillis(400)),
+        HOUR(TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(365), Long.MAX_VALUE);
+
+        final long bucketMillis;
+        final long partitionMillis;
+        final long defaultRetentionMillis;
+
+        Tier(long bucketMillis, long partitionMillis, long defaultRetentionMillis) {
+            this.bucketMillis = bucketMillis;
+            this.partitionMillis = partitionMillis;
+            this.defaultRetentionMillis = defaultRetentionMillis;
+        }
+
+        String filePrefix() {
+            return name().toLowerCase(Locale.US) + "-";
+        }
+    }
+
+    /** Min, max, sum and count over a range; min, max and mean are NaN if it held no points. */
+    public static final class Aggregate {
+        private long mCount;
+        private double mMin = Double.POSITIVE_INFINITY;
+        private double mMax = Double.NEGATIVE_INFINITY;
+        private double mSum;
+
+        public long count() {
+            return mCount;
+        }
+
+        public double min() {
+            return mCount > 0 ? mMin : Double.NaN;
+        }
+
+        public double max() {
+            return mCount > 0 ? mMax : Double.NaN;
+        }
+
+        public double sum() {
+            return mSum;
+        }
+
+        public double mean() {
+            return mCount > 0 ? mSum / mCount : Double.NaN;
+        }
+
+        void add(double min, double max, double sum, long count) {
+            mMin = Math.min(mMin, min);
+            mMax = Math.max(mMax, max);
+            mSum += sum;
+            mCount += count;
+        }
+    }
+
+    public static final int BLOCK_POINTS = 1024;
+
+    static final String SERIES_FILE = "series";
+    static final String BLOCK_SUFFIX = ".blk";
+    static final int HEADER_BYTES = 28;
+
+    private static final Tier[] TIERS = Tier.values();
+    // Rollup rows: min, max, sum, count
+    private static final int ROLLUP_COLUMNS = 4;
+    private static final int ENTRY_POINTS = 256;
+    private static final long MAINTENANCE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Blocks older than this are written out even if not full, bounding what a crash loses
+    private static final long MAX_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    // A series quiet this long has its open buckets written out
+    private static final long IDLE_SERIES_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final class Entry {
+        final int[] series = new int[ENTRY_POINTS];
+        final long[] times = new long[ENTRY_POINTS];
+        final double[] values = new double[ENTRY_POINTS];
+        int size;
+    }
+
+    // Where a sealed block is on disk
+    private static final class BlockRef {
+        final File file;
+        final long partition;
+        final long offset;
+        final int length;
+        final int count;
+        final long minTime;
+        final long maxTime;
+
+        BlockRef(File file, long partition, long offset, int length, int count, long minTime, long maxTime) {
+            this.file = file;
+            this.partition = partition;
+            this.offset = offset;
+            this.length = length;
+            this.count = count;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+        }
+    }
+
+    // Everything below is guarded by mLock
+    private static final class Series {
+        final int id;
+        final String name;
+        final List<List<BlockRef>> blocks = new ArrayList<>();
+        final SeriesBlock[] heads = new SeriesBlock[TIERS.length];
+        final long[] headPartitions = new long[TIERS.length];
+        final long[] headOpened = new long[TIERS.length];
+        // Open rollup bucket per tier
+        final long[] bucketStarts = new long[TIERS.length];
+        final double[] bucketMins = new double[TIERS.length];
+        final double[] bucketMaxes = new double[TIERS.length];
+        final double[] bucketSums = new double[TIERS.length];
+        final long[] bucketCounts = new long[TIERS.length];
+        long lastPointWall;
+
+        Series(int id, String name) {
+            this.id = id;
+            this.name = name;
+            for (int i = 0; i < TIERS.length; i++) {
+                blocks.add(new ArrayList<>());
+            }
+        }
+    }
+
+    // A snapshot of what a query has to read, taken under the lock and read without it
+    private static final class Scan {
+        final List<BlockRef> refs = new ArrayList<>();
+        byte[] head;
+        int headCount;
+        boolean hasBucket;
+        long bucketStart;
+        final double[] bucket = new double[ROLLUP_COLUMNS];
+    }
+
+    private interface RowVisitor {
+        // False to stop the scan
+        boolean onRow(long time, SeriesBlock.Reader row);
+    }
+
+    private final File mDirectory;
+    private final Object mLock = new Object();
+    private final List<Series> mSeries = new ArrayList<>();
+    private final Map<String, Series> mByName = new ConcurrentHashMap<>();
+    // Ids handed out so far, which may run ahead of mSeries until the writer catches up
+    private final Map<String, Integer> mIds = new ConcurrentHashMap<>();
+    private final Map<Integer, String> mNamesById = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextId = new AtomicInteger();
+    // Per address, series ids by (tag + 1) * MAX_FIELDS + field, -1 until first seen
+    private final Map<String, int[]> mIdsByAddress = new ConcurrentHashMap<>();
+    private final long[] mRetentionMillis = new long[TIERS.length];
+    // Partition start -> file, per tier
+    private final List<TreeMap<Long, File>> mPartitions = new ArrayList<>();
+    private final EntryWriter<Entry> mWriter;
+    private final AtomicLong mStored = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    // Maps monotonic read times onto the wall clock
+    private final long mEpochMillisAtStart = System.currentTimeMillis();
+    private final long mNanosAtStart = System.nanoTime();
+    private volatile boolean mSeriesDirty;
+
+    // Only touched by the writer thread
+    private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_BYTES);
+    private final double[] mRow = new double[ROLLUP_COLUMNS];
+    private long mLastMaintenance = System.nanoTime();
+
+    public SampleStore(File directory, int bufferedPoints) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        mDirectory = directory;
+        for (Tier tier : TIERS) {
+            mRetentionMillis[tier.ordinal()] = tier.defaultRetentionMillis;
+            mPartitions.add(new TreeMap<>());
+        }
+        loadSeries();
+        loadBlocks();
+        mWriter = new EntryWriter<>("SampleStore", Math.max(2, bufferedPoints / ENTRY_POINTS),
+                new EntryWriter.Sink<Entry>() {
+                    @Override
+                    public Entry newEntry() {
+                        return new Entry();
+                    }
+
+                    @Override
+                    public void write(Entry entry) throws IOException {
+                        ingest(entry);
+                    }
+
+                    @Override
+                    public long tick(long nowNanos) throws IOException {
+                        return maintainIfDue(nowNanos);
+                    }
+
+                    @Override
+                    public void finish() throws IOException {
+                        synchronized (mLock) {
+                            sealAll();
+                        }
+                        writeSeries();
+                    }
+                });
+    }
+
+    public void start() {
+        mWriter.start();
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    // Partitions of the tier older than this are deleted; Long.MAX_VALUE keeps them forever
+    public void setRetention(Tier tier, long retentionMillis) {
+        synchronized (mLock) {
+            mRetentionMillis[tier.ordinal()] = retentionMillis;
+        }
+    }
+
+    public List<String> seriesNames() {
+        synchronized (mLock) {
+            List<String> names = new ArrayList<>(mSeries.size());
+            for (Series series : mSeries) {
+                names.add(series.name);
+            }
+            return names;
+        }
+    }
+
+    // Stable id for a series name, created on first use; kept once the series has points
+    public int seriesId(String name) {
+        Integer id = mIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        return mIds.computeIfAbsent(name, key -> {
+            int next = mNextId.getAndIncrement();
+            mNamesById.put(next, key);
+            return next;
+        });
+    }
+
+    /**
+     * Stores the numeric fields of every row, stamped with the row's read time. Safe from any
+     * thread and never blocks. Returns false if some points were dropped.
+     */
+    public boolean append(String address, SampleBatch batch) {
+        int[] ids = idsFor(address);
+        Entry entry = null;
+        boolean complete = true;
+        for (int row = 0; row < batch.size(); row++) {
+            int tag = batch.tag(row);
+            long readNanos = batch.readNanos(row) != 0 ? batch.readNanos(row) : System.nanoTime();
+            long millis = toEpochMillis(readNanos);
+            for (int field = 0; field < batch.fieldCount(row); field++) {
+                if (!batch.isNumeric(row, field)) {
+                    continue;
+                }
+                if (entry == null || entry.size == ENTRY_POINTS) {
+                    if (entry != null) {
+                        mWriter.publish(entry);
+                    }
+                    entry = complete ? takeEntry() : null;
+                    if (entry == null) {
+                        complete = false;
+                        mDropped.incrementAndGet();
+                        continue;
+                    }
+                }
+                int index = (tag + 1) * SampleBatch.MAX_FIELDS + field;
+                int id = ids[index];
+                if (id < 0) {
+                    String tagName = batch.tagName(row);
+                    id = seriesId(address + " " + (tagName != null ? tagName : "") + "[" + field + "]");
+                    ids[index] = id;
+                }
+                entry.series[entry.size] = id;
+                entry.times[entry.size] = millis;
+                entry.values[entry.size] = batch.doubleValue(row, field);
+                entry.size++;
+            }
+        }
+        if (entry != null) {
+            mWriter.publish(entry);
+        }
+        return complete;
+    }
+
+    /**
+     * Stores points with explicit times, e.g. when importing a session. Returns how many were
+     * taken, from the front; the rest found no free entry and were not counted as dropped.
+     */
+    public int append(int seriesId, long[] epochMillis, double[] values, int offset, int count) {
+        if (seriesId < 0 || seriesId >= mNextId.get()) {
+            throw new IllegalArgumentException("Unknown series " + seriesId);
+        }
+        int taken = 0;
+        while (taken < count) {
+            Entry entry = takeEntry();
+            if (entry == null) {
+                break;
+            }
+            int n = Math.min(ENTRY_POINTS, count - taken);
+            Arrays.fill(entry.series, 0, n, seriesId);
+            System.arraycopy(epochMillis, offset + taken, entry.times, 0, n);
+            System.arraycopy(values, offset + taken, entry.values, 0, n);
+            entry.size = n;
+            mWriter.publish(entry);
+            taken += n;
+        }
+        return taken;
+    }
+
+    public long storedCount() {
+        return mStored.get();
+    }
+
+    public long droppedCount() {
+        return mDropped.get();
+    }
+
+    // Set if the writer hit an I/O error; storing has stopped
+    public IOException getFailure() {
+        return mWriter.getFailure();
+    }
+
+    /**
+     * Min, max, sum and count of the series' points in [fromMillis, toMillis). Exact while the
+     * raw points at the ends of the range are kept; past that the ends are as fine as the
+     * finest tier still kept.
+     */
+    public Aggregate aggregate(String name, long fromMillis, long toMillis) throws IOException {
+        Aggregate result = new Aggregate();
+        Series series = mByName.get(name);
+        if (series != null) {
+            aggregate(series, TIERS.length - 1, fromMillis, toMillis, result);
+        }
+        return result;
+    }
+
+    /**
+     * The finest tier that still holds fromMillis and has at most maxPoints rows in the range,
+     * or the hour tier if none does.
+     */
+    public Tier tierFor(String name, long fromMillis, long toMillis, int maxPoints) {
+        Series series = mByName.get(name);
+        long now = toEpochMillis(System.nanoTime());
+        synchronized (mLock) {
+            for (Tier tier : TIERS) {
+                long retention = mRetentionMillis[tier.ordinal()];
+                if (retention != Long.MAX_VALUE && fromMillis < now - retention) {
+                    continue;
+                }
+                long rows = tier == Tier.RAW
+                        ? estimateRawRows(series, fromMillis, toMillis)
+                        : (toMillis - fromMillis + tier.bucketMillis - 1) / tier.bucketMillis;
+                if (rows <= maxPoints) {
+                    return tier;
+                }
+            }
+        }
+        return Tier.HOUR;
+    }
+
+    /**
+     * Fills in up to maxPoints rows of the series in [fromMillis, toMillis), oldest first, from
+     * the tier {@link #tierFor} picks. Raw points give the value three times over; rollup rows
+     * give the bucket's mean, min and max. mins and maxes may be null. Returns the row count.
+     */
+    public int range(String name, long fromMillis, long toMillis, int maxPoints,
+                     long[] times, double[] means, double[] mins, double[] maxes) throws IOException {
+        Series series = mByName.get(name);
+        if (series == null) {
+            return 0;
+        }
+        int limit = Math.min(maxPoints, times.length);
+        Tier tier = tierFor(name, fromMillis, toMillis, limit);
+        int[] count = new int[1];
+        scan(series, tier, fromMillis, toMillis, (time, row) -> {
+            if (count[0] == limit) {
+                return false;
+            }
+            int i = count[0]++;
+            times[i] = time;
+            if (tier == Tier.RAW) {
+                means[i] = row.value(0);
+                fill(mins, i, row.value(0));
+                fill(maxes, i, row.value(0));
+            } else {
+                means[i] = row.value(2) / row.value(3);
+                fill(mins, i, row.value(0));
+                fill(maxes, i, row.value(1));
+            }
+            return true;
+        });
+        return count[0];
+    }
+
+    // Stores everything appended so far, then stops
+    @Override
+    public void close() throws IOException {
+        mWriter.close();
+    }
+
+    private static void fill(double[] out, int index, double value) {
+        if (out != null) {
+            out[index] = value;
+        }
+    }
+
+    private long toEpochMillis(long nanos) {
+        return mEpochMillisAtStart + (nanos - mNanosAtStart) / 1_000_000;
+    }
+
+    private Entry takeEntry() {
+        Entry entry = mWriter.take();
+        if (entry != null) {
+            entry.size = 0;
+        }
+        return entry;
+    }
+
+    private int[] idsFor(String address) {
+        int[] ids = mIdsByAddress.get(address);
+        if (ids == null) {
+            ids = new int[(SampleParser.MAX_TAGS + 1) * SampleBatch.MAX_FIELDS];
+            Arrays.fill(ids, -1);
+            int[] raced = mIdsByAddress.putIfAbsent(address, ids);
+            if (raced != null) {
+                ids = raced;
+            }
+        }
+        return ids;
+    }
+
+    // Writer thread, locked. Creates the series up to id; an id is taken just before its name
+    // is published, so a lower one may not have its name yet for a moment.
+    private Series seriesLocked(int id) {
+        while (mSeries.size() <= id) {
+            int next = mSeries.size();
+            String name;
+            while ((name = mNamesById.get(next)) == null) {
+                Thread.yield();
+            }
+            Series series = new Series(next, name);
+            mSeries.add(series);
+            mByName.put(name, series);
+            mSeriesDirty = true;
+        }
+        return mSeries.get(id);
+    }
+
+    // Writer thread
+    private void ingest(Entry entry) throws IOException {
+        long now = toEpochMillis(System.nanoTime());
+        synchronized (mLock) {
+            for (int i = 0; i < entry.size; i++) {
+                ingest(seriesLocked(entry.series[i]), entry.times[i], entry.values[i], now);
+            }
+        }
+        mStored.addAndGet(entry.size);
+    }
+
+    // Writer thread. Returns when maintenance is next due.
+    private long maintainIfDue(long nowNanos) throws IOException {
+        if (nowNanos - mLastMaintenance >= MAINTENANCE_NANOS) {
+            mLastMaintenance = nowNanos;
+            synchronized (mLock) {
+                maintain(toEpochMillis(nowNanos));
+            }
+            if (mSeriesDirty) {
+                writeSeries();
+            }
+        }
+        return mLastMaintenance + MAINTENANCE_NANOS;
+    }
+
+    // Writer thread, locked. Adds the raw point and folds it into each open bucket.
+    private void ingest(Series series, long time, double value, long now) throws IOException {
+        series.lastPointWall = now;
+        mRow[0] = value;
+        appendRow(series, Tier.RAW, time, mRow, now);
+        for (int t = Tier.SECOND.ordinal(); t < TIERS.length; t++) {
+            long start = Math.floorDiv(time, TIERS[t].bucketMillis) * TIERS[t].bucketMillis;
+            // A point from before the open bucket is folded into it rather than reopening one
+            if (series.bucketCounts[t] > 0 && start > series.bucketStarts[t]) {
+                closeBucket(series, t, now);
+            }
+            if (series.bucketCounts[t] == 0) {
+                series.bucketStarts[t] = start;
+                series.bucketMins[t] = value;
+                series.bucketMaxes[t] = value;
+                series.bucketSums[t] = 0;
+            }
+            series.bucketMins[t] = Math.min(series.bucketMins[t], value);
+            series.bucketMaxes[t] = Math.max(series.bucketMaxes[t], value);
+            series.bucketSums[t] += value;
+            series.bucketCounts[t]++;
+        }
+    }
+
+    private void closeBucket(Series series, int t, long now) throws IOException {
+        mRow[0] = series.bucketMins[t];
+        mRow[1] = series.bucketMaxes[t];
+        mRow[2] = series.bucketSums[t];
+        mRow[3] = series.bucketCounts[t];
+        series.bucketCounts[t] = 0;
+        appendRow(series, TIERS[t], series.bucketStarts[t], mRow, now);
+    }
+
+    private void appendRow(Series series, Tier tier, long time, double[] row, long now) throws IOException {
+        int t = tier.ordinal();
+        long partition = Math.floorDiv(time, tier.partitionMillis) * tier.partitionMillis;
+        SeriesBlock head = series.heads[t];
+        if (head != null && head.count() > 0
+                && (head.count() == BLOCK_POINTS || partition != series.headPartitions[t])) {
+            seal(series, t);
+        }
+        if (head == null) {
+            head = new SeriesBlock(tier == Tier.RAW ? 1 : ROLLUP_COLUMNS);
+            series.heads[t] = head;
+        }
+        if (head.count() == 0) {
+            series.headPartitions[t] = partition;
+            series.headOpened[t] = now;
+        }
+        head.append(time, row);
+    }
+
+    // Appends the head block to its partition file and indexes it
+    private void seal(Series series, int t) throws IOException {
+        SeriesBlock head = series.heads[t];
+        long partition = series.headPartitions[t];
+        File file = mPartitions.get(t).get(partition);
+        if (file == null) {
+            file = new File(mDirectory, TIERS[t].filePrefix() + partition + BLOCK_SUFFIX);
+            mPartitions.get(t).put(partition, file);
+        }
+        long offset = file.length();
+        mHeader.clear();
+        mHeader.putInt(head.length()).putInt(series.id).putInt(head.count())
+                .putLong(head.minTime()).putLong(head.maxTime());
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(mHeader.array(), 0, HEADER_BYTES);
+            out.write(head.array(), 0, head.length());
+        }
+        series.blocks.get(t).add(new BlockRef(file, partition, offset + HEADER_BYTES, head.length(),
+                head.count(), head.minTime(), head.maxTime()));
+        head.reset();
+    }
+
+    // Closes the buckets of quiet series, writes out long-open blocks, drops expired partitions
+    private void maintain(long now) throws IOException {
+        for (Series series : mSeries) {
+            if (now - series.lastPointWall >= IDLE_SERIES_MILLIS) {
+                for (int t = Tier.SECOND.ordinal(); t < TIERS.length; t++) {
+                    if (series.bucketCounts[t] > 0) {
+                        closeBucket(series, t, now);
+                    }
+                }
+            }
+            for (int t = 0; t < TIERS.length; t++) {
+                SeriesBlock head = series.heads[t];
+                if (head != null && head.count() > 0 && now - series.headOpened[t] >= MAX_OPEN_MILLIS) {
+                    seal(series, t);
+                }
+            }
+        }
+        for (Tier tier : TIERS) {
+            long retention = mRetentionMillis[tier.ordinal()];
+            if (retention == Long.MAX_VALUE) {
+                continue;
+            }
+            TreeMap<Long, File> partitions = mPartitions.get(tier.ordinal());
+            while (!partitions.isEmpty() && partitions.firstKey() + tier.partitionMillis <= now - retention) {
+                long partition = partitions.firstKey();
+                File file = partitions.remove(partition);
+                for (Series series : mSeries) {
+                    series.blocks.get(tier.ordinal()).removeIf(ref -> ref.partition == partition);
+                }
+                if (!file.delete() && file.exists()) {
+                    throw new IOException("Could not delete " + file);
+                }
+            }
+        }
+    }
+
+    // Closes every bucket and writes every block, so nothing is only in memory
+    private void sealAll() throws IOException {
+        long now = toEpochMillis(System.nanoTime());
+        for (Series series : mSeries) {
+            for (int t = Tier.SECOND.ordinal(); t < TIERS.length; t++) {
+                if (series.bucketCounts[t] > 0) {
+                    closeBucket(series, t, now);
+                }
+            }
+            for (int t = 0; t < TIERS.length; t++) {
+                SeriesBlock head = series.heads[t];
+                if (head != null && head.count() > 0) {
+                    seal(series, t);
+                }
+            }
+        }
+    }
+
+    private void aggregate(Series series, int t, long from, long to, Aggregate out) throws IOException {
+        if (from >= to) {
+            return;
+        }
+        if (t == Tier.RAW.ordinal()) {
+            scan(series, Tier.RAW, from, to, (time, row) -> {
+                double value = row.value(0);
+                out.add(value, value, value, 1);
+                return true;
+            });
+            return;
+        }
+        long bucket = TIERS[t].bucketMillis;
+        long first = -Math.floorDiv(-from, bucket) * bucket;
+        long last = Math.floorDiv(to, bucket) * bucket;
+        if (first >= last) {
+            aggregate(series, t - 1, from, to, out);
+            return;
+        }
+        aggregate(series, t - 1, from, first, out);
+        scan(series, TIERS[t], first, last, (time, row) -> {
+            out.add(row.value(0), row.value(1), row.value(2), (long) row.value(3));
+            return true;
+        });
+        aggregate(series, t - 1, last, to, out);
+    }
+
+    private long estimateRawRows(Series series, long from, long to) {
+        if (series == null) {
+            return 0;
+        }
+        double rows = 0;
+        for (BlockRef ref : series.blocks.get(Tier.RAW.ordinal())) {
+            rows += overlap(ref.minTime, ref.maxTime, ref.count, from, to);
+        }
+        SeriesBlock head = series.heads[Tier.RAW.ordinal()];
+        if (head != null && head.count() > 0) {
+            rows += overlap(head.minTime(), head.maxTime(), head.count(), from, to);
+        }
+        return (long) Math.ceil(rows);
+    }
+
+    // Rows of a block expected in [from, to), taking them as evenly spread
+    private static double overlap(long minTime, long maxTime, int count, long from, long to) {
+        if (maxTime < from || minTime >= to) {
+            return 0;
+        }
+        if (maxTime == minTime) {
+            return count;
+        }
+        long covered = Math.min(to, maxTime + 1) - Math.max(from, minTime);
+        return count * (double) covered / (maxTime - minTime + 1);
+    }
+
+    // Visits the tier's rows in [from, to): sealed blocks, then the head, then the open bucket
+    private void scan(Series series, Tier tier, long from, long to, RowVisitor visitor) throws IOException {
+        int t = tier.ordinal();
+        Scan scan = new Scan();
+        synchronized (mLock) {
+            for (BlockRef ref : series.blocks.get(t)) {
+                if (ref.maxTime >= from && ref.minTime < to) {
+                    scan.refs.add(ref);
+                }
+            }
+            SeriesBlock head = series.heads[t];
+            if (head != null && head.count() > 0 && head.maxTime() >= from && head.minTime() < to) {
+                scan.head = Arrays.copyOf(head.array(), head.length());
+                scan.headCount = head.count();
+            }
+            if (tier != Tier.RAW && series.bucketCounts[t] > 0
+                    && series.bucketStarts[t] >= from && series.bucketStarts[t] < to) {
+                scan.hasBucket = true;
+                scan.bucketStart = series.bucketStarts[t];
+                scan.bucket[0] = series.bucketMins[t];
+                scan.bucket[1] = series.bucketMaxes[t];
+                scan.bucket[2] = series.bucketSums[t];
+                scan.bucket[3] = series.bucketCounts[t];
+            }
+        }
+        SeriesBlock.Reader reader = new SeriesBlock.Reader(tier == Tier.RAW ? 1 : ROLLUP_COLUMNS);
+        byte[] buffer = new byte[0];
+        RandomAccessFile file = null;
+        File open = null;
+        try {
+            for (BlockRef ref : scan.refs) {
+                if (ref.file != open) {
+                    if (file != null) {
+                        file.close();
+                    }
+                    open = ref.file;
+                    try {
+                        file = new RandomAccessFile(ref.file, "r");
+                    } catch (FileNotFoundException e) {
+                        // Expired since the snapshot
+                        file = null;
+                        continue;
+                    }
+                }
+                if (file == null) {
+                    continue;
+                }
+                if (buffer.length < ref.length) {
+                    buffer = new byte[ref.length];
+                }
+                file.seek(ref.offset);
+                file.readFully(buffer, 0, ref.length);
+                reader.reset(buffer, 0, ref.count);
+                if (!visit(reader, from, to, visitor)) {
+                    return;
+                }
+            }
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+        if (scan.head != null) {
+            reader.reset(scan.head, 0, scan.headCount);
+            if (!visit(reader, from, to, visitor)) {
+                return;
+            }
+        }
+        if (scan.hasBucket) {
+            SeriesBlock bucket = new SeriesBlock(ROLLUP_COLUMNS);
+            bucket.append(scan.bucketStart, scan.bucket);
+            reader.reset(bucket.array(), 0, 1);
+            visit(reader, from, to, visitor);
+        }
+    }
+
+    private static boolean visit(SeriesBlock.Reader reader, long from, long to, RowVisitor visitor) {
+        while (reader.next()) {
+            long time = reader.time();
+            if (time >= from && time < to && !visitor.onRow(time, reader)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void loadSeries() throws IOException {
+        File file = new File(mDirectory, SERIES_FILE);
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space < 0) {
+                    continue;
+                }
+                int id = Integer.parseInt(line.substring(0, space));
+                String name = line.substring(space + 1);
+                if (id != mSeries.size()) {
+                    throw new IOException("Series ids out of order in " + file);
+                }
+                Series series = new Series(id, name);
+                mSeries.add(series);
+                mByName.put(name, series);
+                mIds.put(name, id);
+                mNamesById.put(id, name);
+            }
+            mNextId.set(mSeries.size());
+        }
+    }
+
+    // Rebuilds the index from the block headers, oldest partition first so every series' blocks
+    // stay in time order. A block cut short by a crash is cut off.
+    private void loadBlocks() throws IOException {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            for (Tier tier : TIERS) {
+                String prefix = tier.filePrefix();
+                if (name.startsWith(prefix) && name.endsWith(BLOCK_SUFFIX)) {
+                    try {
+                        long partition = Long.parseLong(name.substring(prefix.length(),
+                                name.length() - BLOCK_SUFFIX.length()));
+                        mPartitions.get(tier.ordinal()).put(partition, file);
+                    } catch (NumberFormatException e) {
+                        // Not ours
+                    }
+                }
+            }
+        }
+        byte[] header = new byte[HEADER_BYTES];
+        for (Tier tier : TIERS) {
+            for (Map.Entry<Long, File> entry : mPartitions.get(tier.ordinal()).entrySet()) {
+                long partition = entry.getKey();
+                File file = entry.getValue();
+                try (RandomAccessFile in = new RandomAccessFile(file, "rw")) {
+                    long position = 0;
+                    long length = in.length();
+                    while (position + HEADER_BYTES <= length) {
+                        in.seek(position);
+                        in.readFully(header);
+                        ByteBuffer parsed = ByteBuffer.wrap(header);
+                        int blockLength = parsed.getInt();
+                        int id = parsed.getInt();
+                        int count = parsed.getInt();
+                        if (blockLength < 0 || position + HEADER_BYTES + blockLength > length) {
+                            break;
+                        }
+                        if (id >= 0 && id < mSeries.size()) {
+                            mSeries.get(id).blocks.get(tier.ordinal()).add(new BlockRef(file, partition,
+                                    position + HEADER_BYTES, blockLength, count, parsed.getLong(), parsed.getLong()));
+                        }
+                        position += HEADER_BYTES + blockLength;
+                    }
+                    if (position < length) {
+                        in.setLength(position);
+                    }
+                }
+            }
+        }
+    }
+
+    private void writeSeries() throws IOException {
+        mSeriesDirty = false;
+        List<String> names = seriesNames();
+        File temp = new File(mDirectory, SERIES_FILE + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            for (int id = 0; id < names.size(); id++) {
+                out.write(id + " " + names.get(id) + "\n");
+            }
+        }
+        if (!temp.renameTo(new File(mDirectory, SERIES_FILE))) {
+            throw new IOException("Could not replace " + SERIES_FILE);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.hmithinkware.bluetooth_application.link;
+
+/**
+ * The most recent values of one channel in a fixed ring, written by one thread and read by
+ * any number of others without locks.
+ * <p>
+ * The writer fills a slot and then publishes the new count. A reader copies the newest slots
+ * and checks the count again afterwards; anything the writer may have overwritten in the
+ * meantime is dropped from the front of the copy, so readers never see torn values and the
+ * writer never waits.
+ */
+public final class SampleWindow {
+    private final double[] mValues;
+    private final int mMask;
+    private volatile long mWritten;
+
+    // Capacity is rounded up to a power of two
+    public SampleWindow(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mValues = new double[size];
+        mMask = size - 1;
+    }
+
+    public int capacity() {
+        return mValues.length;
+    }
+
+    // Values ever added; the newest has sequence written() - 1
+    public long written() {
+        return mWritten;
+    }
+
+    // Writer thread only
+    public void add(double value) {
+        long written = mWritten;
+        mValues[(int) (written & mMask)] = value;
+        mWritten = written + 1;
+    }
+
+    /**
+     * Copies up to {@code out.length} of the newest values, oldest first, and returns how
+     * many. The last one copied was the newest when the call started.
+     */
+    public int copyTo(double[] out) {
+        long end = mWritten;
+        long start = Math.max(0, end - Math.min(out.length, mValues.length));
+        for (long seq = start; seq < end; seq++) {
+            out[(int) (seq - start)] = mValues[(int) (seq & mMask)];
+        }
+        // Slots the writer has reused since, plus the one it may be writing now, are stale
+        long reusedUpTo = mWritten + 1 - mValues.length;
+        int lost = (int) Math.max(0, reusedUpTo - start);
+        int count = (int) (end - start);
+        if (lost >= count) {
+            return 0;
+        }
+        if (lost > 0) {
+            System.arraycopy(out, lost, out, 0, count - lost);
+        }
+        return count - lost;
+    }
+}
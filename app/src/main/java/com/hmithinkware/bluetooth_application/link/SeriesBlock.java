@@ -0,0 +1,240 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.util.Arrays;
+
+/**
+ * A block of timestamped rows of one or more double columns, compressed as in Facebook's
+ * Gorilla paper. Timestamps go in as the change in their delta, in one of five bit widths, so a
+ * steady sample rate costs one bit per row. Each value goes in as the XOR with the column's
+ * previous value, storing only the bits between the leading and trailing zeros, so an
+ * unchanged value costs one bit and a slowly moving one a few.
+ * <p>
+ * Filled by one thread. {@link Reader} decodes the bytes from {@link #array} or from disk.
+ */
+final class SeriesBlock {
+    private final int mColumns;
+    private byte[] mBytes = new byte[256];
+    private int mBits;
+    private int mCount;
+    private long mMinTime;
+    private long mMaxTime;
+    // Encoder state: previous time and delta, per column previous value bits and XOR window
+    private long mPrevTime;
+    private long mPrevDelta;
+    private final long[] mPrevValues;
+    private final int[] mPrevLeading;
+    private final int[] mPrevTrailing;
+
+    SeriesBlock(int columns) {
+        mColumns = columns;
+        mPrevValues = new long[columns];
+        mPrevLeading = new int[columns];
+        mPrevTrailing = new int[columns];
+        reset();
+    }
+
+    int columns() {
+        return mColumns;
+    }
+
+    int count() {
+        return mCount;
+    }
+
+    long minTime() {
+        return mMinTime;
+    }
+
+    long maxTime() {
+        return mMaxTime;
+    }
+
+    // The encoded bytes; only the first length() are valid
+    byte[] array() {
+        return mBytes;
+    }
+
+    int length() {
+        return (mBits + 7) >>> 3;
+    }
+
+    void reset() {
+        Arrays.fill(mBytes, 0, length(), (byte) 0);
+        mBits = 0;
+        mCount = 0;
+        mMinTime = Long.MAX_VALUE;
+        mMaxTime = Long.MIN_VALUE;
+        mPrevDelta = 0;
+        Arrays.fill(mPrevLeading, -1);
+    }
+
+    void append(long time, double[] values) {
+        if (mCount == 0) {
+            writeBits(time, 64);
+        } else {
+            long delta = time - mPrevTime;
+            long dod = delta - mPrevDelta;
+            if (dod == 0) {
+                writeBits(0, 1);
+            } else if (dod >= -63 && dod <= 64) {
+                writeBits(0b10, 2);
+                writeBits(dod + 63, 7);
+            } else if (dod >= -255 && dod <= 256) {
+                writeBits(0b110, 3);
+                writeBits(dod + 255, 9);
+            } else if (dod >= -2047 && dod <= 2048) {
+                writeBits(0b1110, 4);
+                writeBits(dod + 2047, 12);
+            } else {
+                writeBits(0b1111, 4);
+                writeBits(dod, 64);
+            }
+            mPrevDelta = delta;
+        }
+        mPrevTime = time;
+        for (int column = 0; column < mColumns; column++) {
+            long bits = Double.doubleToRawLongBits(values[column]);
+            if (mCount == 0) {
+                writeBits(bits, 64);
+            } else {
+                writeXor(column, bits ^ mPrevValues[column]);
+            }
+            mPrevValues[column] = bits;
+        }
+        mCount++;
+        mMinTime = Math.min(mMinTime, time);
+        mMaxTime = Math.max(mMaxTime, time);
+    }
+
+    private void writeXor(int column, long xor) {
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        int prevLeading = mPrevLeading[column];
+        int prevTrailing = mPrevTrailing[column];
+        if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+            // Fits the previous window
+            writeBits(0b10, 2);
+            writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+        } else {
+            int significant = 64 - leading - trailing;
+            writeBits(0b11, 2);
+            writeBits(leading, 5);
+            writeBits(significant - 1, 6);
+            writeBits(xor >>> trailing, significant);
+            mPrevLeading[column] = leading;
+            mPrevTrailing[column] = trailing;
+        }
+    }
+
+    // The low `count` bits of value, most significant first
+    private void writeBits(long value, int count) {
+        int needed = (mBits + count + 7) >>> 3;
+        if (needed > mBytes.length) {
+            mBytes = Arrays.copyOf(mBytes, Math.max(needed, mBytes.length * 2));
+        }
+        while (count > 0) {
+            int free = 8 - (mBits & 7);
+            int take = Math.min(free, count);
+            int chunk = (int) (value >>> (count - take)) & ((1 << take) - 1);
+            mBytes[mBits >>> 3] |= (byte) (chunk << (free - take));
+            mBits += take;
+            count -= take;
+        }
+    }
+
+    /** Decodes a block row by row. Reusable across blocks, so a scan allocates nothing. */
+    static final class Reader {
+        private final long[] mPrevValues;
+        private final int[] mPrevLeading;
+        private final int[] mPrevTrailing;
+        private final double[] mValues;
+        private byte[] mBytes;
+        private long mBit;
+        private int mRemaining;
+        private boolean mFirst;
+        private long mTime;
+        private long mDelta;
+
+        Reader(int columns) {
+            mPrevValues = new long[columns];
+            mPrevLeading = new int[columns];
+            mPrevTrailing = new int[columns];
+            mValues = new double[columns];
+        }
+
+        void reset(byte[] bytes, int offset, int count) {
+            mBytes = bytes;
+            mBit = (long) offset << 3;
+            mRemaining = count;
+            mFirst = true;
+            mDelta = 0;
+        }
+
+        // Moves to the next row; false once the block is done
+        boolean next() {
+            if (mRemaining == 0) {
+                return false;
+            }
+            mRemaining--;
+            if (mFirst) {
+                mTime = readBits(64);
+            } else {
+                long dod;
+                if (readBits(1) == 0) {
+                    dod = 0;
+                } else if (readBits(1) == 0) {
+                    dod = readBits(7) - 63;
+                } else if (readBits(1) == 0) {
+                    dod = readBits(9) - 255;
+                } else if (readBits(1) == 0) {
+                    dod = readBits(12) - 2047;
+                } else {
+                    dod = readBits(64);
+                }
+                mDelta += dod;
+                mTime += mDelta;
+            }
+            for (int column = 0; column < mValues.length; column++) {
+                if (mFirst) {
+                    mPrevValues[column] = readBits(64);
+                } else if (readBits(1) == 1) {
+                    if (readBits(1) == 1) {
+                        mPrevLeading[column] = (int) readBits(5);
+                        int significant = (int) readBits(6) + 1;
+                        mPrevTrailing[column] = 64 - mPrevLeading[column] - significant;
+                    }
+                    int significant = 64 - mPrevLeading[column] - mPrevTrailing[column];
+                    mPrevValues[column] ^= readBits(significant) << mPrevTrailing[column];
+                }
+                mValues[column] = Double.longBitsToDouble(mPrevValues[column]);
+            }
+            mFirst = false;
+            return true;
+        }
+
+        long time() {
+            return mTime;
+        }
+
+        double value(int column) {
+            return mValues[column];
+        }
+
+        private long readBits(int count) {
+            long value = 0;
+            while (count > 0) {
+                int bitInByte = (int) (mBit & 7);
+                int take = Math.min(8 - bitInByte, count);
+                int b = mBytes[(int) (mBit >>> 3)] & 0xFF;
+                value = (value << take) | ((b >>> (8 - bitInByte - take)) & ((1 << take) - 1));
+                mBit += take;
+                count -= take;
+            }
+            return value;
+        }
+    }
+}
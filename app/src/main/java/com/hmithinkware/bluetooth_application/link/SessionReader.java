@@ -0,0 +1,190 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads back a session written by {@link SessionRecorder}, from the start or from a point in
+ * time. Safe to use on a session that is still being recorded, up to the last commit.
+ */
+public final class SessionReader {
+    private final File[] mSegments;
+    private final Map<Integer, String> mSources = new HashMap<>();
+
+    public SessionReader(File directory) throws IOException {
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(SessionRecorder.LOG_SUFFIX));
+        if (segments == null) {
+            throw new IOException("Not a session directory: " + directory);
+        }
+        // Names are zero-padded sequence numbers
+        Arrays.sort(segments);
+        mSegments = segments;
+        File sources = new File(directory, SessionRecorder.SOURCES_FILE);
+        if (sources.exists()) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(sources), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    if (space > 0) {
+                        mSources.put(Integer.parseInt(line.substring(0, space)), line.substring(space + 1));
+                    }
+                }
+            }
+        }
+    }
+
+    public int segmentCount() {
+        return mSegments.length;
+    }
+
+    // Device address for a record's source id, or null if unknown
+    public String sourceAddress(int source) {
+        return mSources.get(source);
+    }
+
+    public Cursor cursor() throws IOException {
+        return new Cursor(0, 0);
+    }
+
+    // Positioned on the first record at or after epochMicros
+    public Cursor seek(long epochMicros) throws IOException {
+        int segment = 0;
+        for (int i = 1; i < mSegments.length; i++) {
+            long first = firstMicros(mSegments[i]);
+            if (first < 0 || first > epochMicros) {
+                break;
+            }
+            segment = i;
+        }
+        Cursor cursor = new Cursor(segment, indexedPosition(mSegments[segment], epochMicros));
+        cursor.skipBefore(epochMicros);
+        return cursor;
+    }
+
+    private static long firstMicros(File segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            if (file.length() < SessionRecorder.HEADER_BYTES || file.readInt() == 0) {
+                return -1;
+            }
+            return file.readLong();
+        }
+    }
+
+    // Position of the last indexed record at or before epochMicros
+    private static int indexedPosition(File segment, long epochMicros) throws IOException {
+        String path = segment.getPath();
+        File index = new File(path.substring(0, path.length() - SessionRecorder.LOG_SUFFIX.length())
+                + SessionRecorder.INDEX_SUFFIX);
+        if (!index.exists()) {
+            return 0;
+        }
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(index.toPath()));
+        int low = 0;
+        int high = entries.limit() / SessionRecorder.INDEX_ENTRY_BYTES - 1;
+        int position = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int at = mid * SessionRecorder.INDEX_ENTRY_BYTES;
+            if (entries.getLong(at) <= epochMicros) {
+                position = entries.getInt(at + 8);
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return position;
+    }
+
+    // Walks records in order across segments. The payload array is reused between records.
+    public final class Cursor {
+        private int mSegment;
+        private MappedByteBuffer mLog;
+        private byte[] mData = new byte[256];
+        private int mLength;
+        private long mMicros;
+        private int mSource;
+        // Record that next() returns without advancing, left behind by a seek
+        private boolean mHeld;
+
+        Cursor(int segment, int position) throws IOException {
+            mSegment = segment;
+            if (segment < mSegments.length) {
+                open(position);
+            }
+        }
+
+        // Advances to the next record; false at the end of what has been committed
+        public boolean next() throws IOException {
+            if (mHeld) {
+                mHeld = false;
+                return true;
+            }
+            while (mLog != null) {
+                if (mLog.remaining() >= SessionRecorder.HEADER_BYTES) {
+                    // Stored one higher, so zero only ever marks the end
+                    int length = mLog.getInt(mLog.position()) - 1;
+                    if (length >= 0 && mLog.remaining() >= SessionRecorder.HEADER_BYTES + length) {
+                        mLength = mLog.getInt() - 1;
+                        mMicros = mLog.getLong();
+                        mSource = mLog.getShort();
+                        if (mData.length < mLength) {
+                            mData = new byte[Math.max(mLength, mData.length * 2)];
+                        }
+                        mLog.get(mData, 0, mLength);
+                        return true;
+                    }
+                }
+                if (++mSegment >= mSegments.length) {
+                    mLog = null;
+                } else {
+                    open(0);
+                }
+            }
+            return false;
+        }
+
+        public long timestampMicros() {
+            return mMicros;
+        }
+
+        public int source() {
+            return mSource;
+        }
+
+        public byte[] data() {
+            return mData;
+        }
+
+        public int length() {
+            return mLength;
+        }
+
+        void skipBefore(long epochMicros) throws IOException {
+            while (next()) {
+                if (mMicros >= epochMicros) {
+                    mHeld = true;
+                    return;
+                }
+            }
+        }
+
+        private void open(int position) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(mSegments[mSegment], "r")) {
+                mLog = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            }
+            mLog.position(position);
+        }
+    }
+}
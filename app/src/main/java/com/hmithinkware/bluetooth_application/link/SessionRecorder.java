@@ -0,0 +1,259 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records every received frame to an append-only log for post-run analysis.
+ * <p>
+ * {@link #record} copies the frame into a preallocated entry and hands it to an
+ * {@link EntryWriter}, so the calling read loop never touches the disk and never blocks. If the
+ * recorder falls so far behind that no entry is free, the frame is counted as dropped rather
+ * than stalling the link. The writer thread appends entries to memory-mapped segment files and
+ * forces them to disk at most once per commit interval (group commit).
+ * <p>
+ * On disk a session is a directory of segments {@code 00000000.log}, {@code 00000001.log}, ...
+ * each preallocated to the segment size and holding records of
+ * {@code [int length + 1][long epoch micros][short source][payload]}, ended by a zero or the
+ * end of the file; the extra one keeps an empty frame from reading as the end. Beside each
+ * segment, {@code .idx} holds {@code [long micros][int position]} for the first record and then
+ * roughly every 4 KB, for seeking by time. {@code sources} maps source ids to device addresses.
+ * {@link SessionReader} reads it all back.
+ */
+public final class SessionRecorder implements Closeable {
+    static final int HEADER_BYTES = 14;
+    static final int INDEX_ENTRY_BYTES = 12;
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+    static final String SOURCES_FILE = "sources";
+
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+
+    private static final class Entry {
+        final byte[] data;
+        int length;
+        long micros;
+        short source;
+
+        Entry(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    private final File mDirectory;
+    private final int mMaxRecordBytes;
+    private final long mSegmentBytes;
+    private final long mCommitIntervalNanos;
+    private final EntryWriter<Entry> mWriter;
+    private final Map<String, Integer> mSources = new ConcurrentHashMap<>();
+    private final AtomicLong mRecorded = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    // Maps monotonic read times onto the wall clock
+    private final long mEpochMicrosAtStart = System.currentTimeMillis() * 1000;
+    private final long mNanosAtStart = System.nanoTime();
+    private volatile boolean mSourcesDirty;
+
+    // Only touched by the writer thread
+    private MappedByteBuffer mLog;
+    private FileChannel mIndex;
+    private final ByteBuffer mIndexBuffer = ByteBuffer.allocate(INDEX_ENTRY_BYTES * 256);
+    private int mSegmentCount;
+    private int mLastIndexed;
+    private boolean mDirty;
+    private long mLastCommit = System.nanoTime();
+
+    public SessionRecorder(File directory, int maxRecordBytes, int bufferedRecords,
+                           long segmentBytes, long commitIntervalMillis) throws IOException {
+        if (segmentBytes < HEADER_BYTES + maxRecordBytes || segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment size must fit a record and a mapping");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        mDirectory = directory;
+        mMaxRecordBytes = maxRecordBytes;
+        mSegmentBytes = segmentBytes;
+        mCommitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(commitIntervalMillis);
+        openSegment();
+        mWriter = new EntryWriter<>("SessionRecorder", bufferedRecords, new EntryWriter.Sink<Entry>() {
+            @Override
+            public Entry newEntry() {
+                return new Entry(maxRecordBytes);
+            }
+
+            @Override
+            public void write(Entry entry) throws IOException {
+                append(entry);
+            }
+
+            @Override
+            public long tick(long nowNanos) throws IOException {
+                return commitIfDue(nowNanos);
+            }
+
+            @Override
+            public void finish() throws IOException {
+                commit();
+                mIndex.close();
+            }
+        });
+    }
+
+    public void start() {
+        mWriter.start();
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    // Stable small id for a device address, stored with each record
+    public int sourceId(String address) {
+        Integer id = mSources.get(address);
+        if (id != null) {
+            return id;
+        }
+        synchronized (mSources) {
+            id = mSources.get(address);
+            if (id == null) {
+                id = mSources.size();
+                mSources.put(address, id);
+                mSourcesDirty = true;
+            }
+        }
+        return id;
+    }
+
+    // Records the frame stamped with its read time. The caller keeps ownership of the slab.
+    public boolean record(int source, Slab frame) {
+        long readNanos = frame.readNanos() != 0 ? frame.readNanos() : System.nanoTime();
+        long micros = mEpochMicrosAtStart + (readNanos - mNanosAtStart) / 1000;
+        return record(source, micros, frame.array(), 0, frame.length());
+    }
+
+    // Safe from any thread and never blocks. Returns false if the frame was dropped.
+    public boolean record(int source, long epochMicros, byte[] data, int offset, int length) {
+        if (length > mMaxRecordBytes) {
+            throw new IllegalArgumentException("Record too large: " + length);
+        }
+        Entry entry = mWriter.take();
+        if (entry == null) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        System.arraycopy(data, offset, entry.data, 0, length);
+        entry.length = length;
+        entry.micros = epochMicros;
+        entry.source = (short) source;
+        mWriter.publish(entry);
+        return true;
+    }
+
+    public long recordedCount() {
+        return mRecorded.get();
+    }
+
+    public long droppedCount() {
+        return mDropped.get();
+    }
+
+    // Set if the writer hit an I/O error; recording has stopped
+    public IOException getFailure() {
+        return mWriter.getFailure();
+    }
+
+    // Writes out everything recorded so far, then stops
+    @Override
+    public void close() throws IOException {
+        mWriter.close();
+    }
+
+    // Group commit: at most once per interval, and only if something was appended. Returns
+    // when the next commit is due.
+    private long commitIfDue(long nowNanos) throws IOException {
+        if (!mDirty) {
+            return Long.MAX_VALUE;
+        }
+        if (nowNanos - mLastCommit >= mCommitIntervalNanos) {
+            commit();
+            mLastCommit = nowNanos;
+            mDirty = false;
+            return Long.MAX_VALUE;
+        }
+        return mLastCommit + mCommitIntervalNanos;
+    }
+
+    private void append(Entry entry) throws IOException {
+        if (mLog.position() + HEADER_BYTES + entry.length > mSegmentBytes) {
+            commit();
+            mIndex.close();
+            openSegment();
+        }
+        int position = mLog.position();
+        if (position == 0 || position - mLastIndexed >= INDEX_INTERVAL_BYTES) {
+            if (!mIndexBuffer.hasRemaining()) {
+                flushIndex();
+            }
+            mIndexBuffer.putLong(entry.micros).putInt(position);
+            mLastIndexed = position;
+        }
+        mLog.putInt(entry.length + 1).putLong(entry.micros).putShort(entry.source).put(entry.data, 0, entry.length);
+        mDirty = true;
+        mRecorded.incrementAndGet();
+    }
+
+    private void commit() throws IOException {
+        mLog.force();
+        flushIndex();
+        mIndex.force(false);
+        if (mSourcesDirty) {
+            writeSources();
+        }
+    }
+
+    private void flushIndex() throws IOException {
+        mIndexBuffer.flip();
+        while (mIndexBuffer.hasRemaining()) {
+            mIndex.write(mIndexBuffer);
+        }
+        mIndexBuffer.clear();
+    }
+
+    private void openSegment() throws IOException {
+        String stem = String.format(Locale.US, "%08d", mSegmentCount);
+        try (RandomAccessFile file = new RandomAccessFile(new File(mDirectory, stem + LOG_SUFFIX), "rw")) {
+            // The mapping stays valid after the file is closed
+            mLog = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentBytes);
+        }
+        mIndex = new FileOutputStream(new File(mDirectory, stem + INDEX_SUFFIX)).getChannel();
+        mSegmentCount++;
+        mLastIndexed = 0;
+    }
+
+    private void writeSources() throws IOException {
+        mSourcesDirty = false;
+        File temp = new File(mDirectory, SOURCES_FILE + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Integer> source : mSources.entrySet()) {
+                out.write(source.getValue() + " " + source.getKey() + "\n");
+            }
+        }
+        if (!temp.renameTo(new File(mDirectory, SOURCES_FILE))) {
+            throw new IOException("Could not replace " + SOURCES_FILE);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a recorded session back as if a device were sending it.
+ * <p>
+ * {@link #open} hands out a loopback transport, so the replay goes through everything a real
+ * link does: the codec encodes every recorded frame again, and the event loop, decoder,
+ * listeners, UI throttling and recorder all handle it. Frames keep their recorded order and
+ * bytes, and only the pacing changes: {@code speed} 1 keeps the recorded gaps, 10 plays ten
+ * times faster, and {@link #AS_FAST_AS_POSSIBLE} sends as fast as the pipeline takes them.
+ * <p>
+ * When the last frame has been consumed, {@link #result()} completes with the throughput.
+ * The link then stays up and idle until it is disconnected.
+ */
+public final class SessionReplay {
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+    // Replays every source in the session
+    public static final int ALL_SOURCES = -1;
+
+    private static final long DRAIN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public static final class Result {
+        private final long mFrames;
+        private final long mBytes;
+        private final long mElapsedNanos;
+
+        Result(long frames, long bytes, long elapsedNanos) {
+            mFrames = frames;
+            mBytes = bytes;
+            mElapsedNanos = elapsedNanos;
+        }
+
+        public long getFrames() {
+            return mFrames;
+        }
+
+        // Payload bytes, before framing
+        public long getBytes() {
+            return mBytes;
+        }
+
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        public double framesPerSecond() {
+            return mElapsedNanos == 0 ? 0 : mFrames * 1e9 / mElapsedNanos;
+        }
+
+        public double bytesPerSecond() {
+            return mElapsedNanos == 0 ? 0 : mBytes * 1e9 / mElapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d frames, %d bytes in %.2f s (%.0f frames/s, %.1f KB/s)",
+                    mFrames, mBytes, mElapsedNanos / 1e9, framesPerSecond(), bytesPerSecond() / 1024);
+        }
+    }
+
+    private final SessionReader mReader;
+    private final int mSource;
+    private final FrameCodec mCodec;
+    private final double mSpeed;
+    private final CompletableFuture<Result> mResult = new CompletableFuture<>();
+    private boolean mOpened;
+
+    public SessionReplay(SessionReader reader, int source, FrameCodec codec, double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Speed must not be negative");
+        }
+        mReader = reader;
+        mSource = source;
+        mCodec = codec;
+        mSpeed = speed;
+    }
+
+    /**
+     * Starts the replay and returns the phone's end of the link. Fits a
+     * {@link ConnectionManager.TransportFactory}; only one transport is handed out, so later
+     * calls (e.g. reconnect attempts) fail.
+     */
+    public synchronized Transport open(String address) throws IOException {
+        if (mOpened) {
+            throw new IOException("Replay already started");
+        }
+        LoopbackTransport[] ends = LoopbackTransport.pair(address);
+        Thread feeder = new Thread(() -> feed(ends[0], ends[1]), "SessionReplay");
+        feeder.setDaemon(true);
+        feeder.start();
+        mOpened = true;
+        return ends[0];
+    }
+
+    public CompletableFuture<Result> result() {
+        return mResult;
+    }
+
+    private void feed(LoopbackTransport phone, LoopbackTransport peer) {
+        try {
+            OutputStream out = peer.getOutputStream();
+            byte[] wire = new byte[mCodec.maxEncodedSize(mCodec.maxPayload())];
+            SessionReader.Cursor cursor = mReader.cursor();
+            long frames = 0;
+            long bytes = 0;
+            long firstMicros = 0;
+            long start = System.nanoTime();
+            while (cursor.next()) {
+                if (mSource != ALL_SOURCES && cursor.source() != mSource) {
+                    continue;
+                }
+                if (frames == 0) {
+                    firstMicros = cursor.timestampMicros();
+                    start = System.nanoTime();
+                } else if (mSpeed != AS_FAST_AS_POSSIBLE) {
+                    long due = start + (long) ((cursor.timestampMicros() - firstMicros) * 1000 / mSpeed);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(this, wait);
+                    }
+                }
+                // Blocks while the pipe is full, so a slow consumer paces the replay
+                out.write(wire, 0, mCodec.encode(cursor.data(), 0, cursor.length(), wire, 0));
+                frames++;
+                bytes += cursor.length();
+            }
+            // Count the run as finished once the link has read the last byte
+            while (phone.isConnected() && phone.getInputStream().available() > 0) {
+                LockSupport.parkNanos(this, DRAIN_POLL_NANOS);
+            }
+            mResult.complete(new Result(frames, bytes, System.nanoTime() - start));
+        } catch (IOException | RuntimeException e) {
+            mResult.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed-size receive buffer owned by a {@link BufferPool}.
+ * <p>
+ * The reader fills a slab and hands it to exactly one consumer, which must call
+ * {@link #release()} once it is done with the bytes so the slab can be reused. A consumer
+ * that passes the slab on to several others calls {@link #retain()} once per extra owner;
+ * the slab goes back to the pool when the last owner releases it.
+ */
+public final class Slab {
+    private final BufferPool mOwner;
+    private final byte[] mData;
+    private int mLength;
+    // System.nanoTime() of the read that produced these bytes, 0 if unknown
+    private long mReadNanos;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+
+    Slab(BufferPool owner, int size) {
+        mOwner = owner;
+        mData = new byte[size];
+    }
+
+    public byte[] array() {
+        return mData;
+    }
+
+    public int capacity() {
+        return mData.length;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public void setLength(int length) {
+        if (length < 0 || length > mData.length) {
+            throw new IllegalArgumentException("Invalid slab length: " + length);
+        }
+        mLength = length;
+    }
+
+    public long readNanos() {
+        return mReadNanos;
+    }
+
+    public void setReadNanos(long readNanos) {
+        mReadNanos = readNanos;
+    }
+
+    // Adds an owner; each owner releases once
+    public Slab retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            mRefCount.decrementAndGet();
+            throw new IllegalStateException("Slab retained after release");
+        }
+        return this;
+    }
+
+    // Drops one owner. After the last release the contents must not be touched.
+    public void release() {
+        int remaining = mRefCount.decrementAndGet();
+        if (remaining < 0) {
+            mRefCount.incrementAndGet();
+            throw new IllegalStateException("Slab released twice");
+        }
+        if (remaining == 0) {
+            mLength = 0;
+            mReadNanos = 0;
+            mOwner.recycle(this);
+        }
+    }
+
+    void markInUse() {
+        mRefCount.set(1);
+    }
+}
@@ -0,0 +1,66 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * TCP transport, used to run the link stack against a simulator or a serial-to-TCP bridge.
+ */
+public final class SocketTransport implements Transport {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final String mHost;
+    private final int mPort;
+    private final Socket mSocket;
+
+    public SocketTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+        mSocket = new Socket();
+    }
+
+    // Wraps a socket that is already connected, e.g. one returned by ServerSocket.accept()
+    public SocketTransport(Socket connected) {
+        mHost = connected.getInetAddress().getHostAddress();
+        mPort = connected.getPort();
+        mSocket = connected;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (mSocket.isConnected()) {
+            return;
+        }
+        mSocket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MS);
+        // Frames are small and latency sensitive, don't let Nagle hold them back
+        mSocket.setTcpNoDelay(true);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mSocket.isConnected() && !mSocket.isClosed();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public String getAddress() {
+        return mHost + ":" + mPort;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
@@ -0,0 +1,209 @@
+package com.hmithinkware.bluetooth_application.link;
+
+/**
+ * Merges frames from several sources into one stream in timestamp order, live.
+ * <p>
+ * Frames are copied into a fixed pool of {@code capacity} entries and kept in a min-heap on
+ * timestamp, ties in arrival order. Each source is taken to be in order by itself, so a frame
+ * can go out once every active source has offered something at or after it: nothing earlier
+ * can arrive any more. A source registered with {@link #addSource} is waited for even before
+ * its first frame. That is a k-way merge that never needs more than the sources' skew in
+ * memory. A source that goes quiet would hold everyone up, so {@link #advance} also lets out
+ * whatever is older than {@code maxDelayNanos}, which bounds the added latency. With the pool
+ * used up the oldest frame goes out early rather than a new one being refused, which bounds
+ * memory. A frame older than one already emitted can no longer be put in order; it is dropped
+ * and counted as late.
+ * <p>
+ * Thread safe. The consumer is called with the merger locked, on whichever thread offered or
+ * advanced, and must not call back in.
+ */
+public final class StreamMerger {
+
+    public interface Consumer {
+        // The data is only valid for the duration of the call
+        void onFrame(int source, long timestampNanos, byte[] data, int offset, int length);
+    }
+
+    private final int mMaxFrameBytes;
+    private final long mMaxDelayNanos;
+    private final Consumer mConsumer;
+    // Entry pool, indexed by entry number
+    private final long[] mTimestamps;
+    private final long[] mSequence;
+    private final int[] mSources;
+    private final byte[][] mData;
+    private final int[] mLengths;
+    // Heap of entry numbers, then the free ones as a stack
+    private final int[] mHeap;
+    private final int[] mFree;
+    private int mHeapSize;
+    private int mFreeCount;
+    private long mNextSequence;
+    // Per source: whether it is being waited for, whether it offered anything yet and the
+    // newest timestamp it offered
+    private final boolean[] mActive;
+    private final boolean[] mSeen;
+    private final long[] mNewest;
+    private boolean mEmittedAny;
+    private long mLastEmitted;
+    private long mEmitted;
+    private long mLate;
+    private long mForced;
+
+    public StreamMerger(int maxSources, int capacity, int maxFrameBytes, long maxDelayNanos, Consumer consumer) {
+        if (maxSources < 1 || capacity < 1 || maxDelayNanos < 0) {
+            throw new IllegalArgumentException("Invalid merger bounds");
+        }
+        mMaxFrameBytes = maxFrameBytes;
+        mMaxDelayNanos = maxDelayNanos;
+        mConsumer = consumer;
+        mTimestamps = new long[capacity];
+        mSequence = new long[capacity];
+        mSources = new int[capacity];
+        mData = new byte[capacity][maxFrameBytes];
+        mLengths = new int[capacity];
+        mHeap = new int[capacity];
+        mFree = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mFree[i] = capacity - 1 - i;
+        }
+        mFreeCount = capacity;
+        mActive = new boolean[maxSources];
+        mSeen = new boolean[maxSources];
+        mNewest = new long[maxSources];
+    }
+
+    /**
+     * Adds a frame and emits everything that is now known to be in order. Returns false if the
+     * frame was dropped for being earlier than something already emitted.
+     */
+    public synchronized boolean offer(int source, long timestampNanos, byte[] data, int offset, int length) {
+        if (length > mMaxFrameBytes) {
+            throw new IllegalArgumentException("Frame of " + length + " bytes over " + mMaxFrameBytes);
+        }
+        if (mEmittedAny && timestampNanos - mLastEmitted < 0) {
+            mLate++;
+            return false;
+        }
+        if (!mSeen[source] || timestampNanos - mNewest[source] > 0) {
+            mNewest[source] = timestampNanos;
+        }
+        mActive[source] = true;
+        mSeen[source] = true;
+        if (mFreeCount == 0) {
+            mForced++;
+            emitHead();
+        }
+        int entry = mFree[--mFreeCount];
+        mTimestamps[entry] = timestampNanos;
+        mSequence[entry] = mNextSequence++;
+        mSources[entry] = source;
+        System.arraycopy(data, offset, mData[entry], 0, length);
+        mLengths[entry] = length;
+        push(entry);
+        emitReady(false, 0);
+        return true;
+    }
+
+    // Emits what has waited longer than the maximum delay; call it regularly with the clock
+    public synchronized void advance(long nowNanos) {
+        emitReady(true, nowNanos - mMaxDelayNanos);
+    }
+
+    // Holds the others back for a source that is connected but has sent nothing yet
+    public synchronized void addSource(int source) {
+        mActive[source] = true;
+    }
+
+    // Stops waiting for a source, e.g. one that disconnected; its id may then be reused
+    public synchronized void removeSource(int source) {
+        mActive[source] = false;
+        mSeen[source] = false;
+        emitReady(false, 0);
+    }
+
+    public synchronized int bufferedCount() {
+        return mHeapSize;
+    }
+
+    public synchronized long emittedCount() {
+        return mEmitted;
+    }
+
+    // Frames dropped for arriving after later ones had gone out
+    public synchronized long lateCount() {
+        return mLate;
+    }
+
+    // Frames let out early because the pool was full
+    public synchronized long forcedCount() {
+        return mForced;
+    }
+
+    // Emits while the oldest frame is no later than every active source's newest, or the cutoff
+    private void emitReady(boolean useCutoff, long cutoff) {
+        while (mHeapSize > 0) {
+            long oldest = mTimestamps[mHeap[0]];
+            if (useCutoff && oldest - cutoff <= 0) {
+                emitHead();
+                continue;
+            }
+            for (int source = 0; source < mActive.length; source++) {
+                if (mActive[source] && (!mSeen[source] || mNewest[source] - oldest < 0)) {
+                    return;
+                }
+            }
+            emitHead();
+        }
+    }
+
+    private void emitHead() {
+        int entry = mHeap[0];
+        mHeap[0] = mHeap[--mHeapSize];
+        siftDown(0);
+        mEmittedAny = true;
+        mLastEmitted = mTimestamps[entry];
+        mEmitted++;
+        mConsumer.onFrame(mSources[entry], mTimestamps[entry], mData[entry], 0, mLengths[entry]);
+        mFree[mFreeCount++] = entry;
+    }
+
+    private boolean before(int a, int b) {
+        long diff = mTimestamps[a] - mTimestamps[b];
+        return diff < 0 || (diff == 0 && mSequence[a] < mSequence[b]);
+    }
+
+    private void push(int entry) {
+        int i = mHeapSize++;
+        mHeap[i] = entry;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!before(mHeap[i], mHeap[parent])) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= mHeapSize) {
+                return;
+            }
+            int child = left + 1 < mHeapSize && before(mHeap[left + 1], mHeap[left]) ? left + 1 : left;
+            if (!before(mHeap[child], mHeap[i])) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int t = mHeap[a];
+        mHeap[a] = mHeap[b];
+        mHeap[b] = t;
+    }
+}
@@ -0,0 +1,54 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Read loop that fills pooled slabs from an {@link InputStream}.
+ * <p>
+ * Each successful read is delivered to the {@link Sink} in its own slab, so the next
+ * read can never overwrite bytes the consumer has not processed yet.
+ */
+public final class StreamReader {
+
+    public interface Sink {
+        // Takes ownership of the slab; the sink (or whoever it passes it on to) must release it
+        void onSlab(Slab slab);
+    }
+
+    private final InputStream mInput;
+    private final BufferPool mPool;
+    private final Sink mSink;
+
+    public StreamReader(InputStream input, BufferPool pool, Sink sink) {
+        mInput = input;
+        mPool = pool;
+        mSink = sink;
+    }
+
+    // Runs until end of stream or an I/O error. Returns normally on end of stream.
+    public void pump() throws IOException, InterruptedException {
+        while (!Thread.currentThread().isInterrupted()) {
+            Slab slab = mPool.acquire();
+            int bytes;
+            try {
+                bytes = mInput.read(slab.array(), 0, slab.capacity());
+            } catch (IOException e) {
+                slab.release();
+                throw e;
+            }
+            if (bytes < 0) {
+                slab.release();
+                return;
+            }
+            if (bytes == 0) {
+                slab.release();
+                continue;
+            }
+            slab.setLength(bytes);
+            slab.setReadNanos(System.nanoTime());
+            mSink.onSlab(slab);
+        }
+        throw new InterruptedException("Reader interrupted");
+    }
+}
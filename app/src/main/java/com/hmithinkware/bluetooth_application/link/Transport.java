@@ -0,0 +1,31 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte channel to one remote device.
+ * <p>
+ * The connection code only talks to this interface, so the same read/write stack runs
+ * over RFCOMM on a phone and over loopback or TCP on a plain JVM.
+ */
+public interface Transport extends Closeable {
+
+    // Blocks until the link is up. Calling it on an already connected transport is a no-op.
+    void connect() throws IOException;
+
+    boolean isConnected();
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    // Stable identifier of the remote end, e.g. a MAC address or host:port
+    String getAddress();
+
+    // Unblocks any pending read or write; the transport cannot be reconnected afterwards
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,62 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.util.Arrays;
+
+/**
+ * Min, max, mean and percentiles of a copied {@link SampleWindow}. Reusable: it keeps one
+ * scratch array, so computing stats on every display frame allocates nothing.
+ */
+public final class WindowStats {
+    private final double[] mSorted;
+    private int mCount;
+    private double mMin;
+    private double mMax;
+    private double mMean;
+
+    public WindowStats(int capacity) {
+        mSorted = new double[capacity];
+    }
+
+    // NaN values are ignored
+    public void compute(double[] values, int count) {
+        int n = 0;
+        double sum = 0;
+        for (int i = 0; i < Math.min(count, mSorted.length); i++) {
+            double value = values[i];
+            if (!Double.isNaN(value)) {
+                mSorted[n++] = value;
+                sum += value;
+            }
+        }
+        Arrays.sort(mSorted, 0, n);
+        mCount = n;
+        mMin = n == 0 ? Double.NaN : mSorted[0];
+        mMax = n == 0 ? Double.NaN : mSorted[n - 1];
+        mMean = n == 0 ? Double.NaN : sum / n;
+    }
+
+    public int count() {
+        return mCount;
+    }
+
+    public double min() {
+        return mMin;
+    }
+
+    public double max() {
+        return mMax;
+    }
+
+    public double mean() {
+        return mMean;
+    }
+
+    // Nearest-rank percentile, p in [0, 100]
+    public double percentile(double p) {
+        if (mCount == 0) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(p / 100 * mCount);
+        return mSorted[Math.max(0, Math.min(mCount - 1, rank - 1))];
+    }
+}
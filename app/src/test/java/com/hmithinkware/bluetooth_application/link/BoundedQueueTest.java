@@ -0,0 +1,53 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BoundedQueueTest {
+
+    @Test
+    public void concurrentProducersAndConsumersLoseNothing() throws Exception {
+        BoundedQueue<Integer> queue = new BoundedQueue<>(64);
+        final int perProducer = 20_000;
+        final int producers = 4;
+        AtomicInteger sum = new AtomicInteger();
+        AtomicInteger count = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            threads.add(new Thread(() -> {
+                for (int i = 1; i <= perProducer; i++) {
+                    while (!queue.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        for (int c = 0; c < 2; c++) {
+            threads.add(new Thread(() -> {
+                while (count.get() < producers * perProducer) {
+                    Integer value = queue.poll();
+                    if (value != null) {
+                        sum.addAndGet(value);
+                        count.incrementAndGet();
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join(10_000);
+        }
+        assertEquals(producers * perProducer, count.get());
+        assertEquals(producers * (perProducer * (perProducer + 1L) / 2) % (1L << 32), sum.get() & 0xFFFFFFFFL);
+        assertTrue(queue.isEmpty());
+    }
+}
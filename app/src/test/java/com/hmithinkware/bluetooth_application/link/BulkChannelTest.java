@@ -0,0 +1,233 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BulkChannelTest {
+
+    // Control frames are this one byte
+    private static final byte CONTROL = 'C';
+    // Bulk data queued ahead of a control frame
+    private static final int BULK_AHEAD = 48 * 1024;
+
+    private final LengthPrefixCodec mCodec = new LengthPrefixCodec();
+    @Rule
+    public final FakeDeviceRule<ChunkDevice> mLink = new FakeDeviceRule<>(mCodec, new ReconnectPolicy(10, 10, 5));
+    // Peer read rate in bytes per millisecond, 0 for as fast as possible
+    private volatile int mDeviceRate;
+    // The first device hangs up after this many chunks, 0 for never
+    private volatile int mHangUpAfter;
+
+    // Reassembles chunked messages per channel and notes how many chunks came before each
+    // control frame. Can read slowly so the loop blocks on a full pipe like on a real link.
+    private final class ChunkDevice extends FakeDevice {
+        final Map<Integer, ByteArrayOutputStream> partial = new HashMap<>();
+        final List<byte[]> messages = new CopyOnWriteArrayList<>();
+        final List<Integer> messageChannels = new CopyOnWriteArrayList<>();
+        final List<Integer> chunkOrder = new CopyOnWriteArrayList<>();
+        final List<Integer> chunksBeforeControl = new CopyOnWriteArrayList<>();
+        final int hangUpAfter;
+
+        ChunkDevice(LoopbackTransport end, int rate, int hangUpAfter) throws IOException {
+            super(end, mCodec, rate);
+            this.hangUpAfter = hangUpAfter;
+        }
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            if (length == 1 && buffer[offset] == CONTROL) {
+                chunksBeforeControl.add(chunkOrder.size());
+                return;
+            }
+            if (buffer[offset] != BulkChannel.MARKER) {
+                return;
+            }
+            int channel = buffer[offset + 1] & 0xFF;
+            int flags = buffer[offset + 2];
+            chunkOrder.add(channel);
+            if ((flags & BulkChannel.FLAG_FIRST) != 0) {
+                partial.put(channel, new ByteArrayOutputStream());
+            }
+            ByteArrayOutputStream message = partial.get(channel);
+            message.write(buffer, offset + BulkChannel.HEADER_BYTES, length - BulkChannel.HEADER_BYTES);
+            if ((flags & BulkChannel.FLAG_LAST) != 0) {
+                messages.add(message.toByteArray());
+                messageChannels.add(channel);
+                partial.remove(channel);
+            }
+            if (hangUpAfter > 0 && chunkOrder.size() == hangUpAfter) {
+                end.close();
+            }
+        }
+    }
+
+    private Connection connect(int pipeBytes) throws Exception {
+        // Only the first device hangs up
+        return mLink.connect(pipeBytes, end ->
+                new ChunkDevice(end, mDeviceRate, mLink.devices.isEmpty() ? mHangUpAfter : 0));
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private static void awaitSize(List<?> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (list.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(size, list.size());
+    }
+
+    @Test
+    public void messagesArriveWholeAcrossInterleavedChannels() throws Exception {
+        Connection connection = connect(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+        BulkChannel firmware = connection.openBulkChannel(1, 1);
+        BulkChannel config = connection.openBulkChannel(2, 1);
+        int[] sizes = {0, 1, firmware.getChunkSize(), firmware.getChunkSize() + 1, 20_000};
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < sizes.length; i++) {
+            writes.add(firmware.write(pattern(sizes[i], i)));
+            writes.add(config.write(pattern(sizes[sizes.length - 1 - i], 100 + i)));
+        }
+        for (CompletableFuture<Void> write : writes) {
+            write.get(5, TimeUnit.SECONDS);
+        }
+        ChunkDevice device = mLink.devices.get(0);
+        awaitSize(device.messages, 2 * sizes.length);
+        int firmwareSeen = 0;
+        int configSeen = 0;
+        for (int i = 0; i < device.messages.size(); i++) {
+            if (device.messageChannels.get(i) == 1) {
+                assertArrayEquals(pattern(sizes[firmwareSeen], firmwareSeen), device.messages.get(i));
+                firmwareSeen++;
+            } else {
+                int index = sizes.length - 1 - configSeen;
+                assertArrayEquals(pattern(sizes[index], 100 + configSeen), device.messages.get(i));
+                configSeen++;
+            }
+        }
+    }
+
+    @Test
+    public void bandwidthSplitFollowsWeights() throws Exception {
+        mDeviceRate = 4096;
+        Connection connection = connect(4096);
+        BulkChannel heavy = connection.openBulkChannel(1, 3);
+        BulkChannel light = connection.openBulkChannel(2, 1);
+        // Queue both before the slow peer lets much through, so they compete from the start
+        CompletableFuture<Void> first = heavy.write(pattern(200_000, 1));
+        CompletableFuture<Void> second = light.write(pattern(200_000, 2));
+        first.get(10, TimeUnit.SECONDS);
+        List<Integer> order = mLink.devices.get(0).chunkOrder;
+        // Count over the stretch where both channels had data
+        int heavyChunks = 0;
+        int lightChunks = 0;
+        boolean sawLight = false;
+        for (int channel : order) {
+            sawLight |= channel == 2;
+            if (!sawLight) {
+                continue;
+            }
+            if (channel == 1) {
+                heavyChunks++;
+            } else {
+                lightChunks++;
+            }
+            if (heavyChunks * heavy.getChunkSize() >= 150_000) {
+                break;
+            }
+        }
+        double ratio = (double) heavyChunks / lightChunks;
+        assertTrue("Ratio " + ratio, ratio > 2.5 && ratio < 3.5);
+        second.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void interruptedMessageStartsOverAfterReconnect() throws Exception {
+        mHangUpAfter = 10;
+        // A small pipe, so most of the message is still to be written when the peer hangs up
+        Connection connection = connect(1024);
+        BulkChannel channel = connection.openBulkChannel(7, 1);
+        byte[] image = pattern(100 * channel.getChunkSize(), 7);
+        CompletableFuture<Void> write = channel.write(image);
+        awaitSize(mLink.devices, 2);
+        write.get(5, TimeUnit.SECONDS);
+        assertTrue(mLink.devices.get(0).messages.isEmpty());
+        ChunkDevice second = mLink.devices.get(1);
+        awaitSize(second.messages, 1);
+        assertArrayEquals(image, second.messages.get(0));
+    }
+
+    @Test
+    public void controlFramesOvertakeQueuedBulkData() throws Exception {
+        mDeviceRate = 512;
+        Connection connection = connect(4096);
+        BulkChannel firmware = connection.openBulkChannel(1, 1);
+        int chunks = (BULK_AHEAD + firmware.getChunkSize() - 1) / firmware.getChunkSize();
+        ChunkDevice device = mLink.device();
+        CompletableFuture<Void> bulk = firmware.write(pattern(BULK_AHEAD, 1));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (device.chunkOrder.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        // The bulk message is going out; the control frame queued behind it must not wait
+        // for more than what is already on its way to the slow peer
+        connection.write(new byte[]{CONTROL}).get(5, TimeUnit.SECONDS);
+        bulk.get(10, TimeUnit.SECONDS);
+        awaitSize(device.chunksBeforeControl, 1);
+        int before = device.chunksBeforeControl.get(0);
+        assertTrue("Control frame after " + before + " of " + chunks + " chunks", before < chunks / 2);
+        awaitSize(device.messages, 1);
+        assertArrayEquals(pattern(BULK_AHEAD, 1), device.messages.get(0));
+    }
+
+    @Test
+    public void closingFailsQueuedMessages() throws Exception {
+        mDeviceRate = 64;
+        Connection connection = connect(1024);
+        BulkChannel channel = connection.openBulkChannel(1, 1);
+        CompletableFuture<Void> big = channel.write(pattern(1_000_000, 1));
+        CompletableFuture<Void> queued = channel.write(pattern(10, 2));
+        mLink.manager().disconnect(FakeDeviceRule.ADDRESS);
+        for (CompletableFuture<Void> write : Arrays.asList(big, queued)) {
+            try {
+                write.get(5, TimeUnit.SECONDS);
+                fail("Expected failure on disconnect");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+        assertTrue(channel.write(new byte[1]).isCompletedExceptionally());
+    }
+
+    @Test
+    public void channelIdsAreUnique() throws Exception {
+        Connection connection = connect(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+        connection.openBulkChannel(1, 1);
+        try {
+            connection.openBulkChannel(1, 2);
+            fail("Expected duplicate id to be refused");
+        } catch (IllegalStateException expected) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class BulkTransferTest {
+
+    @Rule
+    public final TemporaryFolder mTemp = new TemporaryFolder();
+
+    private final LengthPrefixCodec mCodec = new LengthPrefixCodec();
+    @Rule
+    public final FakeDeviceRule<FlashDevice> mLink = new FakeDeviceRule<>(mCodec, new ReconnectPolicy(10, 10, 5));
+    private final ScheduledExecutorService mAckDelayer = Executors.newSingleThreadScheduledExecutor();
+    // What the peer has stored, kept across reconnects like flash would be
+    private final Flash mFlash = new Flash();
+    // Peer behaviour: chunks lost or damaged on their first trip, ack delay, hang-up point
+    private final Set<Integer> mDrop = new HashSet<>();
+    private final Set<Integer> mCorrupt = new HashSet<>();
+    private volatile long mAckDelayMillis;
+    // Acks the peer is sitting on while mHoldAcks is set; guarded by itself
+    private final List<byte[]> mHeldAcks = new ArrayList<>();
+    private boolean mHoldAcks;
+    private volatile int mHangUpAfter;
+    private volatile int mRejectStatus;
+
+    private static final class Flash {
+        int transfer = -1;
+        long crc32;
+        int chunkSize;
+        byte[] data;
+        final BitSet held = new BitSet();
+    }
+
+    // Plays the firmware side of the transfer protocol on top of bulk channel framing
+    private final class FlashDevice extends FakeDevice {
+        final int hangUpAfter;
+        volatile int chunksReceived;
+
+        FlashDevice(LoopbackTransport end, int hangUpAfter) throws IOException {
+            super(end, mCodec);
+            this.hangUpAfter = hangUpAfter;
+        }
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            if (buffer[offset] == BulkTransfer.MARKER && buffer[offset + 1] == BulkTransfer.OFFER) {
+                onOffer(Arrays.copyOfRange(buffer, offset, offset + length));
+            } else if (buffer[offset] == BulkChannel.MARKER) {
+                onChunk(Arrays.copyOfRange(buffer, offset + BulkChannel.HEADER_BYTES, offset + length));
+            }
+        }
+
+        private void onOffer(byte[] offer) {
+            int transfer = offer[2] & 0xFF;
+            if (mRejectStatus != 0) {
+                send(new byte[]{BulkTransfer.MARKER, BulkTransfer.REJECT, (byte) transfer, (byte) mRejectStatus});
+                return;
+            }
+            synchronized (mFlash) {
+                if (mFlash.transfer != transfer) {
+                    mFlash.transfer = transfer;
+                    mFlash.data = new byte[(int) readU32(offer, 3)];
+                    mFlash.chunkSize = ((offer[7] & 0xFF) << 8) | (offer[8] & 0xFF);
+                    mFlash.crc32 = readU32(offer, 9);
+                    mFlash.held.clear();
+                }
+                byte[] accept = new byte[7];
+                accept[0] = BulkTransfer.MARKER;
+                accept[1] = BulkTransfer.ACCEPT;
+                accept[2] = (byte) transfer;
+                writeU32(accept, 3, mFlash.held.nextClearBit(0));
+                send(accept);
+            }
+        }
+
+        private void onChunk(byte[] chunk) {
+            int index = (int) readU32(chunk, 1);
+            chunksReceived++;
+            if (hangUpAfter > 0 && chunksReceived == hangUpAfter) {
+                end.close();
+                return;
+            }
+            synchronized (mDrop) {
+                if (mDrop.remove(index)) {
+                    return;
+                }
+                if (mCorrupt.remove(index)) {
+                    chunk[BulkTransfer.CHUNK_HEADER_BYTES] ^= 1;
+                }
+            }
+            int length = chunk.length - BulkTransfer.CHUNK_HEADER_BYTES;
+            int crc = ((chunk[5] & 0xFF) << 8) | (chunk[6] & 0xFF);
+            byte[] ack = new byte[11];
+            synchronized (mFlash) {
+                if (Crc16.compute(chunk, BulkTransfer.CHUNK_HEADER_BYTES, length) != crc) {
+                    return;
+                }
+                System.arraycopy(chunk, BulkTransfer.CHUNK_HEADER_BYTES, mFlash.data,
+                        index * mFlash.chunkSize, length);
+                mFlash.held.set(index);
+                int next = mFlash.held.nextClearBit(0);
+                int bitmap = 0;
+                for (int bit = 0; bit < 32; bit++) {
+                    if (mFlash.held.get(next + 1 + bit)) {
+                        bitmap |= 1 << bit;
+                    }
+                }
+                ack[0] = BulkTransfer.MARKER;
+                ack[1] = BulkTransfer.ACK;
+                ack[2] = (byte) mFlash.transfer;
+                writeU32(ack, 3, next);
+                writeU32(ack, 7, bitmap);
+            }
+            synchronized (mHeldAcks) {
+                if (mHoldAcks) {
+                    mHeldAcks.add(ack);
+                    return;
+                }
+            }
+            long delay = mAckDelayMillis;
+            if (delay > 0) {
+                mAckDelayer.schedule(() -> send(ack), delay, TimeUnit.MILLISECONDS);
+            } else {
+                send(ack);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mAckDelayer.shutdownNow();
+    }
+
+    private void holdAcks() {
+        synchronized (mHeldAcks) {
+            mHoldAcks = true;
+        }
+    }
+
+    private void releaseAcks() {
+        synchronized (mHeldAcks) {
+            mHoldAcks = false;
+            for (byte[] ack : mHeldAcks) {
+                mLink.device().send(ack);
+            }
+            mHeldAcks.clear();
+        }
+    }
+
+    private Connection connect() throws Exception {
+        // Small pipes, so a hang-up finds most of the file still unsent; only the first device hangs up
+        return mLink.connect(2048, end -> new FlashDevice(end, mLink.devices.isEmpty() ? mHangUpAfter : 0));
+    }
+
+    private File writeFile(int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File file = mTemp.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private void assertStored(File file) throws IOException {
+        byte[] expected = Files.readAllBytes(file.toPath());
+        CRC32 crc = new CRC32();
+        crc.update(expected);
+        synchronized (mFlash) {
+            assertArrayEquals(expected, mFlash.data);
+            assertEquals(crc.getValue(), mFlash.crc32);
+        }
+    }
+
+    @Test
+    public void fileArrivesIntact() throws Exception {
+        BulkTransfer transfers = connect().transfers();
+        File file = writeFile(100_000);
+        transfers.send(file).get(10, TimeUnit.SECONDS);
+        assertStored(file);
+        int chunks = (100_000 + transfers.getChunkSize() - 1) / transfers.getChunkSize();
+        assertEquals(chunks, mLink.devices.get(0).chunksReceived);
+        assertEquals(0, transfers.getRetransmits());
+        assertEquals(100_000, transfers.getBytesAcked());
+        assertFalse(transfers.isRunning());
+    }
+
+    @Test
+    public void onlyLostAndDamagedChunksAreResent() throws Exception {
+        mDrop.addAll(Arrays.asList(5, 17, 40));
+        mCorrupt.add(23);
+        BulkTransfer transfers = connect().transfers();
+        // Resent as soon as later chunks show them missing: with a timeout that never comes,
+        // nothing else could finish the transfer
+        transfers.setTimeout(TimeUnit.HOURS.toMillis(1));
+        File file = writeFile(30_000);
+        transfers.send(file).get(10, TimeUnit.SECONDS);
+        assertStored(file);
+        assertEquals(4, transfers.getRetransmits());
+    }
+
+    @Test
+    public void lostTailIsResentAfterTimeout() throws Exception {
+        BulkTransfer transfers = connect().transfers();
+        File file = writeFile(10 * transfers.getChunkSize());
+        mDrop.add(9);
+        transfers.send(file).get(10, TimeUnit.SECONDS);
+        assertStored(file);
+        assertEquals(1, transfers.getRetransmits());
+    }
+
+    @Test
+    public void resumesWhereThePeerGotToAfterReconnect() throws Exception {
+        mHangUpAfter = 150;
+        BulkTransfer transfers = connect().transfers();
+        int chunks = 400;
+        File file = writeFile(chunks * transfers.getChunkSize());
+        transfers.send(file).get(10, TimeUnit.SECONDS);
+        assertEquals(2, mLink.devices.size());
+        assertStored(file);
+        // Only what was in flight at the hang-up goes out twice
+        int resent = mLink.devices.get(1).chunksReceived - (chunks - 150);
+        assertTrue("Resent " + resent, resent <= 2 * BulkTransfer.MAX_WINDOW);
+    }
+
+    @Test
+    public void windowBoundsTheChunksInFlight() throws Exception {
+        BulkTransfer transfers = connect().transfers();
+        // Nothing is lost, so nothing may be resent while the acks are held
+        transfers.setTimeout(TimeUnit.HOURS.toMillis(1));
+        File file = writeFile(100 * transfers.getChunkSize());
+        for (int window : new int[]{1, 7, BulkTransfer.MAX_WINDOW}) {
+            // With no acks coming back, the whole window goes out and then nothing more
+            holdAcks();
+            transfers.setWindow(window);
+            FlashDevice device = mLink.device();
+            int before = device.chunksReceived;
+            // A new transfer id each time, so the peer starts from scratch
+            CompletableFuture<Void> sent = transfers.send(file);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (device.chunksReceived - before < window && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(window, device.chunksReceived - before);
+            assertEquals(window, transfers.getInFlight());
+            releaseAcks();
+            sent.get(10, TimeUnit.SECONDS);
+            assertStored(file);
+            assertEquals(0, transfers.getRetransmits());
+        }
+    }
+
+    @Test
+    public void rejectionFailsTheTransfer() throws Exception {
+        mRejectStatus = 3;
+        BulkTransfer transfers = connect().transfers();
+        try {
+            transfers.send(writeFile(1000)).get(5, TimeUnit.SECONDS);
+            fail("Expected a rejection");
+        } catch (ExecutionException e) {
+            assertEquals(3, ((BulkTransfer.TransferException) e.getCause()).getStatus());
+        }
+        assertFalse(transfers.isRunning());
+    }
+
+    @Test
+    public void onlyAnswersAboutOurTransfersAreConsumed() throws Exception {
+        BulkTransfer transfers = connect().transfers();
+        FlashDevice device = mLink.device();
+        byte[] appFrame = {BulkTransfer.MARKER, 9, 0, 1};
+        byte[] ack = new byte[11];
+        ack[0] = BulkTransfer.MARKER;
+        ack[1] = BulkTransfer.ACK;
+        ack[2] = 1;
+        // Nothing running, so neither is ours
+        device.send(appFrame);
+        device.send(ack);
+        mLink.awaitDelivered(2);
+        assertEquals(2, mLink.delivered.size());
+
+        // The first transfer has id 1; a late ack about it is swallowed once it is done
+        transfers.send(writeFile(1000)).get(5, TimeUnit.SECONDS);
+        device.send(ack);
+        device.send(appFrame);
+        mLink.awaitDelivered(3);
+        assertEquals(3, mLink.delivered.size());
+        assertArrayEquals(appFrame, mLink.delivered.get(2));
+    }
+
+    @Test
+    public void oneTransferAtATime() throws Exception {
+        mAckDelayMillis = 5;
+        BulkTransfer transfers = connect().transfers();
+        File file = writeFile(50_000);
+        CompletableFuture<Void> first = transfers.send(file);
+        CompletableFuture<Void> second = transfers.send(file);
+        try {
+            second.get(5, TimeUnit.SECONDS);
+            fail("Expected the second transfer to be refused");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        first.get(10, TimeUnit.SECONDS);
+    }
+
+    private static long readU32(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void writeU32(byte[] data, int offset, long value) {
+        for (int i = 0; i < 4; i++) {
+            data[offset + i] = (byte) (value >>> (24 - 8 * i));
+        }
+    }
+}
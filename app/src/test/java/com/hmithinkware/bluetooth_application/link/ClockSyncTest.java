@@ -0,0 +1,203 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ClockSyncTest {
+
+    // The peer booted long before the phone
+    private static final long PEER_OFFSET_NANOS = TimeUnit.HOURS.toNanos(5) + 123_456_789;
+
+    private final LengthPrefixCodec mCodec = new LengthPrefixCodec();
+    @Rule
+    public final FakeDeviceRule<ClockDevice> mLink = new FakeDeviceRule<>(mCodec, null);
+
+    // Answers clock sync requests with System.nanoTime() shifted by PEER_OFFSET_NANOS, unless
+    // silent; echoes anything else back
+    private final class ClockDevice extends FakeDevice {
+        volatile boolean silent;
+        volatile int requests;
+
+        ClockDevice(LoopbackTransport end) throws IOException {
+            super(end, mCodec);
+        }
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            if (buffer[offset] != ClockSync.MARKER) {
+                byte[] echo = new byte[length];
+                System.arraycopy(buffer, offset, echo, 0, length);
+                send(echo);
+                return;
+            }
+            requests++;
+            if (silent) {
+                return;
+            }
+            byte[] reply = new byte[18];
+            reply[0] = ClockSync.MARKER;
+            reply[1] = 's';
+            System.arraycopy(buffer, offset + 2, reply, 2, 8);
+            putLong(reply, 10, (System.nanoTime() + PEER_OFFSET_NANOS) / 1000);
+            send(reply);
+        }
+    }
+
+    private static void putLong(byte[] dst, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            dst[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    @Test
+    public void offsetFoundOverLoopback() throws Exception {
+        Connection connection = mLink.connect(ClockDevice::new);
+        ClockSync clock = connection.clock();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (clock.sampleCount() < 8 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(clock.isSynchronized());
+        long error = clock.offsetNanos() - PEER_OFFSET_NANOS;
+        assertTrue("Off by " + error, Math.abs(error) < TimeUnit.MILLISECONDS.toNanos(1));
+        long now = System.nanoTime();
+        long local = clock.toLocalNanos((now + PEER_OFFSET_NANOS) / 1000);
+        assertTrue(Math.abs(local - now) < TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(clock.sentNanos(now) <= now);
+        // Sync replies are consumed, never delivered as data
+        assertTrue(mLink.delivered.isEmpty());
+    }
+
+    @Test
+    public void onlyRepliesToOurRequestsAreTaken() throws Exception {
+        Connection connection = mLink.connect(ClockDevice::new);
+        // Application data that happens to look like a reply
+        byte[] lookalike = new byte[18];
+        lookalike[0] = ClockSync.MARKER;
+        lookalike[1] = 's';
+        putLong(lookalike, 2, 12345);
+        mLink.device().send(lookalike);
+        mLink.awaitDelivered(1);
+        assertArrayEquals(lookalike, mLink.delivered.get(0));
+        // Nothing goes to the peer until the app asks for the clock
+        assertNull(connection.clockIfStarted());
+        assertEquals(0, mLink.device().requests);
+
+        ClockSync clock = connection.clock();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!clock.isSynchronized() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(mLink.device().requests > 0);
+        mLink.device().send(lookalike);
+        mLink.awaitDelivered(2);
+        assertEquals(2, mLink.delivered.size());
+    }
+
+    @Test
+    public void silentFirmwareIsLeftAlone() throws Exception {
+        Connection connection = mLink.connect(ClockDevice::new);
+        mLink.device().silent = true;
+        ClockSync clock = connection.clock();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!clock.isUnsupported() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(clock.isUnsupported());
+        assertFalse(clock.isSynchronized());
+        assertEquals(0, clock.sentNanos(1000) - 1000);
+        // Ordinary traffic still flows
+        connection.write(new byte[]{1, 2, 3}).get(1, TimeUnit.SECONDS);
+        mLink.awaitDelivered(1);
+        assertArrayEquals(new byte[]{1, 2, 3}, mLink.delivered.get(0));
+    }
+
+    // Polls a second apart until the clock stops asking, answering none of it; returns the requests
+    private static int pollUnanswered(Connection connection, ClockSync clock, long start) {
+        int requests = 0;
+        for (long now = start; !clock.isUnsupported() && requests < 10; now += TimeUnit.SECONDS.toNanos(1)) {
+            int queued = connection.getWriteQueueDepth();
+            clock.onPoll(now);
+            if (connection.getWriteQueueDepth() != queued) {
+                requests++;
+            }
+        }
+        return requests;
+    }
+
+    @Test
+    public void supportIsFoundOutAgainOnEveryAttach() {
+        Connection connection = new Connection(FakeDeviceRule.ADDRESS, mCodec, address -> null);
+        ClockSync clock = new ClockSync(connection, 1000);
+        BufferPool pool = new BufferPool(1, 32);
+        assertEquals(ClockSync.MAX_UNANSWERED, pollUnanswered(connection, clock, System.nanoTime()));
+        assertTrue(clock.isUnsupported());
+
+        // Reflashed with firmware that answers
+        clock.onAttached();
+        assertFalse(clock.isUnsupported());
+        long now = System.nanoTime();
+        int queued = connection.getWriteQueueDepth();
+        clock.onPoll(now);
+        assertEquals(queued + 1, connection.getWriteQueueDepth());
+        Slab reply = pool.tryAcquire();
+        byte[] data = reply.array();
+        data[0] = ClockSync.MARKER;
+        data[1] = 's';
+        putLong(data, 2, now);
+        putLong(data, 10, (now + PEER_OFFSET_NANOS) / 1000);
+        reply.setLength(18);
+        reply.setReadNanos(now + 1000);
+        assertTrue(clock.onFrame(reply));
+        reply.release();
+
+        // And back to firmware that does not, which an earlier answer must not hide
+        clock.onAttached();
+        assertEquals(ClockSync.MAX_UNANSWERED, pollUnanswered(connection, clock, System.nanoTime()));
+        assertTrue(clock.isUnsupported());
+    }
+
+    @Test
+    public void driftFittedAndSlowRepliesIgnored() {
+        Connection connection = new Connection(FakeDeviceRule.ADDRESS, mCodec, address -> null);
+        long start = System.nanoTime();
+        ClockSync clock = new ClockSync(connection, 1000);
+        BufferPool pool = new BufferPool(1, 32);
+        double drift = 50e-6;
+        long fast = TimeUnit.MICROSECONDS.toNanos(200);
+        int answered = 0;
+        // Ten simulated seconds, polled every ms; every third reply is held up on the way back
+        for (long now = start; now < start + TimeUnit.SECONDS.toNanos(10); now += TimeUnit.MILLISECONDS.toNanos(1)) {
+            int queued = connection.getWriteQueueDepth();
+            clock.onPoll(now);
+            if (connection.getWriteQueueDepth() == queued) {
+                continue;
+            }
+            long peerReads = now + fast / 2;
+            long received = answered++ % 3 == 2 ? now + TimeUnit.MILLISECONDS.toNanos(5) : now + fast;
+            long peerNanos = peerReads + PEER_OFFSET_NANOS + (long) (drift * (peerReads - start));
+            Slab reply = pool.tryAcquire();
+            byte[] data = reply.array();
+            data[0] = ClockSync.MARKER;
+            data[1] = 's';
+            putLong(data, 2, now);
+            putLong(data, 10, peerNanos / 1000);
+            reply.setLength(18);
+            reply.setReadNanos(received);
+            assertTrue(clock.onFrame(reply));
+            reply.release();
+        }
+        assertTrue(clock.sampleCount() > 15);
+        assertEquals(50, clock.driftPpm(), 2);
+        assertEquals(fast / 2, clock.oneWayNanos());
+        // A time the peer reports late in the run maps back to when it happened here
+        long at = start + TimeUnit.SECONDS.toNanos(9);
+        long peerMicros = (at + PEER_OFFSET_NANOS + (long) (drift * (at - start))) / 1000;
+        assertEquals(at, clock.toLocalNanos(peerMicros), TimeUnit.MICROSECONDS.toNanos(5));
+    }
+}
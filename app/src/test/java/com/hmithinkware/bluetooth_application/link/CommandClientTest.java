@@ -0,0 +1,226 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CommandClientTest {
+
+    private static final int REGISTERS = 500;
+
+    private final LengthPrefixCodec mCodec = new LengthPrefixCodec();
+    @Rule
+    public final FakeDeviceRule<RegisterDevice> mLink = new FakeDeviceRule<>(mCodec, null);
+    private RegisterDevice mDevice;
+
+    // Answers register commands from a map. Can batch and reverse its answers, ignore the
+    // first copy of every request, hold back the answer to one id, stay silent or reject
+    // everything.
+    private final class RegisterDevice extends FakeDevice {
+        final Map<Integer, Long> registers = new ConcurrentHashMap<>();
+        final Map<Integer, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        final AtomicInteger received = new AtomicInteger();
+        final List<byte[]> held = new ArrayList<>();
+        int reverseBatch = 1;
+        int withholdId = -1;
+        volatile byte[] withheld;
+        boolean dropFirstAttempt;
+        boolean silent;
+        int rejectStatus;
+
+        RegisterDevice(LoopbackTransport end) throws IOException {
+            super(end, mCodec);
+        }
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            if (buffer[offset] != CommandClient.MARKER) {
+                return;
+            }
+            received.incrementAndGet();
+            int id = ((buffer[offset + 1] & 0xFF) << 8) | (buffer[offset + 2] & 0xFF);
+            int attempt = attempts.computeIfAbsent(id, k -> new AtomicInteger()).incrementAndGet();
+            if (silent || (dropFirstAttempt && attempt == 1)) {
+                return;
+            }
+            int opcode = buffer[offset + 3];
+            int register = ((buffer[offset + 4] & 0xFF) << 8) | (buffer[offset + 5] & 0xFF);
+            byte[] response;
+            if (rejectStatus != 0) {
+                response = new byte[]{CommandClient.MARKER, buffer[offset + 1], buffer[offset + 2], (byte) rejectStatus};
+            } else if (opcode == CommandClient.OP_WRITE_REGISTER) {
+                long value = 0;
+                for (int i = 0; i < 4; i++) {
+                    value = (value << 8) | (buffer[offset + 6 + i] & 0xFF);
+                }
+                registers.put(register, value);
+                response = new byte[]{CommandClient.MARKER, buffer[offset + 1], buffer[offset + 2], CommandClient.STATUS_OK};
+            } else {
+                long value = registers.getOrDefault(register, 0L);
+                response = new byte[]{CommandClient.MARKER, buffer[offset + 1], buffer[offset + 2], CommandClient.STATUS_OK,
+                        (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+            }
+            if (id == withholdId) {
+                withheld = response;
+                return;
+            }
+            held.add(response);
+            if (held.size() >= reverseBatch) {
+                Collections.reverse(held);
+                for (byte[] frame : held) {
+                    send(frame);
+                }
+                held.clear();
+            }
+        }
+    }
+
+    private CommandClient connect() throws Exception {
+        Connection connection = mLink.connect(RegisterDevice::new);
+        mDevice = mLink.device();
+        return connection.commands();
+    }
+
+    @Test
+    public void registerSweepIsPipelined() throws Exception {
+        CommandClient client = connect();
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int register = 0; register < REGISTERS; register++) {
+            writes.add(client.writeRegister(register, 0x10000L * register + 7));
+        }
+        // Only the window is on the wire; the rest wait for responses to free slots
+        assertTrue(client.inFlight() <= 32);
+        for (CompletableFuture<Void> write : writes) {
+            write.get(5, TimeUnit.SECONDS);
+        }
+        List<CompletableFuture<Long>> reads = new ArrayList<>();
+        for (int register = 0; register < REGISTERS; register++) {
+            reads.add(client.readRegister(register));
+        }
+        for (int register = 0; register < REGISTERS; register++) {
+            assertEquals(0x10000L * register + 7, (long) reads.get(register).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(2 * REGISTERS, mDevice.received.get());
+        assertEquals(0, client.inFlight());
+    }
+
+    @Test
+    public void responsesMatchedByIdNotOrder() throws Exception {
+        CommandClient client = connect();
+        mDevice.reverseBatch = 8;
+        for (int register = 0; register < 8; register++) {
+            mDevice.registers.put(register, (long) register * 3);
+        }
+        List<CompletableFuture<Long>> reads = new ArrayList<>();
+        for (int register = 0; register < 8; register++) {
+            reads.add(client.readRegister(register));
+        }
+        for (int register = 0; register < 8; register++) {
+            assertEquals(register * 3L, (long) reads.get(register).get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void outOfOrderAnswersNeverReuseABusySlot() throws Exception {
+        CommandClient client = connect();
+        mDevice.withholdId = 0;
+        List<CompletableFuture<Long>> reads = new ArrayList<>();
+        for (int register = 0; register < 32; register++) {
+            reads.add(client.readRegister(register));
+        }
+        for (int register = 1; register < 32; register++) {
+            reads.get(register).get(5, TimeUnit.SECONDS);
+        }
+        // The next id in order shares a slot with the unanswered first request
+        mDevice.registers.put(7, 77L);
+        assertEquals(77L, (long) client.readRegister(7).get(5, TimeUnit.SECONDS));
+        assertEquals(1, client.inFlight());
+        assertFalse(reads.get(0).isDone());
+
+        mDevice.send(mDevice.withheld);
+        assertEquals(0L, (long) reads.get(0).get(5, TimeUnit.SECONDS));
+        assertEquals(0, client.inFlight());
+    }
+
+    @Test
+    public void lostResponsesAreRetried() throws Exception {
+        CommandClient client = connect();
+        mDevice.dropFirstAttempt = true;
+        mDevice.registers.put(1, 42L);
+        assertEquals(42L, (long) client.readRegister(1).get(5, TimeUnit.SECONDS));
+        assertEquals(2, mDevice.received.get());
+    }
+
+    @Test
+    public void unansweredRequestTimesOutAfterRetries() throws Exception {
+        CommandClient client = connect();
+        mDevice.silent = true;
+        try {
+            client.readRegister(1).get(5, TimeUnit.SECONDS);
+            fail("Expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        // First attempt plus two retries
+        assertEquals(3, mDevice.received.get());
+        assertEquals(0, client.inFlight());
+        // An answer that turns up after giving up is still recognised as ours
+        mDevice.send(new byte[]{CommandClient.MARKER, 0, 0, CommandClient.STATUS_OK});
+        mDevice.send(new byte[]{'x'});
+        mLink.awaitDelivered(1);
+        assertArrayEquals(new byte[]{'x'}, mLink.delivered.get(0));
+    }
+
+    @Test
+    public void errorStatusFailsTheRequest() throws Exception {
+        CommandClient client = connect();
+        mDevice.rejectStatus = 5;
+        try {
+            client.writeRegister(1, 1).get(5, TimeUnit.SECONDS);
+            fail("Expected a command failure");
+        } catch (ExecutionException e) {
+            assertEquals(5, ((CommandClient.CommandException) e.getCause()).getStatus());
+        }
+    }
+
+    @Test
+    public void otherFramesStillReachTheListener() throws Exception {
+        CommandClient client = connect();
+        client.writeRegister(1, 1).get(5, TimeUnit.SECONDS);
+        mDevice.send(new byte[]{'h', 'i'});
+        // Starts with the marker but answers nothing we asked
+        byte[] unsolicited = {CommandClient.MARKER, 0x12, 0x34, 0, 9};
+        mDevice.send(unsolicited);
+        mLink.awaitDelivered(2);
+        assertEquals(2, mLink.delivered.size());
+        assertArrayEquals(new byte[]{'h', 'i'}, mLink.delivered.get(0));
+        assertArrayEquals(unsolicited, mLink.delivered.get(1));
+    }
+
+    @Test
+    public void disconnectFailsOutstandingRequests() throws Exception {
+        CommandClient client = connect();
+        mDevice.silent = true;
+        CompletableFuture<Long> read = client.readRegister(1);
+        mLink.manager().disconnect(FakeDeviceRule.ADDRESS);
+        try {
+            read.get(5, TimeUnit.SECONDS);
+            fail("Expected failure on disconnect");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ConnectionManagerTest {
+
+    private static final int LOOPS = 2;
+    private static final int FRAMES_PER_DEVICE = 2000;
+    private static final int PAYLOAD = 200;
+
+    private final LengthPrefixCodec mCodec = new LengthPrefixCodec();
+    private final Map<String, LoopbackTransport> mPeers = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> mFrames = new ConcurrentHashMap<>();
+    private final Map<String, CountDownLatch> mClosed = new ConcurrentHashMap<>();
+    private ConnectionManager mManager;
+
+    private final ConnectionManager.Listener mListener = new ConnectionManager.Listener() {
+        @Override
+        public void onFrame(Connection connection, Slab frame) {
+            AtomicLong count = mFrames.get(connection.getAddress());
+            // Each peer numbers its frames, so ordering is checked per connection
+            int seq = ((frame.array()[0] & 0xFF) << 8) | (frame.array()[1] & 0xFF);
+            assertEquals((int) (count.get() & 0xFFFF), seq);
+            count.incrementAndGet();
+            frame.release();
+        }
+
+        @Override
+        public void onStateChanged(Connection connection, Connection.State state) {
+            if (state == Connection.State.CLOSED) {
+                CountDownLatch latch = mClosed.get(connection.getAddress());
+                if (latch != null) {
+                    latch.countDown();
+                }
+            }
+        }
+    };
+
+    private final ConnectionManager.TransportFactory mFactory = address -> {
+        LoopbackTransport[] ends = LoopbackTransport.pair(address);
+        mPeers.put(address, ends[1]);
+        mFrames.put(address, new AtomicLong());
+        mClosed.put(address, new CountDownLatch(1));
+        return ends[0];
+    };
+
+    @After
+    public void tearDown() {
+        if (mManager != null) {
+            mManager.close();
+        }
+    }
+
+    private static String mac(int i) {
+        return String.format("00:11:22:33:44:%02X", i);
+    }
+
+    private static int liveLoopThreads() {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("LinkLoop-") && t.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void threadCountStaysFixedAsConnectionsScale() throws Exception {
+        for (int devices : new int[]{1, 4, 8}) {
+            mManager = new ConnectionManager(LOOPS, mCodec, mListener);
+            mPeers.clear();
+            for (int i = 0; i < devices; i++) {
+                mManager.connect(mac(i), mFactory).get(2, TimeUnit.SECONDS);
+            }
+            assertEquals(LOOPS, liveLoopThreads());
+            assertEquals(LOOPS + 1, mManager.threadCount());
+
+            List<Thread> senders = new ArrayList<>();
+            for (int i = 0; i < devices; i++) {
+                OutputStream out = mPeers.get(mac(i)).getOutputStream();
+                senders.add(new Thread(() -> sendFrames(out)));
+            }
+            for (Thread sender : senders) {
+                sender.start();
+            }
+            for (int i = 0; i < devices; i++) {
+                AtomicLong count = mFrames.get(mac(i));
+                long deadline = System.currentTimeMillis() + 10_000;
+                while (count.get() < FRAMES_PER_DEVICE && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(1);
+                }
+                assertEquals(FRAMES_PER_DEVICE, count.get());
+            }
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            for (Connection connection : mManager.connections()) {
+                assertEquals(FRAMES_PER_DEVICE, connection.getFramesIn());
+            }
+            mManager.close();
+            mManager = null;
+            Thread.sleep(50);
+        }
+    }
+
+    private void sendFrames(OutputStream out) {
+        byte[] payload = new byte[PAYLOAD];
+        byte[] wire = new byte[mCodec.maxEncodedSize(PAYLOAD)];
+        try {
+            for (int seq = 0; seq < FRAMES_PER_DEVICE; seq++) {
+                payload[0] = (byte) (seq >>> 8);
+                payload[1] = (byte) seq;
+                out.write(wire, 0, mCodec.encode(payload, 0, PAYLOAD, wire, 0));
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void connectorPoolLetsConnectsOverlap() throws Exception {
+        mManager = new ConnectionManager(LOOPS, 3, mCodec, mListener, null);
+        assertEquals(LOOPS + 3, mManager.threadCount());
+        // Each connect blocks until all three are in progress at once
+        CountDownLatch inProgress = new CountDownLatch(3);
+        ConnectionManager.TransportFactory slow = address -> {
+            inProgress.countDown();
+            try {
+                if (!inProgress.await(2, TimeUnit.SECONDS)) {
+                    throw new IOException("Connects ran one at a time");
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return mFactory.create(address);
+        };
+        List<java.util.concurrent.CompletableFuture<Connection>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(mManager.connect(mac(i), slow));
+        }
+        for (java.util.concurrent.CompletableFuture<Connection> result : results) {
+            assertEquals(Connection.State.CONNECTED, result.get(5, TimeUnit.SECONDS).getState());
+        }
+    }
+
+    @Test
+    public void slowConsumerHoldsOffReadsInsteadOfDropping() throws Exception {
+        List<Slab> held = new ArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        mManager = new ConnectionManager(1, mCodec, new ConnectionManager.Listener() {
+            @Override
+            public void onFrame(Connection connection, Slab frame) {
+                // Sits on every frame slab until told to let go, then keeps up
+                if (release.getCount() > 0) {
+                    synchronized (held) {
+                        held.add(frame.retain());
+                    }
+                }
+                mListener.onFrame(connection, frame);
+            }
+
+            @Override
+            public void onStateChanged(Connection connection, Connection.State state) {
+            }
+        });
+        Connection connection = mManager.connect(mac(1), mFactory).get(2, TimeUnit.SECONDS);
+        Thread sender = new Thread(() -> sendFrames(mPeers.get(mac(1)).getOutputStream()));
+        sender.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (heldCount(held) < Connection.FRAME_SLABS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        // The loop stops reading once the slabs are gone, so the peer's pipe fills and it blocks
+        while (sender.getState() != Thread.State.WAITING && sender.getState() != Thread.State.TIMED_WAITING
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(sender.isAlive());
+        synchronized (held) {
+            assertEquals(Connection.FRAME_SLABS, held.size());
+            assertEquals(Connection.FRAME_SLABS, mFrames.get(mac(1)).get());
+            release.countDown();
+            for (Slab frame : held) {
+                frame.release();
+            }
+        }
+        sender.join(10_000);
+        deadline = System.currentTimeMillis() + 10_000;
+        while (mFrames.get(mac(1)).get() < FRAMES_PER_DEVICE && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        // Every frame arrived, in order, checked by the listener
+        assertEquals(FRAMES_PER_DEVICE, mFrames.get(mac(1)).get());
+        assertEquals(0, connection.getMetrics().framesDropped());
+    }
+
+    private static int heldCount(List<Slab> held) {
+        synchronized (held) {
+            return held.size();
+        }
+    }
+
+    @Test
+    public void writesReachTheRightPeer() throws Exception {
+        mManager = new ConnectionManager(LOOPS, mCodec, mListener);
+        Connection a = mManager.connect(mac(1), mFactory).get(2, TimeUnit.SECONDS);
+        Connection b = mManager.connect(mac(2), mFactory).get(2, TimeUnit.SECONDS);
+
+        a.write(new byte[]{'A'}).get(2, TimeUnit.SECONDS);
+        b.write(new byte[]{'B', 'B'}).get(2, TimeUnit.SECONDS);
+
+        assertEquals('A', readExactly(mPeers.get(mac(1)).getInputStream(), 5)[2]);
+        assertArrayEquals(new byte[]{'B', 'B'}, slice(readExactly(mPeers.get(mac(2)).getInputStream(), 6), 2, 2));
+        assertEquals(1, a.getFramesOut());
+        assertEquals(6, b.getBytesOut());
+    }
+
+    @Test
+    public void emptyLoopParksUntilAConnectionArrives() throws Exception {
+        mManager = new ConnectionManager(1, mCodec, mListener);
+        // Waiting without a timeout, not backing off on a timer
+        long deadline = System.currentTimeMillis() + 2000;
+        Thread loop = null;
+        while (loop == null && System.currentTimeMillis() < deadline) {
+            for (Thread t : Thread.getAllStackTraces().keySet()) {
+                if (t.getName().startsWith("LinkLoop-") && t.getState() == Thread.State.WAITING) {
+                    loop = t;
+                }
+            }
+            Thread.sleep(1);
+        }
+        assertNotNull(loop);
+        assertEquals(1, liveLoopThreads());
+
+        Connection connection = mManager.connect(mac(1), mFactory).get(2, TimeUnit.SECONDS);
+        connection.write(new byte[]{'A'}).get(2, TimeUnit.SECONDS);
+        assertEquals('A', readExactly(mPeers.get(mac(1)).getInputStream(), 5)[2]);
+    }
+
+    @Test
+    public void peerDisconnectClosesOnlyThatConnection() throws Exception {
+        mManager = new ConnectionManager(LOOPS, mCodec, mListener);
+        mManager.connect(mac(1), mFactory).get(2, TimeUnit.SECONDS);
+        mManager.connect(mac(2), mFactory).get(2, TimeUnit.SECONDS);
+
+        mPeers.get(mac(1)).close();
+
+        assertTrue(mClosed.get(mac(1)).await(2, TimeUnit.SECONDS));
+        assertNull(mManager.get(mac(1)));
+        assertEquals(Connection.State.CONNECTED, mManager.get(mac(2)).getState());
+    }
+
+    @Test
+    public void failedConnectIsReported() throws Exception {
+        mManager = new ConnectionManager(LOOPS, mCodec, mListener);
+        try {
+            mManager.connect(mac(9), address -> {
+                throw new IOException("SDP lookup failed");
+            }).get(2, TimeUnit.SECONDS);
+            fail();
+        } catch (java.util.concurrent.ExecutionException expected) {
+            assertEquals("SDP lookup failed", expected.getCause().getMessage());
+        }
+        assertNull(mManager.get(mac(9)));
+    }
+
+    @Test
+    public void droppedLinkReconnectsAndReplaysQueuedWrites() throws Exception {
+        AtomicLong attempts = new AtomicLong();
+        ConnectionManager.TransportFactory flaky = address -> {
+            // The first retry fails, as if the peripheral were still rebooting
+            if (attempts.incrementAndGet() == 2) {
+                throw new IOException("Page timeout");
+            }
+            return mFactory.create(address);
+        };
+        List<Connection.State> states = java.util.Collections.synchronizedList(new ArrayList<>());
+        mManager = new ConnectionManager(LOOPS, mCodec, new ConnectionManager.Listener() {
+            @Override
+            public void onFrame(Connection connection, Slab frame) {
+                frame.release();
+            }
+
+            @Override
+            public void onStateChanged(Connection connection, Connection.State state) {
+                states.add(state);
+            }
+        }, new ReconnectPolicy(10, 40, 0));
+        Connection connection = mManager.connect(mac(1), flaky).get(2, TimeUnit.SECONDS);
+        LoopbackTransport firstPeer = mPeers.get(mac(1));
+
+        firstPeer.close();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (connection.getState() != Connection.State.RECONNECTING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Connection.State.RECONNECTING, connection.getState());
+        // Written during the outage; must come out on the new link
+        java.util.concurrent.CompletableFuture<Void> queued = connection.write(new byte[]{'Q'});
+
+        queued.get(5, TimeUnit.SECONDS);
+        assertEquals(Connection.State.CONNECTED, connection.getState());
+        assertSame(connection, mManager.get(mac(1)));
+        assertEquals(3, attempts.get());
+        LoopbackTransport secondPeer = mPeers.get(mac(1));
+        assertNotSame(firstPeer, secondPeer);
+        assertEquals('Q', readExactly(secondPeer.getInputStream(), 5)[2]);
+        assertEquals(1, connection.getMetrics().reconnects());
+        assertEquals(Arrays.asList(Connection.State.CONNECTING, Connection.State.CONNECTED,
+                Connection.State.RECONNECTING, Connection.State.CONNECTED), states);
+    }
+
+    @Test
+    public void connectionWithoutAPolicyClosesInsteadOfReconnecting() throws Exception {
+        mManager = new ConnectionManager(LOOPS, mCodec, mListener, new ReconnectPolicy(10, 10, 0));
+        mManager.connect(mac(1), mFactory, null).get(2, TimeUnit.SECONDS);
+        Connection other = mManager.connect(mac(2), mFactory).get(2, TimeUnit.SECONDS);
+
+        mPeers.get(mac(1)).close();
+        assertTrue(mClosed.get(mac(1)).await(2, TimeUnit.SECONDS));
+        assertNull(mManager.get(mac(1)));
+
+        // The manager's own policy still applies to everything else
+        mPeers.get(mac(2)).close();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (other.getMetrics().reconnects() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, other.getMetrics().reconnects());
+    }
+
+    @Test
+    public void disconnectStopsReconnecting() throws Exception {
+        mManager = new ConnectionManager(LOOPS, mCodec, mListener, new ReconnectPolicy(50, 50, 0));
+        Connection connection = mManager.connect(mac(1), mFactory).get(2, TimeUnit.SECONDS);
+        mPeers.get(mac(1)).close();
+        while (connection.getState() == Connection.State.CONNECTED) {
+            Thread.sleep(1);
+        }
+        mManager.disconnect(mac(1));
+        java.util.concurrent.CompletableFuture<Void> write = connection.write(new byte[]{1});
+
+        Thread.sleep(150);
+        assertEquals(Connection.State.CLOSED, connection.getState());
+        assertNull(mManager.get(mac(1)));
+        assertTrue(write.isCompletedExceptionally());
+    }
+
+    // Never polled, so nothing drains its write queue
+    private Connection idleConnection(Connection.Overflow overflow) {
+        Connection connection = new Connection(mac(1), mCodec, address -> null);
+        connection.setWriteOverflow(overflow);
+        return connection;
+    }
+
+    private static String failure(CompletableFuture<Void> future) {
+        try {
+            future.get(0, TimeUnit.SECONDS);
+            return null;
+        } catch (Exception e) {
+            return e.getCause().getMessage();
+        }
+    }
+
+    @Test
+    public void failOverflowRejectsTheNewWrite() {
+        Connection connection = idleConnection(Connection.Overflow.FAIL);
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        CompletableFuture<Void> write;
+        while (!(write = connection.write(new byte[]{1})).isDone()) {
+            writes.add(write);
+        }
+        assertEquals("Write queue full", failure(write));
+        for (CompletableFuture<Void> queued : writes) {
+            assertFalse(queued.isDone());
+        }
+        connection.shutdown();
+        assertEquals("Connection closed", failure(writes.get(0)));
+    }
+
+    @Test
+    public void dropOldestOverflowKeepsTheNewestWrites() {
+        Connection connection = idleConnection(Connection.Overflow.DROP_OLDEST);
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            writes.add(connection.write(new byte[]{1}));
+        }
+        int kept = 0;
+        while (!writes.get(writes.size() - 1 - kept).isDone()) {
+            kept++;
+        }
+        assertTrue(kept > 0 && kept < writes.size());
+        // Everything older than what was kept was evicted
+        for (int i = 0; i < writes.size() - kept; i++) {
+            assertEquals("Dropped: write queue full", failure(writes.get(i)));
+        }
+    }
+
+    @Test
+    public void blockOverflowWaitsForRoom() throws Exception {
+        Connection connection = idleConnection(Connection.Overflow.FAIL);
+        while (!connection.write(new byte[]{1}).isDone()) {
+            // Fill the queue
+        }
+        connection.setWriteOverflow(Connection.Overflow.BLOCK);
+        CompletableFuture<CompletableFuture<Void>> blocked = new CompletableFuture<>();
+        Thread writer = new Thread(() -> blocked.complete(connection.write(new byte[]{1})));
+        writer.start();
+        while (writer.getState() != Thread.State.TIMED_WAITING) {
+            assertTrue(writer.isAlive());
+            Thread.yield();
+        }
+        assertFalse(blocked.isDone());
+        connection.shutdown();
+        assertEquals("Connection closed", failure(blocked.get(2, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void backoffGrowsWithJitterUpToTheCap() {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 5);
+        java.util.Random random = new java.util.Random(7);
+        long[] ceilings = {100, 200, 400, 800, 1000, 1000};
+        for (int attempt = 1; attempt <= ceilings.length; attempt++) {
+            long delay = policy.delayMillis(attempt, random);
+            assertTrue(delay >= ceilings[attempt - 1] / 2 && delay <= ceilings[attempt - 1]);
+        }
+        assertTrue(policy.shouldRetry(5));
+        assertFalse(policy.shouldRetry(6));
+    }
+
+    private static byte[] readExactly(InputStream in, int n) throws IOException {
+        byte[] data = new byte[n];
+        for (int read = 0; read < n; ) {
+            int r = in.read(data, read, n - read);
+            if (r < 0) {
+                throw new IOException("EOF");
+            }
+            read += r;
+        }
+        return data;
+    }
+
+    private static byte[] slice(byte[] data, int off, int len) {
+        byte[] out = new byte[len];
+        System.arraycopy(data, off, out, 0, len);
+        return out;
+    }
+}
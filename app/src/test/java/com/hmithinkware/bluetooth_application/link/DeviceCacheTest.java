@@ -0,0 +1,93 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeviceCacheTest {
+
+    @Rule
+    public final TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Test
+    public void entriesSurviveARestart() throws Exception {
+        File file = new File(mTemp.getRoot(), "devices.bin");
+        DeviceCache cache = new DeviceCache(file);
+        cache.recordConnect("00:11:22:33:44:01", 3, false, 850, 1000);
+        cache.rememberName("00:11:22:33:44:01", "Pump controller");
+        cache.recordConnect("00:11:22:33:44:02", 1, true, 120, 2000);
+
+        DeviceCache reloaded = new DeviceCache(file);
+        DeviceCache.Entry pump = reloaded.get("00:11:22:33:44:01");
+        assertEquals("Pump controller", pump.getName());
+        assertEquals(3, pump.getChannel());
+        assertFalse(pump.isSecure());
+        assertEquals(850, pump.getConnectMillis());
+        assertNull(reloaded.get("00:11:22:33:44:02").getName());
+        assertNull(reloaded.get("00:11:22:33:44:03"));
+    }
+
+    @Test
+    public void sessionIsMostRecentFirstAndDropsDisconnectedDevices() throws Exception {
+        DeviceCache cache = new DeviceCache(new File(mTemp.getRoot(), "devices.bin"));
+        cache.recordConnect("A", 1, true, 100, 1000);
+        cache.recordConnect("B", 2, true, 100, 3000);
+        cache.recordConnect("C", 3, true, 100, 2000);
+        cache.endSession("C");
+
+        List<DeviceCache.Entry> session = cache.session();
+        assertEquals(2, session.size());
+        assertEquals("B", session.get(0).getAddress());
+        assertEquals("A", session.get(1).getAddress());
+        // Connecting again puts it back
+        cache.recordConnect("C", 3, true, 90, 4000);
+        assertEquals("C", cache.session().get(0).getAddress());
+    }
+
+    @Test
+    public void forgottenChannelKeepsTheRestOfTheEntry() throws Exception {
+        DeviceCache cache = new DeviceCache(new File(mTemp.getRoot(), "devices.bin"));
+        cache.recordConnect("A", 5, false, 400, 1000);
+        cache.forgetChannel("A");
+
+        DeviceCache.Entry entry = cache.get("A");
+        assertEquals(0, entry.getChannel());
+        assertFalse(entry.isSecure());
+        assertTrue(entry.isInSession());
+    }
+
+    @Test
+    public void clockSyncIsOptInAndSurvivesReconnects() throws Exception {
+        File file = new File(mTemp.getRoot(), "devices.bin");
+        DeviceCache cache = new DeviceCache(file);
+        cache.recordConnect("A", 1, true, 100, 1000);
+        assertFalse(cache.get("A").isClockSync());
+        cache.setClockSync("A", true);
+        // BLE peripherals have no RFCOMM entry until opted in
+        cache.setClockSync("B", true);
+        cache.recordConnect("A", 1, true, 90, 2000);
+
+        DeviceCache reloaded = new DeviceCache(file);
+        assertTrue(reloaded.get("A").isClockSync());
+        assertTrue(reloaded.get("B").isClockSync());
+        assertFalse(reloaded.get("B").isInSession());
+    }
+
+    @Test
+    public void unreadableFileMeansEmptyCache() throws Exception {
+        File file = mTemp.newFile("devices.bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{0, 0, 0, 1, 0, 0, 0, 9, 0});
+        }
+        DeviceCache cache = new DeviceCache(file);
+        assertTrue(cache.session().isEmpty());
+        cache.recordConnect("A", 1, true, 100, 1000);
+        assertEquals(1, new DeviceCache(file).session().size());
+    }
+}
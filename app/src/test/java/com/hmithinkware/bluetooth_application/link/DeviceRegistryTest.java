@@ -0,0 +1,74 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+
+    private final DeviceRegistry mRegistry = new DeviceRegistry();
+    private final DeviceRegistry.Changes mChanges = new DeviceRegistry.Changes();
+
+    private static String mac(int i) {
+        return String.format("00:11:22:33:44:%02X", i);
+    }
+
+    @Test
+    public void repeatSightingsMergeIntoOneRow() {
+        for (int event = 0; event < 500; event++) {
+            mRegistry.update(mac(event % 5), "Sensor " + (event % 5), -60 - (event % 3), false, event);
+        }
+
+        assertEquals(5, mRegistry.size());
+        mRegistry.drainChanges(mChanges);
+        assertEquals(0, mChanges.insertedFrom());
+        assertEquals(5, mChanges.insertedCount());
+        // Changes to rows not yet published are part of the insert
+        assertEquals(0, mChanges.changedCount());
+        DeviceRegistry.Device device = mRegistry.find(mac(3));
+        assertEquals(3, device.getPosition());
+        assertEquals(498, device.getLastSeenMillis());
+    }
+
+    @Test
+    public void drainReportsEachChangedRowOnce() {
+        mRegistry.update(mac(1), "A", -50, false, 0);
+        mRegistry.update(mac(2), "B", -50, false, 0);
+        mRegistry.drainChanges(mChanges);
+
+        mRegistry.update(mac(2), null, -70, false, 1);
+        mRegistry.update(mac(2), null, -71, false, 2);
+        assertFalse(mRegistry.update(mac(1), null, DeviceRegistry.RSSI_UNKNOWN, false, 3));
+        mRegistry.update(mac(3), "C", DeviceRegistry.RSSI_UNKNOWN, true, 4);
+        mRegistry.drainChanges(mChanges);
+
+        assertEquals(2, mChanges.insertedFrom());
+        assertEquals(1, mChanges.insertedCount());
+        assertEquals(1, mChanges.changedCount());
+        assertEquals(1, mChanges.changedPosition(0));
+        assertEquals("B", mRegistry.get(1).getName());
+        assertEquals(-71, mRegistry.get(1).getRssi());
+        assertTrue(mRegistry.get(2).isBonded());
+
+        mRegistry.drainChanges(mChanges);
+        assertTrue(mChanges.isEmpty());
+    }
+
+    @Test
+    public void bondingIsAChange() {
+        mRegistry.update(mac(1), "A", -50, false, 0);
+        mRegistry.drainChanges(mChanges);
+        for (int i = 0; i < 40; i++) {
+            mRegistry.update(mac(10 + i), null, -40, false, 1);
+        }
+        mRegistry.drainChanges(mChanges);
+
+        assertTrue(mRegistry.update(mac(1), null, DeviceRegistry.RSSI_UNKNOWN, true, 2));
+        for (int i = 0; i < 40; i++) {
+            mRegistry.update(mac(10 + i), null, -41, false, 3);
+        }
+        mRegistry.drainChanges(mChanges);
+        assertEquals(41, mChanges.changedCount());
+        assertEquals(0, mChanges.changedPosition(0));
+    }
+}
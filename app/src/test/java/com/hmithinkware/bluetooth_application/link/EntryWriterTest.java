@@ -0,0 +1,92 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class EntryWriterTest {
+
+    private static final class Entry {
+        int value;
+    }
+
+    // Records what it was given; never asks to be called back
+    private static final class RecordingSink implements EntryWriter.Sink<Entry> {
+        final List<Integer> written = new CopyOnWriteArrayList<>();
+        volatile int ticks;
+        volatile boolean finished;
+
+        @Override
+        public Entry newEntry() {
+            return new Entry();
+        }
+
+        @Override
+        public void write(Entry entry) {
+            written.add(entry.value);
+        }
+
+        @Override
+        public long tick(long nowNanos) {
+            ticks++;
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public void finish() {
+            finished = true;
+        }
+    }
+
+    private static void publish(EntryWriter<Entry> writer, int value) {
+        Entry entry = writer.take();
+        assertNotNull(entry);
+        entry.value = value;
+        writer.publish(entry);
+    }
+
+    @Test
+    public void aParkedWriterWakesForEveryPublish() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        EntryWriter<Entry> writer = new EntryWriter<>("test", 4, sink);
+        writer.start();
+        for (int i = 0; i < 100; i++) {
+            // Let it park with no deadline, then make sure one publish is enough to wake it
+            while (sink.ticks <= i) {
+                Thread.sleep(1);
+            }
+            publish(writer, i);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (sink.written.size() <= i && System.currentTimeMillis() < deadline) {
+                Thread.yield();
+            }
+            assertEquals(i + 1, sink.written.size());
+        }
+        writer.close();
+        assertTrue(sink.finished);
+        assertNull(writer.take());
+    }
+
+    @Test
+    public void closeWithoutStartWritesWhatWasPublished() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        EntryWriter<Entry> writer = new EntryWriter<>("test", 4, sink);
+        publish(writer, 1);
+        publish(writer, 2);
+        writer.close();
+        assertEquals(Arrays.asList(1, 2), sink.written);
+        assertTrue(sink.finished);
+    }
+
+    @Test
+    public void noEntryIsHandedOutWhileAllArePending() {
+        EntryWriter<Entry> writer = new EntryWriter<>("test", 2, new RecordingSink());
+        publish(writer, 1);
+        publish(writer, 2);
+        assertNull(writer.take());
+    }
+}
@@ -0,0 +1,62 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The peripheral's end of a {@link LoopbackTransport}. Once started, a thread decodes what the
+ * phone sends and hands each frame to {@link #onFrame}; {@link #send} answers. Tests subclass
+ * it with whatever firmware they need and connect it through {@link FakeDeviceRule}.
+ */
+abstract class FakeDevice implements FrameListener {
+    final LoopbackTransport end;
+    private final FrameCodec mCodec;
+    private final OutputStream mOut;
+    private final int mBytesPerMilli;
+
+    FakeDevice(LoopbackTransport end, FrameCodec codec) throws IOException {
+        this(end, codec, 0);
+    }
+
+    // Reads at most bytesPerMilli a millisecond, so the phone fills the pipe as on a slow link;
+    // 0 reads as fast as it can
+    FakeDevice(LoopbackTransport end, FrameCodec codec, int bytesPerMilli) throws IOException {
+        this.end = end;
+        mCodec = codec;
+        mOut = end.getOutputStream();
+        mBytesPerMilli = bytesPerMilli;
+    }
+
+    // Called once the subclass is fully constructed, so no frame sees it half built
+    final void start() throws IOException {
+        InputStream in = end.getInputStream();
+        FrameDecoder decoder = mCodec.newDecoder(this);
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[mBytesPerMilli > 0 ? mBytesPerMilli : 4096];
+            try {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    decoder.feed(buffer, 0, n);
+                    if (mBytesPerMilli > 0) {
+                        Thread.sleep(1);
+                    }
+                }
+            } catch (IOException | InterruptedException ignored) {
+                // Link closed
+            }
+        }, "FakeDevice");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void send(byte[] payload) {
+        byte[] wire = new byte[mCodec.maxEncodedSize(payload.length)];
+        try {
+            mOut.write(wire, 0, mCodec.encode(payload, 0, payload.length, wire, 0));
+            mOut.flush();
+        } catch (IOException ignored) {
+            // Link closed
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.rules.ExternalResource;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A one-loop {@link ConnectionManager} whose peers are {@link FakeDevice}s over loopback.
+ * Every frame that reaches the app is copied into {@link #delivered}, and every device made
+ * for a connect or reconnect is kept in {@link #devices}, oldest first.
+ */
+final class FakeDeviceRule<T extends FakeDevice> extends ExternalResource {
+    static final String ADDRESS = "00:11:22:33:44:55";
+
+    interface Factory<T> {
+        T create(LoopbackTransport end) throws IOException;
+    }
+
+    final List<byte[]> delivered = new CopyOnWriteArrayList<>();
+    final List<T> devices = new CopyOnWriteArrayList<>();
+    private final FrameCodec mCodec;
+    private final ReconnectPolicy mReconnectPolicy;
+    private ConnectionManager mManager;
+
+    // A null policy closes the connection when the device hangs up
+    FakeDeviceRule(FrameCodec codec, ReconnectPolicy reconnectPolicy) {
+        mCodec = codec;
+        mReconnectPolicy = reconnectPolicy;
+    }
+
+    @Override
+    protected void before() {
+        mManager = new ConnectionManager(1, mCodec, new ConnectionManager.Listener() {
+            @Override
+            public void onFrame(Connection connection, Slab frame) {
+                byte[] copy = new byte[frame.length()];
+                System.arraycopy(frame.array(), 0, copy, 0, copy.length);
+                delivered.add(copy);
+                frame.release();
+            }
+
+            @Override
+            public void onStateChanged(Connection connection, Connection.State state) {
+            }
+        }, mReconnectPolicy);
+    }
+
+    @Override
+    protected void after() {
+        mManager.close();
+    }
+
+    ConnectionManager manager() {
+        return mManager;
+    }
+
+    Connection connect(Factory<T> factory) throws Exception {
+        return connect(LoopbackTransport.DEFAULT_BUFFER_SIZE, factory);
+    }
+
+    // The factory is called again for every reconnect
+    Connection connect(int pipeBytes, Factory<T> factory) throws Exception {
+        return mManager.connect(ADDRESS, address -> {
+            LoopbackTransport[] ends = LoopbackTransport.pair(address, pipeBytes);
+            T device = factory.create(ends[1]);
+            devices.add(device);
+            device.start();
+            return ends[0];
+        }).get(2, TimeUnit.SECONDS);
+    }
+
+    // The most recently connected device
+    T device() {
+        return devices.get(devices.size() - 1);
+    }
+
+    void awaitDelivered(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (delivered.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+}
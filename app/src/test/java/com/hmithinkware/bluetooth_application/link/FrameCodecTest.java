@@ -0,0 +1,211 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+
+    private static final class Collector implements FrameListener {
+        final List<byte[]> frames = new ArrayList<>();
+        final List<byte[]> sources = new ArrayList<>();
+        int errors;
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+            sources.add(buffer);
+        }
+
+        @Override
+        public void onFrameError(String reason) {
+            errors++;
+        }
+    }
+
+    private static List<byte[]> randomPayloads(Random random, int count, int maxLength) {
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] payload = new byte[random.nextInt(maxLength + 1)];
+            random.nextBytes(payload);
+            // Plenty of zeros to exercise COBS run handling
+            for (int j = 0; j < payload.length; j += 1 + random.nextInt(8)) {
+                payload[j] = 0;
+            }
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+
+    private static byte[] encodeAll(FrameCodec codec, List<byte[]> payloads) {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        byte[] scratch = new byte[codec.maxEncodedSize(codec.maxPayload())];
+        for (byte[] payload : payloads) {
+            int n = codec.encode(payload, 0, payload.length, scratch, 0);
+            assertTrue(n <= codec.maxEncodedSize(payload.length));
+            wire.write(scratch, 0, n);
+        }
+        return wire.toByteArray();
+    }
+
+    // Feeds the wire bytes in random sized chunks, like partial RFCOMM reads
+    private static void feedChunked(FrameDecoder decoder, byte[] wire, Random random) {
+        for (int pos = 0; pos < wire.length; ) {
+            int n = Math.min(wire.length - pos, 1 + random.nextInt(700));
+            byte[] chunk = Arrays.copyOfRange(wire, pos, pos + n);
+            decoder.feed(chunk, 0, n);
+            pos += n;
+        }
+    }
+
+    private static void assertRoundTrip(FrameCodec codec) {
+        Random random = new Random(42);
+        List<byte[]> payloads = randomPayloads(random, 500, codec.maxPayload());
+        byte[] wire = encodeAll(codec, payloads);
+
+        Collector collector = new Collector();
+        feedChunked(codec.newDecoder(collector), wire, random);
+
+        assertEquals(0, collector.errors);
+        assertEquals(payloads.size(), collector.frames.size());
+        for (int i = 0; i < payloads.size(); i++) {
+            assertArrayEquals("Frame " + i, payloads.get(i), collector.frames.get(i));
+        }
+    }
+
+    @Test
+    public void crc16_matchesCheckValue() {
+        byte[] check = "123456789".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+        assertEquals(0x29B1, Crc16.compute(check, 0, check.length));
+    }
+
+    @Test
+    public void lengthPrefix_reassemblesAcrossPartialReads() {
+        assertRoundTrip(new LengthPrefixCodec(600));
+    }
+
+    @Test
+    public void cobs_reassemblesAcrossPartialReads() {
+        assertRoundTrip(new CobsCodec(600));
+    }
+
+    @Test
+    public void lengthPrefix_wholeFrameIsDeliveredWithoutCopy() {
+        LengthPrefixCodec codec = new LengthPrefixCodec();
+        byte[] wire = encodeAll(codec, Arrays.asList(new byte[]{1, 2, 3}, new byte[]{4}));
+
+        Collector collector = new Collector();
+        codec.newDecoder(collector).feed(wire, 0, wire.length);
+
+        assertEquals(2, collector.frames.size());
+        assertSame(wire, collector.sources.get(0));
+        assertSame(wire, collector.sources.get(1));
+    }
+
+    @Test
+    public void lengthPrefix_corruptedFrameIsRejected() {
+        LengthPrefixCodec codec = new LengthPrefixCodec();
+        byte[] wire = encodeAll(codec, Arrays.asList(new byte[]{1, 2, 3}, new byte[]{4, 5}));
+        wire[3] ^= 0x40;
+
+        Collector collector = new Collector();
+        codec.newDecoder(collector).feed(wire, 0, wire.length);
+
+        assertEquals(1, collector.errors);
+        assertEquals(1, collector.frames.size());
+        assertArrayEquals(new byte[]{4, 5}, collector.frames.get(0));
+    }
+
+    @Test
+    public void cobs_resynchronisesAfterGarbage() {
+        CobsCodec codec = new CobsCodec();
+        byte[] frame = encodeAll(codec, Arrays.asList(new byte[]{0, 9, 0}));
+        byte[] wire = new byte[frame.length + 4];
+        wire[0] = 0x13;
+        wire[1] = 0x37;
+        wire[2] = 0x55;
+        wire[3] = 0;
+        System.arraycopy(frame, 0, wire, 4, frame.length);
+
+        Collector collector = new Collector();
+        codec.newDecoder(collector).feed(wire, 0, wire.length);
+
+        assertEquals(1, collector.errors);
+        assertEquals(1, collector.frames.size());
+        assertArrayEquals(new byte[]{0, 9, 0}, collector.frames.get(0));
+    }
+
+    @Test
+    public void cobs_longRunsWithoutZeros() {
+        CobsCodec codec = new CobsCodec(1024);
+        byte[] payload = new byte[1000];
+        Arrays.fill(payload, (byte) 7);
+        byte[] wire = encodeAll(codec, Arrays.asList(payload, new byte[254], new byte[0]));
+
+        Collector collector = new Collector();
+        codec.newDecoder(collector).feed(wire, 0, wire.length);
+
+        assertEquals(3, collector.frames.size());
+        assertArrayEquals(payload, collector.frames.get(0));
+        assertArrayEquals(new byte[254], collector.frames.get(1));
+        assertEquals(0, collector.frames.get(2).length);
+    }
+
+    @Test
+    public void framingSink_forwardsOneSlabPerFrame() throws Exception {
+        LengthPrefixCodec codec = new LengthPrefixCodec(64);
+        byte[] wire = encodeAll(codec, Arrays.asList(new byte[]{1}, new byte[]{2, 2}, new byte[]{3, 3, 3}));
+        BufferPool readPool = new BufferPool(2, 5);
+        BufferPool framePool = new BufferPool(4, 64);
+        List<Integer> lengths = new ArrayList<>();
+        FramingSink sink = new FramingSink(codec, framePool, frame -> {
+            lengths.add(frame.length());
+            frame.release();
+        });
+
+        new StreamReader(new java.io.ByteArrayInputStream(wire), readPool, sink).pump();
+
+        assertEquals(Arrays.asList(1, 2, 3), lengths);
+        assertEquals(0, sink.errorCount());
+        assertEquals(2, readPool.available());
+        assertEquals(4, framePool.available());
+    }
+
+    @Test
+    public void framingSink_backlogsFramesWhenThePoolIsEmpty() throws Exception {
+        LengthPrefixCodec codec = new LengthPrefixCodec(64);
+        byte[] wire = encodeAll(codec, Arrays.asList(new byte[]{1}, new byte[]{2, 2}, new byte[]{3, 3, 3},
+                new byte[]{4, 4, 4, 4}));
+        BufferPool framePool = new BufferPool(2, 64);
+        LinkMetrics metrics = new LinkMetrics();
+        List<Slab> held = new ArrayList<>();
+        // The consumer keeps every frame, so the last two find no slab
+        FramingSink sink = new FramingSink(codec, framePool, metrics, held::add);
+
+        new StreamReader(new java.io.ByteArrayInputStream(wire), new BufferPool(2, 16), sink).pump();
+
+        assertEquals(2, held.size());
+        assertTrue(sink.hasBacklog());
+        assertEquals(0, sink.drainBacklog());
+        held.get(0).release();
+        assertEquals(1, sink.drainBacklog());
+        assertTrue(sink.hasBacklog());
+        held.get(1).release();
+        assertEquals(1, sink.drainBacklog());
+        assertFalse(sink.hasBacklog());
+        assertEquals(4, held.size());
+        assertEquals(3, held.get(2).length());
+        assertEquals(3, held.get(2).array()[0]);
+        assertEquals(4, held.get(3).length());
+        assertEquals(0, metrics.framesDropped());
+        held.get(2).release();
+        held.get(3).release();
+        assertEquals(2, framePool.available());
+    }
+}
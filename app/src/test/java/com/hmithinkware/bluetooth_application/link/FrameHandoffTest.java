@@ -0,0 +1,158 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FrameHandoffTest {
+
+    private final LengthPrefixCodec mCodec = new LengthPrefixCodec();
+    private final BufferPool mCallerPool = new BufferPool(4, 16);
+    // What the handler saw, as "<address> <first byte>" or "<address> closed"
+    private final List<String> mEvents = new CopyOnWriteArrayList<>();
+    private final Set<Thread> mThreads = new CopyOnWriteArraySet<>();
+    private final AtomicInteger mTicks = new AtomicInteger();
+    private volatile CountDownLatch mGate;
+    private volatile long mTickNanos = Long.MAX_VALUE;
+    private FrameHandoff mHandoff;
+
+    private final FrameHandoff.Handler mHandler = new FrameHandoff.Handler() {
+        @Override
+        public void onFrame(Connection connection, Slab frame) {
+            mThreads.add(Thread.currentThread());
+            CountDownLatch gate = mGate;
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            mEvents.add(connection.getAddress() + " " + frame.array()[0]);
+            frame.release();
+        }
+
+        @Override
+        public void onClosed(Connection connection) {
+            mThreads.add(Thread.currentThread());
+            mEvents.add(connection.getAddress() + " closed");
+        }
+
+        @Override
+        public long onTick(long nowNanos) {
+            mThreads.add(Thread.currentThread());
+            mTicks.incrementAndGet();
+            long tick = mTickNanos;
+            return tick == Long.MAX_VALUE ? tick : nowNanos + tick;
+        }
+    };
+
+    @After
+    public void tearDown() throws Exception {
+        if (mHandoff != null) {
+            mGate = null;
+            mHandoff.close();
+        }
+    }
+
+    private Connection connection(String address) {
+        return new Connection(address, mCodec, a -> null);
+    }
+
+    // Offers a one-byte frame from a caller slab and checks the caller still owns it
+    private boolean offer(Connection connection, int value) {
+        Slab frame = mCallerPool.tryAcquire();
+        frame.array()[0] = (byte) value;
+        frame.setLength(1);
+        boolean taken = mHandoff.offer(connection, frame);
+        frame.release();
+        return taken;
+    }
+
+    private void awaitEvents(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mEvents.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, mEvents.size());
+    }
+
+    @Test
+    public void framesAndClosesArriveInOrderOnOneThread() throws Exception {
+        mHandoff = new FrameHandoff("test", 8, 16, mHandler);
+        mHandoff.start();
+        Connection a = connection("a");
+        Connection b = connection("b");
+        for (int i = 0; i < 100; i++) {
+            // Waits out a full queue so nothing is dropped
+            while (!offer(i % 2 == 0 ? a : b, i)) {
+                Thread.sleep(1);
+            }
+        }
+        mHandoff.closed(a);
+        mHandoff.closed(b);
+        awaitEvents(102);
+        for (int i = 0; i < 100; i++) {
+            assertEquals((i % 2 == 0 ? "a " : "b ") + i, mEvents.get(i));
+        }
+        assertEquals("a closed", mEvents.get(100));
+        assertEquals("b closed", mEvents.get(101));
+        assertEquals(1, mThreads.size());
+        assertNotEquals(Thread.currentThread(), mThreads.iterator().next());
+        assertEquals(4, mCallerPool.available());
+    }
+
+    @Test
+    public void fullQueueDropsFramesButNotCloses() throws Exception {
+        mGate = new CountDownLatch(1);
+        mHandoff = new FrameHandoff("test", 4, 16, mHandler);
+        mHandoff.start();
+        Connection a = connection("a");
+        int taken = 0;
+        for (int i = 0; i < 20; i++) {
+            if (offer(a, i)) {
+                taken++;
+            }
+        }
+        assertEquals(4, taken);
+        assertEquals(16, mHandoff.droppedCount());
+        mHandoff.closed(a);
+        mGate.countDown();
+        awaitEvents(5);
+        assertEquals("a closed", mEvents.get(4));
+    }
+
+    @Test
+    public void tickIsCalledAgainByItsDeadline() throws Exception {
+        mTickNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        mHandoff = new FrameHandoff("test", 4, 16, mHandler);
+        mHandoff.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mTicks.get() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(mTicks.get() >= 5);
+        assertTrue(mEvents.isEmpty());
+    }
+
+    @Test
+    public void closeHandsOverWhatWasQueued() throws Exception {
+        mHandoff = new FrameHandoff("test", 4, 16, mHandler);
+        Connection a = connection("a");
+        offer(a, 1);
+        offer(a, 2);
+        mHandoff.close();
+        mHandoff = null;
+        assertEquals(2, mEvents.size());
+        assertEquals("a 2", mEvents.get(1));
+    }
+}
@@ -0,0 +1,320 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class FrameUploaderTest {
+
+    private static final int FRAME_BYTES = 64;
+
+    @Rule
+    public final TemporaryFolder mTemp = new TemporaryFolder();
+
+    private final ExecutorService mServerThreads = Executors.newFixedThreadPool(4);
+    private HttpServer mServer;
+    private URL mCollectorUrl;
+    private final List<FrameUploader> mUploaders = new ArrayList<>();
+
+    // Stores uploads by name with tus-style offsets. Can be offline, stalled, refuse everything
+    // or keep only half of the next few bodies and fail them.
+    private final Map<String, ByteArrayOutputStream> mStored = new TreeMap<>();
+    private final AtomicInteger mHeads = new AtomicInteger();
+    private final AtomicLong mBodyBytes = new AtomicLong();
+    private volatile boolean mOffline;
+    // While set, requests hang until it is released; mStalled counts them as they arrive
+    private volatile CountDownLatch mStall;
+    private final CountDownLatch mStalled = new CountDownLatch(1);
+    private volatile int mRejectStatus;
+    private final AtomicInteger mTruncate = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/collect/", this::handle);
+        mServer.setExecutor(mServerThreads);
+        mServer.start();
+        mCollectorUrl = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/collect");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (FrameUploader uploader : mUploaders) {
+            uploader.close();
+        }
+        mServer.stop(0);
+        mServerThreads.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            String name = exchange.getRequestURI().getPath().substring("/collect/".length());
+            CountDownLatch stall = mStall;
+            if (stall != null) {
+                mStalled.countDown();
+                stall.await();
+            }
+            if (mOffline) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            if (mRejectStatus != 0) {
+                exchange.sendResponseHeaders(mRejectStatus, -1);
+                return;
+            }
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                mHeads.incrementAndGet();
+                synchronized (mStored) {
+                    ByteArrayOutputStream stored = mStored.get(name);
+                    if (stored == null) {
+                        exchange.sendResponseHeaders(404, -1);
+                    } else {
+                        exchange.getResponseHeaders().set("Upload-Offset", Integer.toString(stored.size()));
+                        exchange.sendResponseHeaders(200, -1);
+                    }
+                }
+                return;
+            }
+            long offset = Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Offset"));
+            byte[] data = body.readAllBytes();
+            mBodyBytes.addAndGet(data.length);
+            synchronized (mStored) {
+                ByteArrayOutputStream stored = mStored.computeIfAbsent(name, k -> new ByteArrayOutputStream());
+                if (offset != stored.size()) {
+                    exchange.getResponseHeaders().set("Upload-Offset", Integer.toString(stored.size()));
+                    exchange.sendResponseHeaders(409, -1);
+                    return;
+                }
+                if (mTruncate.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                    stored.write(data, 0, data.length / 2);
+                    exchange.sendResponseHeaders(500, -1);
+                    return;
+                }
+                stored.write(data, 0, data.length);
+                exchange.getResponseHeaders().set("Upload-Offset", Integer.toString(stored.size()));
+                exchange.sendResponseHeaders(204, -1);
+            }
+        } catch (InterruptedException e) {
+            exchange.sendResponseHeaders(503, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private FrameUploader start(File directory, int chunkBytes, long maxSpoolBytes, int threads) throws IOException {
+        FrameUploader uploader = new FrameUploader(directory, mCollectorUrl, FRAME_BYTES, 256, chunkBytes,
+                50, maxSpoolBytes, threads, new ReconnectPolicy(10, 50, 0));
+        uploader.start();
+        mUploaders.add(uploader);
+        return uploader;
+    }
+
+    private static byte[] frame(int sequence) {
+        return String.format("seq=%08d,temp=21.5,hum=40", sequence).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Offers frames, waiting whenever the uploader's buffer is full so none are dropped
+    private static void offer(FrameUploader uploader, int from, int to) throws InterruptedException {
+        for (int i = from; i < to; i++) {
+            byte[] data = frame(i);
+            while (!uploader.offer(i % 2 == 0 ? "AA" : "BB", 1000L * i, data, 0, data.length)) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    // Every frame the collector has, chunks in name order
+    private List<String> collected() throws IOException {
+        List<String> frames = new ArrayList<>();
+        synchronized (mStored) {
+            for (ByteArrayOutputStream chunk : mStored.values()) {
+                try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+                        new ByteArrayInputStream(chunk.toByteArray())))) {
+                    while (true) {
+                        long micros;
+                        try {
+                            micros = in.readLong();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        String address = in.readUTF();
+                        byte[] data = new byte[in.readUnsignedShort()];
+                        in.readFully(data);
+                        frames.add(micros + " " + address + " " + new String(data, StandardCharsets.US_ASCII));
+                    }
+                } catch (EOFException e) {
+                    // Chunk still being uploaded
+                }
+            }
+        }
+        return frames;
+    }
+
+    private int collectedCount() {
+        try {
+            return collected().size();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static List<String> expected(int count) {
+        List<String> frames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            frames.add(1000L * i + " " + (i % 2 == 0 ? "AA" : "BB") + " "
+                    + new String(frame(i), StandardCharsets.US_ASCII));
+        }
+        return frames;
+    }
+
+    private static int spooledFiles(File directory) {
+        return directory.list((dir, name) -> name.endsWith(FrameUploader.CHUNK_SUFFIX)).length;
+    }
+
+    @Test
+    public void framesArriveInOrderAcrossParallelUploads() throws Exception {
+        File directory = mTemp.newFolder();
+        FrameUploader uploader = start(directory, 4096, Long.MAX_VALUE, 3);
+        offer(uploader, 0, 5000);
+        await(() -> collectedCount() == 5000);
+        assertTrue(uploader.uploadedChunks() > 5);
+        assertEquals(expected(5000), collected());
+        // Text telemetry compresses well
+        assertTrue(uploader.uploadedBytes() < 5000 * frame(0).length / 3);
+    }
+
+    @Test
+    public void spoolsWhileOfflineAndCatchesUp() throws Exception {
+        mOffline = true;
+        File directory = mTemp.newFolder();
+        FrameUploader uploader = start(directory, 1024, Long.MAX_VALUE, 2);
+        offer(uploader, 0, 2000);
+        await(() -> uploader.spooledChunks() > 3 && uploader.retryCount() > 0);
+        assertTrue(collected().isEmpty());
+        mOffline = false;
+        await(() -> collectedCount() == 2000);
+        assertEquals(expected(2000), collected());
+    }
+
+    @Test
+    public void brokenUploadResumesFromTheCollectorsOffset() throws Exception {
+        mTruncate.set(1);
+        File directory = mTemp.newFolder();
+        FrameUploader uploader = start(directory, 1 << 20, Long.MAX_VALUE, 1);
+        offer(uploader, 0, 1000);
+        await(() -> uploader.uploadedChunks() == 1);
+        assertEquals(expected(1000), collected());
+        assertTrue(uploader.retryCount() >= 1);
+        assertTrue(mHeads.get() >= 1);
+        // The whole chunk once, then only the half the collector didn't keep
+        long length;
+        synchronized (mStored) {
+            length = mStored.values().iterator().next().size();
+        }
+        assertEquals(length + (length - length / 2), mBodyBytes.get());
+    }
+
+    @Test
+    public void leftoverChunksAreUploadedOnTheNextRun() throws Exception {
+        mOffline = true;
+        File directory = mTemp.newFolder();
+        FrameUploader first = start(directory, 1024, Long.MAX_VALUE, 1);
+        offer(first, 0, 1500);
+        first.close();
+        mUploaders.remove(first);
+        int left = spooledFiles(directory);
+        assertTrue(left > 1);
+
+        mOffline = false;
+        FrameUploader second = start(directory, 1024, Long.MAX_VALUE, 2);
+        offer(second, 1500, 2000);
+        await(() -> collectedCount() == 2000);
+        assertTrue(second.uploadedChunks() > left);
+        assertEquals(expected(2000), collected());
+        // Chunks from the first run may have been part sent, so the collector was asked first
+        assertTrue(mHeads.get() >= left);
+    }
+
+    @Test
+    public void stalledCollectorNeverHoldsUpTheCaller() throws Exception {
+        CountDownLatch stall = new CountDownLatch(1);
+        mStall = stall;
+        File directory = mTemp.newFolder();
+        FrameUploader uploader = start(directory, 1024, Long.MAX_VALUE, 2);
+        offer(uploader, 0, 100);
+        // An upload is now stuck on the network
+        assertTrue(mStalled.await(5, TimeUnit.SECONDS));
+        byte[] data = frame(0);
+        for (int i = 0; i < 20_000; i++) {
+            uploader.offer("AA", i, data, 0, data.length);
+        }
+        // Every offer returned while the collector still held the upload
+        assertEquals(1, stall.getCount());
+        assertEquals(20_100, uploader.offeredCount() + uploader.droppedCount());
+        assertEquals(0, uploader.uploadedChunks());
+        mStall = null;
+        stall.countDown();
+    }
+
+    @Test
+    public void spoolStaysWithinBudgetByDroppingOldestChunks() throws Exception {
+        mOffline = true;
+        File directory = mTemp.newFolder();
+        FrameUploader uploader = start(directory, 1024, 4096, 1);
+        offer(uploader, 0, 5000);
+        await(() -> uploader.offeredCount() == 5000 && uploader.evictedChunks() > 0);
+        Thread.sleep(200);
+        // One chunk may be out for upload and so not evictable
+        assertTrue(uploader.spoolBytes() <= 4096 + 1024);
+    }
+
+    @Test
+    public void rejectedChunksAreSetAside() throws Exception {
+        mRejectStatus = 400;
+        File directory = mTemp.newFolder();
+        FrameUploader uploader = start(directory, 1 << 20, Long.MAX_VALUE, 1);
+        offer(uploader, 0, 10);
+        await(() -> uploader.rejectedChunks() == 1);
+        assertEquals(0, spooledFiles(directory));
+        assertEquals(1, spooledFiles(new File(directory, FrameUploader.REJECTED_DIR)));
+        assertEquals(0, uploader.retryCount());
+    }
+}
@@ -0,0 +1,356 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class GattTransportTest {
+
+    private static final long BALANCED_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(15_000);
+    private static final long HIGH_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(7_500);
+    private static final int PACKETS_PER_EVENT = 6;
+    private static final int CONTROLLER_BUFFER_PACKETS = 4;
+
+    // Stands in for a peripheral, the stack and the radio between. As on Android, the stack
+    // takes one write at a time and refuses another until it has reported that one sent, which
+    // it does once the packet is in a controller buffer of CONTROLLER_BUFFER_PACKETS. Each
+    // connection event carries up to PACKETS_PER_EVENT packets each way.
+    private static final class FakeGattPeer implements GattPeer {
+        private final int mMaxMtu;
+        // The write the stack has taken and not yet reported, guarded by this
+        private byte[] mOutstanding;
+        private int mRefusedWhileOutstanding;
+        private boolean mStalled;
+        private final ArrayDeque<byte[]> mControllerBuffer = new ArrayDeque<>();
+        private final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+        private final BytePipe mToNotify = new BytePipe(1 << 20);
+        private final AtomicInteger mPacketsReceived = new AtomicInteger();
+        private volatile int mLargestPacket;
+        private volatile int mMtu = GattTransport.DEFAULT_MTU;
+        private volatile int mMtuRequested;
+        private volatile long mIntervalNanos = BALANCED_INTERVAL_NANOS;
+        private volatile boolean mConnected;
+        private GattPeer.Callback mCallback;
+        private Thread mRadio;
+        private Thread mStack;
+
+        // A max MTU of 0 means the exchange is never answered
+        FakeGattPeer(int maxMtu) {
+            mMaxMtu = maxMtu;
+        }
+
+        @Override
+        public String getAddress() {
+            return "C0:FF:EE:00:00:01";
+        }
+
+        @Override
+        public void connect(GattPeer.Callback callback) {
+            mCallback = callback;
+            mConnected = true;
+            mRadio = new Thread(this::run, "FakeRadio");
+            mRadio.setDaemon(true);
+            mRadio.start();
+            mStack = new Thread(this::runStack, "FakeStack");
+            mStack.setDaemon(true);
+            mStack.start();
+        }
+
+        // Moves the outstanding write into the controller buffer when there is room
+        private void runStack() {
+            while (true) {
+                synchronized (this) {
+                    while (mConnected && (mOutstanding == null || mStalled
+                            || mControllerBuffer.size() >= CONTROLLER_BUFFER_PACKETS)) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (!mConnected) {
+                        return;
+                    }
+                    mControllerBuffer.add(mOutstanding);
+                    mOutstanding = null;
+                }
+                mCallback.onWriteSent();
+            }
+        }
+
+        private void run() {
+            mCallback.onReady();
+            long next = System.nanoTime();
+            while (mConnected) {
+                next += mIntervalNanos;
+                LockSupport.parkNanos(next - System.nanoTime());
+                int mtuRequested = mMtuRequested;
+                if (mtuRequested != 0 && mMaxMtu != 0) {
+                    mMtuRequested = 0;
+                    mMtu = Math.min(mtuRequested, mMaxMtu);
+                    mCallback.onMtuChanged(mMtu);
+                }
+                synchronized (this) {
+                    for (int i = 0; i < PACKETS_PER_EVENT && !mControllerBuffer.isEmpty(); i++) {
+                        byte[] packet = mControllerBuffer.poll();
+                        mReceived.write(packet, 0, packet.length);
+                        mPacketsReceived.incrementAndGet();
+                    }
+                    notifyAll();
+                }
+                try {
+                    InputStream pending = mToNotify.inputStream();
+                    for (int i = 0; i < PACKETS_PER_EVENT && pending.available() > 0; i++) {
+                        byte[] value = new byte[Math.min(pending.available(), mMtu - GattTransport.ATT_HEADER_BYTES)];
+                        pending.read(value, 0, value.length);
+                        mCallback.onNotification(value);
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            mMtuRequested = mtu;
+            return true;
+        }
+
+        @Override
+        public boolean requestHighPriority() {
+            mIntervalNanos = HIGH_INTERVAL_NANOS;
+            return true;
+        }
+
+        @Override
+        public synchronized boolean writeWithoutResponse(byte[] data, int offset, int length) {
+            assertTrue("Packet of " + length + " over MTU " + mMtu, length <= mMtu - GattTransport.ATT_HEADER_BYTES);
+            if (!mConnected) {
+                return false;
+            }
+            if (mOutstanding != null) {
+                mRefusedWhileOutstanding++;
+                return false;
+            }
+            mOutstanding = Arrays.copyOfRange(data, offset, offset + length);
+            mLargestPacket = Math.max(mLargestPacket, length);
+            notifyAll();
+            return true;
+        }
+
+        synchronized int refusedWhileOutstanding() {
+            return mRefusedWhileOutstanding;
+        }
+
+        // The stack stops taking writes off our hands until resumed
+        synchronized void setStalled(boolean stalled) {
+            mStalled = stalled;
+            notifyAll();
+        }
+
+        void notifyPhone(byte[] data) throws IOException {
+            mToNotify.write(data, 0, data.length);
+        }
+
+        synchronized byte[] received() {
+            return mReceived.toByteArray();
+        }
+
+        void dropLink() {
+            close();
+            mCallback.onDisconnected(new IOException("Link lost"));
+        }
+
+        @Override
+        public synchronized void close() {
+            mConnected = false;
+            notifyAll();
+        }
+    }
+
+    private ConnectionManager mManager;
+
+    @After
+    public void tearDown() {
+        if (mManager != null) {
+            mManager.close();
+        }
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(2);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    // Bytes per second from the first write until the peer has all of them
+    private static double throughput(FakeGattPeer peer, GattTransport transport, int bytes) throws Exception {
+        transport.connect();
+        byte[] data = pattern(bytes);
+        long start = System.nanoTime();
+        transport.getOutputStream().write(data);
+        await(() -> peer.received().length == bytes);
+        double rate = bytes * 1e9 / (System.nanoTime() - start);
+        assertArrayEquals(data, peer.received());
+        transport.close();
+        return rate;
+    }
+
+    @Test
+    public void negotiatesMtuAndFillsEveryPacket() throws Exception {
+        FakeGattPeer peer = new FakeGattPeer(185);
+        GattTransport transport = new GattTransport(peer);
+        transport.connect();
+        assertEquals(185, transport.getMtu());
+
+        byte[] data = pattern(10_000);
+        transport.getOutputStream().write(data);
+        await(() -> peer.received().length == data.length);
+        assertArrayEquals(data, peer.received());
+        assertEquals(182, peer.mLargestPacket);
+        assertEquals((data.length + 181) / 182, peer.mPacketsReceived.get());
+        // Never more than one write handed to the stack at a time
+        assertEquals(0, peer.refusedWhileOutstanding());
+        assertEquals(0, transport.getBusyCount());
+        transport.close();
+    }
+
+    @Test
+    public void peerThatNeverAnswersTheMtuExchangeKeepsTheDefault() throws Exception {
+        FakeGattPeer peer = new FakeGattPeer(0);
+        GattTransport transport = new GattTransport(peer);
+        transport.connect();
+        assertEquals(GattTransport.DEFAULT_MTU, transport.getMtu());
+        transport.getOutputStream().write(pattern(100));
+        await(() -> peer.received().length == 100);
+        assertEquals(GattTransport.DEFAULT_MTU - GattTransport.ATT_HEADER_BYTES, peer.mLargestPacket);
+        transport.close();
+    }
+
+    @Test
+    public void largerMtuAndShorterIntervalOutrunTheDefaults() throws Exception {
+        FakeGattPeer slowPeer = new FakeGattPeer(247);
+        double defaults = throughput(slowPeer,
+                new GattTransport(slowPeer, GattTransport.DEFAULT_MTU, false, 4096, 4096), 1000);
+
+        FakeGattPeer fastPeer = new FakeGattPeer(247);
+        GattTransport tuned = new GattTransport(fastPeer);
+        double rate = throughput(fastPeer, tuned, 64 * 1024);
+        assertTrue("Defaults " + (int) defaults + " B/s, tuned " + (int) rate + " B/s", rate > 10 * defaults);
+        assertEquals(0, fastPeer.refusedWhileOutstanding());
+    }
+
+    @Test
+    public void writesReturnWithoutWaitingForTheStack() throws Exception {
+        FakeGattPeer peer = new FakeGattPeer(247);
+        GattTransport transport = new GattTransport(peer);
+        transport.connect();
+        peer.setStalled(true);
+        // Would sit out the write timeout if the caller waited for the stack
+        byte[] data = pattern(4000);
+        transport.getOutputStream().write(data);
+        assertTrue(transport.isConnected());
+        assertEquals(0, peer.received().length);
+
+        peer.setStalled(false);
+        await(() -> peer.received().length == data.length);
+        assertArrayEquals(data, peer.received());
+        transport.close();
+    }
+
+    @Test
+    public void notificationsAreFramedThroughTheConnection() throws Exception {
+        LengthPrefixCodec codec = new LengthPrefixCodec();
+        FakeGattPeer peer = new FakeGattPeer(247);
+        AtomicInteger frames = new AtomicInteger();
+        AtomicInteger outOfOrder = new AtomicInteger();
+        mManager = new ConnectionManager(1, codec, new ConnectionManager.Listener() {
+            @Override
+            public void onFrame(Connection connection, Slab frame) {
+                int seq = ((frame.array()[0] & 0xFF) << 8) | (frame.array()[1] & 0xFF);
+                if (seq != frames.getAndIncrement()) {
+                    outOfOrder.incrementAndGet();
+                }
+                frame.release();
+            }
+
+            @Override
+            public void onStateChanged(Connection connection, Connection.State state) {
+            }
+        });
+        GattTransport[] transport = new GattTransport[1];
+        Connection connection = mManager.connect(peer.getAddress(), address -> {
+            transport[0] = new GattTransport(peer);
+            return transport[0];
+        }).get(5, TimeUnit.SECONDS);
+
+        byte[] encoded = new byte[codec.maxEncodedSize(32)];
+        byte[] payload = pattern(32);
+        for (int i = 0; i < 2000; i++) {
+            payload[0] = (byte) (i >> 8);
+            payload[1] = (byte) i;
+            peer.notifyPhone(Arrays.copyOf(encoded, codec.encode(payload, 0, payload.length, encoded, 0)));
+        }
+        await(() -> frames.get() == 2000);
+        assertEquals(0, outOfOrder.get());
+        assertEquals(0, transport[0].getDroppedBytes());
+
+        // And the other way, through the same write API as RFCOMM
+        connection.write(pattern(200)).get(5, TimeUnit.SECONDS);
+        int length = codec.encode(pattern(200), 0, 200, new byte[codec.maxEncodedSize(200)], 0);
+        await(() -> peer.received().length == length);
+    }
+
+    @Test
+    public void linkDropReadsAsEndOfStreamAfterBufferedData() throws Exception {
+        FakeGattPeer peer = new FakeGattPeer(247);
+        GattTransport transport = new GattTransport(peer);
+        transport.connect();
+        peer.notifyPhone(pattern(100));
+        InputStream in = transport.getInputStream();
+        await(() -> {
+            try {
+                return in.available() == 100;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+        peer.dropLink();
+        assertFalse(transport.isConnected());
+        byte[] read = new byte[200];
+        assertEquals(100, in.read(read));
+        assertArrayEquals(pattern(100), Arrays.copyOf(read, 100));
+        assertEquals(-1, in.read(read));
+        OutputStream out = transport.getOutputStream();
+        try {
+            out.write(pattern(10));
+            fail("Write after link drop");
+        } catch (IOException expected) {
+            // The cause the peer reported
+            assertEquals("Link lost", expected.getMessage());
+        }
+    }
+}
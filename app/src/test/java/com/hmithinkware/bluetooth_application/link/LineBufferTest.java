@@ -0,0 +1,59 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class LineBufferTest {
+
+    private static void append(LineBuffer buffer, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        buffer.append(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void keepsOnlyTheNewestLines() {
+        LineBuffer buffer = new LineBuffer(3, 16);
+        for (int i = 0; i < 5; i++) {
+            append(buffer, "line " + i);
+        }
+
+        assertEquals(5, buffer.written());
+        assertEquals(2, buffer.oldest());
+        assertNull(buffer.decode(1));
+        assertEquals("line 2", buffer.decode(2));
+        assertEquals("line 4", buffer.decode(4));
+        assertNull(buffer.decode(5));
+    }
+
+    @Test
+    public void stripsLineEndingsAndTruncatesLongLines() {
+        LineBuffer buffer = new LineBuffer(2, 4);
+        append(buffer, "ab\r\n");
+        append(buffer, "abcdefgh");
+
+        assertEquals("ab", buffer.decode(0));
+        assertEquals("abcd", buffer.decode(1));
+    }
+
+    @Test
+    public void concurrentAppendsAreNeverTorn() throws Exception {
+        LineBuffer buffer = new LineBuffer(8, 8);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 100_000; i++) {
+                append(buffer, (i % 2 == 0) ? "AAAAAAAA" : "BBBB");
+            }
+        });
+        producer.start();
+        while (producer.isAlive()) {
+            long newest = buffer.written() - 1;
+            String line = buffer.decode(newest);
+            if (line != null) {
+                assertTrue(line, line.equals("AAAAAAAA") || line.equals("BBBB"));
+            }
+        }
+        assertEquals(100_000, buffer.written());
+    }
+}
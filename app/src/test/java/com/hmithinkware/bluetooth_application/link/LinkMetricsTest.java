@@ -0,0 +1,124 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LinkMetricsTest {
+
+    private final LengthPrefixCodec mCodec = new LengthPrefixCodec();
+    private final BlockingQueue<byte[]> mDelivered = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Long> mReadTimes = new LinkedBlockingQueue<>();
+    private LoopbackTransport mPeer;
+    private ConnectionManager mManager;
+
+    private final ConnectionManager.Listener mListener = new ConnectionManager.Listener() {
+        @Override
+        public void onFrame(Connection connection, Slab frame) {
+            byte[] copy = new byte[frame.length()];
+            System.arraycopy(frame.array(), 0, copy, 0, copy.length);
+            mDelivered.add(copy);
+            mReadTimes.add(frame.readNanos());
+            frame.release();
+        }
+
+        @Override
+        public void onStateChanged(Connection connection, Connection.State state) {
+        }
+    };
+
+    @After
+    public void tearDown() {
+        if (mManager != null) {
+            mManager.close();
+        }
+    }
+
+    private Connection connect() throws Exception {
+        mManager = new ConnectionManager(1, mCodec, mListener);
+        return mManager.connect("00:11:22:33:44:55", address -> {
+            LoopbackTransport[] ends = LoopbackTransport.pair(address);
+            mPeer = ends[1];
+            return ends[0];
+        }).get(2, TimeUnit.SECONDS);
+    }
+
+    private void sendFromPeer(byte[] payload) throws Exception {
+        byte[] wire = new byte[mCodec.maxEncodedSize(payload.length)];
+        OutputStream out = mPeer.getOutputStream();
+        out.write(wire, 0, mCodec.encode(payload, 0, payload.length, wire, 0));
+        out.flush();
+    }
+
+    @Test
+    public void histogramPercentilesLandInTheRightBucket() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.percentile(99));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(50, histogram.mean());
+        assertEquals(100, histogram.max());
+        // 50 sits in [32, 63]; 99 in [64, 127], capped at the max seen
+        assertEquals(63, histogram.percentile(50));
+        assertEquals(100, histogram.percentile(99));
+        histogram.record(-5);
+        assertEquals(0, histogram.percentile(0.5));
+    }
+
+    @Test
+    public void countsTrafficAndStampsFramesWithTheirReadTime() throws Exception {
+        Connection connection = connect();
+        long before = System.nanoTime();
+        sendFromPeer(new byte[]{1, 2, 3});
+
+        assertArrayEquals(new byte[]{1, 2, 3}, mDelivered.poll(2, TimeUnit.SECONDS));
+        long readNanos = mReadTimes.take();
+        assertTrue(readNanos >= before && readNanos <= System.nanoTime());
+        connection.write(new byte[]{9}).get(2, TimeUnit.SECONDS);
+
+        LinkMetrics metrics = connection.getMetrics();
+        assertEquals(1, metrics.framesIn());
+        assertEquals(1, metrics.framesOut());
+        assertEquals(7, metrics.bytesIn());
+        assertEquals(5, metrics.bytesOut());
+        assertEquals(1, metrics.readSizes().count());
+        assertEquals(1, metrics.queueDepth().count());
+        metrics.recordDelivery(readNanos);
+        assertEquals(1, metrics.deliveryLatency().count());
+        assertTrue(metrics.snapshot().startsWith("in=7/1 out=5/1 reconnects=0 read_b=1/7/7/7"));
+    }
+
+    @Test
+    public void pongIsRecordedAndNotDelivered() throws Exception {
+        Connection connection = connect();
+        connection.ping().get(2, TimeUnit.SECONDS);
+
+        InputStream in = mPeer.getInputStream();
+        byte[] wire = new byte[14];
+        for (int read = 0; read < wire.length; ) {
+            read += in.read(wire, read, wire.length - read);
+        }
+        byte[] ping = new byte[10];
+        System.arraycopy(wire, 2, ping, 0, ping.length);
+        assertEquals((byte) 0xFF, ping[0]);
+        assertEquals('P', ping[1]);
+        ping[1] = 'Q';
+        sendFromPeer(ping);
+        // A stale pong after the first one was answered is an ordinary frame
+        sendFromPeer(ping);
+
+        assertArrayEquals(ping, mDelivered.poll(2, TimeUnit.SECONDS));
+        assertTrue(mDelivered.isEmpty());
+        assertEquals(1, connection.getMetrics().roundTrip().count());
+        assertEquals(2, connection.getMetrics().framesIn());
+    }
+}
@@ -0,0 +1,234 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+public class LinkTunerTest {
+
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final LengthPrefixCodec mCodec = new LengthPrefixCodec();
+    private ConnectionManager mManager;
+    // Clock and frame count fed to the tuner, carried across feed() calls
+    private long mNow = 1;
+    private long mFrames;
+
+    @After
+    public void tearDown() {
+        if (mManager != null) {
+            mManager.close();
+        }
+    }
+
+    // Feeds the tuner `windows` windows of the given traffic, as the loop would
+    private void feed(LinkTuner tuner, int windows, int readsPerWindow, int readBytes,
+                      int framesPerWindow, int queueDepth) {
+        tuner.onPoll(mNow, mFrames, mFrames, 0);
+        for (int w = 0; w < windows; w++) {
+            for (int r = 0; r < readsPerWindow; r++) {
+                tuner.onRead(Math.min(readBytes, tuner.readSize()), tuner.readSize());
+            }
+            mFrames += framesPerWindow;
+            mNow += WINDOW_NANOS;
+            tuner.onPoll(mNow, mFrames, mFrames, queueDepth);
+        }
+    }
+
+    @Test
+    public void readSizeFollowsHowFullReadsAre() {
+        LinkTuner tuner = new LinkTuner();
+        assertEquals(LinkTuner.INITIAL_READ_SIZE, tuner.readSize());
+        feed(tuner, 10, 50, Integer.MAX_VALUE, 0, 0);
+        assertEquals(LinkTuner.MAX_READ_SIZE, tuner.readSize());
+        feed(tuner, 10, 50, 20, 0, 0);
+        assertEquals(LinkTuner.MIN_READ_SIZE, tuner.readSize());
+        // Nothing read: leave it be
+        feed(tuner, 10, 0, 0, 0, 0);
+        assertEquals(LinkTuner.MIN_READ_SIZE, tuner.readSize());
+    }
+
+    @Test
+    public void onlyFastWritersAreCoalesced() {
+        LinkTuner tuner = new LinkTuner();
+        // 100 writes a second: a batch would take 40 ms to fill, so don't wait at all
+        feed(tuner, 10, 0, 0, 10, 1);
+        assertEquals(0, tuner.coalesceNanos());
+        // 10k a second: four writes arrive in 400 us
+        feed(tuner, 20, 0, 0, 1000, 1);
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(400), tuner.coalesceNanos(), 1000);
+        assertTrue(tuner.coalesceNanos() <= LinkTuner.MAX_COALESCE_NANOS);
+        // Queue backing up: flush as soon as possible
+        feed(tuner, 30, 0, 0, 1000, 100);
+        assertEquals(0, tuner.coalesceNanos());
+    }
+
+    @Test
+    public void dispatchIntervalGrowsWithTheFrameRate() {
+        LinkTuner tuner = new LinkTuner();
+        feed(tuner, 20, 0, 0, 5, 0);
+        assertEquals(0, tuner.dispatchIntervalNanos());
+        feed(tuner, 30, 0, 0, 1000, 0);
+        assertEquals(LinkTuner.MAX_DISPATCH_NANOS, tuner.dispatchIntervalNanos(), LinkTuner.MAX_DISPATCH_NANOS / 100);
+        tuner.setEnabled(false);
+        assertEquals(0, tuner.dispatchIntervalNanos());
+        assertEquals(LinkTuner.INITIAL_READ_SIZE, tuner.readSize());
+    }
+
+    // Loopback whose output counts write calls; the peer end is drained in the background
+    private static final class CountingTransport implements Transport {
+        final LoopbackTransport[] mEnds;
+        final AtomicLong mWrites = new AtomicLong();
+
+        CountingTransport(String address) {
+            mEnds = LoopbackTransport.pair(address);
+            Thread drain = new Thread(() -> {
+                byte[] sink = new byte[8192];
+                try {
+                    InputStream in = mEnds[1].getInputStream();
+                    while (in.read(sink) >= 0) {
+                        // Discard
+                    }
+                } catch (IOException ignored) {
+                    // Closed
+                }
+            });
+            drain.setDaemon(true);
+            drain.start();
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mEnds[0].connect();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mEnds[0].isConnected();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mEnds[0].getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            OutputStream out = mEnds[0].getOutputStream();
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    mWrites.incrementAndGet();
+                    out.write(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public String getAddress() {
+            return mEnds[0].getAddress();
+        }
+
+        @Override
+        public void close() {
+            mEnds[0].close();
+        }
+    }
+
+    private Connection connect(CountingTransport transport) throws Exception {
+        if (mManager == null) {
+            mManager = new ConnectionManager(1, mCodec, new ConnectionManager.Listener() {
+                @Override
+                public void onFrame(Connection connection, Slab frame) {
+                    frame.release();
+                }
+
+                @Override
+                public void onStateChanged(Connection connection, Connection.State state) {
+                }
+            });
+        }
+        return mManager.connect(transport.getAddress(), address -> transport).get(5, TimeUnit.SECONDS);
+    }
+
+    // Frames per transport write while writing as fast as the queue takes them
+    private double framesPerWrite(Connection connection, CountingTransport transport, long millis) {
+        byte[] payload = new byte[16];
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long warm = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis / 2);
+        long framesAtWarm = -1;
+        long writesAtWarm = 0;
+        while (System.nanoTime() < end) {
+            if (framesAtWarm < 0 && System.nanoTime() >= warm) {
+                framesAtWarm = connection.getFramesOut();
+                writesAtWarm = transport.mWrites.get();
+            }
+            connection.write(payload);
+            LockSupport.parkNanos(50_000);
+        }
+        return (connection.getFramesOut() - framesAtWarm) / (double) (transport.mWrites.get() - writesAtWarm);
+    }
+
+    @Test
+    public void fastWriterGetsBatchedAndSlowWriterDoesNot() throws Exception {
+        CountingTransport untunedTransport = new CountingTransport("untuned");
+        Connection untuned = connect(untunedTransport);
+        untuned.getTuner().setEnabled(false);
+        double before = framesPerWrite(untuned, untunedTransport, 1000);
+
+        CountingTransport tunedTransport = new CountingTransport("tuned");
+        Connection tuned = connect(tunedTransport);
+        double after = framesPerWrite(tuned, tunedTransport, 1000);
+        assertTrue(tuned.getTuner().coalesceNanos() > 0);
+        assertTrue("Untuned " + before + ", tuned " + after, after > 2 && after > 1.5 * before);
+
+        // Once writes are rare again the delay decays and a single write goes straight out
+        long deadline = System.currentTimeMillis() + 5000;
+        while (tuned.getTuner().coalesceNanos() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, tuned.getTuner().coalesceNanos());
+        long start = System.nanoTime();
+        tuned.write(new byte[16]).get(1, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - start < LinkTuner.MAX_COALESCE_NANOS * 50);
+    }
+
+    @Test
+    public void streamingPeerGetsLargerReads() throws Exception {
+        CountingTransport transport = new CountingTransport("logger");
+        Connection connection = connect(transport);
+        byte[] payload = new byte[200];
+        byte[] encoded = new byte[mCodec.maxEncodedSize(payload.length) * 64];
+        int length = 0;
+        for (int i = 0; i < 64; i++) {
+            length += mCodec.encode(payload, 0, payload.length, encoded, length);
+        }
+        OutputStream peer = transport.mEnds[1].getOutputStream();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (connection.getTuner().readSize() < LinkTuner.MAX_READ_SIZE && System.currentTimeMillis() < deadline) {
+            peer.write(encoded, 0, length);
+        }
+        assertEquals(LinkTuner.MAX_READ_SIZE, connection.getTuner().readSize());
+        // Back to a trickle of short status frames
+        length = mCodec.encode(payload, 0, 16, encoded, 0);
+        deadline = System.currentTimeMillis() + 5000;
+        while (connection.getTuner().readSize() > LinkTuner.MIN_READ_SIZE && System.currentTimeMillis() < deadline) {
+            peer.write(encoded, 0, length);
+            Thread.sleep(5);
+        }
+        assertEquals(LinkTuner.MIN_READ_SIZE, connection.getTuner().readSize());
+    }
+}
@@ -0,0 +1,283 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PayloadCodecTest {
+
+    private static final int MAX_PAYLOAD = 1024;
+    private static final byte[] DICTIONARY = "T,21.43,-0.0012,998.2,OK\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final LengthPrefixCodec mCodec = new LengthPrefixCodec(MAX_PAYLOAD);
+    private final List<byte[]> mDelivered = new CopyOnWriteArrayList<>();
+    private ConnectionManager mManager;
+
+    @After
+    public void tearDown() {
+        if (mManager != null) {
+            mManager.close();
+        }
+    }
+
+    private static byte[] samples(int count, int seed) {
+        byte[] frame = new byte[count * 2];
+        Random random = new Random(seed);
+        for (int i = 0; i < count; i++) {
+            int sample = (int) (1000 * Math.sin((seed * count + i) / 20.0)) + random.nextInt(5);
+            frame[2 * i] = (byte) (sample >>> 8);
+            frame[2 * i + 1] = (byte) sample;
+        }
+        return frame;
+    }
+
+    // Runs the handshake between two codecs and returns them ready to wrap
+    private static PayloadCodec[] agree(int phoneOffers, int deviceOffers) {
+        PayloadCodec phone = new PayloadCodec(phoneOffers, DICTIONARY, MAX_PAYLOAD);
+        PayloadCodec device = new PayloadCodec(deviceOffers, DICTIONARY, MAX_PAYLOAD);
+        byte[] hello = phone.hello();
+        assertTrue(PayloadCodec.isHandshake(hello, 0, hello.length));
+        byte[] accept = device.onHandshake(hello, 0, hello.length);
+        assertNull(phone.onHandshake(accept, 0, accept.length));
+        return new PayloadCodec[]{phone, device};
+    }
+
+    private static byte[] roundTrip(PayloadCodec from, PayloadCodec to, byte[] payload, int[] wireLength)
+            throws IOException {
+        byte[] wire = new byte[payload.length + PayloadCodec.OVERHEAD];
+        int length = from.wrap(payload, 0, payload.length, wire, 0);
+        wireLength[0] = length;
+        if (!to.isWrapped(wire, 0, length)) {
+            return Arrays.copyOf(wire, length);
+        }
+        byte[] out = new byte[MAX_PAYLOAD];
+        return Arrays.copyOf(out, to.unwrap(wire, 0, length, out, 0));
+    }
+
+    @Test
+    public void deltaRoundTripsExtremeSamples() throws IOException {
+        short[] values = {0, 1, -1, Short.MAX_VALUE, Short.MIN_VALUE, Short.MAX_VALUE, 12, -300};
+        byte[] frame = new byte[values.length * 2];
+        for (int i = 0; i < values.length; i++) {
+            frame[2 * i] = (byte) (values[i] >>> 8);
+            frame[2 * i + 1] = (byte) values[i];
+        }
+        byte[] encoded = new byte[frame.length * 3 / 2];
+        int length = PayloadCodec.encodeDelta(frame, 0, frame.length, encoded, 0);
+        byte[] decoded = new byte[frame.length];
+        assertEquals(frame.length, PayloadCodec.decodeDelta(encoded, 0, length, decoded, 0, decoded.length));
+        assertArrayEquals(frame, decoded);
+    }
+
+    @Test
+    public void streamingDeflateShrinksRepetitiveFrames() throws IOException {
+        PayloadCodec[] ends = agree(PayloadCodec.DEFLATE | PayloadCodec.DELTA, PayloadCodec.DEFLATE | PayloadCodec.DELTA);
+        assertEquals(PayloadCodec.DEFLATE | PayloadCodec.DELTA, ends[0].accepted());
+        int[] wire = new int[1];
+        long raw = 0;
+        long sent = 0;
+        for (int seed = 0; seed < 50; seed++) {
+            byte[] frame = samples(120, seed);
+            assertArrayEquals(frame, roundTrip(ends[1], ends[0], frame, wire));
+            raw += frame.length;
+            sent += wire[0];
+        }
+        for (int i = 0; i < 50; i++) {
+            byte[] line = ("T," + (1718000000000L + i) + ",21.43,-0.0012,998.2,OK\r\n").getBytes(StandardCharsets.US_ASCII);
+            assertArrayEquals(line, roundTrip(ends[1], ends[0], line, wire));
+            raw += line.length;
+            sent += wire[0];
+        }
+        assertTrue("sent " + sent + " of " + raw, sent * 2 < raw);
+    }
+
+    @Test
+    public void onlyAgreedTransformsAreUsed() throws IOException {
+        PayloadCodec[] ends = agree(PayloadCodec.DEFLATE | PayloadCodec.DELTA, PayloadCodec.DELTA);
+        assertEquals(PayloadCodec.DELTA, ends[0].accepted());
+        assertEquals(PayloadCodec.DELTA, ends[1].accepted());
+        byte[] frame = samples(100, 1);
+        int[] wire = new int[1];
+        assertArrayEquals(frame, roundTrip(ends[0], ends[1], frame, wire));
+        assertTrue(wire[0] < frame.length);
+    }
+
+    @Test
+    public void rawUntilPeerAnswers() throws IOException {
+        PayloadCodec phone = new PayloadCodec(PayloadCodec.DEFLATE, null, MAX_PAYLOAD);
+        byte[] frame = {PayloadCodec.WRAP_MARKER, 1, 2, 3};
+        byte[] wire = new byte[frame.length + PayloadCodec.OVERHEAD];
+        assertEquals(frame.length, phone.wrap(frame, 0, frame.length, wire, 0));
+        assertArrayEquals(frame, Arrays.copyOf(wire, frame.length));
+        assertFalse(phone.isWrapped(wire, 0, frame.length));
+    }
+
+    @Test
+    public void markerLeadingPayloadIsEscapedOnceAgreed() throws IOException {
+        PayloadCodec[] ends = agree(PayloadCodec.DELTA, PayloadCodec.DELTA);
+        byte[] frame = {PayloadCodec.WRAP_MARKER, 'x', 'y'};
+        int[] wire = new int[1];
+        assertArrayEquals(frame, roundTrip(ends[0], ends[1], frame, wire));
+        assertEquals(frame.length + 2, wire[0]);
+        byte[] text = {'o', 'k'};
+        assertArrayEquals(text, roundTrip(ends[0], ends[1], text, wire));
+        assertEquals(text.length, wire[0]);
+    }
+
+    @Test
+    public void corruptCompressedFrameIsRejected() {
+        PayloadCodec[] ends = agree(PayloadCodec.DEFLATE, PayloadCodec.DEFLATE);
+        byte[] frame = samples(50, 3);
+        byte[] wire = new byte[frame.length + PayloadCodec.OVERHEAD];
+        int length = ends[0].wrap(frame, 0, frame.length, wire, 0);
+        for (int i = 2; i < length; i++) {
+            wire[i] = (byte) 0xFF;
+        }
+        try {
+            ends[1].unwrap(wire, 0, length, new byte[MAX_PAYLOAD], 0);
+            fail("Expected a corrupt stream");
+        } catch (IOException expected) {
+            // The link gets restarted
+        }
+    }
+
+    private Connection connect(LoopbackTransport[] ends) throws Exception {
+        mManager = new ConnectionManager(1, mCodec, new ConnectionManager.Listener() {
+            @Override
+            public void onFrame(Connection connection, Slab frame) {
+                mDelivered.add(Arrays.copyOf(frame.array(), frame.length()));
+                frame.release();
+            }
+
+            @Override
+            public void onStateChanged(Connection connection, Connection.State state) {
+            }
+        });
+        mManager.setPayloadCodecs(PayloadCodec.DEFLATE | PayloadCodec.DELTA, DICTIONARY);
+        return mManager.connect("00:11:22:33:44:55", address -> ends[0]).get(2, TimeUnit.SECONDS);
+    }
+
+    // Decodes whatever the phone sends to the peer end
+    private List<byte[]> readFrames(InputStream in, int count) throws IOException {
+        List<byte[]> frames = new CopyOnWriteArrayList<>();
+        FrameDecoder decoder = mCodec.newDecoder((buffer, offset, length) ->
+                frames.add(Arrays.copyOfRange(buffer, offset, offset + length)));
+        byte[] buffer = new byte[1024];
+        while (frames.size() < count) {
+            int n = in.read(buffer);
+            if (n < 0) {
+                break;
+            }
+            decoder.feed(buffer, 0, n);
+        }
+        return frames;
+    }
+
+    private void send(OutputStream out, byte[] payload, int length) throws IOException {
+        byte[] wire = new byte[mCodec.maxEncodedSize(length)];
+        out.write(wire, 0, mCodec.encode(payload, 0, length, wire, 0));
+        out.flush();
+    }
+
+    private void awaitDelivered(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mDelivered.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, mDelivered.size());
+    }
+
+    @Test
+    public void connectionNegotiatesAndCompressesBothWays() throws Exception {
+        LoopbackTransport[] ends = LoopbackTransport.pair("00:11:22:33:44:55");
+        Connection connection = connect(ends);
+        PayloadCodec device = new PayloadCodec(PayloadCodec.DEFLATE | PayloadCodec.DELTA, DICTIONARY, connection.maxPayload());
+        InputStream in = ends[1].getInputStream();
+        OutputStream out = ends[1].getOutputStream();
+
+        byte[] hello = readFrames(in, 1).get(0);
+        byte[] accept = device.onHandshake(hello, 0, hello.length);
+        send(out, accept, accept.length);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (connection.getPayloadCodecs() == PayloadCodec.NONE && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(PayloadCodec.DEFLATE | PayloadCodec.DELTA, connection.getPayloadCodecs());
+
+        byte[] wire = new byte[mCodec.maxPayload()];
+        for (int seed = 0; seed < 10; seed++) {
+            byte[] frame = samples(200, seed);
+            int length = device.wrap(frame, 0, frame.length, wire, 0);
+            assertTrue(length < frame.length);
+            send(out, wire, length);
+        }
+        awaitDelivered(10);
+        for (int seed = 0; seed < 10; seed++) {
+            assertArrayEquals(samples(200, seed), mDelivered.get(seed));
+        }
+
+        byte[] command = samples(100, 7);
+        connection.write(command).get(2, TimeUnit.SECONDS);
+        byte[] received = readFrames(in, 1).get(0);
+        assertTrue(device.isWrapped(received, 0, received.length));
+        byte[] unwrapped = new byte[connection.maxPayload()];
+        int length = device.unwrap(received, 0, received.length, unwrapped, 0);
+        assertArrayEquals(command, Arrays.copyOf(unwrapped, length));
+    }
+
+    @Test
+    public void peerThatSaysHelloFirstGetsARawAccept() throws Exception {
+        LoopbackTransport[] ends = LoopbackTransport.pair("00:11:22:33:44:55");
+        Connection connection = connect(ends);
+        PayloadCodec device = new PayloadCodec(PayloadCodec.DEFLATE, DICTIONARY, connection.maxPayload());
+        InputStream in = ends[1].getInputStream();
+        OutputStream out = ends[1].getOutputStream();
+
+        // The phone's own hello goes unanswered; the device starts the negotiation instead
+        readFrames(in, 1);
+        byte[] hello = device.hello();
+        send(out, hello, hello.length);
+        byte[] accept = readFrames(in, 1).get(0);
+        assertTrue(PayloadCodec.isHandshake(accept, 0, accept.length));
+        assertNull(device.onHandshake(accept, 0, accept.length));
+        assertEquals(PayloadCodec.DEFLATE, device.accepted());
+        assertEquals(PayloadCodec.DEFLATE, connection.getPayloadCodecs());
+
+        byte[] frame = samples(200, 1);
+        byte[] wire = new byte[mCodec.maxPayload()];
+        send(out, wire, device.wrap(frame, 0, frame.length, wire, 0));
+        awaitDelivered(1);
+        assertArrayEquals(frame, mDelivered.get(0));
+    }
+
+    @Test
+    public void oldFirmwareKeepsRawFrames() throws Exception {
+        LoopbackTransport[] ends = LoopbackTransport.pair("00:11:22:33:44:55");
+        Connection connection = connect(ends);
+        InputStream in = ends[1].getInputStream();
+        OutputStream out = ends[1].getOutputStream();
+
+        byte[] line = "T,21.43\r\n".getBytes(StandardCharsets.US_ASCII);
+        send(out, line, line.length);
+        awaitDelivered(1);
+        assertArrayEquals(line, mDelivered.get(0));
+
+        connection.write(line).get(2, TimeUnit.SECONDS);
+        List<byte[]> frames = readFrames(in, 2);
+        // The unanswered hello, then the payload untouched
+        assertTrue(PayloadCodec.isHandshake(frames.get(0), 0, frames.get(0).length));
+        assertArrayEquals(line, frames.get(1));
+        assertEquals(PayloadCodec.NONE, connection.getPayloadCodecs());
+    }
+}
@@ -0,0 +1,121 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SampleAggregatorTest {
+
+    @Test
+    public void windowKeepsNewestValuesInOrder() {
+        SampleWindow window = new SampleWindow(8);
+        for (int i = 0; i < 20; i++) {
+            window.add(i);
+        }
+        double[] out = new double[8];
+        int count = window.copyTo(out);
+        // The slot being reused next is given up, so one short of the capacity
+        assertEquals(7, count);
+        for (int i = 0; i < count; i++) {
+            assertEquals(13 + i, out[i], 0);
+        }
+        double[] small = new double[3];
+        assertEquals(3, window.copyTo(small));
+        assertArrayEquals(new double[]{17, 18, 19}, small, 0);
+    }
+
+    @Test
+    public void readersNeverSeeOverwrittenValues() throws Exception {
+        SampleWindow window = new SampleWindow(256);
+        int total = 2_000_000;
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < total; i++) {
+                window.add(i);
+            }
+        });
+        AtomicReference<String> failure = new AtomicReference<>();
+        writer.start();
+        double[] out = new double[256];
+        long copies = 0;
+        while (writer.isAlive() || copies == 0) {
+            int count = window.copyTo(out);
+            for (int i = 1; i < count; i++) {
+                if (out[i] != out[i - 1] + 1) {
+                    failure.compareAndSet(null, "Gap at " + i + ": " + out[i - 1] + " then " + out[i]);
+                }
+            }
+            copies++;
+        }
+        writer.join();
+        assertNull(failure.get());
+        assertEquals(total, window.written());
+    }
+
+    @Test
+    public void statsOverWindow() {
+        WindowStats stats = new WindowStats(200);
+        double[] values = new double[101];
+        for (int i = 0; i <= 100; i++) {
+            values[i] = 100 - i;
+        }
+        values[50] = Double.NaN;
+        stats.compute(values, values.length);
+        assertEquals(100, stats.count());
+        assertEquals(0, stats.min(), 0);
+        assertEquals(100, stats.max(), 0);
+        assertEquals(50, stats.mean(), 1e-9);
+        assertEquals(49, stats.percentile(50), 0);
+        assertEquals(99, stats.percentile(99), 0);
+        assertEquals(0, stats.percentile(0), 0);
+    }
+
+    @Test
+    public void lttbKeepsEndsAndSpikes() {
+        double[] values = new double[10_000];
+        values[1234] = 50;
+        values[7777] = -80;
+        int[] picked = new int[100];
+        int n = Lttb.downsample(values, values.length, 100, picked);
+        assertEquals(100, n);
+        assertEquals(0, picked[0]);
+        assertEquals(values.length - 1, picked[n - 1]);
+        boolean sawPeak = false;
+        boolean sawDip = false;
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                assertTrue(picked[i] > picked[i - 1]);
+            }
+            sawPeak |= picked[i] == 1234;
+            sawDip |= picked[i] == 7777;
+        }
+        assertTrue(sawPeak && sawDip);
+    }
+
+    @Test
+    public void lttbPassesShortSeriesThrough() {
+        int[] picked = new int[10];
+        assertEquals(5, Lttb.downsample(new double[]{1, 2, 3, 4, 5}, 5, 10, picked));
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, Arrays.copyOf(picked, 5));
+    }
+
+    @Test
+    public void channelsPerTagAndField() {
+        SampleAggregator aggregator = new SampleAggregator(3, 64);
+        SampleParser parser = new SampleParser(16, 8, 128, aggregator);
+        byte[] text = "T,1,2,OK\nT,3,4,OK\nP,9\nQ,7,8\n".getBytes(StandardCharsets.US_ASCII);
+        parser.feed(text, 0, text.length, 0);
+        // Q fields do not fit the three-channel budget
+        assertEquals(3, aggregator.channelCount());
+        assertEquals("T[0]", aggregator.channel(0).getName());
+        assertEquals("T[1]", aggregator.channel(1).getName());
+        assertEquals("P[0]", aggregator.channel(2).getName());
+        double[] out = new double[4];
+        assertEquals(2, aggregator.channel(1).getWindow().copyTo(out));
+        assertArrayEquals(new double[]{2, 4}, Arrays.copyOf(out, 2), 0);
+        assertNull(aggregator.channel(3));
+    }
+}
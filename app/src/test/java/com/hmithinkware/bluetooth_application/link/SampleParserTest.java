@@ -0,0 +1,136 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SampleParserTest {
+
+    // Copies rows out of the reused batch as "tag|field;field;..." with NaN for non-numeric fields
+    private final List<String> mRows = new ArrayList<>();
+    private final List<Integer> mBatchSizes = new ArrayList<>();
+    private final SampleParser mParser = new SampleParser(4, 8, 64, batch -> {
+        mBatchSizes.add(batch.size());
+        for (int row = 0; row < batch.size(); row++) {
+            StringBuilder text = new StringBuilder(String.valueOf(batch.tagName(row))).append('|');
+            for (int field = 0; field < batch.fieldCount(row); field++) {
+                if (field > 0) {
+                    text.append(';');
+                }
+                if (batch.isIntegral(row, field)) {
+                    text.append(batch.longValue(row, field));
+                } else {
+                    text.append(batch.doubleValue(row, field));
+                }
+            }
+            mRows.add(text.toString());
+        }
+    });
+
+    private void feed(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        mParser.feed(bytes, 0, bytes.length, 0);
+    }
+
+    @Test
+    public void parsesTaggedCsv() {
+        feed("T,1718000000000,21.43,-0.0012,998.2,OK\r\n");
+        assertEquals(1, mRows.size());
+        assertEquals("T|1718000000000;21.43;-0.0012;998.2;NaN", mRows.get(0));
+    }
+
+    @Test
+    public void untaggedLinesStartWithField0() {
+        feed("1,2.5,-3\n");
+        assertEquals("null|1;2.5;-3", mRows.get(0));
+    }
+
+    @Test
+    public void numbersMatchJavaParsing() {
+        String[] values = {"0", "-0.5", "007", "3.14159265358979", "1e3", "-2.5E-4", "123456789012345678901234",
+                "0.000001", "+42", ".5", "6.02214076e23"};
+        StringBuilder line = new StringBuilder("V");
+        for (String value : values) {
+            line.append(',').append(value);
+        }
+        SampleBatch[] seen = new SampleBatch[1];
+        double[] parsed = new double[values.length];
+        SampleParser parser = new SampleParser(4, 16, 256, batch -> {
+            seen[0] = batch;
+            for (int field = 0; field < values.length; field++) {
+                parsed[field] = batch.doubleValue(0, field);
+            }
+        });
+        byte[] bytes = line.toString().getBytes(StandardCharsets.US_ASCII);
+        parser.parseLines(bytes, 0, bytes.length, 0);
+        assertNotNull(seen[0]);
+        for (int field = 0; field < values.length; field++) {
+            assertEquals(values[field], Double.parseDouble(values[field]), parsed[field], 0);
+        }
+    }
+
+    @Test
+    public void partialLinesCarryOverBetweenReads() {
+        feed("T,1,");
+        feed("2\nT,3");
+        assertEquals(1, mRows.size());
+        feed(",4\n");
+        assertEquals("T|1;2", mRows.get(0));
+        assertEquals("T|3;4", mRows.get(1));
+    }
+
+    @Test
+    public void rowsAreBatchedPerCall() {
+        feed("A,1\nA,2\nA,3\nA,4\nA,5\nA,6\n");
+        // Batches hold 4 rows: one full batch, then the rest at the end of the call
+        assertEquals(List.of(4, 2), mBatchSizes);
+        assertEquals(6, mParser.lineCount());
+    }
+
+    @Test
+    public void frameWithoutNewlineIsOneLine() {
+        byte[] frame = "B,7,8".getBytes(StandardCharsets.US_ASCII);
+        mParser.parseLines(frame, 0, frame.length, 0);
+        assertEquals("B|7;8", mRows.get(0));
+    }
+
+    @Test
+    public void nmeaChecksumIsVerified() {
+        feed("$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47\n");
+        feed("$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*48\n");
+        assertEquals(1, mRows.size());
+        assertEquals("$GPGGA|123519;4807.038;NaN;1131.0;NaN;1;8;0.9", mRows.get(0));
+        assertEquals(1, mParser.errorCount());
+    }
+
+    @Test
+    public void overlongLineIsSkipped() {
+        StringBuilder line = new StringBuilder("L");
+        while (line.length() < 100) {
+            line.append(",1");
+        }
+        feed(line.substring(0, 50));
+        feed(line.substring(50) + "\nS,1\n");
+        assertEquals(List.of("S|1"), mRows);
+        assertEquals(1, mParser.errorCount());
+    }
+
+    @Test
+    public void tagsAreInterned() {
+        // Same tag text resolves to the same index
+        int[] tags = new int[3];
+        SampleParser parser = new SampleParser(4, 4, 64, batch -> {
+            for (int row = 0; row < batch.size(); row++) {
+                tags[row] = batch.tag(row);
+            }
+        });
+        byte[] bytes = "A,1\nB,2\nA,3\n".getBytes(StandardCharsets.US_ASCII);
+        parser.feed(bytes, 0, bytes.length, 0);
+        assertEquals(tags[0], tags[2]);
+        assertNotEquals(tags[0], tags[1]);
+    }
+}
@@ -0,0 +1,241 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SampleStoreTest {
+
+    private static final String SERIES = "00:11:22:33:44:55 T[1]";
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    // Six hours of one reading every 100 ms with a little jitter
+    private static final int POINTS = 6 * 36_000;
+    private static final long PERIOD_MS = 100;
+
+    @Rule
+    public final TemporaryFolder mTemp = new TemporaryFolder();
+
+    private SampleStore mStore;
+    private long mBase;
+    private final long[] mTimes = new long[POINTS];
+    private final double[] mValues = new double[POINTS];
+
+    @After
+    public void tearDown() throws Exception {
+        if (mStore != null) {
+            mStore.close();
+        }
+    }
+
+    private SampleStore open(File directory) throws Exception {
+        mStore = new SampleStore(directory, 64 * 1024);
+        mStore.start();
+        return mStore;
+    }
+
+    // A slowly wandering reading with two decimals that mostly repeats, as sensors print them
+    private void generate() {
+        Random random = new Random(3);
+        mBase = (System.currentTimeMillis() / HOUR - 7) * HOUR;
+        double value = 20;
+        for (int i = 0; i < POINTS; i++) {
+            mTimes[i] = mBase + i * PERIOD_MS + random.nextInt(3) - 1;
+            if (random.nextInt(5) == 0) {
+                value += random.nextBoolean() ? 0.01 : -0.01;
+            }
+            mValues[i] = Math.round(value * 100) / 100.0;
+        }
+    }
+
+    private void ingest(SampleStore store, int series) throws Exception {
+        long before = store.storedCount();
+        int taken = 0;
+        while (taken < POINTS) {
+            taken += store.append(series, mTimes, mValues, taken, POINTS - taken);
+            if (taken < POINTS) {
+                Thread.yield();
+            }
+        }
+        waitForStored(store, before + POINTS);
+    }
+
+    private static void waitForStored(SampleStore store, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20_000;
+        while (store.storedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, store.storedCount());
+    }
+
+    private SampleStore.Aggregate bruteForce(long from, long to) {
+        SampleStore.Aggregate expected = new SampleStore.Aggregate();
+        for (int i = 0; i < POINTS; i++) {
+            if (mTimes[i] >= from && mTimes[i] < to) {
+                expected.add(mValues[i], mValues[i], mValues[i], 1);
+            }
+        }
+        return expected;
+    }
+
+    private static void assertAggregate(SampleStore.Aggregate expected, SampleStore.Aggregate actual) {
+        assertEquals(expected.count(), actual.count());
+        assertEquals(expected.min(), actual.min(), 0);
+        assertEquals(expected.max(), actual.max(), 0);
+        assertEquals(expected.sum(), actual.sum(), 1e-6 * Math.abs(expected.sum()));
+    }
+
+    @Test
+    public void blocksRoundTripExactly() {
+        SeriesBlock block = new SeriesBlock(2);
+        Random random = new Random(11);
+        long[] times = new long[SampleStore.BLOCK_POINTS];
+        double[][] values = new double[SampleStore.BLOCK_POINTS][];
+        long time = -5;
+        for (int i = 0; i < times.length; i++) {
+            // Steady, jittered, backwards and huge steps
+            time += i % 100 == 99 ? (random.nextBoolean() ? -1L : 1L) << 40 : i % 7 == 0 ? random.nextInt(5000) - 100 : 20;
+            times[i] = time;
+            double value = i % 10 == 0 ? Double.NaN : i % 3 == 0 ? random.nextDouble() * 1e9 : i / 10;
+            values[i] = new double[]{value, i % 5 == 0 ? -value : 1.5};
+            block.append(time, values[i]);
+        }
+        SeriesBlock.Reader reader = new SeriesBlock.Reader(2);
+        reader.reset(Arrays.copyOf(block.array(), block.length()), 0, block.count());
+        for (int i = 0; i < times.length; i++) {
+            assertTrue(reader.next());
+            assertEquals(times[i], reader.time());
+            assertEquals(Double.doubleToRawLongBits(values[i][0]), Double.doubleToRawLongBits(reader.value(0)));
+            assertEquals(Double.doubleToRawLongBits(values[i][1]), Double.doubleToRawLongBits(reader.value(1)));
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void rangesAndAggregatesMatchTheRawPoints() throws Exception {
+        generate();
+        SampleStore store = open(mTemp.newFolder("samples"));
+        ingest(store, store.seriesId(SERIES));
+
+        long bytes = 0;
+        for (File file : store.getDirectory().listFiles()) {
+            if (file.getName().startsWith("raw-")) {
+                bytes += file.length();
+            }
+        }
+        assertTrue(bytes < POINTS * 4L);
+
+        // Unaligned ranges, so every tier plays a part
+        long[][] ranges = {
+                {mBase + 1234, mBase + 5 * HOUR + 56_789},
+                {mBase + 59_950, mBase + 61_050},
+                {mBase - HOUR, mBase + 7 * HOUR},
+                {mBase + 2 * HOUR + 7, mBase + 2 * HOUR + 8},
+        };
+        for (long[] range : ranges) {
+            assertAggregate(bruteForce(range[0], range[1]), store.aggregate(SERIES, range[0], range[1]));
+        }
+
+        // Ten minutes fit raw; six hours come back a row per minute
+        long[] times = new long[10_000];
+        double[] means = new double[10_000];
+        double[] mins = new double[10_000];
+        double[] maxes = new double[10_000];
+        long from = mBase + HOUR + 333;
+        long to = from + TimeUnit.MINUTES.toMillis(10);
+        assertEquals(SampleStore.Tier.RAW, store.tierFor(SERIES, from, to, times.length));
+        int count = store.range(SERIES, from, to, times.length, times, means, mins, maxes);
+        int expected = 0;
+        for (int i = 0; i < POINTS; i++) {
+            if (mTimes[i] >= from && mTimes[i] < to) {
+                assertEquals(mTimes[i], times[expected]);
+                assertEquals(mValues[i], means[expected], 0);
+                expected++;
+            }
+        }
+        assertEquals(expected, count);
+
+        assertEquals(SampleStore.Tier.MINUTE, store.tierFor(SERIES, mBase, mBase + 6 * HOUR, 500));
+        count = store.range(SERIES, mBase, mBase + 6 * HOUR, 500, times, means, mins, maxes);
+        assertEquals(360, count);
+        for (int minute = 0; minute < count; minute++) {
+            assertEquals(mBase + minute * 60_000L, times[minute]);
+            SampleStore.Aggregate bucket = bruteForce(times[minute], times[minute] + 60_000);
+            assertEquals(bucket.mean(), means[minute], 1e-9);
+            assertEquals(bucket.min(), mins[minute], 0);
+            assertEquals(bucket.max(), maxes[minute], 0);
+        }
+    }
+
+    @Test
+    public void historySurvivesReopening() throws Exception {
+        generate();
+        File directory = mTemp.newFolder("samples");
+        SampleStore store = open(directory);
+        ingest(store, store.seriesId(SERIES));
+        SampleStore.Aggregate before = store.aggregate(SERIES, mBase + 999, mBase + 4 * HOUR + 1);
+        store.close();
+        mStore = null;
+
+        store = open(directory);
+        assertEquals(Arrays.asList(SERIES), store.seriesNames());
+        assertAggregate(before, store.aggregate(SERIES, mBase + 999, mBase + 4 * HOUR + 1));
+        assertAggregate(bruteForce(mBase + 999, mBase + 4 * HOUR + 1), before);
+    }
+
+    @Test
+    public void expiredPartitionsAreDeleted() throws Exception {
+        generate();
+        SampleStore store = open(mTemp.newFolder("samples"));
+        store.setRetention(SampleStore.Tier.RAW, 3 * HOUR);
+        ingest(store, store.seriesId(SERIES));
+        // The first hours of raw points go; the second rollups stay
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.aggregate(SERIES, mBase, mBase + HOUR).count() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        long[] times = new long[100];
+        double[] means = new double[100];
+        deadline = System.currentTimeMillis() + 5000;
+        int raw;
+        do {
+            Thread.sleep(10);
+            raw = 0;
+            for (File file : store.getDirectory().listFiles()) {
+                if (file.getName().startsWith("raw-")) {
+                    raw++;
+                }
+            }
+        } while (raw > 3 && System.currentTimeMillis() < deadline);
+        assertTrue("Raw partitions left: " + raw, raw <= 3);
+        assertEquals(SampleStore.Tier.SECOND, store.tierFor(SERIES, mBase, mBase + 60_000, 100));
+        assertEquals(60, store.range(SERIES, mBase, mBase + 60_000, 100, times, means, null, null));
+        // Whole hours still come from the hour rollups
+        assertAggregate(bruteForce(mBase, mBase + HOUR), store.aggregate(SERIES, mBase, mBase + HOUR));
+    }
+
+    @Test
+    public void parsedRowsGetOneSeriesPerField() throws Exception {
+        SampleStore store = open(mTemp.newFolder("samples"));
+        SampleParser parser = new SampleParser(16, 8, 128, batch -> store.append("AA:BB", batch));
+        byte[] lines = "T,21.5,OK,3\nT,21.7,OK,4\n7\n".getBytes(StandardCharsets.US_ASCII);
+        long now = System.nanoTime();
+        parser.feed(lines, 0, lines.length, now);
+        waitForStored(store, 5);
+        assertEquals(Arrays.asList("AA:BB T[0]", "AA:BB T[2]", "AA:BB [0]"), store.seriesNames());
+        long wall = System.currentTimeMillis();
+        SampleStore.Aggregate t0 = store.aggregate("AA:BB T[0]", wall - HOUR, wall + HOUR);
+        assertEquals(2, t0.count());
+        assertEquals(21.6, t0.mean(), 1e-9);
+        assertEquals(7, store.aggregate("AA:BB [0]", wall - HOUR, wall + HOUR).max(), 0);
+        assertEquals(0, store.droppedCount());
+    }
+}
@@ -0,0 +1,136 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class SessionRecorderTest {
+
+    private static final int FRAMES = 5000;
+    private static final long START_MICROS = 1_700_000_000_000_000L;
+
+    @Rule
+    public final TemporaryFolder mTemp = new TemporaryFolder();
+
+    private static byte[] payload(int seq) {
+        int length = 8 + seq % 40;
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seq + i);
+        }
+        return data;
+    }
+
+    @Test
+    public void everyFrameComesBackInOrderAcrossSegments() throws Exception {
+        File dir = new File(mTemp.getRoot(), "session");
+        SessionRecorder recorder = new SessionRecorder(dir, 256, 8192, 16 * 1024, 5);
+        recorder.start();
+        int pump = recorder.sourceId("00:11:22:33:44:01");
+        int valve = recorder.sourceId("00:11:22:33:44:02");
+        assertEquals(pump, recorder.sourceId("00:11:22:33:44:01"));
+        for (int seq = 0; seq < FRAMES; seq++) {
+            byte[] data = payload(seq);
+            assertTrue(recorder.record(seq % 2 == 0 ? pump : valve, START_MICROS + seq * 100L, data, 0, data.length));
+        }
+        recorder.close();
+        assertEquals(FRAMES, recorder.recordedCount());
+        assertEquals(0, recorder.droppedCount());
+
+        SessionReader reader = new SessionReader(dir);
+        assertTrue(reader.segmentCount() > 5);
+        assertEquals("00:11:22:33:44:02", reader.sourceAddress(valve));
+        SessionReader.Cursor cursor = reader.cursor();
+        for (int seq = 0; seq < FRAMES; seq++) {
+            assertTrue(cursor.next());
+            assertEquals(START_MICROS + seq * 100L, cursor.timestampMicros());
+            assertEquals(seq % 2 == 0 ? pump : valve, cursor.source());
+            byte[] expected = payload(seq);
+            assertEquals(expected.length, cursor.length());
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], cursor.data()[i]);
+            }
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void seekLandsOnTheFirstRecordAtOrAfterTheTime() throws Exception {
+        File dir = new File(mTemp.getRoot(), "session");
+        SessionRecorder recorder = new SessionRecorder(dir, 256, 8192, 16 * 1024, 5);
+        recorder.start();
+        for (int seq = 0; seq < FRAMES; seq++) {
+            byte[] data = payload(seq);
+            recorder.record(0, START_MICROS + seq * 100L, data, 0, data.length);
+        }
+        recorder.close();
+
+        SessionReader reader = new SessionReader(dir);
+        for (int seq : new int[]{0, 1, 777, 2500, 4999}) {
+            SessionReader.Cursor cursor = reader.seek(START_MICROS + seq * 100L - 50);
+            assertTrue(cursor.next());
+            assertEquals(START_MICROS + seq * 100L, cursor.timestampMicros());
+            assertTrue(cursor.next() || seq == FRAMES - 1);
+        }
+        assertFalse(reader.seek(START_MICROS + FRAMES * 100L).next());
+        SessionReader.Cursor early = reader.seek(0);
+        assertTrue(early.next());
+        assertEquals(START_MICROS, early.timestampMicros());
+    }
+
+    @Test
+    public void emptyFrameDoesNotEndTheSegment() throws Exception {
+        File dir = new File(mTemp.getRoot(), "session");
+        SessionRecorder recorder = new SessionRecorder(dir, 16, 16, 4096, 5);
+        recorder.start();
+        byte[] data = {7, 8};
+        assertTrue(recorder.record(0, START_MICROS, data, 0, 0));
+        assertTrue(recorder.record(0, START_MICROS + 1, data, 0, 2));
+        recorder.close();
+
+        SessionReader.Cursor cursor = new SessionReader(dir).cursor();
+        assertTrue(cursor.next());
+        assertEquals(0, cursor.length());
+        assertEquals(START_MICROS, cursor.timestampMicros());
+        assertTrue(cursor.next());
+        assertEquals(2, cursor.length());
+        assertEquals(8, cursor.data()[1]);
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void fullBufferDropsInsteadOfBlocking() throws Exception {
+        SessionRecorder recorder = new SessionRecorder(new File(mTemp.getRoot(), "session"), 16, 2, 4096, 5);
+        // Not started, so nothing drains
+        byte[] data = {1, 2, 3};
+        assertTrue(recorder.record(0, START_MICROS, data, 0, 3));
+        assertTrue(recorder.record(0, START_MICROS, data, 0, 3));
+        assertFalse(recorder.record(0, START_MICROS, data, 0, 3));
+        assertEquals(1, recorder.droppedCount());
+        recorder.close();
+    }
+
+    @Test
+    public void slabsAreStampedWithTheirReadTime() throws Exception {
+        File dir = new File(mTemp.getRoot(), "session");
+        SessionRecorder recorder = new SessionRecorder(dir, 64, 16, 4096, 5);
+        recorder.start();
+        BufferPool pool = new BufferPool(1, 64);
+        Slab slab = pool.acquire();
+        slab.setLength(4);
+        slab.setReadNanos(System.nanoTime());
+        long before = System.currentTimeMillis() * 1000;
+        recorder.record(0, slab);
+        slab.release();
+        recorder.close();
+
+        SessionReader.Cursor cursor = new SessionReader(dir).cursor();
+        assertTrue(cursor.next());
+        assertEquals(4, cursor.length());
+        assertTrue(Math.abs(cursor.timestampMicros() - before) < 1_000_000);
+    }
+}
@@ -0,0 +1,112 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SessionReplayTest {
+
+    private static final int FRAMES = 200;
+    // Recorded at one frame per millisecond
+    private static final long GAP_MICROS = 1000;
+
+    @Rule
+    public final TemporaryFolder mTemp = new TemporaryFolder();
+
+    private final LengthPrefixCodec mCodec = new LengthPrefixCodec();
+    private final List<Integer> mReceived = new CopyOnWriteArrayList<>();
+    private File mSession;
+    private ConnectionManager mManager;
+
+    @Before
+    public void setUp() throws IOException {
+        mSession = record("session", GAP_MICROS);
+        mManager = new ConnectionManager(1, mCodec, new ConnectionManager.Listener() {
+            @Override
+            public void onFrame(Connection connection, Slab frame) {
+                mReceived.add(((frame.array()[0] & 0xFF) << 8) | (frame.array()[1] & 0xFF));
+                frame.release();
+            }
+
+            @Override
+            public void onStateChanged(Connection connection, Connection.State state) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mManager.close();
+    }
+
+    private File record(String name, long gapMicros) throws IOException {
+        File session = new File(mTemp.getRoot(), name);
+        SessionRecorder recorder = new SessionRecorder(session, 64, 1024, 64 * 1024, 5);
+        recorder.start();
+        int device = recorder.sourceId("00:11:22:33:44:01");
+        int other = recorder.sourceId("00:11:22:33:44:02");
+        for (int seq = 0; seq < FRAMES; seq++) {
+            byte[] frame = {(byte) (seq >>> 8), (byte) seq, 'x', 'y'};
+            recorder.record(device, 1_000_000 + seq * gapMicros, frame, 0, frame.length);
+            recorder.record(other, 1_000_000 + seq * gapMicros, new byte[]{'-'}, 0, 1);
+        }
+        recorder.close();
+        return session;
+    }
+
+    private SessionReplay.Result replay(double speed) throws Exception {
+        return replay(mSession, speed);
+    }
+
+    private SessionReplay.Result replay(File session, double speed) throws Exception {
+        SessionReplay replay = new SessionReplay(new SessionReader(session), 0, mCodec, speed);
+        mManager.connect("replay", replay::open).get(2, TimeUnit.SECONDS);
+        return replay.result().get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void fastReplayDeliversEveryFrameInOrder() throws Exception {
+        // An hour between frames: only a replay that skips the recorded gaps gets done in time
+        File slow = record("slow", TimeUnit.HOURS.toMicros(1));
+        SessionReplay.Result result = replay(slow, SessionReplay.AS_FAST_AS_POSSIBLE);
+
+        assertEquals(FRAMES, result.getFrames());
+        assertEquals(FRAMES * 4, result.getBytes());
+        assertEquals(FRAMES, mReceived.size());
+        for (int seq = 0; seq < FRAMES; seq++) {
+            assertEquals(seq, (int) mReceived.get(seq));
+        }
+    }
+
+    @Test
+    public void scaledReplayKeepsTheRecordedPacing() throws Exception {
+        // 199 ms of recorded traffic at 4x
+        SessionReplay.Result result = replay(4);
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(result.getElapsedNanos());
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 49 && elapsedMillis < 1000);
+        assertEquals(FRAMES, mReceived.size());
+    }
+
+    @Test
+    public void replayIsOneShot() throws Exception {
+        SessionReplay replay = new SessionReplay(new SessionReader(mSession), 0, mCodec, 1);
+        replay.open("replay").close();
+        try {
+            replay.open("replay");
+            fail();
+        } catch (IOException expected) {
+            // Keeps a reconnect from starting the session over
+        }
+    }
+}
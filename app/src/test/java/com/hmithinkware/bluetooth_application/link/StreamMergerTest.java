@@ -0,0 +1,147 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StreamMergerTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // Emitted timestamps, sources and first payload bytes
+    private final List<Long> mTimes = new ArrayList<>();
+    private final List<Integer> mSources = new ArrayList<>();
+    private final List<Byte> mFirstBytes = new ArrayList<>();
+
+    private StreamMerger merger(int sources, int capacity, long maxDelayNanos) {
+        return new StreamMerger(sources, capacity, 16, maxDelayNanos, (source, timestampNanos, data, offset, length) -> {
+            mTimes.add(timestampNanos);
+            mSources.add(source);
+            mFirstBytes.add(data[offset]);
+        });
+    }
+
+    private static byte[] frame(int value) {
+        return new byte[]{(byte) value, 0, 0, 0};
+    }
+
+    private void assertInOrder() {
+        for (int i = 1; i < mTimes.size(); i++) {
+            assertTrue("Out of order at " + i, mTimes.get(i) >= mTimes.get(i - 1));
+        }
+    }
+
+    @Test
+    public void interleavedSourcesComeOutInOrder() {
+        StreamMerger merger = merger(4, 256, 50 * MS);
+        for (int source = 0; source < 4; source++) {
+            merger.addSource(source);
+        }
+        Random random = new Random(7);
+        // Each source samples every ms with some jitter; source k's frames arrive k * 3 ms late
+        List<long[]> arrivals = new ArrayList<>();
+        for (int source = 0; source < 4; source++) {
+            for (int i = 0; i < 500; i++) {
+                long sent = i * MS + random.nextInt(200_000);
+                arrivals.add(new long[]{sent + source * 3 * MS, source, sent});
+            }
+        }
+        arrivals.sort((a, b) -> Long.compare(a[0], b[0]));
+        for (long[] arrival : arrivals) {
+            assertTrue(merger.offer((int) arrival[1], arrival[2], frame((int) arrival[1]), 0, 4));
+            merger.advance(arrival[0]);
+        }
+        // Only the skew between sources is held back
+        assertTrue(merger.bufferedCount() < 4 * 10);
+        for (int source = 0; source < 4; source++) {
+            merger.removeSource(source);
+        }
+        assertEquals(2000, mTimes.size());
+        assertEquals(0, merger.bufferedCount());
+        assertEquals(0, merger.lateCount());
+        assertEquals(0, merger.forcedCount());
+        assertInOrder();
+        for (int i = 0; i < mSources.size(); i++) {
+            assertEquals((int) mSources.get(i), (int) mFirstBytes.get(i));
+        }
+    }
+
+    @Test
+    public void quietSourceHoldsOthersOnlyUpToTheDelay() {
+        StreamMerger merger = merger(2, 64, 50 * MS);
+        merger.offer(1, 0, frame(1), 0, 4);
+        for (int i = 1; i <= 10; i++) {
+            merger.offer(0, i * 10 * MS, frame(0), 0, 4);
+        }
+        // Source 1 is at 0, so only its own frame is known to be in order
+        assertEquals(1, mTimes.size());
+        merger.advance(80 * MS);
+        assertEquals(4, mTimes.size());
+        assertEquals(30 * MS, (long) mTimes.get(3));
+        // Source 1 catching up releases everything up to where it is
+        merger.offer(1, 75 * MS, frame(1), 0, 4);
+        assertEquals(9, mTimes.size());
+        assertEquals(75 * MS, (long) mTimes.get(8));
+        assertInOrder();
+    }
+
+    @Test
+    public void fullPoolLetsTheOldestOutAndLateFramesAreDropped() {
+        StreamMerger merger = merger(2, 4, TimeUnit.SECONDS.toNanos(10));
+        merger.offer(1, 0, frame(1), 0, 4);
+        for (int i = 1; i <= 8; i++) {
+            assertTrue(merger.offer(0, i * MS, frame(0), 0, 4));
+        }
+        assertEquals(4, merger.bufferedCount());
+        assertEquals(4, merger.forcedCount());
+        assertEquals(5, mTimes.size());
+        assertInOrder();
+        // Source 1 wakes up with a frame older than what went out: it can't be put in order
+        assertFalse(merger.offer(1, 2 * MS, frame(1), 0, 4));
+        assertEquals(1, merger.lateCount());
+        assertTrue(merger.offer(1, 6 * MS, frame(1), 0, 4));
+        merger.removeSource(0);
+        merger.removeSource(1);
+        assertEquals(10, mTimes.size());
+        assertInOrder();
+    }
+
+    @Test
+    public void removedSourceIsNoLongerWaitedFor() {
+        StreamMerger merger = merger(3, 64, TimeUnit.SECONDS.toNanos(10));
+        merger.offer(2, 0, frame(2), 0, 4);
+        merger.offer(0, 5 * MS, frame(0), 0, 4);
+        merger.offer(1, 7 * MS, frame(1), 0, 4);
+        assertEquals(1, mTimes.size());
+        merger.removeSource(2);
+        assertEquals(2, mTimes.size());
+        merger.removeSource(0);
+        assertEquals(3, mTimes.size());
+        // The freed id starts over
+        merger.offer(2, 9 * MS, frame(2), 0, 4);
+        assertEquals(3, mTimes.size());
+        merger.removeSource(1);
+        assertEquals(4, mTimes.size());
+        assertEquals(2, (int) mSources.get(3));
+    }
+
+    @Test
+    public void interleavedSourcesMergeWithoutForcing() {
+        long[] emitted = new long[1];
+        StreamMerger merger = new StreamMerger(8, 1024, 64, 50 * MS,
+                (source, timestampNanos, data, offset, length) -> emitted[0]++);
+        byte[] payload = new byte[64];
+        int frames = 1_000_000;
+        for (int i = 0; i < frames; i++) {
+            // Eight sources a few frames apart
+            merger.offer(i & 7, (long) i * 1000 + ((i & 7) * 5000), payload, 0, payload.length);
+        }
+        assertEquals(0, merger.forcedCount());
+        assertTrue(emitted[0] > frames - 100);
+    }
+}
@@ -0,0 +1,128 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StreamReaderTest {
+
+    // Emits a deterministic byte pattern in irregular chunk sizes, like RFCOMM reads do
+    private static final class PatternStream extends InputStream {
+        private final long mTotal;
+        private long mPosition;
+        private int mReads;
+
+        PatternStream(long total) {
+            mTotal = total;
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mPosition >= mTotal) {
+                return -1;
+            }
+            int chunk = (int) Math.min(Math.min(len, 1 + (mReads++ * 37) % 1024), mTotal - mPosition);
+            for (int i = 0; i < chunk; i++) {
+                b[off + i] = patternAt(mPosition++);
+            }
+            return chunk;
+        }
+    }
+
+    private static byte patternAt(long position) {
+        return (byte) (position * 31 + (position >>> 8));
+    }
+
+    @Test
+    public void slowConsumer_neverSeesOverwrittenFrame() throws Exception {
+        final long total = 4L * 1024 * 1024;
+        BufferPool pool = new BufferPool(4, 1024);
+        BlockingQueue<Slab> handoff = new ArrayBlockingQueue<>(pool.slabCount());
+        StreamReader reader = new StreamReader(new PatternStream(total), pool, handoff::add);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread producer = new Thread(() -> {
+            try {
+                reader.pump();
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        producer.start();
+
+        long consumed = 0;
+        int frames = 0;
+        while (consumed < total) {
+            Slab slab = handoff.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Reader stalled", slab);
+            // Give the reader every chance to clobber the slab before we look at it
+            if (frames++ % 64 == 0) {
+                Thread.yield();
+            }
+            byte[] data = slab.array();
+            for (int i = 0; i < slab.length(); i++) {
+                assertEquals("Frame overwritten at " + (consumed + i), patternAt(consumed + i), data[i]);
+            }
+            consumed += slab.length();
+            slab.release();
+        }
+
+        producer.join(5000);
+        assertNull(failure.get());
+        assertEquals(total, consumed);
+        assertEquals("Slabs leaked", pool.slabCount(), pool.available());
+    }
+
+    @Test
+    public void slabsAreReusedAfterWarmup() throws Exception {
+        BufferPool pool = new BufferPool(2, 16);
+        Slab first = pool.acquire();
+        Slab second = pool.acquire();
+        assertNull(pool.tryAcquire());
+
+        first.release();
+        second.release();
+        Slab again = pool.acquire();
+        assertTrue(again == first || again == second);
+        again.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleRelease_isRejected() throws Exception {
+        BufferPool pool = new BufferPool(1, 16);
+        Slab slab = pool.acquire();
+        slab.release();
+        slab.release();
+    }
+
+    @Test
+    public void retainedSlab_returnsToPoolAfterLastRelease() throws Exception {
+        BufferPool pool = new BufferPool(1, 16);
+        Slab slab = pool.acquire().retain();
+        slab.release();
+        assertEquals(0, pool.available());
+        slab.release();
+        assertEquals(1, pool.available());
+    }
+
+    @Test
+    public void endOfStream_returnsEmptySlab() throws IOException, InterruptedException {
+        BufferPool pool = new BufferPool(2, 8);
+        StreamReader reader = new StreamReader(new ByteArrayInputStream(new byte[0]), pool, slab -> fail());
+        reader.pump();
+        assertEquals(2, pool.available());
+    }
+}
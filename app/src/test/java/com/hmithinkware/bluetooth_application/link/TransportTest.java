@@ -0,0 +1,106 @@
+package com.hmithinkware.bluetooth_application.link;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TransportTest {
+
+    private static final int PAYLOAD_BYTES = 8 * 1024 * 1024;
+
+    @Test
+    public void loopback_deliversEveryByteInOrder() throws Exception {
+        LoopbackTransport[] ends = LoopbackTransport.pair("00:11:22:33:44:55", 4096);
+        ends[0].connect();
+        assertEquals("00:11:22:33:44:55", ends[0].getAddress());
+        assertStreamsThrough(ends[1], ends[0]);
+    }
+
+    @Test
+    public void loopback_closeIsEndOfStreamForPeer() throws Exception {
+        LoopbackTransport[] ends = LoopbackTransport.pair("loop");
+        ends[1].close();
+        assertEquals(-1, ends[0].getInputStream().read(new byte[8]));
+        assertFalse(ends[1].isConnected());
+    }
+
+    @Test(expected = IOException.class)
+    public void loopback_writeAfterPeerClosedFails() throws Exception {
+        LoopbackTransport[] ends = LoopbackTransport.pair("loop");
+        ends[1].close();
+        ends[0].getOutputStream().write(new byte[8]);
+    }
+
+    @Test
+    public void tcp_deliversEveryByteInOrder() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            FutureTask<SocketTransport> accept = new FutureTask<>(() -> new SocketTransport(server.accept()));
+            new Thread(accept).start();
+
+            SocketTransport client = new SocketTransport("127.0.0.1", server.getLocalPort());
+            client.connect();
+            try (SocketTransport peer = accept.get(5, TimeUnit.SECONDS)) {
+                assertTrue(client.isConnected());
+                assertStreamsThrough(peer, client);
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    // Pushes a pattern from the peer through the pooled reader on the other end
+    private static void assertStreamsThrough(Transport peer, Transport local) throws Exception {
+        OutputStream out = peer.getOutputStream();
+        FutureTask<Void> writer = new FutureTask<>(() -> {
+            byte[] chunk = new byte[1500];
+            for (int sent = 0; sent < PAYLOAD_BYTES; ) {
+                int n = Math.min(chunk.length, PAYLOAD_BYTES - sent);
+                for (int i = 0; i < n; i++) {
+                    chunk[i] = (byte) (sent + i);
+                }
+                out.write(chunk, 0, n);
+                sent += n;
+            }
+            out.flush();
+            peer.close();
+            return null;
+        });
+        new Thread(writer).start();
+
+        InputStream in = local.getInputStream();
+        BufferPool pool = new BufferPool(8, 1024);
+        BlockingQueue<Slab> received = new ArrayBlockingQueue<>(pool.slabCount());
+        FutureTask<Void> reader = new FutureTask<>(() -> {
+            new StreamReader(in, pool, received::add).pump();
+            return null;
+        });
+        new Thread(reader).start();
+
+        int total = 0;
+        while (total < PAYLOAD_BYTES) {
+            Slab slab = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Transport stalled after " + total + " bytes", slab);
+            for (int i = 0; i < slab.length(); i++) {
+                assertEquals((byte) (total + i), slab.array()[i]);
+            }
+            total += slab.length();
+            slab.release();
+        }
+        finish(writer);
+        finish(reader);
+    }
+
+    private static void finish(Future<?> task) throws Exception {
+        task.get(5, TimeUnit.SECONDS);
+    }
+}
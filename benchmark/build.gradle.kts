@@ -0,0 +1,80 @@
+import groovy.json.JsonSlurper
+
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+// The link stack is plain Java, so benchmark it straight from the app sources on the desktop JVM
+sourceSets {
+    main {
+        java {
+            srcDir("../app/src/main/java")
+            include("com/hmithinkware/bluetooth_application/link/**")
+        }
+    }
+}
+
+val jmhResults = layout.buildDirectory.file("results/jmh/results.json")
+
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    fork.set(1)
+    warmupIterations.set(2)
+    warmup.set("1s")
+    iterations.set(3)
+    timeOnIteration.set("1s")
+    resultFormat.set("JSON")
+    resultsFile.set(jmhResults)
+    project.findProperty("jmhInclude")?.let { includes.set(listOf(it.toString())) }
+}
+
+// ./gradlew :benchmark:jmh :benchmark:jmhCheck [-PjmhTolerance=0.25]
+// Fails when a benchmark listed in baseline.json got slower than the tolerance allows.
+// The baseline is machine specific: regenerate it on the machine that runs the check.
+tasks.register("jmhCheck") {
+    group = "verification"
+    description = "Compares the last JMH run against benchmark/baseline.json."
+    val baselineFile = file("baseline.json")
+    val resultsFile = jmhResults
+    val tolerance = (project.findProperty("jmhTolerance") ?: "0.15").toString().toDouble()
+    inputs.file(baselineFile)
+    inputs.file(resultsFile)
+    doLast {
+        @Suppress("UNCHECKED_CAST")
+        val baseline = JsonSlurper().parse(baselineFile) as Map<String, Map<String, Any>>
+        @Suppress("UNCHECKED_CAST")
+        val results = JsonSlurper().parse(resultsFile.get().asFile) as List<Map<String, Any>>
+
+        val regressions = mutableListOf<String>()
+        for (result in results) {
+            @Suppress("UNCHECKED_CAST")
+            val params = result["params"] as Map<String, Any>?
+            var name = (result["benchmark"] as String).substringAfter(".benchmark.")
+            if (params != null) {
+                name += params.toSortedMap().entries.joinToString(",", "[", "]") { "${it.key}=${it.value}" }
+            }
+            val expected = baseline[name] ?: continue
+            @Suppress("UNCHECKED_CAST")
+            val score = ((result["primaryMetric"] as Map<String, Any>)["score"] as Number).toDouble()
+            val reference = (expected["score"] as Number).toDouble()
+            // Throughput regresses downwards, average time upwards
+            val change = if (result["mode"] == "thrpt") (reference - score) / reference else (score - reference) / reference
+            val line = String.format("%-70s %12.3f -> %12.3f %s (%+.1f%%)",
+                name, reference, score, expected["unit"], change * 100)
+            logger.lifecycle(line)
+            if (change > tolerance) {
+                regressions += line
+            }
+        }
+        if (regressions.isNotEmpty()) {
+            throw GradleException("Benchmarks regressed by more than ${(tolerance * 100).toInt()}%:\n"
+                + regressions.joinToString("\n"))
+        }
+    }
+}
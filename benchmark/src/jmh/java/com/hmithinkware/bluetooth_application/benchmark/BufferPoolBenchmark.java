@@ -0,0 +1,34 @@
+package com.hmithinkware.bluetooth_application.benchmark;
+
+import com.hmithinkware.bluetooth_application.link.BufferPool;
+import com.hmithinkware.bluetooth_application.link.Slab;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of taking a receive buffer: pooled slab versus a fresh array per read
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BufferPoolBenchmark {
+    private final BufferPool mPool = new BufferPool(16, 1024);
+
+    @Benchmark
+    public int pooledAcquireRelease() throws InterruptedException {
+        Slab slab = mPool.acquire();
+        int capacity = slab.capacity();
+        slab.release();
+        return capacity;
+    }
+
+    @Benchmark
+    public byte[] allocatePerRead() {
+        return new byte[1024];
+    }
+}
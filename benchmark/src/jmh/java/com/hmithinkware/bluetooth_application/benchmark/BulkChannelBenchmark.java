@@ -0,0 +1,126 @@
+package com.hmithinkware.bluetooth_application.benchmark;
+
+import com.hmithinkware.bluetooth_application.link.BulkChannel;
+import com.hmithinkware.bluetooth_application.link.Connection;
+import com.hmithinkware.bluetooth_application.link.ConnectionManager;
+import com.hmithinkware.bluetooth_application.link.FrameDecoder;
+import com.hmithinkware.bluetooth_application.link.LengthPrefixCodec;
+import com.hmithinkware.bluetooth_application.link.LoopbackTransport;
+import com.hmithinkware.bluetooth_application.link.Slab;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// How long a one-byte control frame takes to reach a peer reading 512 bytes a millisecond
+// while at least 48 KB of bulk data is queued: on a bulk channel, or through the single write
+// queue as everything went before bulk channels
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BulkChannelBenchmark {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final byte CONTROL = 'C';
+    private static final int BULK_AHEAD = 48 * 1024;
+    private static final int PIPE_BYTES = 4096;
+    private static final int PEER_BYTES_PER_MILLI = 512;
+
+    @Param({"bulk", "shared"})
+    public String lane;
+
+    private final LengthPrefixCodec mCodec = new LengthPrefixCodec();
+    private final AtomicInteger mSharedQueued = new AtomicInteger();
+    private volatile CountDownLatch mControlSeen;
+    private ConnectionManager mManager;
+    private Connection mConnection;
+    private BulkChannel mChannel;
+    private byte[] mBulk;
+    private byte[] mChunk;
+
+    // The peer's end: reads slowly and signals each control frame
+    private void startPeer(LoopbackTransport end) throws IOException {
+        InputStream in = end.getInputStream();
+        FrameDecoder decoder = mCodec.newDecoder((buffer, offset, length) -> {
+            CountDownLatch seen = mControlSeen;
+            if (length == 1 && buffer[offset] == CONTROL && seen != null) {
+                seen.countDown();
+            }
+        });
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[PEER_BYTES_PER_MILLI];
+            try {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    decoder.feed(buffer, 0, n);
+                    Thread.sleep(1);
+                }
+            } catch (IOException | InterruptedException ignored) {
+                // Link closed
+            }
+        }, "BulkChannelPeer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        mManager = new ConnectionManager(1, mCodec, new ConnectionManager.Listener() {
+            @Override
+            public void onFrame(Connection connection, Slab frame) {
+                frame.release();
+            }
+
+            @Override
+            public void onStateChanged(Connection connection, Connection.State state) {
+            }
+        });
+        mConnection = mManager.connect(ADDRESS, address -> {
+            LoopbackTransport[] ends = LoopbackTransport.pair(address, PIPE_BYTES);
+            startPeer(ends[1]);
+            return ends[0];
+        }).get(5, TimeUnit.SECONDS);
+        mChannel = mConnection.openBulkChannel(1, 1);
+        mBulk = new byte[BULK_AHEAD];
+        mChunk = new byte[mChannel.getChunkSize()];
+    }
+
+    @TearDown
+    public void tearDown() {
+        mManager.close();
+    }
+
+    // Keeps the link saturated, so every control frame has the same backlog to get past
+    private void topUp() {
+        if (lane.equals("bulk")) {
+            if (mChannel.getQueueDepth() == 0) {
+                mChannel.write(mBulk);
+            }
+            return;
+        }
+        while (mSharedQueued.get() < BULK_AHEAD / mChunk.length) {
+            mSharedQueued.incrementAndGet();
+            mConnection.write(mChunk).whenComplete((ignored, e) -> mSharedQueued.decrementAndGet());
+        }
+    }
+
+    @Benchmark
+    public boolean controlBehindBulk() throws InterruptedException {
+        topUp();
+        CountDownLatch seen = new CountDownLatch(1);
+        mControlSeen = seen;
+        mConnection.write(new byte[]{CONTROL});
+        return seen.await(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,171 @@
+package com.hmithinkware.bluetooth_application.benchmark;
+
+import com.hmithinkware.bluetooth_application.link.BulkChannel;
+import com.hmithinkware.bluetooth_application.link.BulkTransfer;
+import com.hmithinkware.bluetooth_application.link.Connection;
+import com.hmithinkware.bluetooth_application.link.ConnectionManager;
+import com.hmithinkware.bluetooth_application.link.FrameDecoder;
+import com.hmithinkware.bluetooth_application.link.LengthPrefixCodec;
+import com.hmithinkware.bluetooth_application.link.LoopbackTransport;
+import com.hmithinkware.bluetooth_application.link.Slab;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Sending a 32 KB file to a peer whose acks take 2 ms to come back, stop-and-wait against
+// windows that keep chunks in flight across the round trip
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BulkTransferBenchmark {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int FILE_BYTES = 32 * 1024;
+    private static final long ACK_DELAY_MICROS = 2000;
+
+    @Param({"1", "8", "32"})
+    public int window;
+
+    private final LengthPrefixCodec mCodec = new LengthPrefixCodec();
+    private final ScheduledExecutorService mAckDelayer = Executors.newSingleThreadScheduledExecutor();
+    private ConnectionManager mManager;
+    private BulkTransfer mTransfers;
+    private File mFile;
+
+    // Stores every chunk and acks it after the delay; starts over for each new transfer id
+    private final class Peer {
+        private final OutputStream mOut;
+        private final BitSet mHeld = new BitSet();
+        private int mTransfer = -1;
+
+        Peer(LoopbackTransport end) throws IOException {
+            mOut = end.getOutputStream();
+            InputStream in = end.getInputStream();
+            FrameDecoder decoder = mCodec.newDecoder(this::onFrame);
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[4096];
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        decoder.feed(buffer, 0, n);
+                    }
+                } catch (IOException ignored) {
+                    // Link closed
+                }
+            }, "BulkTransferPeer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void onFrame(byte[] buffer, int offset, int length) {
+            if (buffer[offset] == BulkTransfer.MARKER && buffer[offset + 1] == BulkTransfer.OFFER) {
+                int transfer = buffer[offset + 2] & 0xFF;
+                if (transfer != mTransfer) {
+                    mTransfer = transfer;
+                    mHeld.clear();
+                }
+                byte[] accept = new byte[7];
+                accept[0] = BulkTransfer.MARKER;
+                accept[1] = BulkTransfer.ACCEPT;
+                accept[2] = (byte) transfer;
+                writeU32(accept, 3, mHeld.nextClearBit(0));
+                send(accept);
+            } else if (buffer[offset] == BulkChannel.MARKER) {
+                int chunk = offset + BulkChannel.HEADER_BYTES;
+                mHeld.set((int) readU32(buffer, chunk + 1));
+                int next = mHeld.nextClearBit(0);
+                int held = 0;
+                for (int bit = 0; bit < 32; bit++) {
+                    if (mHeld.get(next + 1 + bit)) {
+                        held |= 1 << bit;
+                    }
+                }
+                byte[] ack = new byte[11];
+                ack[0] = BulkTransfer.MARKER;
+                ack[1] = BulkTransfer.ACK;
+                ack[2] = (byte) mTransfer;
+                writeU32(ack, 3, next);
+                writeU32(ack, 7, held);
+                mAckDelayer.schedule(() -> send(ack), ACK_DELAY_MICROS, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        private synchronized void send(byte[] payload) {
+            byte[] wire = new byte[mCodec.maxEncodedSize(payload.length)];
+            try {
+                mOut.write(wire, 0, mCodec.encode(payload, 0, payload.length, wire, 0));
+            } catch (IOException ignored) {
+                // Link closed
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("transfer", ".bin");
+        byte[] data = new byte[FILE_BYTES];
+        new Random(1).nextBytes(data);
+        Files.write(mFile.toPath(), data);
+        mManager = new ConnectionManager(1, mCodec, new ConnectionManager.Listener() {
+            @Override
+            public void onFrame(Connection connection, Slab frame) {
+                frame.release();
+            }
+
+            @Override
+            public void onStateChanged(Connection connection, Connection.State state) {
+            }
+        });
+        Connection connection = mManager.connect(ADDRESS, address -> {
+            LoopbackTransport[] ends = LoopbackTransport.pair(address);
+            new Peer(ends[1]);
+            return ends[0];
+        }).get(5, TimeUnit.SECONDS);
+        mTransfers = connection.transfers();
+        mTransfers.setWindow(window);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mManager.close();
+        mAckDelayer.shutdownNow();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long send() throws Exception {
+        mTransfers.send(mFile).get(30, TimeUnit.SECONDS);
+        return mTransfers.getBytesAcked();
+    }
+
+    private static long readU32(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void writeU32(byte[] data, int offset, long value) {
+        for (int i = 0; i < 4; i++) {
+            data[offset + i] = (byte) (value >>> (24 - 8 * i));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.hmithinkware.bluetooth_application.benchmark;
+
+import com.hmithinkware.bluetooth_application.link.LineBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Decoding one received 40-byte telemetry line
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CharsetBenchmark {
+    private final byte[] mReadBuffer = new byte[1024];
+    private final LineBuffer mLines = new LineBuffer(200, 256);
+    private int mLength;
+
+    @Setup
+    public void setUp() {
+        byte[] line = "T,1718000000123,21.43,-0.0012,998.2,OK\r\n".getBytes(StandardCharsets.US_ASCII);
+        Arrays.fill(mReadBuffer, (byte) 'x');
+        System.arraycopy(line, 0, mReadBuffer, 0, line.length);
+        mLength = line.length;
+    }
+
+    // What the original handler did: decode the whole 1024-byte array
+    @Benchmark
+    public String legacyWholeBuffer() {
+        return new String(mReadBuffer, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String exactLength() {
+        return new String(mReadBuffer, 0, mLength, StandardCharsets.UTF_8);
+    }
+
+    // The reader-side cost today: copy into the UI ring, decode later at frame rate
+    @Benchmark
+    public long lineBufferAppend() {
+        mLines.append(mReadBuffer, 0, mLength);
+        return mLines.written();
+    }
+}
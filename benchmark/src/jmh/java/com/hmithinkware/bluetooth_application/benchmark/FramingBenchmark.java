@@ -0,0 +1,73 @@
+package com.hmithinkware.bluetooth_application.benchmark;
+
+import com.hmithinkware.bluetooth_application.link.CobsCodec;
+import com.hmithinkware.bluetooth_application.link.FrameCodec;
+import com.hmithinkware.bluetooth_application.link.FrameDecoder;
+import com.hmithinkware.bluetooth_application.link.LengthPrefixCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Frame encode, and incremental decode of a stream delivered in RFCOMM-sized reads
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FramingBenchmark {
+    private static final int FRAMES_PER_STREAM = 256;
+    private static final int READ_SIZE = 990;
+
+    @Param({"length-prefix", "cobs"})
+    public String codec;
+
+    @Param({"16", "256"})
+    public int payloadSize;
+
+    private FrameCodec mCodec;
+    private byte[] mPayload;
+    private byte[] mEncodeBuffer;
+    private byte[] mWire;
+    private FrameDecoder mDecoder;
+    private int mDecodedBytes;
+
+    @Setup
+    public void setUp() {
+        mCodec = "cobs".equals(codec) ? new CobsCodec() : new LengthPrefixCodec();
+        mPayload = new byte[payloadSize];
+        new Random(1).nextBytes(mPayload);
+        mEncodeBuffer = new byte[mCodec.maxEncodedSize(payloadSize)];
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES_PER_STREAM; i++) {
+            int n = mCodec.encode(mPayload, 0, payloadSize, mEncodeBuffer, 0);
+            wire.write(mEncodeBuffer, 0, n);
+        }
+        mWire = wire.toByteArray();
+        mDecoder = mCodec.newDecoder((buffer, offset, length) -> mDecodedBytes += length);
+    }
+
+    @Benchmark
+    public int encode() {
+        return mCodec.encode(mPayload, 0, mPayload.length, mEncodeBuffer, 0);
+    }
+
+    // One op decodes FRAMES_PER_STREAM frames
+    @Benchmark
+    public void decodeStream(Blackhole bh) {
+        mDecodedBytes = 0;
+        for (int pos = 0; pos < mWire.length; pos += READ_SIZE) {
+            mDecoder.feed(mWire, pos, Math.min(READ_SIZE, mWire.length - pos));
+        }
+        bh.consume(mDecodedBytes);
+    }
+}
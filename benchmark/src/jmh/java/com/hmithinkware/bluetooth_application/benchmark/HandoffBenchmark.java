@@ -0,0 +1,72 @@
+package com.hmithinkware.bluetooth_application.benchmark;
+
+import com.hmithinkware.bluetooth_application.link.BoundedQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Reader-thread to consumer-thread handoff. LinkedBlockingQueue stands in for the Handler's
+// MessageQueue (a locked linked list with a node per message) the original code used.
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HandoffBenchmark {
+    private static final Integer ITEM = 1;
+
+    private final BoundedQueue<Integer> mBounded = new BoundedQueue<>(1024);
+    private final ArrayBlockingQueue<Integer> mArray = new ArrayBlockingQueue<>(1024);
+    private final LinkedBlockingQueue<Integer> mLinked = new LinkedBlockingQueue<>();
+
+    @Benchmark
+    @Group("boundedQueue")
+    @GroupThreads(1)
+    public boolean boundedOffer() {
+        return mBounded.offer(ITEM);
+    }
+
+    @Benchmark
+    @Group("boundedQueue")
+    @GroupThreads(1)
+    public Integer boundedPoll() {
+        return mBounded.poll();
+    }
+
+    @Benchmark
+    @Group("arrayBlockingQueue")
+    @GroupThreads(1)
+    public boolean arrayOffer() {
+        return mArray.offer(ITEM);
+    }
+
+    @Benchmark
+    @Group("arrayBlockingQueue")
+    @GroupThreads(1)
+    public Integer arrayPoll() {
+        return mArray.poll();
+    }
+
+    @Benchmark
+    @Group("legacyMessageQueue")
+    @GroupThreads(1)
+    public boolean linkedOffer() {
+        // Unbounded like the MessageQueue; keep it from growing without limit when the consumer lags
+        return mLinked.size() < 1024 && mLinked.offer(ITEM);
+    }
+
+    @Benchmark
+    @Group("legacyMessageQueue")
+    @GroupThreads(1)
+    public Integer linkedPoll() {
+        return mLinked.poll();
+    }
+}
@@ -0,0 +1,148 @@
+package com.hmithinkware.bluetooth_application.benchmark;
+
+import com.hmithinkware.bluetooth_application.link.FrameDecoder;
+import com.hmithinkware.bluetooth_application.link.LengthPrefixCodec;
+import com.hmithinkware.bluetooth_application.link.LoopbackTransport;
+import com.hmithinkware.bluetooth_application.link.PayloadCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Effective sensor samples per second end to end over a loopback link: wrap, frame, write,
+ * then read, deframe and unwrap on the other end.
+ * <p>
+ * With {@code linkKBps} 0 the link is as fast as memory and the score shows the CPU cost of
+ * each transform. With 160 the sender is paced to roughly what RFCOMM manages on our
+ * devices, and the score shows how many more samples fit through the radio.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PayloadCodecBenchmark {
+    private static final int SAMPLES = 120;
+    // Enough distinct frames that deflate's 32 KB window never sees a repeat
+    private static final int FRAMES = 1024;
+
+    @Param({"none", "delta", "deflate", "delta+deflate"})
+    public String transforms;
+
+    @Param({"0", "160"})
+    public int linkKBps;
+
+    private final LengthPrefixCodec mCodec = new LengthPrefixCodec();
+    private final byte[][] mFrames = new byte[FRAMES][];
+    private byte[] mWrapped;
+    private byte[] mWire;
+    private PayloadCodec mSender;
+    private LoopbackTransport[] mEnds;
+    private OutputStream mOut;
+    private Thread mReceiver;
+    private long mNanosPerByte;
+    private long mNextSend;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws IOException {
+        int offered = PayloadCodec.NONE;
+        if (transforms.contains("delta")) {
+            offered |= PayloadCodec.DELTA;
+        }
+        if (transforms.contains("deflate")) {
+            offered |= PayloadCodec.DEFLATE;
+        }
+        int maxPayload = PayloadCodec.payloadLimit(mCodec.maxPayload());
+        mSender = new PayloadCodec(offered, null, maxPayload);
+        PayloadCodec receiver = new PayloadCodec(offered, null, maxPayload);
+        if (offered != PayloadCodec.NONE) {
+            byte[] hello = mSender.hello();
+            byte[] accept = receiver.onHandshake(hello, 0, hello.length);
+            mSender.onHandshake(accept, 0, accept.length);
+        }
+
+        // One slowly moving channel with a little noise, like a strain gauge at 1 kHz
+        Random random = new Random(42);
+        for (int f = 0; f < FRAMES; f++) {
+            byte[] frame = new byte[SAMPLES * 2];
+            for (int i = 0; i < SAMPLES; i++) {
+                int t = f * SAMPLES + i;
+                int sample = (int) (800 * Math.sin(t / 90.0) + 300 * Math.sin(t / 7.3)) + random.nextInt(9) - 4;
+                frame[2 * i] = (byte) (sample >>> 8);
+                frame[2 * i + 1] = (byte) sample;
+            }
+            mFrames[f] = frame;
+        }
+        mWrapped = new byte[mCodec.maxPayload()];
+        mWire = new byte[mCodec.maxEncodedSize(mCodec.maxPayload())];
+        mNanosPerByte = linkKBps == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / (linkKBps * 1024L);
+
+        mEnds = LoopbackTransport.pair("bench");
+        mOut = mEnds[0].getOutputStream();
+        InputStream in = mEnds[1].getInputStream();
+        byte[] unwrapped = new byte[maxPayload];
+        FrameDecoder decoder = mCodec.newDecoder((buffer, offset, length) -> {
+            if (receiver.isWrapped(buffer, offset, length)) {
+                try {
+                    receiver.unwrap(buffer, offset, length, unwrapped, 0);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        mReceiver = new Thread(() -> {
+            byte[] buffer = new byte[1024];
+            try {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    decoder.feed(buffer, 0, n);
+                }
+            } catch (IOException ignored) {
+                // Closed at teardown
+            }
+        }, "PayloadReceiver");
+        mReceiver.setDaemon(true);
+        mReceiver.start();
+        mNextSend = System.nanoTime();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        mEnds[0].close();
+        mEnds[1].close();
+        mReceiver.join(1000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void sendFrame() throws IOException {
+        byte[] frame = mFrames[mNext];
+        mNext = (mNext + 1) % FRAMES;
+        int length = mSender.wrap(frame, 0, frame.length, mWrapped, 0);
+        int wire = mCodec.encode(mWrapped, 0, length, mWire, 0);
+        if (mNanosPerByte != 0) {
+            // Token bucket: the radio drains at linkKBps, so wait until this frame fits
+            mNextSend = Math.max(mNextSend, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(20));
+            mNextSend += wire * mNanosPerByte;
+            long wait;
+            while ((wait = mNextSend - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        mOut.write(mWire, 0, wire);
+    }
+}
@@ -0,0 +1,103 @@
+package com.hmithinkware.bluetooth_application.benchmark;
+
+import com.hmithinkware.bluetooth_application.link.BufferPool;
+import com.hmithinkware.bluetooth_application.link.FramingSink;
+import com.hmithinkware.bluetooth_application.link.LengthPrefixCodec;
+import com.hmithinkware.bluetooth_application.link.LineBuffer;
+import com.hmithinkware.bluetooth_application.link.RawCodec;
+import com.hmithinkware.bluetooth_application.link.StreamReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end receive path over an in-memory stream of 4096 telemetry lines.
+ * <p>
+ * {@code legacyConnectedThread} reproduces the original ConnectedThread and handler: one
+ * shared 1024-byte array per read and a String decoded over the whole array per message.
+ * The other two run the current pipeline with and without framing, ending in the UI ring.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReadLoopBenchmark {
+    private static final int LINES = 4096;
+
+    // Hands out the stream in chunks no bigger than one RFCOMM packet
+    private static final class ChunkedStream extends ByteArrayInputStream {
+        ChunkedStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 990));
+        }
+    }
+
+    private byte[] mRawStream;
+    private byte[] mFramedStream;
+    private final LineBuffer mLines = new LineBuffer(200, 256);
+    private final BufferPool mReadPool = new BufferPool(16, 1024);
+    private final BufferPool mFramePool = new BufferPool(16, 1024);
+
+    @Setup
+    public void setUp() {
+        LengthPrefixCodec codec = new LengthPrefixCodec();
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        ByteArrayOutputStream framed = new ByteArrayOutputStream();
+        byte[] wire = new byte[codec.maxEncodedSize(codec.maxPayload())];
+        for (int i = 0; i < LINES; i++) {
+            byte[] line = ("T," + (1718000000000L + i) + ",21.43,-0.0012,998.2,OK\r\n").getBytes(StandardCharsets.US_ASCII);
+            raw.write(line, 0, line.length);
+            framed.write(wire, 0, codec.encode(line, 0, line.length, wire, 0));
+        }
+        mRawStream = raw.toByteArray();
+        mFramedStream = framed.toByteArray();
+    }
+
+    @Benchmark
+    public void legacyConnectedThread(Blackhole bh) throws IOException {
+        InputStream in = new ChunkedStream(mRawStream);
+        byte[] buffer = new byte[1024];
+        int bytes;
+        while ((bytes = in.read(buffer)) > 0) {
+            // mHandler.obtainMessage(MESSAGE_READ, bytes, -1, buffer) then, on the UI thread:
+            bh.consume(bytes);
+            bh.consume(new String(buffer, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Benchmark
+    public long pooledUnframed() throws IOException, InterruptedException {
+        new StreamReader(new ChunkedStream(mRawStream), mReadPool,
+                new FramingSink(new RawCodec(1024), mFramePool, frame -> {
+                    mLines.append(frame.array(), 0, frame.length());
+                    frame.release();
+                })).pump();
+        return mLines.written();
+    }
+
+    @Benchmark
+    public long pooledLengthPrefixed() throws IOException, InterruptedException {
+        new StreamReader(new ChunkedStream(mFramedStream), mReadPool,
+                new FramingSink(new LengthPrefixCodec(), mFramePool, frame -> {
+                    mLines.append(frame.array(), 0, frame.length());
+                    frame.release();
+                })).pump();
+        return mLines.written();
+    }
+}
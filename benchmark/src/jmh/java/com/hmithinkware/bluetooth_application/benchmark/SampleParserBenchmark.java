@@ -0,0 +1,78 @@
+package com.hmithinkware.bluetooth_application.benchmark;
+
+import com.hmithinkware.bluetooth_application.link.SampleParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning 4096 telemetry lines into numbers.
+ * <p>
+ * {@code legacyStringSplit} is what downstream code did with the handler's Strings: decode,
+ * split on commas and parse each field. {@code sampleParser} scans the same bytes into
+ * primitive columns, read in 990-byte chunks as they come off RFCOMM.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SampleParserBenchmark {
+    private static final int LINES = 4096;
+    private static final int CHUNK = 990;
+
+    private byte[] mStream;
+    private final double[] mSums = new double[4];
+    private SampleParser mParser;
+
+    @Setup
+    public void setUp() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < LINES; i++) {
+            byte[] line = ("T," + (1718000000000L + i) + "," + (21 + i % 7) + ".43,-0.00" + (i % 10)
+                    + ",998." + (i % 9) + ",OK\r\n").getBytes(StandardCharsets.US_ASCII);
+            stream.write(line, 0, line.length);
+        }
+        mStream = stream.toByteArray();
+        mParser = new SampleParser(256, 8, 256, batch -> {
+            for (int field = 0; field < 4; field++) {
+                double[] column = batch.doubleColumn(field);
+                for (int row = 0; row < batch.size(); row++) {
+                    mSums[field] += column[row];
+                }
+            }
+        });
+    }
+
+    @Benchmark
+    public double legacyStringSplit() {
+        double sum = 0;
+        for (int offset = 0; offset < mStream.length; ) {
+            int end = offset;
+            while (mStream[end] != '\n') {
+                end++;
+            }
+            String[] fields = new String(mStream, offset, end - offset, StandardCharsets.UTF_8).trim().split(",");
+            for (int field = 1; field < 5; field++) {
+                sum += Double.parseDouble(fields[field]);
+            }
+            offset = end + 1;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double sampleParser() {
+        for (int offset = 0; offset < mStream.length; offset += CHUNK) {
+            mParser.feed(mStream, offset, Math.min(CHUNK, mStream.length - offset), 0);
+        }
+        return mSums[1];
+    }
+}
@@ -0,0 +1,141 @@
+package com.hmithinkware.bluetooth_application.benchmark;
+
+import com.hmithinkware.bluetooth_application.link.SampleStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Handing 64 points to the store, and querying six hours of one reading every 100 ms. Ingest
+// drops points once it outruns the writer; the caller must not slow down either way.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SampleStoreBenchmark {
+    private static final String SERIES = "00:11:22:33:44:55 T[1]";
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final int POINTS = 6 * 36_000;
+    private static final int BATCH = 64;
+
+    private static File createDirectory() throws IOException {
+        return Files.createTempDirectory("samples").toFile();
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @State(Scope.Thread)
+    public static class Ingest {
+        final long[] times = new long[BATCH];
+        final double[] values = new double[BATCH];
+        File directory;
+        SampleStore store;
+        int series;
+
+        @Setup
+        public void setUp() throws IOException {
+            directory = createDirectory();
+            store = new SampleStore(directory, 64 * 1024);
+            store.start();
+            series = store.seriesId(SERIES);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < BATCH; i++) {
+                times[i] = now + i * 100L;
+                values[i] = 20 + (i & 3) * 0.01;
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            store.close();
+            delete(directory);
+        }
+    }
+
+    // Six hours of a slowly wandering reading, stored before the first query
+    @State(Scope.Thread)
+    public static class History {
+        long base;
+        File directory;
+        SampleStore store;
+        final long[] times = new long[10_000];
+        final double[] means = new double[10_000];
+        final double[] mins = new double[10_000];
+        final double[] maxes = new double[10_000];
+
+        @Setup
+        public void setUp() throws IOException, InterruptedException {
+            directory = createDirectory();
+            store = new SampleStore(directory, 64 * 1024);
+            store.start();
+            base = (System.currentTimeMillis() / HOUR - 7) * HOUR;
+            long[] times = new long[POINTS];
+            double[] values = new double[POINTS];
+            Random random = new Random(3);
+            double value = 20;
+            for (int i = 0; i < POINTS; i++) {
+                times[i] = base + i * 100L + random.nextInt(3) - 1;
+                if (random.nextInt(5) == 0) {
+                    value += random.nextBoolean() ? 0.01 : -0.01;
+                }
+                values[i] = Math.round(value * 100) / 100.0;
+            }
+            int series = store.seriesId(SERIES);
+            int taken = 0;
+            while (taken < POINTS) {
+                taken += store.append(series, times, values, taken, POINTS - taken);
+                Thread.yield();
+            }
+            while (store.storedCount() < POINTS) {
+                Thread.sleep(5);
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            store.close();
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    public int ingest(Ingest state) {
+        return state.store.append(state.series, state.times, state.values, 0, BATCH);
+    }
+
+    // Unaligned, so every tier plays a part
+    @Benchmark
+    public double aggregateFiveHours(History state) throws IOException {
+        return state.store.aggregate(SERIES, state.base + 1234, state.base + 5 * HOUR + 56_789).mean();
+    }
+
+    @Benchmark
+    public int rangeTenMinutesRaw(History state) throws IOException {
+        long from = state.base + HOUR + 333;
+        return state.store.range(SERIES, from, from + TimeUnit.MINUTES.toMillis(10), state.times.length,
+                state.times, state.means, state.mins, state.maxes);
+    }
+
+    @Benchmark
+    public int rangeSixHoursByMinute(History state) throws IOException {
+        return state.store.range(SERIES, state.base, state.base + 6 * HOUR, 500,
+                state.times, state.means, state.mins, state.maxes);
+    }
+}
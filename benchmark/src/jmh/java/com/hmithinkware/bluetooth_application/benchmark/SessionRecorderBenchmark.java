@@ -0,0 +1,53 @@
+package com.hmithinkware.bluetooth_application.benchmark;
+
+import com.hmithinkware.bluetooth_application.link.SessionRecorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// What recording adds to the read loop per 40-byte frame. Drops are expected once the
+// benchmark outruns the disk; the read loop must not slow down either way.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SessionRecorderBenchmark {
+    private final byte[] mFrame = new byte[40];
+    private File mDirectory;
+    private SessionRecorder mRecorder;
+    private long mMicros;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("session").toFile();
+        mRecorder = new SessionRecorder(mDirectory, 1024, 4096, 64 * 1024 * 1024, 200);
+        mRecorder.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mRecorder.close();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public boolean record() {
+        return mRecorder.record(0, mMicros++, mFrame, 0, mFrame.length);
+    }
+}
@@ -0,0 +1,37 @@
+package com.hmithinkware.bluetooth_application.benchmark;
+
+import com.hmithinkware.bluetooth_application.link.StreamMerger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Merging 64-byte frames from eight sources a few frames apart, as from eight synced devices
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StreamMergerBenchmark {
+    private final byte[] mPayload = new byte[64];
+    private StreamMerger mMerger;
+    private long mEmitted;
+    private long mFrame;
+
+    @Setup
+    public void setUp() {
+        mMerger = new StreamMerger(8, 1024, 64, TimeUnit.MILLISECONDS.toNanos(50),
+                (source, timestampNanos, data, offset, length) -> mEmitted++);
+    }
+
+    @Benchmark
+    public boolean offer() {
+        long i = mFrame++;
+        int source = (int) (i & 7);
+        return mMerger.offer(source, i * 1000 + source * 5000L, mPayload, 0, mPayload.length);
+    }
+}
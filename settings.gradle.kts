@@ -21,4 +21,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "bluetooth_application"
 include(":app")
+include(":benchmark")
  
\ No newline at end of file